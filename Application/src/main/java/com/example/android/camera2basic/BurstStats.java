@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * Tracks the frames of a burst from the moment the sensor starts exposing them until they are
+ * on disk, and reports the sustained frame rate and end-to-end latency per frame.
+ *
+ * <p>Frames are identified by their sensor timestamp, which is the same value reported by
+ * {@code CaptureCallback.onCaptureStarted} and {@code Image.getTimestamp()}.</p>
+ */
+public class BurstStats {
+
+    /**
+     * Maximum number of frames that may be in flight (started but not yet saved).
+     */
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private final long[] mSensorTimestamps = new long[MAX_IN_FLIGHT];
+    private final long[] mStartNanos = new long[MAX_IN_FLIGHT];
+    private int mNextSlot;
+
+    private long mFirstStartNanos;
+    private long mLastSavedNanos;
+    private int mFramesStarted;
+    private int mFramesSaved;
+    private long mTotalLatencyNanos;
+    private long mLastLatencyNanos;
+    private long mMaxLatencyNanos;
+
+    /**
+     * Clears all counters at the start of a new burst.
+     */
+    public synchronized void begin() {
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            mSensorTimestamps[i] = 0;
+        }
+        mNextSlot = 0;
+        mFirstStartNanos = 0;
+        mLastSavedNanos = 0;
+        mFramesStarted = 0;
+        mFramesSaved = 0;
+        mTotalLatencyNanos = 0;
+        mLastLatencyNanos = 0;
+        mMaxLatencyNanos = 0;
+    }
+
+    /**
+     * Records that the sensor started exposing a burst frame.
+     *
+     * @param sensorTimestamp The frame's sensor timestamp
+     */
+    public synchronized void onFrameStarted(long sensorTimestamp) {
+        long now = System.nanoTime();
+        if (mFramesStarted == 0) {
+            mFirstStartNanos = now;
+        }
+        mFramesStarted++;
+        mSensorTimestamps[mNextSlot] = sensorTimestamp;
+        mStartNanos[mNextSlot] = now;
+        mNextSlot = (mNextSlot + 1) % MAX_IN_FLIGHT;
+    }
+
+    /**
+     * @return Whether the frame with {@code sensorTimestamp} belongs to the burst and is not saved
+     */
+    public synchronized boolean isTracking(long sensorTimestamp) {
+        return indexOf(sensorTimestamp) >= 0;
+    }
+
+    /**
+     * Records that a burst frame has been written to disk.
+     *
+     * @param sensorTimestamp The frame's sensor timestamp
+     * @return The end-to-end latency of the frame in nanoseconds, or -1 if it was not tracked
+     */
+    public synchronized long onFrameSaved(long sensorTimestamp) {
+        int index = indexOf(sensorTimestamp);
+        if (index < 0) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        long latency = now - mStartNanos[index];
+        mSensorTimestamps[index] = 0;
+        mFramesSaved++;
+        mLastSavedNanos = now;
+        mTotalLatencyNanos += latency;
+        mLastLatencyNanos = latency;
+        if (latency > mMaxLatencyNanos) {
+            mMaxLatencyNanos = latency;
+        }
+        return latency;
+    }
+
+    public synchronized int getFramesStarted() {
+        return mFramesStarted;
+    }
+
+    public synchronized int getFramesSaved() {
+        return mFramesSaved;
+    }
+
+    /**
+     * @return Frames written to disk per second, measured from the first exposure to the last save
+     */
+    public synchronized double getFramesPerSecond() {
+        long elapsed = mLastSavedNanos - mFirstStartNanos;
+        return mFramesSaved == 0 || elapsed <= 0 ? 0 : mFramesSaved * 1e9 / elapsed;
+    }
+
+    public synchronized double getAverageLatencyMillis() {
+        return mFramesSaved == 0 ? 0 : mTotalLatencyNanos / 1e6 / mFramesSaved;
+    }
+
+    public synchronized double getLastLatencyMillis() {
+        return mLastLatencyNanos / 1e6;
+    }
+
+    public synchronized double getMaxLatencyMillis() {
+        return mMaxLatencyNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("started=%d saved=%d fps=%.2f avg=%.1fms last=%.1fms max=%.1fms",
+                mFramesStarted, mFramesSaved, getFramesPerSecond(), getAverageLatencyMillis(),
+                getLastLatencyMillis(), getMaxLatencyMillis());
+    }
+
+    private int indexOf(long sensorTimestamp) {
+        if (sensorTimestamp == 0) {
+            return -1;
+        }
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            if (mSensorTimestamps[i] == sensorTimestamp) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -21,10 +21,15 @@ import android.os.Bundle;
 
 public class CameraActivity extends Activity {
 
+    /**
+     * Shared by the photo and video fragments, so switching between them keeps the camera open.
+     */
+    private final CameraSessionManager mSessionManager = new CameraSessionManager();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mSessionManager.start();
         setContentView(R.layout.activity_camera);
         if (null == savedInstanceState) {
             getFragmentManager().beginTransaction()
@@ -33,4 +38,28 @@ public class CameraActivity extends Activity {
         }
 
     }
+
+    @Override
+    protected void onResume() {
+        // Fragments resume after this, and may open the camera.
+        mSessionManager.resume();
+        super.onResume();
+    }
+
+    @Override
+    protected void onPause() {
+        // Fragments have paused and released their sessions by now.
+        super.onPause();
+        mSessionManager.pause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSessionManager.stop();
+    }
+
+    CameraSessionManager getSessionManager() {
+        return mSessionManager;
+    }
 }
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The characteristics of one camera that the app needs, read once and kept as primitives.
+ *
+ * <p>Instances are immutable. Output sizes are stored as packed {@code (width, height)} pairs in
+ * the order the camera reported them, one table per {@code TABLE_*} output. An instance can be
+ * written to and read back from a compact binary form, which {@link CameraCapabilityCache} keeps
+ * on disk.</p>
+ */
+public final class CameraCapabilities {
+
+    /**
+     * Size table of {@code ImageFormat.JPEG} outputs.
+     */
+    public static final int TABLE_JPEG = 0;
+
+    /**
+     * Size table of {@code SurfaceTexture} outputs, used for the preview.
+     */
+    public static final int TABLE_PREVIEW = 1;
+
+    /**
+     * Size table of {@code MediaRecorder} outputs.
+     */
+    public static final int TABLE_VIDEO = 2;
+
+    /**
+     * Size table of {@code ImageFormat.YUV_420_888} outputs, used for zero shutter lag.
+     */
+    public static final int TABLE_YUV = 3;
+
+    static final int TABLE_COUNT = 4;
+
+    /**
+     * Value of {@link #getFacing()} and {@link #getHardwareLevel()} when the camera did not report
+     * it.
+     */
+    public static final int UNKNOWN = -1;
+
+    private final String mCameraId;
+    private final int mFacing;
+    private final int mSensorOrientation;
+    private final int mHardwareLevel;
+    private final int mTimestampSource;
+    private final boolean mFlashAvailable;
+    private final boolean mFixedFocus;
+    private final float mMaxDigitalZoom;
+    private final int mActiveArrayLeft;
+    private final int mActiveArrayTop;
+    private final int mActiveArrayRight;
+    private final int mActiveArrayBottom;
+    private final int[] mFaceDetectModes;
+    private final int mMaxFaceCount;
+    private final int[][] mSizes;
+
+    /**
+     * Collects the values of a {@link CameraCapabilities}.
+     */
+    public static class Builder {
+
+        private final String mCameraId;
+        private int mFacing = UNKNOWN;
+        private int mSensorOrientation;
+        private int mHardwareLevel = UNKNOWN;
+        private int mTimestampSource;
+        private boolean mFlashAvailable;
+        private boolean mFixedFocus;
+        private float mMaxDigitalZoom = 1f;
+        private int mActiveArrayLeft;
+        private int mActiveArrayTop;
+        private int mActiveArrayRight;
+        private int mActiveArrayBottom;
+        private int[] mFaceDetectModes = new int[0];
+        private int mMaxFaceCount;
+        private final int[][] mSizes = new int[TABLE_COUNT][];
+
+        public Builder(String cameraId) {
+            mCameraId = cameraId;
+            for (int i = 0; i < TABLE_COUNT; i++) {
+                mSizes[i] = new int[0];
+            }
+        }
+
+        public Builder setFacing(int facing) {
+            mFacing = facing;
+            return this;
+        }
+
+        public Builder setSensorOrientation(int sensorOrientation) {
+            mSensorOrientation = sensorOrientation;
+            return this;
+        }
+
+        public Builder setHardwareLevel(int hardwareLevel) {
+            mHardwareLevel = hardwareLevel;
+            return this;
+        }
+
+        public Builder setTimestampSource(int timestampSource) {
+            mTimestampSource = timestampSource;
+            return this;
+        }
+
+        public Builder setFlashAvailable(boolean flashAvailable) {
+            mFlashAvailable = flashAvailable;
+            return this;
+        }
+
+        public Builder setFixedFocus(boolean fixedFocus) {
+            mFixedFocus = fixedFocus;
+            return this;
+        }
+
+        public Builder setMaxDigitalZoom(float maxDigitalZoom) {
+            mMaxDigitalZoom = maxDigitalZoom;
+            return this;
+        }
+
+        public Builder setActiveArray(int left, int top, int right, int bottom) {
+            mActiveArrayLeft = left;
+            mActiveArrayTop = top;
+            mActiveArrayRight = right;
+            mActiveArrayBottom = bottom;
+            return this;
+        }
+
+        public Builder setFaceDetect(int[] modes, int maxFaceCount) {
+            mFaceDetectModes = modes.clone();
+            mMaxFaceCount = maxFaceCount;
+            return this;
+        }
+
+        /**
+         * @param table One of the {@code TABLE_*} constants
+         * @param sizes Packed {@code (width, height)} pairs
+         */
+        public Builder setSizes(int table, int[] sizes) {
+            if (sizes.length % 2 != 0) {
+                throw new IllegalArgumentException("sizes must hold width and height pairs");
+            }
+            mSizes[table] = sizes.clone();
+            return this;
+        }
+
+        public CameraCapabilities build() {
+            return new CameraCapabilities(this);
+        }
+    }
+
+    private CameraCapabilities(Builder builder) {
+        mCameraId = builder.mCameraId;
+        mFacing = builder.mFacing;
+        mSensorOrientation = builder.mSensorOrientation;
+        mHardwareLevel = builder.mHardwareLevel;
+        mTimestampSource = builder.mTimestampSource;
+        mFlashAvailable = builder.mFlashAvailable;
+        mFixedFocus = builder.mFixedFocus;
+        mMaxDigitalZoom = builder.mMaxDigitalZoom;
+        mActiveArrayLeft = builder.mActiveArrayLeft;
+        mActiveArrayTop = builder.mActiveArrayTop;
+        mActiveArrayRight = builder.mActiveArrayRight;
+        mActiveArrayBottom = builder.mActiveArrayBottom;
+        mFaceDetectModes = builder.mFaceDetectModes;
+        mMaxFaceCount = builder.mMaxFaceCount;
+        mSizes = new int[TABLE_COUNT][];
+        for (int i = 0; i < TABLE_COUNT; i++) {
+            mSizes[i] = builder.mSizes[i];
+        }
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    /**
+     * @return The {@code LENS_FACING} value, or {@link #UNKNOWN}
+     */
+    public int getFacing() {
+        return mFacing;
+    }
+
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    /**
+     * @return The {@code INFO_SUPPORTED_HARDWARE_LEVEL} value, or {@link #UNKNOWN}
+     */
+    public int getHardwareLevel() {
+        return mHardwareLevel;
+    }
+
+    /**
+     * @return The {@code SENSOR_INFO_TIMESTAMP_SOURCE} value, 0 (unknown) before API 23
+     */
+    public int getTimestampSource() {
+        return mTimestampSource;
+    }
+
+    public boolean isFlashAvailable() {
+        return mFlashAvailable;
+    }
+
+    /**
+     * @return Whether the lens cannot focus, so there is no focus to lock before a capture
+     */
+    public boolean isFixedFocus() {
+        return mFixedFocus;
+    }
+
+    public float getMaxDigitalZoom() {
+        return mMaxDigitalZoom;
+    }
+
+    public int getActiveArrayLeft() {
+        return mActiveArrayLeft;
+    }
+
+    public int getActiveArrayTop() {
+        return mActiveArrayTop;
+    }
+
+    public int getActiveArrayWidth() {
+        return mActiveArrayRight - mActiveArrayLeft;
+    }
+
+    public int getActiveArrayHeight() {
+        return mActiveArrayBottom - mActiveArrayTop;
+    }
+
+    public int getFaceDetectModeCount() {
+        return mFaceDetectModes.length;
+    }
+
+    public int getFaceDetectMode(int index) {
+        return mFaceDetectModes[index];
+    }
+
+    public int getMaxFaceCount() {
+        return mMaxFaceCount;
+    }
+
+    /**
+     * @return The number of sizes in {@code table}
+     */
+    public int getSizeCount(int table) {
+        return mSizes[table].length / 2;
+    }
+
+    public int getWidth(int table, int index) {
+        return mSizes[table][2 * index];
+    }
+
+    public int getHeight(int table, int index) {
+        return mSizes[table][2 * index + 1];
+    }
+
+    /**
+     * @return A copy of {@code table} as packed {@code (width, height)} pairs
+     */
+    public int[] getSizes(int table) {
+        return mSizes[table].clone();
+    }
+
+    /**
+     * Writes this instance in the form {@link #readFrom(DataInputStream)} expects.
+     */
+    public void writeTo(DataOutputStream output) throws IOException {
+        output.writeUTF(mCameraId);
+        output.writeInt(mFacing);
+        output.writeInt(mSensorOrientation);
+        output.writeInt(mHardwareLevel);
+        output.writeInt(mTimestampSource);
+        output.writeBoolean(mFlashAvailable);
+        output.writeBoolean(mFixedFocus);
+        output.writeFloat(mMaxDigitalZoom);
+        output.writeInt(mActiveArrayLeft);
+        output.writeInt(mActiveArrayTop);
+        output.writeInt(mActiveArrayRight);
+        output.writeInt(mActiveArrayBottom);
+        writeInts(output, mFaceDetectModes);
+        output.writeInt(mMaxFaceCount);
+        for (int[] sizes : mSizes) {
+            writeInts(output, sizes);
+        }
+    }
+
+    /**
+     * Reads an instance written by {@link #writeTo(DataOutputStream)}.
+     */
+    public static CameraCapabilities readFrom(DataInputStream input) throws IOException {
+        Builder builder = new Builder(input.readUTF())
+                .setFacing(input.readInt())
+                .setSensorOrientation(input.readInt())
+                .setHardwareLevel(input.readInt())
+                .setTimestampSource(input.readInt())
+                .setFlashAvailable(input.readBoolean())
+                .setFixedFocus(input.readBoolean())
+                .setMaxDigitalZoom(input.readFloat());
+        builder.setActiveArray(input.readInt(), input.readInt(), input.readInt(), input.readInt());
+        int[] faceDetectModes = readInts(input);
+        builder.setFaceDetect(faceDetectModes, input.readInt());
+        for (int i = 0; i < TABLE_COUNT; i++) {
+            builder.setSizes(i, readInts(input));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CameraCapabilities)) {
+            return false;
+        }
+        CameraCapabilities other = (CameraCapabilities) o;
+        return mCameraId.equals(other.mCameraId) && mFacing == other.mFacing
+                && mSensorOrientation == other.mSensorOrientation
+                && mHardwareLevel == other.mHardwareLevel
+                && mTimestampSource == other.mTimestampSource
+                && mFlashAvailable == other.mFlashAvailable
+                && mFixedFocus == other.mFixedFocus
+                && Float.compare(mMaxDigitalZoom, other.mMaxDigitalZoom) == 0
+                && mActiveArrayLeft == other.mActiveArrayLeft
+                && mActiveArrayTop == other.mActiveArrayTop
+                && mActiveArrayRight == other.mActiveArrayRight
+                && mActiveArrayBottom == other.mActiveArrayBottom
+                && Arrays.equals(mFaceDetectModes, other.mFaceDetectModes)
+                && mMaxFaceCount == other.mMaxFaceCount
+                && Arrays.deepEquals(mSizes, other.mSizes);
+    }
+
+    @Override
+    public int hashCode() {
+        return mCameraId.hashCode() * 31 + Arrays.deepHashCode(mSizes);
+    }
+
+    @Override
+    public String toString() {
+        return "CameraCapabilities{id=" + mCameraId + ", facing=" + mFacing
+                + ", level=" + mHardwareLevel + ", jpegSizes=" + getSizeCount(TABLE_JPEG)
+                + ", maxZoom=" + mMaxDigitalZoom + "}";
+    }
+
+    private static void writeInts(DataOutputStream output, int[] values) throws IOException {
+        output.writeInt(values.length);
+        for (int value : values) {
+            output.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > 4096) {
+            throw new IOException("Corrupt capability table of " + length + " entries");
+        }
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = input.readInt();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the {@link CameraCapabilities} of every camera on the device, so
+ * {@link CameraManager#getCameraIdList()} and {@link CameraManager#getCameraCharacteristics}
+ * are called once per install rather than on every open, switch or touch event.
+ *
+ * <p>The capabilities are persisted to the app's cache directory and reused on later cold
+ * starts as long as the build fingerprint is unchanged, which skips the camera service round
+ * trips entirely.</p>
+ */
+class CameraCapabilityCache {
+
+    private static final String TAG = "CameraCapabilityCache";
+
+    private static final String FILE_NAME = "camera_capabilities.bin";
+
+    /**
+     * Bumped whenever the persisted layout changes.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    private static CameraCapabilityCache sInstance;
+
+    private final String[] mCameraIds;
+    private final Map<String, CameraCapabilities> mCapabilities;
+    private final Map<String, SizeSelector> mSizeSelectors = new HashMap<>();
+
+    /**
+     * @return The cache, loaded from disk or read from the camera service on first use
+     * @throws CameraAccessException If the camera service had to be queried and failed
+     */
+    public static synchronized CameraCapabilityCache get(Context context)
+            throws CameraAccessException {
+        if (null == sInstance) {
+            long start = System.nanoTime();
+            File file = new File(context.getCacheDir(), FILE_NAME);
+            CameraCapabilityCache cache = load(file);
+            if (null == cache) {
+                CameraManager manager =
+                        (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+                cache = query(manager);
+                save(cache, file);
+                Log.d(TAG, "Queried " + cache.mCameraIds.length + " cameras in "
+                        + (System.nanoTime() - start) / 1000000 + "ms");
+            } else {
+                Log.d(TAG, "Loaded " + cache.mCameraIds.length + " cameras in "
+                        + (System.nanoTime() - start) / 1000000 + "ms");
+            }
+            sInstance = cache;
+        }
+        return sInstance;
+    }
+
+    private CameraCapabilityCache(String[] cameraIds, Map<String, CameraCapabilities> capabilities) {
+        mCameraIds = cameraIds;
+        mCapabilities = capabilities;
+        for (CameraCapabilities entry : capabilities.values()) {
+            mSizeSelectors.put(entry.getCameraId(), new SizeSelector(entry));
+        }
+    }
+
+    /**
+     * @return The camera ids in the order the camera service lists them
+     */
+    public String[] getCameraIds() {
+        return mCameraIds.clone();
+    }
+
+    public int getCameraCount() {
+        return mCameraIds.length;
+    }
+
+    public String getCameraId(int index) {
+        return mCameraIds[index];
+    }
+
+    /**
+     * @return The capabilities of {@code cameraId}, or null if there is no such camera
+     */
+    public CameraCapabilities get(String cameraId) {
+        return mCapabilities.get(cameraId);
+    }
+
+    /**
+     * @return The size tables of {@code cameraId}, built once per camera, or null if there is no
+     * such camera
+     */
+    public SizeSelector getSizeSelector(String cameraId) {
+        return mSizeSelectors.get(cameraId);
+    }
+
+    /**
+     * @param size A size packed by {@link SizeSelector}, not {@link SizeSelector#NONE}
+     */
+    public static Size toSize(long size) {
+        return new Size(SizeSelector.width(size), SizeSelector.height(size));
+    }
+
+    /**
+     * @param table One of the {@code CameraCapabilities.TABLE_*} constants
+     * @return The sizes of {@code table} as {@link Size} objects, in the reported order
+     */
+    public static Size[] toSizes(CameraCapabilities capabilities, int table) {
+        Size[] sizes = new Size[capabilities.getSizeCount(table)];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new Size(capabilities.getWidth(table, i), capabilities.getHeight(table, i));
+        }
+        return sizes;
+    }
+
+    private static CameraCapabilityCache query(CameraManager manager)
+            throws CameraAccessException {
+        String[] ids = manager.getCameraIdList();
+        Map<String, CameraCapabilities> capabilities = new LinkedHashMap<>();
+        for (String id : ids) {
+            capabilities.put(id, read(id, manager.getCameraCharacteristics(id)));
+        }
+        return new CameraCapabilityCache(ids, capabilities);
+    }
+
+    private static CameraCapabilities read(String cameraId, CameraCharacteristics characteristics) {
+        CameraCapabilities.Builder builder = new CameraCapabilities.Builder(cameraId);
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        if (null != facing) {
+            builder.setFacing(facing);
+        }
+        Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        if (null != orientation) {
+            builder.setSensorOrientation(orientation);
+        }
+        Integer level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        if (null != level) {
+            builder.setHardwareLevel(level);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Integer source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            if (null != source) {
+                builder.setTimestampSource(source);
+            }
+        }
+        Boolean flash = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        builder.setFlashAvailable(null != flash && flash);
+        Float minFocusDistance =
+                characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+        builder.setFixedFocus(null == minFocusDistance || minFocusDistance == 0f);
+        Float maxZoom = characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        if (null != maxZoom) {
+            builder.setMaxDigitalZoom(maxZoom);
+        }
+        Rect activeArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        if (null != activeArray) {
+            builder.setActiveArray(activeArray.left, activeArray.top, activeArray.right,
+                    activeArray.bottom);
+        }
+        int[] faceModes = characteristics.get(
+                CameraCharacteristics.STATISTICS_INFO_AVAILABLE_FACE_DETECT_MODES);
+        Integer maxFaces = characteristics.get(CameraCharacteristics.STATISTICS_INFO_MAX_FACE_COUNT);
+        builder.setFaceDetect(null == faceModes ? new int[0] : faceModes,
+                null == maxFaces ? 0 : maxFaces);
+        StreamConfigurationMap map =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (null != map) {
+            builder.setSizes(CameraCapabilities.TABLE_JPEG, pack(map.getOutputSizes(ImageFormat.JPEG)));
+            builder.setSizes(CameraCapabilities.TABLE_PREVIEW,
+                    pack(map.getOutputSizes(SurfaceTexture.class)));
+            builder.setSizes(CameraCapabilities.TABLE_VIDEO,
+                    pack(map.getOutputSizes(MediaRecorder.class)));
+            builder.setSizes(CameraCapabilities.TABLE_YUV,
+                    pack(map.getOutputSizes(ImageFormat.YUV_420_888)));
+        }
+        return builder.build();
+    }
+
+    private static int[] pack(Size[] sizes) {
+        if (null == sizes) {
+            return new int[0];
+        }
+        int[] packed = new int[sizes.length * 2];
+        for (int i = 0; i < sizes.length; i++) {
+            packed[2 * i] = sizes[i].getWidth();
+            packed[2 * i + 1] = sizes[i].getHeight();
+        }
+        return packed;
+    }
+
+    /**
+     * @return The persisted cache, or null if there is none or it was written by another build
+     */
+    private static CameraCapabilityCache load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != FORMAT_VERSION || !Build.FINGERPRINT.equals(input.readUTF())) {
+                return null;
+            }
+            int count = input.readInt();
+            String[] ids = new String[count];
+            Map<String, CameraCapabilities> capabilities = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                CameraCapabilities entry = CameraCapabilities.readFrom(input);
+                ids[i] = entry.getCameraId();
+                capabilities.put(ids[i], entry);
+            }
+            return new CameraCapabilityCache(ids, capabilities);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable capability cache", e);
+            return null;
+        } finally {
+            if (null != input) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the cache to a temporary file renamed into place, so a reader never sees a partial
+     * file. This is not a picture, so it stays out of the {@link ImageFileWriter} statistics.
+     */
+    private static void save(CameraCapabilityCache cache, File file) {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                output.writeInt(FORMAT_VERSION);
+                output.writeUTF(Build.FINGERPRINT);
+                output.writeInt(cache.mCameraIds.length);
+                for (String id : cache.mCameraIds) {
+                    cache.mCapabilities.get(id).writeTo(output);
+                }
+            } finally {
+                output.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * The user-adjustable controls of the preview: zoom crop, white balance, color effect, flash,
+ * exposure compensation and the autofocus region.
+ *
+ * <p>Instances are mutable so {@link ControlBus} can merge changes into one without allocating,
+ * and compare by value so a built request can be cached per combination of controls. Modes are
+ * the {@code CaptureRequest} constants; a crop or region whose right edge is not past its left
+ * edge means "not set".</p>
+ */
+public final class CameraControls {
+
+    /**
+     * Flash values, the same as the flash button cycles through.
+     */
+    public static final int FLASH_OFF = -1;
+    public static final int FLASH_AUTO = 0;
+    public static final int FLASH_ON = 1;
+
+    private int mCropLeft;
+    private int mCropTop;
+    private int mCropRight;
+    private int mCropBottom;
+    private int mAwbMode;
+    private int mEffectMode;
+    private int mFlash = FLASH_AUTO;
+    private int mExposureCompensation;
+    private int mAfLeft;
+    private int mAfTop;
+    private int mAfRight;
+    private int mAfBottom;
+    private int mAfWeight;
+
+    public CameraControls() {
+    }
+
+    public CameraControls(CameraControls other) {
+        set(other);
+    }
+
+    /**
+     * Makes this instance a copy of {@code other}.
+     */
+    public void set(CameraControls other) {
+        mCropLeft = other.mCropLeft;
+        mCropTop = other.mCropTop;
+        mCropRight = other.mCropRight;
+        mCropBottom = other.mCropBottom;
+        mAwbMode = other.mAwbMode;
+        mEffectMode = other.mEffectMode;
+        mFlash = other.mFlash;
+        mExposureCompensation = other.mExposureCompensation;
+        mAfLeft = other.mAfLeft;
+        mAfTop = other.mAfTop;
+        mAfRight = other.mAfRight;
+        mAfBottom = other.mAfBottom;
+        mAfWeight = other.mAfWeight;
+    }
+
+    /**
+     * @param right Not past {@code left} to remove the crop
+     */
+    public void setZoomCrop(int left, int top, int right, int bottom) {
+        mCropLeft = left;
+        mCropTop = top;
+        mCropRight = right;
+        mCropBottom = bottom;
+    }
+
+    public void setAwbMode(int awbMode) {
+        mAwbMode = awbMode;
+    }
+
+    public void setEffectMode(int effectMode) {
+        mEffectMode = effectMode;
+    }
+
+    /**
+     * @param flash One of {@link #FLASH_OFF}, {@link #FLASH_AUTO} or {@link #FLASH_ON}
+     */
+    public void setFlash(int flash) {
+        mFlash = flash;
+    }
+
+    public void setExposureCompensation(int steps) {
+        mExposureCompensation = steps;
+    }
+
+    /**
+     * @param weight Metering weight, 0 to remove the region
+     */
+    public void setAfRegion(int left, int top, int right, int bottom, int weight) {
+        mAfLeft = left;
+        mAfTop = top;
+        mAfRight = right;
+        mAfBottom = bottom;
+        mAfWeight = weight;
+    }
+
+    public boolean hasZoomCrop() {
+        return mCropRight > mCropLeft && mCropBottom > mCropTop;
+    }
+
+    public int getCropLeft() {
+        return mCropLeft;
+    }
+
+    public int getCropTop() {
+        return mCropTop;
+    }
+
+    public int getCropRight() {
+        return mCropRight;
+    }
+
+    public int getCropBottom() {
+        return mCropBottom;
+    }
+
+    public int getAwbMode() {
+        return mAwbMode;
+    }
+
+    public int getEffectMode() {
+        return mEffectMode;
+    }
+
+    public int getFlash() {
+        return mFlash;
+    }
+
+    public int getExposureCompensation() {
+        return mExposureCompensation;
+    }
+
+    public boolean hasAfRegion() {
+        return mAfWeight > 0 && mAfRight > mAfLeft && mAfBottom > mAfTop;
+    }
+
+    public int getAfLeft() {
+        return mAfLeft;
+    }
+
+    public int getAfTop() {
+        return mAfTop;
+    }
+
+    public int getAfRight() {
+        return mAfRight;
+    }
+
+    public int getAfBottom() {
+        return mAfBottom;
+    }
+
+    public int getAfWeight() {
+        return mAfWeight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CameraControls)) {
+            return false;
+        }
+        CameraControls other = (CameraControls) o;
+        return mCropLeft == other.mCropLeft && mCropTop == other.mCropTop
+                && mCropRight == other.mCropRight && mCropBottom == other.mCropBottom
+                && mAwbMode == other.mAwbMode && mEffectMode == other.mEffectMode
+                && mFlash == other.mFlash && mExposureCompensation == other.mExposureCompensation
+                && mAfLeft == other.mAfLeft && mAfTop == other.mAfTop
+                && mAfRight == other.mAfRight && mAfBottom == other.mAfBottom
+                && mAfWeight == other.mAfWeight;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mCropLeft;
+        hash = 31 * hash + mCropTop;
+        hash = 31 * hash + mCropRight;
+        hash = 31 * hash + mCropBottom;
+        hash = 31 * hash + mAwbMode;
+        hash = 31 * hash + mEffectMode;
+        hash = 31 * hash + mFlash;
+        hash = 31 * hash + mExposureCompensation;
+        hash = 31 * hash + mAfLeft;
+        hash = 31 * hash + mAfTop;
+        hash = 31 * hash + mAfRight;
+        hash = 31 * hash + mAfBottom;
+        return 31 * hash + mAfWeight;
+    }
+
+    @Override
+    public String toString() {
+        return "CameraControls{crop=" + mCropLeft + "," + mCropTop + "," + mCropRight + ","
+                + mCropBottom + ", awb=" + mAwbMode + ", effect=" + mEffectMode
+                + ", flash=" + mFlash + ", ev=" + mExposureCompensation
+                + ", afWeight=" + mAfWeight + "}";
+    }
+}
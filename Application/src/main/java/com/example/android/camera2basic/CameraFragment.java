@@ -18,14 +18,18 @@ package com.example.android.camera2basic;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.Fragment;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.ImageFormat;
@@ -37,29 +41,29 @@ import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.Face;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.AudioManager;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v13.app.FragmentCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.util.Size;
 import android.util.SparseIntArray;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.SoundEffectConstants;
@@ -72,21 +76,23 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.Toast;
 
-import com.squareup.picasso.Picasso;
-
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CameraFragment extends Fragment
         implements View.OnClickListener, FragmentCompat.OnRequestPermissionsResultCallback {
@@ -111,39 +117,55 @@ public class CameraFragment extends Fragment
     private static final String TAG = "Camera2BasicFragment";
 
     /**
-     * Camera state: Showing camera preview.
+     * Name of the Chrome trace event file the {@link CaptureTracer} is exported to on pause.
      */
-    private static final int STATE_PREVIEW = 0;
+    private static final String CAPTURE_TRACE_FILE = "capture_trace.json";
 
     /**
-     * Camera state: Waiting for the focus to be locked.
+     * Name of the {@link MediaCatalog} of the gallery, in its thumbnail directory.
      */
-    private static final int STATE_WAITING_LOCK = 1;
+    private static final String MEDIA_CATALOG_FILE = "captures.catalog";
 
     /**
-     * Camera state: Waiting for the exposure to be precapture state.
+     * Name of the file the {@link MetricsRegistry} snapshot is written to on pause.
      */
-    private static final int STATE_WAITING_PRECAPTURE = 2;
+    private static final String METRICS_FILE = "metrics.txt";
 
     /**
-     * Camera state: Waiting for the exposure state to be something other than precapture.
+     * Max preview width that is guaranteed by Camera2 API
      */
-    private static final int STATE_WAITING_NON_PRECAPTURE = 3;
+    private static final int MAX_PREVIEW_WIDTH = 1920;
 
     /**
-     * Camera state: Picture was taken.
+     * Max preview height that is guaranteed by Camera2 API
      */
-    private static final int STATE_PICTURE_TAKEN = 4;
+    private static final int MAX_PREVIEW_HEIGHT = 1080;
 
     /**
-     * Max preview width that is guaranteed by Camera2 API
+     * How long to wait for pending saves before the camera is closed.
      */
-    private static final int MAX_PREVIEW_WIDTH = 1920;
+    private static final long PERSISTENCE_DRAIN_TIMEOUT_MS = 2500;
 
     /**
-     * Max preview height that is guaranteed by Camera2 API
+     * What to do when every buffer of {@link #mImageReader} is held by a pending save: the oldest
+     * one is copied out and written by the spill executor of the {@link CameraSessionManager}.
      */
-    private static final int MAX_PREVIEW_HEIGHT = 1080;
+    private static final int STILL_OVERFLOW_POLICY = ImageBufferPool.POLICY_SPILL_TO_DISK;
+
+    /**
+     * Number of still requests submitted in each repeating burst.
+     */
+    private static final int BURST_REQUEST_COUNT = 4;
+
+    /**
+     * A burst stops by itself after this many frames even if the shutter is still held.
+     */
+    private static final int BURST_MAX_FRAMES = 60;
+
+    /**
+     * Default memory budget of the zero-shutter-lag ring buffer.
+     */
+    private static final long ZSL_DEFAULT_MAX_BUFFER_BYTES = 64L * 1024 * 1024;
 
 
 
@@ -156,6 +178,11 @@ public class CameraFragment extends Fragment
 
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
+            StartupScheduler startup = mStartup;
+            if (null != startup) {
+                startup.complete(mSurfaceStage);
+                return;
+            }
             mCameraId = "0";
             try {
                 getImageSizes();
@@ -211,32 +238,46 @@ public class CameraFragment extends Fragment
     private ImageButton civRecentImage;
     private ImageButton btnFlash;
 
-    ArrayList<Size> biggestSizesFront = new ArrayList<>();
-    ArrayList<Size> biggestSizesRear = new ArrayList<>();
+    /**
+     * Still sizes of each camera, replaced as a whole on the background thread and read from the
+     * UI thread.
+     */
+    volatile List<Size> biggestSizesFront = Collections.emptyList();
+    volatile List<Size> biggestSizesRear = Collections.emptyList();
 
 
-    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+    /**
+     * Receives the {@link CameraDevice} opened by the {@link CameraSessionManager}, on the camera
+     * thread.
+     */
+    private final CameraSessionManager.Listener mCameraListener =
+            new CameraSessionManager.Listener() {
 
         @Override
-        public void onOpened(@NonNull CameraDevice cameraDevice) {
-            // This method is called when the camera is opened.  We start camera preview here.
-            mCameraOpenCloseLock.release();
+        public void onCameraOpened(CameraDevice cameraDevice) {
+            // This method is called when the camera is opened, or handed over already open by the
+            // video mode. We start camera preview here.
+            mOpenMetric.recordSince(mOpenStartNanos);
             mCameraDevice = cameraDevice;
-            createCameraPreviewSession();
+            StartupScheduler startup = mStartup;
+            if (null != startup && !startup.isComplete(mOpenStage)) {
+                // The startup creates the session once the outputs and surface are ready too.
+                startup.complete(mOpenStage);
+            } else {
+                createCameraPreviewSession();
+            }
         }
 
         @Override
-        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
+        public void onCameraDisconnected(CameraDevice cameraDevice) {
             mCameraDevice = null;
+            failStartup(new IllegalStateException("Camera disconnected"));
         }
 
         @Override
-        public void onError(@NonNull CameraDevice cameraDevice, int error) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
+        public void onCameraError(CameraDevice cameraDevice, int error) {
             mCameraDevice = null;
+            failStartup(new IllegalStateException("Camera error " + error));
             Activity activity = getActivity();
             if (null != activity) {
                 activity.finish();
@@ -246,40 +287,211 @@ public class CameraFragment extends Fragment
     };
 
     /**
-     * An additional thread for running tasks that shouldn't block the UI.
+     * Owns the camera device and threads, shared with the video mode.
      */
-    private HandlerThread mBackgroundThread;
+    private CameraSessionManager mSessionManager;
 
     /**
-     * A {@link Handler} for running tasks in the background.
+     * A {@link Handler} for running tasks in the background, from {@link #mSessionManager}.
      */
     private Handler mBackgroundHandler;
 
+    /**
+     * The {@link Handler} capture callbacks run on, from {@link #mSessionManager}.
+     */
+    private Handler mResultHandler;
+
+    /**
+     * The {@link Handler} the ZSL reader listener runs on, from {@link #mSessionManager}. Still
+     * images are delivered on {@link #mResultHandler}, behind the {@code onCaptureStarted} of
+     * their capture, see {@link CaptureRegistry}.
+     */
+    private Handler mFrameHandler;
+
+    /**
+     * A {@link PersistenceExecutor} that writes captured images off the camera thread.
+     */
+    private PersistenceExecutor mPersistenceExecutor;
+
+    /**
+     * Writes stills copied out of their reader buffers, from {@link #mSessionManager}.
+     */
+    private PersistenceExecutor mSpillExecutor;
+
     /**
      * An {@link ImageReader} that handles still image capture.
      */
     private ImageReader mImageReader;
 
     /**
-     * This is the output file for our picture.
+     * Tracks the buffers of {@link #mImageReader} and handles overflow.
+     */
+    private ImageBufferPool mImageBufferPool;
+
+    /**
+     * The still readers of the open camera, one per aspect ratio, among which
+     * {@link #mImageReader} is the one in the session.
+     */
+    private StillReaderSet mStillReaders;
+
+    /**
+     * The still readers of each camera, kept until the camera is closed so that switching between
+     * cameras does not allocate them again. Guarded by itself.
+     */
+    private final Map<String, StillReaderSet> mStillReaderSets = new HashMap<>();
+
+    /**
+     * The ZSL reader of the previous session while an aspect ratio switch configures the next one.
+     */
+    private ImageReader mRetiredZslImageReader;
+    private ZslRingBuffer mRetiredZslRingBuffer;
+
+    /**
+     * When the aspect ratio or camera switch in progress started, or 0, the session it replaces,
+     * and where its latency goes.
+     */
+    private volatile long mSwitchStartNanos;
+    private volatile CameraCaptureSession mSwitchFromSession;
+    private volatile MetricsRegistry.Histogram mSwitchMetric;
+    private volatile String mSwitchName;
+
+    /**
+     * Whether zero-shutter-lag capture may be used on cameras that support it.
+     */
+    private boolean mZslAllowed = true;
+
+    /**
+     * Memory the zero-shutter-lag ring buffer may use.
+     */
+    private long mZslMaxBufferBytes = ZSL_DEFAULT_MAX_BUFFER_BYTES;
+
+    /**
+     * Whether the current session streams full resolution YUV frames into {@link #mZslRingBuffer}.
+     */
+    private boolean mZslEnabled;
+
+    /**
+     * An {@link ImageReader} attached to the repeating request for zero-shutter-lag capture.
+     */
+    private ImageReader mZslImageReader;
+
+    /**
+     * The most recent frames of {@link #mZslImageReader}.
+     */
+    private ZslRingBuffer mZslRingBuffer;
+
+    /**
+     * Whether a frame taken from {@link #mZslRingBuffer} is waiting to be encoded. The reader
+     * only has a buffer for one, see {@link ZslRingBuffer#getReaderMaxImages()}, so a second
+     * would starve the preview.
+     */
+    private final AtomicBoolean mZslFramePending = new AtomicBoolean();
+
+    /**
+     * Whether sensor timestamps share the {@link SystemClock#elapsedRealtimeNanos()} time base.
+     */
+    private boolean mZslTimestampRealtime;
+
+    /**
+     * This is the directory our pictures are saved in.
      */
     private String GALLERY_LOCATION = "Boo360";
     private String mImageFileLocation = "";
-    private File mFile;
+    private File mGalleryDir;
+
+    /**
+     * The output file of the most recent capture. Images are routed to their own files through
+     * {@link #mCaptureRegistry}, never through this field.
+     */
+    private volatile File mFile;
+
+    /**
+     * Maps in-flight capture requests to their output files.
+     */
+    private final CaptureRegistry mCaptureRegistry = new CaptureRegistry();
+
+    /**
+     * The capture registered by {@link #takePicture()} whose request is not submitted yet because
+     * focus and exposure are still being locked.
+     */
+    private volatile CaptureRegistry.Record mPendingCapture;
+
+    private final MetricsRegistry.Counter mFramesMetric =
+            MetricsRegistry.get().counter("camera.frames");
+    private final MetricsRegistry.Counter mExportRejectedMetric =
+            MetricsRegistry.get().counter("diagnostics.exportRejected");
+    private final MetricsRegistry.Histogram mCaptureLatencyMetric =
+            MetricsRegistry.get().histogram("capture.latency");
+    private final MetricsRegistry.Histogram mAspectSwitchMetric =
+            MetricsRegistry.get().histogram("camera.aspectSwitch");
+    private final MetricsRegistry.Histogram mCameraSwitchMetric =
+            MetricsRegistry.get().histogram("camera.switch");
+    private final MetricsRegistry.Histogram mOpenMetric =
+            MetricsRegistry.get().histogram("camera.open");
+    private final MetricsRegistry.Histogram mCloseMetric =
+            MetricsRegistry.get().histogram("camera.close");
+
+    /**
+     * Time to the first preview frame when the outputs are set up from scratch, and when they
+     * were kept by {@link #onPause()}.
+     */
+    private final MetricsRegistry.Histogram mColdStartMetric =
+            MetricsRegistry.get().histogram("camera.coldStart");
+    private final MetricsRegistry.Histogram mWarmResumeMetric =
+            MetricsRegistry.get().histogram("camera.warmResume");
+
+    /**
+     * When {@link #openCamera(int, int)} was called, for {@link #mOpenMetric}.
+     */
+    private volatile long mOpenStartNanos;
+
+    /**
+     * The startup run by {@link #startCamera(boolean)}, until the first preview frame, and the ids of
+     * the stages completed from camera and surface callbacks.
+     */
+    private volatile StartupScheduler mStartup;
+    private volatile boolean mStartupWarm;
+    private int mSurfaceStage;
+    private int mOpenStage;
+    private int mSessionStage;
+    private int mFirstFrameStage;
+
+    /**
+     * Whether {@link #onPause()} kept the outputs of {@link #mCameraId}: still readers, preview
+     * size, capabilities, zoom and controls. If so {@link #onResume()} only reopens the device
+     * and recreates the session.
+     */
+    private boolean mWarm;
+
+    /**
+     * Whether the filter menu thumbnails were loaded, after the first preview frame.
+     */
+    private boolean mFilterThumbnailsLoaded;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The {@link CaptureTracer} shot of the still capture going through focus and exposure locking,
+     * and when its current stage began.
+     */
+    private volatile long mTraceShot;
+    private volatile long mTraceStageNanos;
+
     private void createImageGallery() {
         File storageDirectory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-        mFile = new File(storageDirectory, GALLERY_LOCATION);
-        if(!mFile.exists()) {
-            mFile.mkdirs();
+        mGalleryDir = new File(storageDirectory, GALLERY_LOCATION);
+        if(!mGalleryDir.exists()) {
+            mGalleryDir.mkdirs();
         }
 
     }
-    private File createImageFile() throws IOException {
+    private File createImageFile() {
 
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        // Milliseconds keep the names of captures taken within the same second apart.
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date());
         String imageFileName = "IMAGE_" + timeStamp + "_";
 
-        File image = new File(mFile, imageFileName + ".jpg");//File.createTempFile(imageFileName,".jpg", mFile);
+        File image = new File(mGalleryDir, imageFileName + ".jpg");//File.createTempFile(imageFileName,".jpg", mFile);
         mImageFileLocation = image.getAbsolutePath();
 
         return image;
@@ -294,11 +506,245 @@ public class CameraFragment extends Fragment
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mFile));
+            StillReaderSet stillReaders = mStillReaders;
+            ImageBufferPool pool = null == stillReaders ? null : stillReaders.getPool(reader);
+            if (null == pool) {
+                return;
+            }
+            Image image = pool.acquire(reader);
+            if (null == image) {
+                return;
+            }
+            CaptureRegistry.Record record = mCaptureRegistry.claim(image.getTimestamp());
+            ImageSaver.OnImageSavedListener listener;
+            File file;
+            long traceId;
+            if (null != record) {
+                file = record.getFile();
+                traceId = record.getTag();
+                CaptureTracer.get().span("imageDelivery", traceId, record.getStartedNanos());
+                mCaptureLatencyMetric.recordSince(record.getRegisteredNanos());
+                listener = newImageSavedListener(traceId, record.getCaptureTimeMillis(),
+                        record.getCameraId(), record.getEffectMode(), record.getFaceCount(),
+                        image.getWidth(), image.getHeight());
+            } else {
+                Log.w(TAG, "No capture registered for frame " + image.getTimestamp());
+                file = createImageFile();
+                traceId = mCaptureRegistry.newTag();
+                // The frame just arrived, so that is the closest to its capture time there is.
+                listener = newImageSavedListener(traceId, System.currentTimeMillis(), mCameraId,
+                        MediaCatalog.UNKNOWN, MediaCatalog.UNKNOWN, image.getWidth(),
+                        image.getHeight());
+            }
+            if (!pool.save(image, file, traceId, listener)) {
+                onSaveRejected(file);
+            }
+        }
+
+    };
+
+    /**
+     * Reports a picture that was closed unsaved because the {@link PersistenceExecutor} was full.
+     * The shutter stays disabled until the executor has room again.
+     */
+    private void onSaveRejected(File file) {
+        Log.w(TAG, "Dropped " + file.getName() + ", persistence saturated: "
+                + mPersistenceExecutor);
+        showToast("Saving previous pictures, please wait");
+    }
+
+    /**
+     * @param order             The {@link CaptureRegistry} tag of the capture, which orders
+     *                          pictures by when they were taken
+     * @param captureTimeMillis When the picture was taken, in milliseconds since the epoch
+     * @return A listener that queues the saved picture for {@link #mSavedPicturesTask}, and
+     * reports the end-to-end latency of burst frames
+     */
+    private ImageSaver.OnImageSavedListener newImageSavedListener(final long order,
+                                                                  final long captureTimeMillis,
+                                                                  final String cameraId,
+                                                                  final int effectMode,
+                                                                  final int faceCount,
+                                                                  final int width,
+                                                                  final int height) {
+        return new ImageSaver.OnImageSavedListener() {
+
+            @Override
+            public void onImageSaved(File file, long timestamp) {
+                long latency = mBurstStats.onFrameSaved(timestamp);
+                if (latency >= 0) {
+                    Log.d(TAG, "Burst frame " + file.getName() + " latency="
+                            + latency / 1000000 + "ms " + mBurstStats);
+                }
+                onPictureSaved(new SavedPicture(file, order, captureTimeMillis, cameraId,
+                        effectMode, faceCount, width, height));
+            }
+
+        };
+    }
+
+    /**
+     * A saved picture waiting for {@link #mSavedPicturesTask}.
+     */
+    private static final class SavedPicture {
+
+        final File mFile;
+        final long mOrder;
+        final long mCaptureTimeMillis;
+        final String mCameraId;
+        final int mEffectMode;
+        final int mFaceCount;
+        final int mWidth;
+        final int mHeight;
+
+        SavedPicture(File file, long order, long captureTimeMillis, String cameraId,
+                     int effectMode, int faceCount, int width, int height) {
+            mFile = file;
+            mOrder = order;
+            mCaptureTimeMillis = captureTimeMillis;
+            mCameraId = cameraId;
+            mEffectMode = effectMode;
+            mFaceCount = faceCount;
+            mWidth = width;
+            mHeight = height;
         }
+    }
+
+    /**
+     * Pictures saved since {@link #mSavedPicturesTask} last ran. Guarded by itself.
+     */
+    private final List<SavedPicture> mSavedPictures = new ArrayList<>();
+
+    /**
+     * Whether {@link #mSavedPicturesTask} is queued. Guarded by {@link #mSavedPictures}.
+     */
+    private boolean mSavedPicturesQueued;
 
+    /**
+     * Makes the thumbnail of the latest of {@link #mSavedPictures} and records them all in the
+     * {@link MediaCatalog}. Saves that complete while it is queued join the same batch, so a
+     * burst decodes one picture rather than one per frame.
+     */
+    private final Runnable mSavedPicturesTask = new Runnable() {
+        @Override
+        public void run() {
+            List<SavedPicture> saved;
+            synchronized (mSavedPictures) {
+                saved = new ArrayList<>(mSavedPictures);
+                mSavedPictures.clear();
+                mSavedPicturesQueued = false;
+            }
+            SavedPicture latest = null;
+            for (SavedPicture picture : saved) {
+                if (null == latest || picture.mOrder > latest.mOrder) {
+                    latest = picture;
+                }
+            }
+            if (null == latest) {
+                return;
+            }
+            Bitmap thumbnail = ThumbnailCache.get().put(latest.mFile);
+            if (null != thumbnail) {
+                showRecentThumbnail(thumbnail, latest.mOrder);
+            }
+            for (SavedPicture picture : saved) {
+                addToMediaCatalog(picture.mFile, picture.mCaptureTimeMillis, picture.mCameraId,
+                        picture.mEffectMode, picture.mFaceCount, picture.mWidth,
+                        picture.mHeight);
+            }
+        }
     };
 
+    /**
+     * Queues {@code picture} for {@link #mSavedPicturesTask}. Called on the saving thread, which
+     * runs the task itself when the {@link PersistenceExecutor} is full.
+     */
+    private void onPictureSaved(SavedPicture picture) {
+        synchronized (mSavedPictures) {
+            mSavedPictures.add(picture);
+            if (mSavedPicturesQueued) {
+                return;
+            }
+            mSavedPicturesQueued = true;
+        }
+        PersistenceExecutor executor = mPersistenceExecutor;
+        if (null == executor
+                || !executor.execute(mSavedPicturesTask, PersistenceExecutor.PRIORITY_THUMBNAIL)) {
+            mSavedPicturesTask.run();
+        }
+    }
+
+    /**
+     * Records a saved picture in the {@link MediaCatalog} of its directory. Shared with
+     * {@link VideoFragment}, whose snapshots go to the same gallery.
+     *
+     * @param captureTimeMillis When the picture was taken, in milliseconds since the epoch
+     */
+    static void addToMediaCatalog(File file, long captureTimeMillis, String cameraId,
+                                  int effectMode, int faceCount, int width, int height) {
+        File galleryDir = file.getParentFile();
+        MediaCatalog catalog = openMediaCatalog(galleryDir);
+        if (null == catalog) {
+            return;
+        }
+        try {
+            catalog.add(new MediaCatalog.Entry(file.getName(), captureTimeMillis, file.length(),
+                    width, height, cameraId, effectMode, faceCount));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The catalog of {@code galleryDir}, importing the pictures already there the first
+     * time, or null if it cannot be opened
+     */
+    static MediaCatalog openMediaCatalog(File galleryDir) {
+        File directory = new File(galleryDir, ThumbnailCache.DIRECTORY_NAME);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            return MediaCatalog.open(new File(directory, MEDIA_CATALOG_FILE), galleryDir,
+                    ".jpg");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * {@link CaptureRegistry} tag of the picture shown on {@link #civRecentImage}, so that a save
+     * finishing late does not replace the thumbnail of a newer picture. Tags increase in capture
+     * order whatever the camera. Only used on the main thread.
+     */
+    private long mRecentThumbnailOrder = Long.MIN_VALUE;
+
+    /**
+     * Frame rate and latency of the current or last burst.
+     */
+    private final BurstStats mBurstStats = new BurstStats();
+
+    /**
+     * Whether the shutter is held and burst requests are repeating.
+     */
+    private volatile boolean mBurstActive;
+
+    /**
+     * Sequence number of the last burst frame that started exposing.
+     */
+    private int mBurstSequence;
+
+    /**
+     * File name prefix shared by all frames of the current burst.
+     */
+    private String mBurstPrefix;
+
+    /**
+     * The {@link Surface} of {@link #mTextureView}, kept so burst requests can keep the preview alive.
+     */
+    private Surface mPreviewSurface;
+
     /**
      * {@link CaptureRequest.Builder} for the camera preview
      */
@@ -310,16 +756,70 @@ public class CameraFragment extends Fragment
     private CaptureRequest mPreviewRequest;
 
     /**
-     * The current state of camera state for taking pictures.
+     * Coalesces zoom, white balance, effect and flash changes into the repeating request.
+     */
+    private final ControlBus mControlBus = new ControlBus();
+
+    /**
+     * Sequences the focus lock and precapture of still captures and bursts.
      *
      * @see #mCaptureCallback
      */
-    private int mState = STATE_PREVIEW;
+    private final CaptureStateMachine mCaptureStateMachine =
+            new CaptureStateMachine(new CaptureStateMachine.Listener() {
+
+                @Override
+                public void onLockFocus() {
+                    lockFocus();
+                }
+
+                @Override
+                public void onRunPrecapture() {
+                    runPrecaptureSequence();
+                }
+
+                @Override
+                public void onCaptureStill() {
+                    captureStillPicture();
+                }
+
+                @Override
+                public void onSubmitBurst() {
+                    submitBurst();
+                }
+
+                @Override
+                public void onCaptureTimedOut() {
+                    Log.w(TAG, "Still capture timed out");
+                    unlockFocus(mCaptureStateMachine.getSequence());
+                }
+
+                @Override
+                public void onStateLeft(int state, long durationNanos) {
+                    if (!mBurstActive) {
+                        traceStage(CaptureStateMachine.getStateName(state));
+                    }
+                }
+            });
+
+    /**
+     * Counts the faces of the preview results and feeds their AF and AE states to
+     * {@link #mCaptureStateMachine}.
+     */
+    private final PreviewResultProcessor mPreviewResultProcessor =
+            new PreviewResultProcessor(mCaptureStateMachine);
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * Checks the timeout of {@link #mCaptureStateMachine} while no preview results arrive, as
+     * during a still capture.
      */
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private final Runnable mCaptureTimeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            mCaptureStateMachine.checkTimeout(System.nanoTime());
+            scheduleCaptureTimeoutCheck();
+        }
+    };
 
     /**
      * Whether the current camera device supports Flash or not.
@@ -339,108 +839,91 @@ public class CameraFragment extends Fragment
             = new CameraCaptureSession.CaptureCallback() {
 
 
-        private void process(CaptureResult result) {
-            switch (mState) {
-                case STATE_PREVIEW: {
-                    // We have nothing to do when the camera preview is working normally.
-                    if(checktakepicture){
-                        getActivity().runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                if(mFile.exists()){
-                                    Picasso.with(getView().getContext())
-                                            .load(mFile)
-                                            .resize(0,100)
-                                            .skipMemoryCache()
-                                            .noFade()
-                                            .into(civRecentImage);
-                                    checktakepicture = false;
-                                }
-                            }
-                        });
+        private void process(CaptureResult result, boolean partial) {
+            Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            if (mPreviewResultProcessor.wantsFaces(partial)) {
+                // We have nothing to do when the camera preview is working normally.
+                Face faces[] =result.get(CaptureResult.STATISTICS_FACES);
+                mPreviewResultProcessor.onFaces(faces.length);
+                if (faces.length>0){
+                    Log.d(TAG, "face detected " + Integer.toString(faces.length));
+                    /*faceRects = new ArrayList<Rect>();
+                    //Log.e("Point: ",faces[0].getMouthPosition().toString());
+                    for (int i=0; i<faces.length; i++) {
+                        int left = faces[i].getBounds().left;
+                        int right = faces[i].getBounds().right;
+                        int top = faces[i].getBounds().top;
+                        int bottom = faces[i].getBounds().bottom;
+                        Log.e("XYZ: ", left +":" + right +":" +top+":"+bottom);
+                        Rect uRect = new Rect(left, top, right, bottom);
+                        faceRects.add(uRect);
                     }
-                    Face faces[] =result.get(CaptureResult.STATISTICS_FACES);
-                    if (faces.length>0){
-                        Log.d(TAG, "face detected " + Integer.toString(faces.length));
-                        /*faceRects = new ArrayList<Rect>();
-                        //Log.e("Point: ",faces[0].getMouthPosition().toString());
-                        for (int i=0; i<faces.length; i++) {
-                            int left = faces[i].getBounds().left;
-                            int right = faces[i].getBounds().right;
-                            int top = faces[i].getBounds().top;
-                            int bottom = faces[i].getBounds().bottom;
-                            Log.e("XYZ: ", left +":" + right +":" +top+":"+bottom);
-                            Rect uRect = new Rect(left, top, right, bottom);
-                            faceRects.add(uRect);
+                    mFaceOverlayView.setBitmap(faces, faceRects);
+                    getActivity().runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                         mFaceOverlayView.invalidate();
                         }
-                        mFaceOverlayView.setBitmap(faces, faceRects);
-                        getActivity().runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                             mFaceOverlayView.invalidate();
-                            }
-                        });*/
-
-                        //DrawRectDec dectection = new DrawRectDec(getActivity().getParent());
-                        //dectection.invalidate();
-                        //takePicture();
-                    }
+                    });*/
 
-                    break;
-                }
-                case STATE_WAITING_LOCK: {
-                    Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                    if (afState == null || afState == 0) {
-                        captureStillPicture();mState=0;
-                    } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
-                            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                        if (aeState == null ||
-                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-                            mState = STATE_PICTURE_TAKEN;
-                            captureStillPicture();
-                        } else {
-                            runPrecaptureSequence();
-                        }
-                        mState=0;
-                    }
-                    break;
-                }
-                case STATE_WAITING_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null ||
-                            aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-                            aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
-                        mState = STATE_WAITING_NON_PRECAPTURE;
-                    }
-                    break;
-                }
-                case STATE_WAITING_NON_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-                        mState = STATE_PICTURE_TAKEN;
-                        captureStillPicture();
-                    }
-                    break;
+                    //DrawRectDec dectection = new DrawRectDec(getActivity().getParent());
+                    //dectection.invalidate();
+                    //takePicture();
                 }
+
             }
+            // CONTROL_AF_STATE and CONTROL_AE_STATE can be null on some devices.
+            mPreviewResultProcessor.onStates(partial,
+                    null == afState ? CaptureStateMachine.UNKNOWN : afState,
+                    null == aeState ? CaptureStateMachine.UNKNOWN : aeState,
+                    System.nanoTime());
         }
 
         @Override
         public void onCaptureProgressed(@NonNull CameraCaptureSession session,
                                         @NonNull CaptureRequest request,
                                         @NonNull CaptureResult partialResult) {
-            process(partialResult);
+            process(partialResult, true);
         }
 
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                        @NonNull CaptureRequest request,
                                        @NonNull TotalCaptureResult result) {
-            process(result);
+            mFramesMetric.increment();
+            StartupScheduler startup = mStartup;
+            if (null != startup) {
+                mStartup = null;
+                prepareOtherCamera();
+                startup.complete(mFirstFrameStage);
+                long firstFrame = startup.getCompletionNanos(mFirstFrameStage);
+                if (firstFrame >= 0) {
+                    MetricsRegistry.Histogram metric =
+                            mStartupWarm ? mWarmResumeMetric : mColdStartMetric;
+                    metric.record(firstFrame);
+                    Log.d(TAG, (mStartupWarm ? "Warm resume " : "Cold start ")
+                            + firstFrame / 1000000 + "ms, warm mean "
+                            + mWarmResumeMetric.getMeanMillis() + "ms, cold mean "
+                            + mColdStartMetric.getMeanMillis() + "ms");
+                }
+            }
+            long switchStart = mSwitchStartNanos;
+            if (switchStart != 0 && session != mSwitchFromSession) {
+                // First preview frame of the new session.
+                mSwitchStartNanos = 0;
+                if (mSwitchMetric == mCameraSwitchMetric) {
+                    prepareOtherCamera();
+                }
+                mSwitchMetric.recordSince(switchStart);
+                Log.d(TAG, mSwitchName + " switched in "
+                        + (System.nanoTime() - switchStart) / 1000000 + "ms");
+            }
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (null != timestamp) {
+                mControlBus.onFrame(timestamp);
+            }
+            process(result, false);
         }
 
     };
@@ -463,14 +946,14 @@ public class CameraFragment extends Fragment
     }
 
     /**
-     * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
+     * Of the preview {@code Size}s supported by a camera, choose the smallest one that
      * is at least as large as the respective texture view size, and that is at most as large as the
      * respective max size, and whose aspect ratio matches with the specified value. If such size
      * doesn't exist, choose the largest one that is at most as large as the respective max size,
      * and whose aspect ratio matches with the specified value.
      *
-     * @param choices           The list of sizes that the camera supports for the intended output
-     *                          class
+     * @param selector          The size tables of the camera
+     * @param capabilities      The capabilities of the camera
      * @param textureViewWidth  The width of the texture view relative to sensor coordinate
      * @param textureViewHeight The height of the texture view relative to sensor coordinate
      * @param maxWidth          The maximum width that can be chosen
@@ -478,45 +961,40 @@ public class CameraFragment extends Fragment
      * @param aspectRatio       The aspect ratio
      * @return The optimal {@code Size}, or an arbitrary one if none were big enough
      */
-    private static Size chooseOptimalSize(Size[] choices, int textureViewWidth,
-                                          int textureViewHeight, int maxWidth, int maxHeight, Size aspectRatio) {
-
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        // Collect the supported resolutions that are smaller than the preview Surface
-        List<Size> notBigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            Log.e("OPTION",option.getHeight() + "  "+option.getWidth());
-            if (option.getWidth() <= maxWidth && option.getHeight() <= maxHeight &&
-                    (option.getHeight() == option.getWidth() * h / w)) {
-                if (option.getWidth() >= textureViewWidth &&
-                        option.getHeight() >= textureViewHeight) {
-                    bigEnough.add(option);
-                    //Log.e("BIG",option.getHeight() + "  "+option.getWidth());
-                } else {
-                    notBigEnough.add(option);
-                    //Log.e("NOT BIG",option.getHeight() + "  "+option.getWidth());
-                }
-            }
-        }
+    private static Size chooseOptimalSize(SizeSelector selector, CameraCapabilities capabilities,
+                                          int textureViewWidth, int textureViewHeight,
+                                          int maxWidth, int maxHeight, Size aspectRatio) {
+        long size = selector.chooseOptimal(CameraCapabilities.TABLE_PREVIEW,
+                aspectRatio.getWidth(), aspectRatio.getHeight(), textureViewWidth,
+                textureViewHeight, maxWidth, maxHeight);
+        if (size != SizeSelector.NONE) {
+            return CameraCapabilityCache.toSize(size);
+        }
+        Log.e(TAG, "Couldn't find any suitable preview size");
+        return new Size(capabilities.getWidth(CameraCapabilities.TABLE_PREVIEW, 0),
+                capabilities.getHeight(CameraCapabilities.TABLE_PREVIEW, 0));
+    }
 
-        // Pick the smallest of those big enough. If there is no one big enough, pick the
-        // largest of those not big enough.
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else if (notBigEnough.size() > 0) {
-            return Collections.max(notBigEnough, new CompareSizesByArea());
-        } else {
-            Log.e(TAG, "Couldn't find any suitable preview size");
-            return choices[0];
-        }
-    }
     //Zoom Camera2
-    public float finger_spacing = 0;
-    public int zoom_level = 1;
+    private final ZoomController mZoomController = new ZoomController();
 
+    /**
+     * Eases the zoom toward its target once per display frame while it is moving.
+     */
+    private final Choreographer.FrameCallback mZoomFrameCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    if (mZoomController.step(frameTimeNanos)) {
+                        mControlBus.setZoomCrop(mZoomController.getCropLeft(),
+                                mZoomController.getCropTop(), mZoomController.getCropRight(),
+                                mZoomController.getCropBottom());
+                    }
+                    if (mZoomController.isAnimating()) {
+                        Choreographer.getInstance().postFrameCallback(this);
+                    }
+                }
+            };
 
     //Determine the space between the first two fingers
     @SuppressWarnings("deprecation")
@@ -542,7 +1020,6 @@ public class CameraFragment extends Fragment
     }
     private int mAspectRatio = 1;
     private boolean flagzoom;
-    private  Rect zoom;
     private FaceOverlayView mFaceOverlayView;
     private Context context;
     private ImageButton btn_mono;
@@ -573,6 +1050,12 @@ public class CameraFragment extends Fragment
     private boolean hasGrid = false;
 
     private ImageButton btn_screen_size;
+
+    /**
+     * Disabled while the {@link PersistenceExecutor} is saturated.
+     */
+    private View mShutterButton;
+
     @Override
     public void onViewCreated(final View view, Bundle savedInstanceState) {
         //PowerManager pwr = (PowerManager) getActivity().getSystemService(POWER_SERVICE);
@@ -580,17 +1063,27 @@ public class CameraFragment extends Fragment
         civRecentImage = (ImageButton) view.findViewById(R.id.civ_recent_image);
         view.findViewById(R.id.btn_video).setOnClickListener(this);
         btnFlash = (ImageButton)view.findViewById(R.id.flash);
-        File imgFile = new  File(getRecentImage());
-        if(imgFile.exists()){
-            Picasso.with(view.getContext())
-                    .load(imgFile)
-                    .resize(0,100)
-                    .skipMemoryCache()
-                    .noFade()
-                    .into(civRecentImage);
-        }
         context = view.getContext();
-        view.findViewById(R.id.btn_take_picture).setOnClickListener(this);
+        View shutter = view.findViewById(R.id.btn_take_picture);
+        mShutterButton = shutter;
+        shutter.setOnClickListener(this);
+        shutter.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                startBurst();
+                return true;
+            }
+        });
+        shutter.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                int action = event.getActionMasked();
+                if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+                    stopBurst();
+                }
+                return false;
+            }
+        });
         view.findViewById(R.id.btn_rotate).setOnClickListener(this);
         view.findViewById(R.id.flash).setOnClickListener(this);
         view.findViewById(R.id.btn_filter).setOnClickListener(this);
@@ -663,93 +1156,37 @@ public class CameraFragment extends Fragment
             View child = layout_menu_filter.getChildAt(i);
             child.setVisibility(View.GONE);
         }
-        Picasso.with(getView().getContext())
-                .load(R.drawable.img_blackwhite)
-                .skipMemoryCache()
-                .noFade()
-                .into(btn_mono);
-        Picasso.with(getView().getContext())
-                .load(R.drawable.img_sepia)
-                .skipMemoryCache()
-                .noFade()
-                .into(btn_sepia);
-        Picasso.with(getView().getContext())
-                .load(R.drawable.img_negative)
-                .skipMemoryCache()
-                .noFade()
-                .into(btn_negative);
-        Picasso.with(getView().getContext())
-                .load(R.drawable.img_nofilter)
-                .skipMemoryCache()
-                .noFade()
-                .into(btn_nof);
+        // The filter thumbnails and the recent image are loaded after the first preview frame.
         mTextureView.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View view, MotionEvent event) {
-                try {
-                    flagzoom =true;
-                    Activity activity = getActivity();
-                    CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-                    CameraCharacteristics characteristics = manager.getCameraCharacteristics(mCameraId);
-                    float maxzoom = (characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM))*10;
-
-                    Rect m = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-                    int action = event.getAction();
-                    float current_finger_spacing;
-
-                    if (event.getPointerCount() > 1) {
-                        // Multi touch logic
-                        current_finger_spacing = getFingerSpacing(event);
-
-                        if(finger_spacing != 0){
-                            if(current_finger_spacing > finger_spacing && maxzoom > zoom_level){
-                                zoom_level++;
-
-                            }
-                            else if (current_finger_spacing < finger_spacing && zoom_level > 1){
-                                zoom_level--;
-
-                            }
-                            int minW = (int) (m.width() / maxzoom);
-                            int minH = (int) (m.height() / maxzoom);
-                            int difW = m.width() - minW;
-                            int difH = m.height() - minH;
-                            int cropW = difW /100 *(int)zoom_level;
-                            int cropH = difH /100 *(int)zoom_level;
-                            cropW -= cropW & 3;
-                            cropH -= cropH & 3;
-                            zoom = new Rect(cropW, cropH, m.width() - cropW, m.height() - cropH);
-                            mPreviewRequestBuilder.set(CaptureRequest.SCALER_CROP_REGION, zoom);
-                            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_EFFECT_MODE ,effectMode);
-                            //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AWB_MODE, awbMode);
-                            //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
-                            //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.TRUE);
-                            //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION , 0);
-
-                        }
-                        finger_spacing = current_finger_spacing;
-                    }
-                    else{
-                        if (action == MotionEvent.ACTION_UP) {
-                            //single touch logic
+                CameraCapabilities capabilities = mCapabilities;
+                if (null == capabilities) {
+                    return true;
+                }
+                flagzoom =true;
+                int action = event.getActionMasked();
+
+                if (event.getPointerCount() > 1) {
+                    // Multi touch logic
+                    if (action == MotionEvent.ACTION_POINTER_DOWN) {
+                        mZoomController.beginPinch(getFingerSpacing(event));
+                    } else if (action == MotionEvent.ACTION_MOVE) {
+                        mZoomController.pinch(getFingerSpacing(event));
+                        if (mZoomController.isAnimating()) {
+                            // The frame callback applies the crop, so moves are free.
+                            Choreographer.getInstance().removeFrameCallback(mZoomFrameCallback);
+                            Choreographer.getInstance().postFrameCallback(mZoomFrameCallback);
                         }
-                    }
-
-                    try {
-                        mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(), mCaptureCallback,
-                                null);
-                    }
-                    catch (CameraAccessException e) {
-                        e.printStackTrace();
-                    }
-                    catch (NullPointerException ex)
-                    {
-                        ex.printStackTrace();
+                    } else if (action == MotionEvent.ACTION_POINTER_UP) {
+                        mZoomController.endPinch();
                     }
                 }
-                catch (CameraAccessException e)
-                {
-                    throw new RuntimeException("can not access camera.", e);
+                else{
+                    if (action == MotionEvent.ACTION_UP) {
+                        //single touch logic
+                        mZoomController.endPinch();
+                    }
                 }
 
                 return true;
@@ -769,20 +1206,18 @@ public class CameraFragment extends Fragment
                     mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
             captureBuilder.addTarget(mImageReader.getSurface());
 
-            // Use the same AE and AF modes as the preview.
-            captureBuilder.set(CaptureRequest.SCALER_CROP_REGION,zoom);
+            // Use the same crop, AE mode and effects as the preview.
+            mControlBus.applyTo(captureBuilder);
             //CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            setAutoFlash(captureBuilder);
 
             // Orientation
             int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
             captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
-            //captureBuilder.set(CaptureRequest.CONTROL_AWB_MODE, awbMode);
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.TRUE);
-            captureBuilder.set(CaptureRequest.CONTROL_EFFECT_MODE ,effectMode);
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, 0);
+            CaptureRegistry.Record record = takePendingCapture(captureBuilder);
             CameraCaptureSession.CaptureCallback CaptureCallback
-                    = new CameraCaptureSession.CaptureCallback() {
+                    = new StillCaptureCallback(record) {
 
                 @Override
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
@@ -793,38 +1228,24 @@ public class CameraFragment extends Fragment
                         mgr.playSoundEffect(SoundEffectConstants.CLICK,20f);
                     //}
 
-                    showToast("Saved: " + mFile);
-                    Log.d(TAG, mFile.toString());
-                    unlockFocus();
+                    super.onCaptureCompleted(session, request, result);
                 }
             };
 
             mCaptureSession.stopRepeating();
-            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
+            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, mResultHandler);
+            if (null != record) {
+                mCaptureRegistry.onCaptureSubmitted(record.getTag());
+            }
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
-        //todo: Change image in preview album
-        if(mFile.exists()){
-            Picasso.with(getView().getContext())
-                    .load(mFile)
-                    .resize(0,100)
-                    .skipMemoryCache()
-                    .noFade()
-                    .into(civRecentImage);
-        }
     }
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         //mFile = new File(getActivity().getExternalFilesDir(null), "pic.jpg");
 
-        try{
-            mFile = createImageFile();
-        }catch (IOException e){
-            e.printStackTrace();
-        }
-
     }
 
     @Override
@@ -834,22 +1255,43 @@ public class CameraFragment extends Fragment
         startBackgroundThread();
 
         // When the screen is turned off and turned back on, the SurfaceTexture is already
-        // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
-        // a camera and start preview from here (otherwise, we wait until the surface is ready in
-        // the SurfaceTextureListener).
-        if (mTextureView.isAvailable()) {
-            openCamera(mTextureView.getWidth(), mTextureView.getHeight());
-        } else {
+        // available, and "onSurfaceTextureAvailable" will not be called. In that case the surface
+        // stage of the startup is complete right away (otherwise, it completes when the surface
+        // is ready in the SurfaceTextureListener). A cold start on a new surface uses the rear
+        // camera; a warm resume keeps the camera it was paused on.
+        boolean surfaceAvailable = mTextureView.isAvailable();
+        if (!surfaceAvailable) {
+            if (!mWarm) {
+                mCameraId = "0";
+            }
             mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
         }
+        startCamera(mWarm);
+        if (surfaceAvailable) {
+            mStartup.complete(mSurfaceStage);
+        }
     }
 
     @Override
     public void onPause() {
         //lock.release();
+        StartupScheduler startup = mStartup;
+        if (null != startup) {
+            // Kept so that a camera opening right now is not given a session.
+            startup.cancel();
+        }
+        // The outputs stay for a warm resume; pending saves are flushed in the background. The
+        // activity closes the device, unless this is a switch to the video mode.
+        closeCamera(true);
+        flushSaves();
+        super.onPause();
+    }
+
+    @Override
+    public void onDestroy() {
         closeCamera();
         stopBackgroundThread();
-        super.onPause();
+        super.onDestroy();
     }
 
     private void requestCameraPermission() {
@@ -912,31 +1354,37 @@ public class CameraFragment extends Fragment
     private String IDCameraFront;
     private String IDCameraRear;
     private Boolean mFaceDetectSupported = false;
+
+    /**
+     * Capabilities of the open camera, from {@link CameraCapabilityCache}.
+     */
+    private volatile CameraCapabilities mCapabilities;
     private int mFaceDetectMode ;
     private void setUpCameraOutputs(int width, int height) {
         Activity activity = getActivity();
-        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-        try {
-            IDCameraRear = manager.getCameraIdList()[0];
-            IDCameraFront = manager.getCameraIdList()[1];
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
         try {
+            CameraCapabilityCache cache = CameraCapabilityCache.get(activity);
+            IDCameraRear = cache.getCameraId(0);
+            IDCameraFront = cache.getCameraId(1);
             //for (String cameraId : manager.getCameraIdList()) {
-            CameraCharacteristics characteristics
-                    = manager.getCameraCharacteristics(mCameraId);
+            CameraCapabilities capabilities = cache.get(mCameraId);
+            SizeSelector selector = cache.getSizeSelector(mCameraId);
+            mCapabilities = capabilities;
+            mCaptureStateMachine.setFixedFocus(capabilities.isFixedFocus());
+            Choreographer.getInstance().removeFrameCallback(mZoomFrameCallback);
+            mZoomController.setActiveArray(capabilities.getActiveArrayLeft(),
+                    capabilities.getActiveArrayTop(), capabilities.getActiveArrayWidth(),
+                    capabilities.getActiveArrayHeight(), capabilities.getMaxDigitalZoom());
             //minexprosure = characteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE).getLower();
             //maxexprosure = characteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE).getUpper();
             //int iso = ((20 * (maxexprosure - minexprosure)) / 100 + minexprosure);
 
-            int[] FD =characteristics.get(CameraCharacteristics.STATISTICS_INFO_AVAILABLE_FACE_DETECT_MODES);
-            int maxFD=characteristics.get(CameraCharacteristics.STATISTICS_INFO_MAX_FACE_COUNT);
+            int maxFD=capabilities.getMaxFaceCount();
 
-            if (FD.length>0) {
+            if (capabilities.getFaceDetectModeCount()>0) {
                 List<Integer> fdList = new ArrayList<>();
-                for (int FaceD : FD
-                        ) {
+                for (int i = 0; i < capabilities.getFaceDetectModeCount(); i++) {
+                    int FaceD = capabilities.getFaceDetectMode(i);
                     fdList.add(FaceD);
                     Log.d(TAG, "setUpCameraOutputs: FD type:" + Integer.toString(FaceD));
                 }
@@ -956,11 +1404,6 @@ public class CameraFragment extends Fragment
             }
             */
 
-            StreamConfigurationMap map = characteristics.get(
-                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            if (map == null) {
-                //continue;
-            }
 
             // For still image captures, we use the largest available size.
             //Size largest = new Size(2576,1932);
@@ -991,125 +1434,423 @@ public class CameraFragment extends Fragment
                 }
             }
                */
-            Size largest = null;
-            switch(mAspectRatio) {
-                case 1:
-                    largest = biggestSizesRear.get(0);
-                    break;
-                case 2:
-                    largest = biggestSizesRear.get(1);
-                    break;
-                case 3:
-                    largest = biggestSizesRear.get(2);
-                    break;
-                case 4:
-                    largest = biggestSizesRear.get(3);
-                    break;
-                case 5:
-                    largest = biggestSizesFront.get(0);
-                    break;
-                case 6:
-                    largest = biggestSizesFront.get(1);
-                    break;
-                case 7:
-                    largest = biggestSizesFront.get(2);
-                    break;
-                case 8:
-                    largest = biggestSizesFront.get(3);
-                    break;
+            mStillReaders = getStillReaders(activity, mCameraId);
+            setUpStillOutputs(activity, capabilities, selector, width, height);
+
+            // Check if the flash is supported.
+            mFlashSupported = capabilities.isFlashAvailable() ? 1 : 0;
+            mControlBus.setFlash(mFlashSupported);
+
+            //mCameraId = cameraId;
+            //return;
+            // }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        } catch (NullPointerException e) {
+            // Currently an NPE is thrown when the Camera2API is used but not supported on the
+            // device this code runs.
+            ErrorDialog.newInstance(getString(R.string.camera_error))
+                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
+        }
+    }
+
+    /**
+     * Picks the still reader, preview size and ZSL reader of the current aspect ratio, and fits
+     * {@link #mTextureView} to the preview. The still readers must be prepared.
+     */
+    private void setUpStillOutputs(Activity activity, CameraCapabilities capabilities,
+                                   SizeSelector selector, int width, int height) {
+        // 1 to 4 step through the rear camera's still sizes, 5 to 8 through the front's,
+        // wrapping around when a camera offers fewer.
+        List<Size> stillSizes = mAspectRatio <= 4 ? biggestSizesRear : biggestSizesFront;
+        Size largest = stillSizes.get((mAspectRatio - 1) % 4 % stillSizes.size());
+        /*
+            Size largest = Collections.max(
+                    Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
+                    new CompareSizesByArea());*/
+        StillReaderSet.Entry still = mStillReaders.get(largest);
+        mImageReader = still.getReader();
+        mImageBufferPool = still.getPool();
+
+        // Find out if we need to swap dimension to get the preview size relative to sensor
+        // coordinate.
+        int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        //noinspection ConstantConditions
+        mSensorOrientation = capabilities.getSensorOrientation();
+        boolean swappedDimensions = false;
+        switch (displayRotation) {
+            case Surface.ROTATION_0:
+            case Surface.ROTATION_180:
+                if (mSensorOrientation == 90 || mSensorOrientation == 270) {
+                    swappedDimensions = true;
+                }
+                break;
+            case Surface.ROTATION_90:
+            case Surface.ROTATION_270:
+                if (mSensorOrientation == 0 || mSensorOrientation == 180) {
+                    swappedDimensions = true;
+                }
+                break;
+            default:
+                Log.e(TAG, "Display rotation is invalid: " + displayRotation);
+        }
+
+        Point displaySize = new Point();
+        activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
+        int rotatedPreviewWidth = width;
+        int rotatedPreviewHeight = height;
+        int maxPreviewWidth = displaySize.x;
+        int maxPreviewHeight = displaySize.y;
+
+        if (swappedDimensions) {
+            rotatedPreviewWidth = height;
+            rotatedPreviewHeight = width;
+            maxPreviewWidth = displaySize.y;
+            maxPreviewHeight = displaySize.x;
+        }
+
+        if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
+            maxPreviewWidth = MAX_PREVIEW_WIDTH;
+        }
+
+        if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
+            maxPreviewHeight = MAX_PREVIEW_HEIGHT;
+        }
+
+        // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
+        // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
+        // garbage capture data.
+        
+        mPreviewSize = chooseOptimalSize(selector, capabilities,
+                rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
+                maxPreviewHeight, largest);
+        
+
+
+        //mPreviewSize = getBestSize(characteristics);
 
+        // We fit the aspect ratio of TextureView to the size of preview we picked.
+        int orientation = getResources().getConfiguration().orientation;
+        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+            mTextureView.setAspectRatio(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        } else {
+            mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
+
+        }
+
+        setUpZslReader(capabilities, selector, largest);
+    }
+
+    /**
+     * @return The still readers of {@code cameraId}, created for all its still sizes on first use
+     */
+    private StillReaderSet getStillReaders(Activity activity, String cameraId) {
+        synchronized (mStillReaderSets) {
+            StillReaderSet readers = mStillReaderSets.get(cameraId);
+            if (null == readers) {
+                readers = new StillReaderSet(mOnImageAvailableListener, mResultHandler,
+                        getAvailableMemory(activity), STILL_OVERFLOW_POLICY,
+                        mPersistenceExecutor, mSpillExecutor);
+                readers.prepare(cameraId.equals(IDCameraFront)
+                        ? biggestSizesFront : biggestSizesRear);
+                mStillReaderSets.put(cameraId, readers);
             }
-            /*
-                Size largest = Collections.max(
-                        Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                        new CompareSizesByArea());*/
-            Log.e("MKAD: " , largest.getHeight() + ":" + largest.getWidth());
-            mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                    ImageFormat.JPEG, /*maxImages*/2);
-            mImageReader.setOnImageAvailableListener(
-                    mOnImageAvailableListener, mBackgroundHandler);
-
-            // Find out if we need to swap dimension to get the preview size relative to sensor
-            // coordinate.
-            int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-            //noinspection ConstantConditions
-            mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-            boolean swappedDimensions = false;
-            switch (displayRotation) {
-                case Surface.ROTATION_0:
-                case Surface.ROTATION_180:
-                    if (mSensorOrientation == 90 || mSensorOrientation == 270) {
-                        swappedDimensions = true;
-                    }
-                    break;
-                case Surface.ROTATION_90:
-                case Surface.ROTATION_270:
-                    if (mSensorOrientation == 0 || mSensorOrientation == 180) {
-                        swappedDimensions = true;
+            return readers;
+        }
+    }
+
+    /**
+     * Prepares the still readers of the camera {@link #switchCamera()} would switch to, on the
+     * I/O executor, so the switch does not create readers on the UI thread. Called once the
+     * preview shows its first frame. Prepared readers have no buffers until the camera fills
+     * them; {@link #onTrimMemory(int)} releases them under memory pressure.
+     */
+    private void prepareOtherCamera() {
+        final Activity activity = getActivity();
+        final String otherId = mCameraId.equals(IDCameraRear) ? IDCameraFront : IDCameraRear;
+        CameraSessionManager sessionManager = mSessionManager;
+        Executor io = null == sessionManager ? null : sessionManager.getIoExecutor();
+        if (null == activity || null == otherId || null == io
+                || (otherId.equals(IDCameraFront) ? biggestSizesFront : biggestSizesRear)
+                .isEmpty()) {
+            return;
+        }
+        try {
+            io.execute(new Runnable() {
+                @Override
+                public void run() {
+                    getStillReaders(activity, otherId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The switch creates the readers itself.
+            Log.w(TAG, "Not preparing the still readers of camera " + otherId, e);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW && null != mCameraId
+                && null != IDCameraRear) {
+            // Prepared again after the next first frame.
+            releaseStillReaders(mCameraId.equals(IDCameraRear) ? IDCameraFront : IDCameraRear);
+        }
+    }
+
+    /**
+     * Closes the still readers of {@code cameraId}, so the idle camera does not keep readers
+     * around. See {@link #closeStillReaders(List)}.
+     */
+    private void releaseStillReaders(String cameraId) {
+        StillReaderSet readers;
+        synchronized (mStillReaderSets) {
+            readers = mStillReaderSets.remove(cameraId);
+        }
+        if (null != readers) {
+            closeStillReaders(Collections.singletonList(readers));
+        }
+    }
+
+    /**
+     * Closes {@code readerSets} on the I/O executor once pending saves are drained. A reader whose
+     * images are still held after that is closed when the last of them is, so a queued save never
+     * reads a closed buffer. Never waits on the calling thread.
+     */
+    private void closeStillReaders(final List<StillReaderSet> readerSets) {
+        final PersistenceExecutor persistenceExecutor = mPersistenceExecutor;
+        Executor io = null == mSessionManager ? null : mSessionManager.getIoExecutor();
+        if (null != io) {
+            try {
+                io.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (null != persistenceExecutor && !persistenceExecutor.awaitIdle(
+                                    PERSISTENCE_DRAIN_TIMEOUT_MS)) {
+                                Log.w(TAG, "Releasing still readers with pending saves: "
+                                        + persistenceExecutor);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        for (StillReaderSet readers : readerSets) {
+                            readers.close();
+                        }
                     }
-                    break;
-                default:
-                    Log.e(TAG, "Display rotation is invalid: " + displayRotation);
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Releasing still readers without draining saves", e);
             }
+        }
+        // Each reader still waits for its images, see StillReaderSet#close().
+        for (StillReaderSet readers : readerSets) {
+            readers.close();
+        }
+    }
 
-            Point displaySize = new Point();
-            activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
-            int rotatedPreviewWidth = width;
-            int rotatedPreviewHeight = height;
-            int maxPreviewWidth = displaySize.x;
-            int maxPreviewHeight = displaySize.y;
+    /**
+     * @return The memory available to the app, in bytes
+     */
+    private static long getAvailableMemory(Activity activity) {
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        ((ActivityManager) activity.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryInfo(memoryInfo);
+        return memoryInfo.availMem;
+    }
 
-            if (swappedDimensions) {
-                rotatedPreviewWidth = height;
-                rotatedPreviewHeight = width;
-                maxPreviewWidth = displaySize.y;
-                maxPreviewHeight = displaySize.x;
-            }
+    /**
+     * Enables or disables zero-shutter-lag capture. Takes effect the next time the camera opens.
+     */
+    public void setZslAllowed(boolean allowed) {
+        mZslAllowed = allowed;
+    }
 
-            if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
-                maxPreviewWidth = MAX_PREVIEW_WIDTH;
-            }
+    /**
+     * Sets the memory budget of the zero-shutter-lag ring buffer. Takes effect the next time the
+     * camera opens.
+     */
+    public void setZslMaxBufferBytes(long maxBytes) {
+        mZslMaxBufferBytes = maxBytes;
+    }
 
-            if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
-                maxPreviewHeight = MAX_PREVIEW_HEIGHT;
-            }
+    /**
+     * Creates {@link #mZslImageReader} for full resolution YUV frames with the aspect ratio of
+     * {@code jpegSize}, if the camera is able to stream them alongside the preview and JPEG outputs.
+     */
+    private void setUpZslReader(CameraCapabilities capabilities, SizeSelector selector,
+                                Size jpegSize) {
+        mZslEnabled = false;
+        int level = capabilities.getHardwareLevel();
+        if (!mZslAllowed
+                || (level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL
+                && level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_3)) {
+            return;
+        }
+        long size = selector.largestAtMostPixels(CameraCapabilities.TABLE_YUV,
+                jpegSize.getWidth(), jpegSize.getHeight(),
+                (long) jpegSize.getWidth() * jpegSize.getHeight());
+        if (size == SizeSelector.NONE) {
+            return;
+        }
+        Size zslSize = CameraCapabilityCache.toSize(size);
+        mZslRingBuffer = new ZslRingBuffer(ZslRingBuffer.chooseCapacity(mZslMaxBufferBytes,
+                zslSize.getWidth(), zslSize.getHeight()));
+        mZslImageReader = ImageReader.newInstance(zslSize.getWidth(), zslSize.getHeight(),
+                ImageFormat.YUV_420_888, mZslRingBuffer.getReaderMaxImages());
+        mZslImageReader.setOnImageAvailableListener(mZslRingBuffer, mFrameHandler);
+        mZslTimestampRealtime = capabilities.getTimestampSource()
+                == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        mZslEnabled = true;
+        Log.d(TAG, "ZSL " + zslSize.getWidth() + "x" + zslSize.getHeight() + ", "
+                + mZslRingBuffer.getCapacity() + " frames");
+    }
 
-            // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
-            // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
-            // garbage capture data.
-            
-            mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                    rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                    maxPreviewHeight, largest);
-            
+    /**
+     * Closes {@link #mZslImageReader} and every frame it buffered.
+     */
+    private void closeZslReader() {
+        mZslEnabled = false;
+        if (null != mZslRingBuffer) {
+            mZslRingBuffer.clear();
+            mZslRingBuffer = null;
+        }
+        if (null != mZslImageReader) {
+            mZslImageReader.close();
+            mZslImageReader = null;
+        }
+    }
 
+    /**
+     * Closes the ZSL reader left over by {@link #switchAspectRatio()}, once its session is gone.
+     */
+    private void closeRetiredZslReader() {
+        if (null != mRetiredZslRingBuffer) {
+            mRetiredZslRingBuffer.clear();
+            mRetiredZslRingBuffer = null;
+        }
+        if (null != mRetiredZslImageReader) {
+            mRetiredZslImageReader.close();
+            mRetiredZslImageReader = null;
+        }
+    }
 
-            //mPreviewSize = getBestSize(characteristics);
-            Log.e("hi",rotatedPreviewWidth + "  " + rotatedPreviewHeight + "  " + maxPreviewWidth + "  " + maxPreviewHeight + "  ");
+    /**
+     * Starts timing a switch, which ends with the first preview frame of a session other than the
+     * current one.
+     */
+    private void beginSwitch(MetricsRegistry.Histogram metric, String name) {
+        mSwitchMetric = metric;
+        mSwitchName = name;
+        mSwitchFromSession = mCaptureSession;
+        mSwitchStartNanos = System.nanoTime();
+    }
 
-            // We fit the aspect ratio of TextureView to the size of preview we picked.
-            int orientation = getResources().getConfiguration().orientation;
-            if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                mTextureView.setAspectRatio(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+    /**
+     * Switches between the rear and front cameras.
+     *
+     * <p>The capabilities of both cameras are cached and the readers of the other camera were
+     * prepared by {@link #prepareOtherCamera()}, so setting up the outputs is cheap. The readers
+     * of the camera going idle are released once its pending saves are done, which frees their
+     * buffers, and prepared again after the first frame of the other camera. The current
+     * device is closed on the background thread while the UI thread
+     * sets up the outputs, and the other camera is opened right behind the close on the same
+     * thread, as most devices cannot have both open at once. The background thread and the
+     * persistence executor stay up, and pending saves carry on.</p>
+     */
+    private void switchCamera() {
+        String otherId = mCameraId.equals(IDCameraRear) ? IDCameraFront : IDCameraRear;
+        int aspectRatio = otherId.equals(IDCameraRear) ? 1 : 5;
+        final Handler handler = mBackgroundHandler;
+        if (null == mCameraDevice || null == handler || !mTextureView.isAvailable()
+                || !mCaptureStateMachine.isIdle() || mBurstActive) {
+            closeCamera();
+            stopBackgroundThread();
+            mCameraId = otherId;
+            mAspectRatio = aspectRatio;
+            startBackgroundThread();
+            if (mTextureView.isAvailable()) {
+                openCamera(mTextureView.getWidth(), mTextureView.getHeight());
             } else {
-                mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
-
+                mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+            }
+            return;
+        }
+        beginSwitch(mCameraSwitchMetric, "Camera");
+        mControlBus.detach();
+        final CameraSessionManager sessionManager = mSessionManager;
+        final ImageReader oldZslReader = mZslImageReader;
+        final ZslRingBuffer oldZslRingBuffer = mZslRingBuffer;
+        mCameraDevice = null;
+        mCaptureSession = null;
+        mZslEnabled = false;
+        mZslImageReader = null;
+        mZslRingBuffer = null;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Also closes its capture session.
+                sessionManager.close();
+                if (null != oldZslRingBuffer) {
+                    oldZslRingBuffer.clear();
+                }
+                if (null != oldZslReader) {
+                    oldZslReader.close();
+                }
             }
+        });
 
-            // Check if the flash is supported.
-            Boolean available = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
-            mFlashSupported = available == null ? 0 : 1;
+        releaseStillReaders(mCameraId);
+        mCameraId = otherId;
+        mAspectRatio = aspectRatio;
+        mOpenStartNanos = System.nanoTime();
+        setUpCameraOutputs(mTextureView.getWidth(), mTextureView.getHeight());
+        configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                openCameraDevice(null);
+            }
+        });
+    }
 
-            //mCameraId = cameraId;
-            //return;
-            // }
+    /**
+     * Applies {@link #mAspectRatio} by swapping the still reader, which was prepared when the
+     * camera opened, into a new capture session. The camera and the background thread stay open.
+     * Falls back to reopening the camera if it is not streaming the preview.
+     */
+    private void switchAspectRatio() {
+        Activity activity = getActivity();
+        if (null == activity || null == mCameraDevice || null == mCaptureSession
+                || null == mStillReaders || !mCaptureStateMachine.isIdle() || mBurstActive) {
+            closeCamera();
+            stopBackgroundThread();
+            startBackgroundThread();
+            if (mTextureView.isAvailable()) {
+                openCamera(mTextureView.getWidth(), mTextureView.getHeight());
+            } else {
+                mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+            }
+            return;
+        }
+        beginSwitch(mAspectSwitchMetric, "Aspect ratio");
+        try {
+            CameraCapabilityCache cache = CameraCapabilityCache.get(activity);
+            // Keep control changes for the new session.
+            mControlBus.hold();
+            // The old session may stream into the ZSL reader until the new one is configured.
+            closeRetiredZslReader();
+            mRetiredZslImageReader = mZslImageReader;
+            mRetiredZslRingBuffer = mZslRingBuffer;
+            mZslImageReader = null;
+            mZslRingBuffer = null;
+            setUpStillOutputs(activity, cache.get(mCameraId), cache.getSizeSelector(mCameraId),
+                    mTextureView.getWidth(), mTextureView.getHeight());
+            configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
+            createCameraPreviewSession();
         } catch (CameraAccessException e) {
             e.printStackTrace();
-        } catch (NullPointerException e) {
-            // Currently an NPE is thrown when the Camera2API is used but not supported on the
-            // device this code runs.
-            ErrorDialog.newInstance(getString(R.string.camera_error))
-                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
         }
     }
 
@@ -1123,67 +1864,461 @@ public class CameraFragment extends Fragment
             return;
         }
 
+        mOpenStartNanos = System.nanoTime();
         setUpCameraOutputs(width, height);
         configureTransform(width, height);
-        Activity activity = getActivity();
-        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        openCameraDevice(null);
+    }
+
+    /**
+     * Opens the camera and starts its preview through a {@link StartupScheduler}, so that only
+     * the work touching views runs on the UI thread and independent stages overlap:
+     *
+     * <ul>
+     * <li>permission: checked on the UI thread</li>
+     * <li>recovery: temporary files of interrupted saves, on an I/O thread</li>
+     * <li>capabilities: {@link CameraCapabilityCache} and still sizes, on an I/O thread</li>
+     * <li>readers: the still readers of the camera, after capabilities</li>
+     * <li>surface: the preview surface becoming available</li>
+     * <li>open: the camera device, on the camera thread, after permission</li>
+     * <li>session: outputs and transform on the UI thread, then the capture session, after
+     * recovery so that no save is running while it scans the gallery</li>
+     * <li>firstFrame: the first preview result</li>
+     * </ul>
+     *
+     * <p>A warm start skips the capabilities and readers stages, and its session stage only
+     * restores what {@link #closeCamera(boolean)} released, see {@link #resumeCameraOutputs()}.
+     * The recent image and the filter thumbnails are loaded after the first frame.</p>
+     *
+     * @param warm Whether the outputs of {@link #mCameraId} were kept by {@link #onPause()}
+     */
+    private void startCamera(final boolean warm) {
+        final Activity activity = getActivity();
+        final StartupScheduler startup = new StartupScheduler(
+                warm ? "startup.warm" : "startup.cold", new StartupScheduler.Listener() {
+            @Override
+            public void onStartupFinished(String summary) {
+                Log.d(TAG, (warm ? "Warm" : "Cold") + " startup: " + summary);
+            }
+
+            @Override
+            public void onStartupFailed(String stage, Throwable cause) {
+                Log.e(TAG, (warm ? "Warm" : "Cold") + " startup failed at " + stage, cause);
+            }
+        });
+        Executor main = handlerExecutor(mMainHandler);
+        final Executor camera = handlerExecutor(mBackgroundHandler);
+        Executor io = mSessionManager.getIoExecutor();
+
+        int permission = startup.addStage("permission", main, new Runnable() {
+            @Override
+            public void run() {
+                if (ContextCompat.checkSelfPermission(activity, Manifest.permission.CAMERA)
+                        != PackageManager.PERMISSION_GRANTED) {
+                    startup.cancel();
+                    mStartup = null;
+                    requestCameraPermission();
+                }
+            }
+        });
+        int recovery = startup.addStage("recovery", io, new Runnable() {
+            @Override
+            public void run() {
+                recoverInterruptedSaves();
+            }
+        });
+        mSurfaceStage = startup.addSignal("surface");
+        mOpenStage = startup.addAsyncStage("open", camera, new Runnable() {
+            @Override
+            public void run() {
+                openCameraDevice(startup);
+            }
+        }, permission);
+        int[] sessionDependencies;
+        if (warm) {
+            sessionDependencies = new int[]{recovery, mSurfaceStage, mOpenStage};
+        } else {
+            int capabilities = startup.addStage("capabilities", io, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getImageSizes();
+                    } catch (CameraAccessException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            int readers = startup.addStage("readers", io, new Runnable() {
+                @Override
+                public void run() {
+                    getStillReaders(activity, mCameraId);
+                }
+            }, capabilities);
+            sessionDependencies = new int[]{recovery, readers, mSurfaceStage, mOpenStage};
+        }
+        mSessionStage = startup.addAsyncStage("session", main, new Runnable() {
+            @Override
+            public void run() {
+                if (warm) {
+                    resumeCameraOutputs();
+                } else {
+                    setUpCameraOutputs(mTextureView.getWidth(), mTextureView.getHeight());
+                }
+                configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
+                camera.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!startup.isCancelled() && null != mCameraDevice) {
+                            createCameraPreviewSession();
+                        }
+                    }
+                });
+            }
+        }, sessionDependencies);
+        mFirstFrameStage = startup.addSignal("firstFrame", mSessionStage);
+        startup.addStage("gallery", io, new Runnable() {
+            @Override
+            public void run() {
+                File recent = findRecentImage();
+                if (null == recent) {
+                    return;
+                }
+                Bitmap thumbnail = ThumbnailCache.get().load(recent);
+                if (null != thumbnail) {
+                    // Older than any picture taken since the camera opened.
+                    showRecentThumbnail(thumbnail, Long.MIN_VALUE + 1);
+                }
+            }
+        }, mFirstFrameStage);
+        if (!mFilterThumbnailsLoaded) {
+            final Resources resources = getResources();
+            startup.addStage("thumbnails", io, new Runnable() {
+                @Override
+                public void run() {
+                    loadFilterThumbnails(resources);
+                }
+            }, mFirstFrameStage);
+        }
+
+        mOpenStartNanos = System.nanoTime();
+        mStartupWarm = warm;
+        mStartup = startup;
+        startup.start();
+    }
+
+    /**
+     * Renames or deletes the temporary files of saves interrupted by the process dying, see
+     * {@link ImageFileWriter#recover(File)}. Saves still pending from an earlier session are
+     * waited for first, so their temporary files are not taken for leftovers.
+     */
+    private void recoverInterruptedSaves() {
         try {
-            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Time out waiting to lock camera opening.");
+            if ((null != mPersistenceExecutor
+                    && !mPersistenceExecutor.awaitIdle(PERSISTENCE_DRAIN_TIMEOUT_MS))
+                    || (null != mSpillExecutor
+                    && !mSpillExecutor.awaitIdle(PERSISTENCE_DRAIN_TIMEOUT_MS))) {
+                Log.w(TAG, "Saves still pending, not recovering: " + mPersistenceExecutor);
+                return;
             }
-            manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
         } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        int leftovers = ImageFileWriter.recover(mGalleryDir);
+        if (leftovers > 0) {
+            Log.w(TAG, "Cleaned up " + leftovers + " interrupted saves");
         }
     }
 
     /**
-     * Closes the current {@link CameraDevice}.
+     * Restores the outputs released by {@link #closeCamera(boolean)} when keeping the others: the
+     * ZSL reader and the zoom crop, which the control bus drops on detach. The still readers,
+     * preview size, zoom level, flash, white balance and effect are as they were.
      */
-    private void closeCamera() {
+    private void resumeCameraOutputs() {
         try {
-            mCameraOpenCloseLock.acquire();
-            if (null != mCaptureSession) {
-                mCaptureSession.close();
-                mCaptureSession = null;
+            CameraCapabilityCache cache = CameraCapabilityCache.get(getActivity());
+            setUpZslReader(mCapabilities, cache.getSizeSelector(mCameraId),
+                    new Size(mImageReader.getWidth(), mImageReader.getHeight()));
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        if (mZoomController.hasCrop()) {
+            mControlBus.setZoomCrop(mZoomController.getCropLeft(), mZoomController.getCropTop(),
+                    mZoomController.getCropRight(), mZoomController.getCropBottom());
+        }
+    }
+
+    /**
+     * Loads the images of the filter menu buttons through the {@link ThumbnailCache}. Call this
+     * off the main thread; the buttons are set on it.
+     */
+    private void loadFilterThumbnails(Resources resources) {
+        ThumbnailCache cache = ThumbnailCache.get();
+        final Bitmap mono = cache.getResource(resources, R.drawable.img_blackwhite);
+        final Bitmap sepia = cache.getResource(resources, R.drawable.img_sepia);
+        final Bitmap negative = cache.getResource(resources, R.drawable.img_negative);
+        final Bitmap noFilter = cache.getResource(resources, R.drawable.img_nofilter);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (null == getView()) {
+                    return;
+                }
+                mFilterThumbnailsLoaded = true;
+                btn_mono.setImageBitmap(mono);
+                btn_sepia.setImageBitmap(sepia);
+                btn_negative.setImageBitmap(negative);
+                btn_nof.setImageBitmap(noFilter);
+            }
+        });
+    }
+
+    /**
+     * @return An {@link Executor} posting to {@code handler}
+     */
+    private static Executor handlerExecutor(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
             }
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
-                mCameraDevice = null;
+        };
+    }
+
+    /**
+     * Opens {@link #mCameraId} through the {@link CameraSessionManager}, which hands over the
+     * device right away if the video mode left it open. The result is listened by
+     * {@link #mCameraListener}.
+     *
+     * @param startup The startup opening the camera, or null. Nothing is opened if it was
+     *                cancelled.
+     */
+    private void openCameraDevice(StartupScheduler startup) {
+        Activity activity = getActivity();
+        CameraSessionManager sessionManager = mSessionManager;
+        if (null == activity || null == sessionManager
+                || (null != startup && startup.isCancelled())) {
+            return;
+        }
+        try {
+            sessionManager.open(activity, mCameraId, mCameraListener);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            failStartup(e);
+        }
+    }
+
+    /**
+     * Fails the open stage of the startup in progress, if the camera has not opened yet, so the
+     * startup does not wait for it forever.
+     */
+    private void failStartup(Throwable cause) {
+        StartupScheduler startup = mStartup;
+        if (null != startup && !startup.isComplete(mOpenStage)) {
+            mStartup = null;
+            startup.fail(mOpenStage, cause);
+        }
+    }
+
+    /**
+     * Closes the capture session and releases its outputs. The {@link CameraDevice} stays open in
+     * the {@link CameraSessionManager}.
+     */
+    private void closeCamera() {
+        closeCamera(false);
+    }
+
+    /**
+     * Closes the capture session; the device is closed by the {@link CameraSessionManager}.
+     *
+     * @param keepOutputs Whether to keep the still readers and the configuration computed for
+     *                    them, for {@link #startCamera(boolean) a warm start}. The ZSL reader is
+     *                    released either way, as its buffers are large.
+     */
+    private void closeCamera(boolean keepOutputs) {
+        long start = System.nanoTime();
+        mControlBus.detach();
+        if (null != mSessionManager) {
+            mSessionManager.closeSession();
+        }
+        mCaptureSession = null;
+        mCameraDevice = null;
+        mWarm = keepOutputs && null != mStillReaders && null != mImageReader
+                && null != mPreviewSize && null != mCapabilities;
+        List<StillReaderSet> released = null;
+        synchronized (mStillReaderSets) {
+            if (!mWarm && !mStillReaderSets.isEmpty()) {
+                released = new ArrayList<>(mStillReaderSets.values());
+                mStillReaderSets.clear();
+                Log.d(TAG, "Still images: " + mImageBufferPool);
             }
-            if (null != mImageReader) {
-                mImageReader.close();
+            if (!mWarm) {
+                mStillReaders = null;
                 mImageReader = null;
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-        } finally {
-            mCameraOpenCloseLock.release();
         }
+        if (null != released) {
+            // Pending saves still reference the readers' buffers.
+            closeStillReaders(released);
+        }
+        closeZslReader();
+        closeRetiredZslReader();
+        mSwitchStartNanos = 0;
+        mSwitchFromSession = null;
+        mPendingCapture = null;
+        mCaptureRegistry.clear();
+        mCloseMetric.recordSince(start);
     }
 
     /**
-     * Starts a background thread and its {@link Handler}.
+     * Takes the handlers of the camera threads and the persistence executor from the
+     * {@link CameraSessionManager} of the activity.
      */
     private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        mSessionManager = ((CameraActivity) getActivity()).getSessionManager();
+        mBackgroundHandler = mSessionManager.getHandler();
+        mResultHandler = mSessionManager.getResultHandler();
+        mFrameHandler = mSessionManager.getFrameHandler();
+        mPersistenceExecutor = mSessionManager.getPersistenceExecutor();
+        mSpillExecutor = mSessionManager.getSpillExecutor();
+        mPersistenceExecutor.setBackpressureListener(
+                new PersistenceExecutor.BackpressureListener() {
+                    @Override
+                    public void onBackpressureChanged(final boolean saturated) {
+                        Log.d(TAG, "Persistence saturated=" + saturated + " "
+                                + mPersistenceExecutor);
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onPersistenceSaturated(saturated);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Holds off new shots while the {@link PersistenceExecutor} is full: the shutter is disabled
+     * and a running burst is stopped, instead of pictures being saved on a camera thread.
+     * Called on the main thread.
+     */
+    private void onPersistenceSaturated(boolean saturated) {
+        if (null != mShutterButton) {
+            mShutterButton.setEnabled(!saturated);
+        }
+        if (saturated) {
+            stopBurst();
+        }
     }
 
     /**
-     * Stops the background thread and its {@link Handler}.
+     * Flushes pending saves and lets go of the background thread, which the
+     * {@link CameraSessionManager} keeps running for the other mode.
      */
     private void stopBackgroundThread() {
-        mBackgroundThread.quitSafely();
+        if (null == mSessionManager) {
+            return;
+        }
+        flushSaves();
+        mSessionManager.release(mCameraListener);
+        mSessionManager = null;
+        mBackgroundHandler = null;
+        mResultHandler = null;
+        mFrameHandler = null;
+        mPersistenceExecutor = null;
+        mSpillExecutor = null;
+    }
+
+    /**
+     * Exports diagnostics, then waits for pending saves to be written and synced on the I/O
+     * executor, never on the calling thread. Saves the process does not live to finish are
+     * cleaned up by the recovery stage of the next startup.
+     */
+    private void flushSaves() {
+        exportDiagnostics();
+        final PersistenceExecutor persistenceExecutor = mPersistenceExecutor;
+        final PersistenceExecutor spillExecutor = mSpillExecutor;
+        final CameraSessionManager sessionManager = mSessionManager;
+        Executor io = null == sessionManager ? null : sessionManager.getIoExecutor();
+        if (null == io) {
+            // Stopped, which flushed everything already.
+            return;
+        }
         try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            io.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (null != persistenceExecutor
+                                && !persistenceExecutor.awaitIdle(PERSISTENCE_DRAIN_TIMEOUT_MS)) {
+                            Log.w(TAG, "Pausing with pending saves: " + persistenceExecutor);
+                        }
+                        if (null != spillExecutor
+                                && !spillExecutor.awaitIdle(PERSISTENCE_DRAIN_TIMEOUT_MS)) {
+                            Log.w(TAG, "Pausing with pending spilled saves: " + spillExecutor);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    ImageFileWriter.flush();
+                    Log.d(TAG, "Saves (" + ImageFileWriter.getDurabilityPolicy() + "): "
+                            + ImageFileWriter.getStats());
+                    Log.d(TAG, "Threads: " + sessionManager.getThreadReport());
+                    Log.d(TAG, "Thumbnails: " + ThumbnailCache.get());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The recovery stage of the next startup cleans up what does not finish.
+            Log.w(TAG, "Pausing without flushing saves", e);
+        }
+    }
+
+    /**
+     * Queues the {@link CaptureTracer} events and a {@link MetricsRegistry} snapshot for export as
+     * {@link #CAPTURE_TRACE_FILE} and {@link #METRICS_FILE} in the app's external files
+     * directory, behind any pending saves.
+     */
+    private void exportDiagnostics() {
+        Activity activity = getActivity();
+        if (null == activity || null == mPersistenceExecutor) {
+            return;
+        }
+        final String metrics = MetricsRegistry.get().snapshot();
+        Log.d(TAG, "Metrics:\n" + metrics);
+        final CaptureTracer tracer = CaptureTracer.get();
+        final boolean trace = tracer.isEnabled() && tracer.getRecordedCount() > 0;
+        final File directory = activity.getExternalFilesDir(null);
+        boolean queued = mPersistenceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Writer writer = new BufferedWriter(new FileWriter(
+                            new File(directory, METRICS_FILE)));
+                    try {
+                        writer.write(metrics);
+                    } finally {
+                        writer.close();
+                    }
+                    if (trace) {
+                        writer = new BufferedWriter(new FileWriter(
+                                new File(directory, CAPTURE_TRACE_FILE)));
+                        try {
+                            tracer.writeChromeTrace(writer);
+                        } finally {
+                            writer.close();
+                        }
+                    }
+                    Log.d(TAG, "Diagnostics written to " + directory);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, PersistenceExecutor.PRIORITY_SIDECAR);
+        if (!queued) {
+            mExportRejectedMetric.increment();
+            Log.w(TAG, "Diagnostics not exported, persistence saturated: "
+                    + mPersistenceExecutor);
         }
     }
 
@@ -1206,14 +2341,21 @@ public class CameraFragment extends Fragment
 
             // This is the output Surface we need to start preview.
             Surface surface = new Surface(texture);
+            mPreviewSurface = surface;
 
             // We set up a CaptureRequest.Builder with the output Surface.
             mPreviewRequestBuilder
                     = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
+            List<Surface> outputs = new ArrayList<>(Arrays.asList(surface, mImageReader.getSurface()));
+            if (mZslEnabled) {
+                // Every preview frame also lands in the ZSL ring buffer.
+                mPreviewRequestBuilder.addTarget(mZslImageReader.getSurface());
+                outputs.add(mZslImageReader.getSurface());
+            }
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            mSessionManager.createSession(outputs,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -1225,6 +2367,9 @@ public class CameraFragment extends Fragment
 
                             // When the session is ready, we start displaying the preview.
                             mCaptureSession = cameraCaptureSession;
+                            // A sequence of the previous session will never complete.
+                            mCaptureStateMachine.reset();
+                            closeRetiredZslReader();
                             try {
                                 // Auto focus should be continuous for camera preview.
                                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
@@ -1234,16 +2379,17 @@ public class CameraFragment extends Fragment
                                 //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.TRUE);
                                 //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_EFFECT_MODE ,CaptureRequest.CONTROL_EFFECT_MODE_MONO);
 
-                                // Flash is automatically enabled when necessary.
-                                setAutoFlash(mPreviewRequestBuilder);
-                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AWB_MODE, awbMode);
                                 setFaceDetect(mPreviewRequestBuilder,mFaceDetectMode);
 
-                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_EFFECT_MODE ,effectMode);
+                                // Flash, white balance and effect come from the control bus.
+                                mControlBus.attach(mCaptureSession, mPreviewRequestBuilder,
+                                        mCaptureCallback, mResultHandler);
                                 // Finally, we start displaying the camera preview.
-                                mPreviewRequest = mPreviewRequestBuilder.build();
-                                mCaptureSession.setRepeatingRequest(mPreviewRequest,
-                                        mCaptureCallback, mBackgroundHandler);
+                                mPreviewRequest = mControlBus.submitNow();
+                                StartupScheduler startup = mStartup;
+                                if (null != startup) {
+                                    startup.complete(mSessionStage);
+                                }
                             } catch (CameraAccessException e) {
                                 e.printStackTrace();
                             }
@@ -1252,9 +2398,18 @@ public class CameraFragment extends Fragment
                         @Override
                         public void onConfigureFailed(
                                 @NonNull CameraCaptureSession cameraCaptureSession) {
+                            if (mZslEnabled && null != mCameraDevice) {
+                                // The stream combination is not supported; retry without ZSL.
+                                Log.w(TAG, "Session with ZSL output failed, disabling ZSL");
+                                closeZslReader();
+                                createCameraPreviewSession();
+                                return;
+                            }
+                            // No session will take the changes held for it.
+                            mControlBus.release();
                             showToast("Failed");
                         }
-                    }, null
+                    }
             );
         } catch (CameraAccessException e) {
             e.printStackTrace();
@@ -1298,35 +2453,96 @@ public class CameraFragment extends Fragment
      * Initiate a still image capture.
      */
     private void takePicture() {
-        try {
-            mFile = null;
-            createImageGallery();
-            mFile = createImageFile();
-        } catch (IOException e) {
-            e.printStackTrace();
+        long start = System.nanoTime();
+        if (mPersistenceExecutor.isSaturated()) {
+            showToast("Saving previous pictures, please wait");
+            return;
+        }
+        if (!mCaptureStateMachine.isIdle()) {
+            Log.d(TAG, "Capture in progress, ignoring the shutter");
+            return;
+        }
+        createImageGallery();
+        File file = createImageFile();
+        mFile = file;
+        if (mZslEnabled && commitZslFrame(file)) {
+            return;
         }
+        if (null != mPendingCapture) {
+            // The previous shot never got past focus locking.
+            mCaptureRegistry.onCaptureFailed(mPendingCapture.getTag());
+        }
+        mPendingCapture = mCaptureRegistry.register(file, mCameraId, effectMode);
+        mPendingCapture.setFaceCount(mPreviewResultProcessor.getLastFaceCount());
+        mTraceShot = mPendingCapture.getTag();
+        CaptureTracer.get().span("takePicture", mTraceShot, start);
+        mTraceStageNanos = System.nanoTime();
         if(!flagzoom){
-            lockFocus();
+            // Keep control changes off the builder until unlockFocus().
+            mControlBus.hold();
+            mCaptureStateMachine.startStill(System.nanoTime());
             //capturePictureZoom();
         }
         else{
-            //mState = STATE_WAITING_LOCK;
             flagzoom = false;
+            mCaptureStateMachine.startDirect(System.nanoTime());
             capturePictureZoom();
         }
-        if(mFile.exists()){
-            Picasso.with(getView().getContext())
-                    .load(mFile)
-                    .resize(0,100)
-                    .skipMemoryCache()
-                    .noFade()
-                    .into(civRecentImage);
-        }
+        scheduleCaptureTimeoutCheck();
+    }
 
+    /**
+     * Takes the buffered frame closest to the moment the shutter was pressed and encodes it in the
+     * background, skipping the focus lock and precapture sequence.
+     *
+     * @param file Where the picture is saved
+     * @return Whether a frame was available and none is still waiting to be encoded; the shot
+     * may still have been refused when the {@link PersistenceExecutor} is full
+     */
+    private boolean commitZslFrame(File file) {
+        if (!mZslFramePending.compareAndSet(false, true)) {
+            // Leave the ring its spare buffer; this shot takes the regular path.
+            return false;
+        }
+        long pressed = mZslTimestampRealtime ? SystemClock.elapsedRealtimeNanos()
+                : mZslRingBuffer.getLatestTimestamp();
+        Image frame = mZslRingBuffer.take(pressed);
+        if (null == frame) {
+            mZslFramePending.set(false);
+            return false;
+        }
+        int rotation = getActivity().getWindowManager().getDefaultDisplay().getRotation();
+        long shot = mCaptureRegistry.newTag();
+        CaptureTracer.get().instant("commitZslFrame", shot);
+        // The frame is the one closest to the shutter press, which is now.
+        final YuvImageSaver saver = new YuvImageSaver(frame, file, getOrientation(rotation), shot,
+                newImageSavedListener(shot, System.currentTimeMillis(), mCameraId, effectMode,
+                        mPreviewResultProcessor.getLastFaceCount(), frame.getWidth(),
+                        frame.getHeight()));
+        Runnable encode = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    saver.run();
+                } finally {
+                    mZslFramePending.set(false);
+                }
+            }
+        };
+        if (!mPersistenceExecutor.execute(encode, PersistenceExecutor.PRIORITY_STILL)) {
+            // As for a regular shot, refuse it rather than encode on a camera thread.
+            frame.close();
+            mZslFramePending.set(false);
+            onSaveRejected(file);
+            return true;
+        }
+        showToast("Saved: " + file);
+        return true;
     }
 
     /**
-     * Lock the focus as the first step for a still image capture.
+     * Lock the focus as the first step for a still image capture or burst, when
+     * {@link #mCaptureStateMachine} asks for it.
      */
     private void lockFocus() {
         try {
@@ -1339,12 +2555,12 @@ public class CameraFragment extends Fragment
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.TRUE);
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION , 0);
-            // Tell #mCaptureCallback to wait for the lock.
-            mState = STATE_WAITING_LOCK;
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    mBackgroundHandler);
+                    mResultHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            mCaptureStateMachine.reset();
+            mBurstActive = false;
         }
     }
 
@@ -1362,10 +2578,8 @@ public class CameraFragment extends Fragment
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.TRUE);
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION , 0);
-            // Tell #mCaptureCallback to wait for the precapture sequence to be set.
-            mState = STATE_WAITING_PRECAPTURE;
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    mBackgroundHandler);
+                    mResultHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -1391,39 +2605,251 @@ public class CameraFragment extends Fragment
             // Use the same AE and AF modes as the preview.
             captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
                     CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            setAutoFlash(captureBuilder);
+            // And the same crop and effects, so the picture matches the preview.
+            mControlBus.applyTo(captureBuilder);
 
             // Orientation
             int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
             captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
-            captureBuilder.set(CaptureRequest.CONTROL_EFFECT_MODE ,effectMode);
-            captureBuilder.set(CaptureRequest.CONTROL_AWB_MODE, awbMode);
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.TRUE);
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, 0);
             //captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
             //captureBuilder.set(CaptureRequest., minexprosure);
             //captureBuilder.set(CaptureRequest.COLOR_CORRECTION_MODE, CaptureRequest.COLOR_CORRECTION_MODE_TRANSFORM_MATRIX);
             //captureBuilder.set(CaptureRequest.COLOR_CORRECTION_GAINS, colorTemperature(Integer.parseInt(awbMode)));
-            CameraCaptureSession.CaptureCallback CaptureCallback
-                    = new CameraCaptureSession.CaptureCallback() {
+            CaptureRegistry.Record record = takePendingCapture(captureBuilder);
+            CameraCaptureSession.CaptureCallback CaptureCallback = new StillCaptureCallback(record);
 
-                @Override
-                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                               @NonNull CaptureRequest request,
-                                               @NonNull TotalCaptureResult result) {
-                    showToast("Saved: " + mFile);
-                    Log.d(TAG, mFile.toString());
-                    unlockFocus();
+            mCaptureSession.stopRepeating();
+            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, mResultHandler);
+            if (null != record) {
+                mCaptureRegistry.onCaptureSubmitted(record.getTag());
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Posts {@link #mCaptureTimeoutCheck} for when the current capture state times out, if it
+     * can.
+     */
+    private void scheduleCaptureTimeoutCheck() {
+        Handler handler = mResultHandler;
+        if (null == handler) {
+            return;
+        }
+        handler.removeCallbacks(mCaptureTimeoutCheck);
+        long remaining = mCaptureStateMachine.getRemainingNanos(System.nanoTime());
+        if (remaining >= 0) {
+            handler.postDelayed(mCaptureTimeoutCheck, remaining / 1000000 + 1);
+        }
+    }
+
+    /**
+     * Closes the current focus or exposure stage of the traced still capture and starts the next.
+     */
+    private void traceStage(String name) {
+        long now = System.nanoTime();
+        CaptureTracer.get().span(name, mTraceShot, mTraceStageNanos, now);
+        mTraceStageNanos = now;
+    }
+
+    /**
+     * Registers the capture prepared by {@link #takePicture()} and tags {@code captureBuilder} with
+     * it, so the image is saved into the file chosen when the shutter was pressed.
+     *
+     * @return The capture record, or null if no capture was pending
+     */
+    private CaptureRegistry.Record takePendingCapture(CaptureRequest.Builder captureBuilder) {
+        CaptureRegistry.Record record = mPendingCapture;
+        mPendingCapture = null;
+        if (null != record) {
+            captureBuilder.setTag(record.getTag());
+        }
+        return record;
+    }
+
+    /**
+     * Binds a still request to its {@link CaptureRegistry.Record} and reports where it is saved.
+     */
+    private class StillCaptureCallback extends CameraCaptureSession.CaptureCallback {
+
+        private final CaptureRegistry.Record mRecord;
+        private final long mSequence = mCaptureStateMachine.getSequence();
+        private final long mSubmittedNanos = System.nanoTime();
+
+        StillCaptureCallback(CaptureRegistry.Record record) {
+            mRecord = record;
+        }
+
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                     @NonNull CaptureRequest request,
+                                     long timestamp, long frameNumber) {
+            mCaptureRegistry.onCaptureStarted(request.getTag(), timestamp);
+            if (null != mRecord) {
+                CaptureTracer.get().span("stillRequest", mRecord.getTag(), mSubmittedNanos);
+            }
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            if (null != mRecord) {
+                CaptureTracer.get().span("stillResult", mRecord.getTag(),
+                        mRecord.getStartedNanos());
+                showToast("Saved: " + mRecord.getFile());
+                Log.d(TAG, mRecord.toString());
+            }
+            unlockFocus(mSequence);
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            Log.e(TAG, "Still capture failed, reason " + failure.getReason());
+            mCaptureRegistry.onCaptureFailed(request.getTag());
+            unlockFocus(mSequence);
+        }
+    }
+
+    /**
+     * Starts a burst: locks AF and AE once, then {@link #submitBurst()} keeps still requests
+     * repeating until {@link #stopBurst()} is called.
+     */
+    private void startBurst() {
+        final Handler handler = mBackgroundHandler;
+        if (null == mCaptureSession || null == handler || mBurstActive
+                || !mCaptureStateMachine.isIdle()) {
+            return;
+        }
+        if (mPersistenceExecutor.isSaturated()) {
+            showToast("Saving previous pictures, please wait");
+            return;
+        }
+        mBurstActive = true;
+        mBurstSequence = 0;
+        mBurstPrefix = "IMAGE_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date())
+                + "_BURST_";
+        mBurstStats.begin();
+        mControlBus.hold();
+        // The request builder is only changed on the camera thread, like in stopBurst(), which
+        // is posted behind this and so always undoes the lock.
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (null == mCaptureSession) {
+                    // Closed meanwhile.
+                    mBurstActive = false;
+                    mControlBus.release();
+                    return;
                 }
-            };
+                // Sent with the focus lock, or kept on the burst requests when the focus is fixed.
+                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.TRUE);
+                if (!mCaptureStateMachine.startBurst(System.nanoTime())) {
+                    mBurstActive = false;
+                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.FALSE);
+                    mControlBus.release();
+                    return;
+                }
+                scheduleCaptureTimeoutCheck();
+            }
+        });
+    }
 
-            mCaptureSession.stopRepeating();
-            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
+    /**
+     * Submits the repeating burst of still requests once focus and exposure are locked. This
+     * method should be called when we get a response in {@link #mCaptureCallback} from
+     * {@link #startBurst()}.
+     */
+    private void submitBurst() {
+        final Activity activity = getActivity();
+        if (!mBurstActive || null == activity || null == mCameraDevice) {
+            return;
+        }
+        try {
+            CaptureRequest.Builder burstBuilder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            burstBuilder.addTarget(mImageReader.getSurface());
+            burstBuilder.addTarget(mPreviewSurface);
+
+            // Keep the AF mode of the preview so the lock taken in startBurst() holds.
+            burstBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            burstBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.TRUE);
+            mControlBus.applyTo(burstBuilder);
+            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            burstBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
+
+            CaptureRequest request = burstBuilder.build();
+            List<CaptureRequest> burst = new ArrayList<>(BURST_REQUEST_COUNT);
+            for (int i = 0; i < BURST_REQUEST_COUNT; i++) {
+                burst.add(request);
+            }
+            mCaptureSession.setRepeatingBurst(burst, mBurstCaptureCallback, mResultHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Ends the burst started by {@link #startBurst()} and resumes the preview.
+     */
+    private void stopBurst() {
+        if (!mBurstActive || null == mBackgroundHandler) {
+            return;
+        }
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mBurstActive || null == mCaptureSession) {
+                    return;
+                }
+                mBurstActive = false;
+                try {
+                    mCaptureSession.stopRepeating();
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.FALSE);
+                unlockFocus(mCaptureStateMachine.getSequence());
+                Log.d(TAG, "Burst finished: " + mBurstStats);
+                showToast("Burst: " + mBurstStats.getFramesStarted() + " pictures");
+            }
+        });
+    }
+
+    /**
+     * Records the start of every burst frame, and stops the burst once it is long enough.
+     */
+    private final CameraCaptureSession.CaptureCallback mBurstCaptureCallback
+            = new CameraCaptureSession.CaptureCallback() {
+
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                     @NonNull CaptureRequest request,
+                                     long timestamp, long frameNumber) {
+            mBurstStats.onFrameStarted(timestamp);
+            File file = new File(mGalleryDir,
+                    mBurstPrefix + String.format("%03d", ++mBurstSequence) + ".jpg");
+            mCaptureRegistry.registerStarted(timestamp, file, mCameraId, effectMode);
+            if (mBurstStats.getFramesStarted() >= BURST_MAX_FRAMES) {
+                stopBurst();
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            Log.e(TAG, "Burst frame failed, reason " + failure.getReason());
+        }
+
+    };
+
     /**
      * Retrieves the JPEG orientation from the specified screen rotation.
      *
@@ -1441,8 +2867,15 @@ public class CameraFragment extends Fragment
     /**
      * Unlock the focus. This method should be called when still image capture sequence is
      * finished.
+     *
+     * @param sequence The {@link CaptureStateMachine#getSequence() sequence} that finished; a
+     *                 late callback of an earlier one is ignored
      */
-    private void unlockFocus() {
+    private void unlockFocus(long sequence) {
+        if (!mCaptureStateMachine.isCurrent(sequence)) {
+            Log.d(TAG, "Ignoring the end of stale capture sequence " + sequence);
+            return;
+        }
         try {
             // Reset the auto-focus trigger
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
@@ -1452,16 +2885,13 @@ public class CameraFragment extends Fragment
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, Boolean.TRUE);
 
             //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, 0);
-            setAutoFlash(mPreviewRequestBuilder);
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_EFFECT_MODE ,effectMode);
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AWB_MODE, awbMode);
+            mControlBus.applyTo(mPreviewRequestBuilder);
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    mBackgroundHandler);
+                    mResultHandler);
             // After this, the camera will go back to the normal state of preview.
-            mState = STATE_PREVIEW;
-            mPreviewRequest = mPreviewRequestBuilder.build();
-            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
-                    mBackgroundHandler);
+            mCaptureStateMachine.finish(sequence, System.nanoTime());
+            Log.d(TAG, "Capture states: " + mCaptureStateMachine.getLastSummary());
+            mPreviewRequest = mControlBus.submitNow();
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -1487,32 +2917,12 @@ public class CameraFragment extends Fragment
         } else {
             mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
         }*/
-        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AWB_MODE, awbMode);
-        try {
-            mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    null);
-        }
-        catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
-        catch (NullPointerException ex)
-        {
-            ex.printStackTrace();
-        }
+        mControlBus.setAwbMode(awbMode);
+        mControlBus.setEffectMode(effectMode);
     }
     private void setEffect(){
-        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_EFFECT_MODE ,effectMode);
-        try {
-            mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(), mCaptureCallback,
-                    null);
-        }
-        catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
-        catch (NullPointerException ex)
-        {
-            ex.printStackTrace();
-        }
+        mControlBus.setEffectMode(effectMode);
+        mControlBus.setAwbMode(awbMode);
     }
     private boolean checkMenuEffect = true;
     public void SetEnabledMenuFilter(int value){
@@ -1543,7 +2953,6 @@ public class CameraFragment extends Fragment
     }
     private boolean checkSubMenu = true;
     private boolean checkWBMenu = true;
-    private boolean checktakepicture = true;
     private int checkScreenSize = 1;
     private boolean is43 = true;
     @Override
@@ -1560,7 +2969,6 @@ public class CameraFragment extends Fragment
             }
             case R.id.btn_take_picture: {
                 takePicture();
-                checktakepicture = true;
                 SetEnabledMenuFilter(View.GONE);
                 checkMenuEffect = true;
                 checkSubMenu = true;
@@ -1727,14 +3135,7 @@ public class CameraFragment extends Fragment
                 }else if(mAspectRatio == 9){
                     mAspectRatio = 5;
                 }
-                closeCamera();
-                stopBackgroundThread();
-                startBackgroundThread();
-                if (mTextureView.isAvailable()) {
-                    openCamera(mTextureView.getWidth(), mTextureView.getHeight());
-                } else {
-                    mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
-                }
+                switchAspectRatio();
                 //setUpCameraOutputs(mTextureView.getWidth(), mTextureView.getHeight());
                 //configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
                 /*
@@ -1799,6 +3200,7 @@ public class CameraFragment extends Fragment
                     btnFlash.setScaleY(0.7f);
 
                 }
+                mControlBus.setFlash(mFlashSupported);
                 break;
             }
             case R.id.btn_rotate: {
@@ -1809,23 +3211,7 @@ public class CameraFragment extends Fragment
                             .setPositiveButton(android.R.string.ok, null)
                             .show();
                 }*/
-                closeCamera();
-                stopBackgroundThread();
-                if(mCameraId.equals(IDCameraRear)) {
-                    mCameraId = IDCameraFront;
-                    mAspectRatio = 5;
-                    Log.e(TAG, "Display rotation is invalid: " + IDCameraFront);
-                }else{
-                    mCameraId = IDCameraRear;
-                    mAspectRatio = 1;
-                    Log.e(TAG, "Display rotation is invalid: " + IDCameraRear);
-                }
-                startBackgroundThread();
-                if (mTextureView.isAvailable()) {
-                    openCamera(mTextureView.getWidth(), mTextureView.getHeight());
-                } else {
-                    mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
-                }
+                switchCamera();
                 break;
             }
             case R.id.btn_grid:
@@ -1849,64 +3235,6 @@ public class CameraFragment extends Fragment
 
     }
 
-    private void setAutoFlash(CaptureRequest.Builder requestBuilder) {
-        if (mFlashSupported == 0) {
-            requestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                    CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-        }else if (mFlashSupported == 1){
-            requestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                    CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH);
-        }
-        else if (mFlashSupported == -1){
-            requestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                    CaptureRequest.FLASH_MODE_OFF);
-        }
-    }
-
-    /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
-     */
-    private static class ImageSaver implements Runnable {
-
-        /**
-         * The JPEG image
-         */
-        private final Image mImage;
-        /**
-         * The file we save the image into.
-         */
-        private final File mFile;
-
-        public ImageSaver(Image image, File file) {
-            mImage = image;
-            mFile = file;
-        }
-
-        @Override
-        public void run() {
-            ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-            FileOutputStream output = null;
-            try {
-                output = new FileOutputStream(mFile);
-                output.write(bytes);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                mImage.close();
-                if (null != output) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }
-
-    }
-
     /**
      * Compares two {@code Size}s based on their areas.
      */
@@ -2002,79 +3330,84 @@ public class CameraFragment extends Fragment
         }
     }
 
+    /**
+     * Shows {@code thumbnail} on {@link #civRecentImage} unless a newer picture is already shown.
+     * Can be called from any thread.
+     *
+     * @param order The {@link CaptureRegistry} tag of the capture
+     */
+    private void showRecentThumbnail(final Bitmap thumbnail, final long order) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (null == getView() || order < mRecentThumbnailOrder) {
+                    return;
+                }
+                mRecentThumbnailOrder = order;
+                civRecentImage.setImageBitmap(thumbnail);
+            }
+        });
+    }
 
-    private String getRecentImage(){
-        String path = "";
-        File storageDirectory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-        File file = new File(storageDirectory, GALLERY_LOCATION);
-        File[] list = file.listFiles();
-        for(File f:list){
-            if(f.getAbsolutePath().endsWith(".jpg")){
-                path = f.getAbsolutePath();
+    /**
+     * @return The newest picture of the {@link MediaCatalog} that still exists, or null. Entries
+     * and thumbnails of pictures deleted since are dropped on the way.
+     */
+    private File findRecentImage() {
+        MediaCatalog catalog = openMediaCatalog(mGalleryDir);
+        if (null == catalog) {
+            return null;
+        }
+        MediaCatalog.Entry entry;
+        while (null != (entry = catalog.getLatest())) {
+            File file = new File(mGalleryDir, entry.getName());
+            if (file.exists()) {
+                return file;
+            }
+            ThumbnailCache.get().remove(file);
+            try {
+                catalog.remove(entry.getName());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
             }
         }
-        return path;
+        return null;
     }
-    //TODO: Get sizes
-    private void getImageSizes() throws CameraAccessException {
-        int count = 0;
 
+    /**
+     * Aspect ratios offered for still capture, in the order the screen size button cycles
+     * through them.
+     */
+    private static final int[][] STILL_ASPECT_RATIOS = {{4, 3}, {16, 9}, {1, 1}};
+
+    private void getImageSizes() throws CameraAccessException {
         Activity activity = getActivity();
-        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        CameraCapabilityCache cache = CameraCapabilityCache.get(activity);
         // TODO: Need to check whether the camera has front camera
-        IDCameraRear = manager.getCameraIdList()[0];
-        IDCameraFront = manager.getCameraIdList()[1];
-
-        // Get Sizes of Back Camera
-        CameraCharacteristics characteristics
-                = manager.getCameraCharacteristics(IDCameraRear);
-
-        StreamConfigurationMap map = characteristics.get(
-                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-        if (map == null) {
-            Log.e("ConfigurationMap","Cant get map of back camera");
-        }
+        IDCameraRear = cache.getCameraId(0);
+        IDCameraFront = cache.getCameraId(1);
 
-        // TODO: fix count
-        List<Size> tempSizesRear = Arrays.asList(map.getOutputSizes(ImageFormat.JPEG));
-        for (int i = 0; i< tempSizesRear.size(); ++i){
-            if ((float)tempSizesRear.get(i).getWidth()/(float)tempSizesRear.get(i).getHeight() == ((float)16/9)||
-                    (float)tempSizesRear.get(i).getWidth()/(float)tempSizesRear.get(i).getHeight() == ((float)4/3)||
-                    (float)tempSizesRear.get(i).getWidth()/(float)tempSizesRear.get(i).getHeight() == (1)){
-                biggestSizesRear.add(tempSizesRear.get(i));
+        biggestSizesRear = stillSizes(cache.getSizeSelector(IDCameraRear));
+        biggestSizesFront = stillSizes(cache.getSizeSelector(IDCameraFront));
+        Log.d(TAG, "Still sizes rear " + biggestSizesRear + " front " + biggestSizesFront);
+    }
 
-                Log.e("Size Rear","Aspect Ratio: "+ Float.toString((float)biggestSizesRear.get(count).getWidth()/(float)biggestSizesRear.get(count).getHeight()) +
-                        " Size: "+ biggestSizesRear.get(count).getWidth() + " : "+ biggestSizesRear.get(count).getHeight());
-                count++;
+    /**
+     * @return The largest JPEG size of each of {@link #STILL_ASPECT_RATIOS} the camera supports,
+     * or its largest JPEG size if it supports none of them
+     */
+    private static List<Size> stillSizes(SizeSelector selector) {
+        List<Size> sizes = new ArrayList<>();
+        for (int[] ratio : STILL_ASPECT_RATIOS) {
+            long size = selector.largest(CameraCapabilities.TABLE_JPEG, ratio[0], ratio[1]);
+            if (size != SizeSelector.NONE) {
+                sizes.add(CameraCapabilityCache.toSize(size));
             }
-            if (count == 4)
-                break;
-        }
-
-        characteristics
-                = manager.getCameraCharacteristics(IDCameraFront);
-        map = characteristics.get(
-                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-        if (map == null) {
-            Log.e("ConfigurationMap","Cant get map of front camera");
         }
-
-        // TODO: fix 4
-        count = 0;
-        List<Size> tempSizesFront = Arrays.asList(map.getOutputSizes(ImageFormat.JPEG));
-        for (int i = 0; i< tempSizesFront.size(); ++i){
-            if ((float)tempSizesFront.get(i).getWidth()/(float)tempSizesFront.get(i).getHeight() == ((float)16/9)||
-                    (float)tempSizesFront.get(i).getWidth()/(float)tempSizesFront.get(i).getHeight() == ((float)4/3)||
-                    (float)tempSizesFront.get(i).getWidth()/(float)tempSizesFront.get(i).getHeight() == ((float)1)){
-                biggestSizesFront.add(tempSizesFront.get(i));
-
-                Log.e("Size Front","Aspect Ratio: "+ Float.toString((float)biggestSizesFront.get(count).getWidth()/(float)biggestSizesFront.get(count).getHeight()) +
-                        " Size: "+ biggestSizesFront.get(count).getWidth() + " : "+ biggestSizesFront.get(count).getHeight());
-                count++;
-            }
-
-            if (count == 4)
-                break;
+        if (sizes.isEmpty()) {
+            sizes.add(CameraCapabilityCache.toSize(selector.largest(CameraCapabilities.TABLE_JPEG)));
         }
+        return Collections.unmodifiableList(sizes);
     }
 }
@@ -0,0 +1,522 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the {@link CameraDevice} and the threads of the camera for the whole
+ * {@link CameraActivity}, so the photo and video fragments only bring their own session
+ * configuration: the surfaces of a capture session on the device that is already open.
+ *
+ * <p>Switching between photo and video mode, or stopping a recording, therefore only creates a
+ * new capture session; the device is opened again only when another camera is asked for. The
+ * activity closes the device when it pauses and stops the threads when it is destroyed.</p>
+ *
+ * <p>All camera work runs on a fixed set of named threads, created once in {@link #start()}:</p>
+ * <ul>
+ * <li>camera control ({@link #getHandler()}): opening and closing the device and sessions, and
+ * other short calls into the camera service;</li>
+ * <li>result processing ({@link #getResultHandler()}): capture callbacks, where the AF/AE state
+ * machine and per-frame metadata are handled;</li>
+ * <li>frame analysis ({@link #getFrameHandler()}): {@link android.media.ImageReader} listeners,
+ * such as the zero shutter lag ring buffer;</li>
+ * <li>persistence ({@link #getPersistenceExecutor()} and {@link #getSpillExecutor()}): picture
+ * writes;</li>
+ * <li>I/O ({@link #getIoExecutor()}): startup reads and other blocking work, on workers of its
+ * own so it never waits behind pending saves.</li>
+ * </ul>
+ * <p>Each records its busy time in an {@link ExecutorStats}, see {@link #getThreadReport()}.
+ * Nothing should pass a null handler to the camera, which would run callbacks on whichever
+ * thread made the call.</p>
+ */
+class CameraSessionManager {
+
+    private static final String TAG = "CameraSessionManager";
+
+    /**
+     * Number of threads writing pictures to disk.
+     */
+    private static final int PERSISTENCE_WORKERS = 2;
+
+    /**
+     * Maximum number of picture saves that may be pending before new shots are held off.
+     */
+    private static final int PERSISTENCE_QUEUE_CAPACITY = 8;
+
+    /**
+     * Maximum number of spilled pictures, copied out of their reader buffers, waiting to be
+     * written.
+     */
+    private static final int SPILL_QUEUE_CAPACITY = 4;
+
+    /**
+     * Number of threads running other I/O, such as the startup reads.
+     */
+    private static final int IO_WORKERS = 2;
+
+    /**
+     * Maximum number of I/O tasks that may be pending.
+     */
+    private static final int IO_QUEUE_CAPACITY = 16;
+
+    /**
+     * How long to wait for pending saves when the threads are stopped.
+     */
+    private static final long PERSISTENCE_DRAIN_TIMEOUT_MS = 2500;
+
+    /**
+     * Receives the state of the device opened for a client. Called on the camera thread.
+     */
+    interface Listener {
+
+        void onCameraOpened(CameraDevice device);
+
+        /**
+         * The device was closed after being disconnected.
+         */
+        void onCameraDisconnected(CameraDevice device);
+
+        /**
+         * The device was closed after a fatal error.
+         */
+        void onCameraError(CameraDevice device, int error);
+    }
+
+    private HandlerThread mControlThread;
+    private HandlerThread mResultThread;
+    private HandlerThread mFrameThread;
+    private MonitoredHandler mHandler;
+    private MonitoredHandler mResultHandler;
+    private MonitoredHandler mFrameHandler;
+    private PersistenceExecutor mPersistenceExecutor;
+    private PersistenceExecutor mSpillExecutor;
+    private PersistenceExecutor mIoPool;
+    private Executor mIoExecutor;
+
+    /**
+     * Held from the start of an open until its result, and while closing.
+     */
+    private final Semaphore mOpenCloseLock = new Semaphore(1);
+    private volatile CameraDevice mDevice;
+    private volatile CameraCaptureSession mSession;
+    private volatile Listener mListener;
+    private volatile boolean mPaused;
+    /**
+     * Whether an open holds {@link #mOpenCloseLock} until the state callback.
+     */
+    private volatile boolean mOpening;
+
+    private final MetricsRegistry.Counter mOpenedMetric =
+            MetricsRegistry.get().counter("session.deviceOpened");
+    private final MetricsRegistry.Counter mReusedMetric =
+            MetricsRegistry.get().counter("session.deviceReused");
+    private final MetricsRegistry.Counter mSessionMetric =
+            MetricsRegistry.get().counter("session.created");
+    private final MetricsRegistry.Gauge mThreadMetric =
+            MetricsRegistry.get().gauge("executor.threads");
+
+    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+
+        @Override
+        public void onOpened(@NonNull CameraDevice cameraDevice) {
+            releaseOpenLock();
+            mDevice = cameraDevice;
+            mOpenedMetric.increment();
+            Listener listener = mListener;
+            if (null != listener) {
+                listener.onCameraOpened(cameraDevice);
+            }
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+            releaseOpenLock();
+            cameraDevice.close();
+            forget(cameraDevice);
+            Listener listener = mListener;
+            if (null != listener) {
+                listener.onCameraDisconnected(cameraDevice);
+            }
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice cameraDevice, int error) {
+            releaseOpenLock();
+            cameraDevice.close();
+            forget(cameraDevice);
+            Listener listener = mListener;
+            if (null != listener) {
+                listener.onCameraError(cameraDevice, error);
+            }
+        }
+    };
+
+    /**
+     * Starts the camera threads and the persistence executor, if they are not running.
+     */
+    public synchronized void start() {
+        if (null != mControlThread) {
+            return;
+        }
+        mControlThread = startThread("CameraControl");
+        mResultThread = startThread("CameraResults");
+        mFrameThread = startThread("CameraFrames");
+        mHandler = new MonitoredHandler(mControlThread.getLooper(),
+                new ExecutorStats("CameraControl"));
+        mResultHandler = new MonitoredHandler(mResultThread.getLooper(),
+                new ExecutorStats("CameraResults"));
+        mFrameHandler = new MonitoredHandler(mFrameThread.getLooper(),
+                new ExecutorStats("CameraFrames"));
+        mPersistenceExecutor = new PersistenceExecutor("CameraPersistence",
+                PERSISTENCE_WORKERS, PERSISTENCE_QUEUE_CAPACITY);
+        mSpillExecutor = new PersistenceExecutor("CameraSpill", 1, SPILL_QUEUE_CAPACITY);
+        final PersistenceExecutor io = new PersistenceExecutor("CameraIo", IO_WORKERS,
+                IO_QUEUE_CAPACITY);
+        mIoPool = io;
+        mIoExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (!io.execute(command, PersistenceExecutor.PRIORITY_SIDECAR)) {
+                    throw new RejectedExecutionException("I/O queue is full: " + io);
+                }
+            }
+        };
+        mThreadMetric.set(countThreads());
+    }
+
+    private static HandlerThread startThread(String name) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Closes the device and stops the threads, after pending saves are written.
+     */
+    public synchronized void stop() {
+        close();
+        if (null == mControlThread) {
+            return;
+        }
+        Log.d(TAG, "Threads: " + getThreadReport());
+        mControlThread.quitSafely();
+        mResultThread.quitSafely();
+        mFrameThread.quitSafely();
+        try {
+            mControlThread.join();
+            mResultThread.join();
+            mFrameThread.join();
+            mControlThread = null;
+            mResultThread = null;
+            mFrameThread = null;
+            mHandler = null;
+            mResultHandler = null;
+            mFrameHandler = null;
+            mPersistenceExecutor.shutdown(PERSISTENCE_DRAIN_TIMEOUT_MS);
+            mPersistenceExecutor = null;
+            mSpillExecutor.shutdown(PERSISTENCE_DRAIN_TIMEOUT_MS);
+            mSpillExecutor = null;
+            mIoPool.shutdown(PERSISTENCE_DRAIN_TIMEOUT_MS);
+            mIoPool = null;
+            mIoExecutor = null;
+            mThreadMetric.set(0);
+            ImageFileWriter.flush();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The handler of the camera control thread, or null if stopped
+     */
+    public synchronized Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * @return The handler capture callbacks should run on, or null if stopped
+     */
+    public synchronized Handler getResultHandler() {
+        return mResultHandler;
+    }
+
+    /**
+     * @return The handler image reader listeners should run on, or null if stopped
+     */
+    public synchronized Handler getFrameHandler() {
+        return mFrameHandler;
+    }
+
+    /**
+     * @return The executor writing pictures to disk, or null if stopped
+     */
+    public synchronized PersistenceExecutor getPersistenceExecutor() {
+        return mPersistenceExecutor;
+    }
+
+    /**
+     * @return The executor writing pictures copied out of their reader buffers when the
+     * persistence executor cannot keep up, or null if stopped
+     */
+    public synchronized PersistenceExecutor getSpillExecutor() {
+        return mSpillExecutor;
+    }
+
+    /**
+     * @return An executor for blocking reads and other I/O off the camera threads, with workers
+     * of its own, or null if stopped. Throws {@link RejectedExecutionException} when its small
+     * queue is full.
+     */
+    public synchronized Executor getIoExecutor() {
+        return mIoExecutor;
+    }
+
+    /**
+     * @return The number of threads of each executor, the tasks they ran and their busy time
+     */
+    public synchronized String getThreadReport() {
+        if (null == mControlThread) {
+            return "stopped";
+        }
+        int threads = countThreads();
+        mThreadMetric.set(threads);
+        StringBuilder report = new StringBuilder();
+        report.append(threads).append(" threads (")
+                .append(Thread.activeCount()).append(" in process)");
+        appendStats(report, mHandler.getStats(), 1);
+        appendStats(report, mResultHandler.getStats(), 1);
+        appendStats(report, mFrameHandler.getStats(), 1);
+        appendStats(report, mPersistenceExecutor.getStats(),
+                mPersistenceExecutor.getWorkerCount());
+        appendStats(report, mSpillExecutor.getStats(), mSpillExecutor.getWorkerCount());
+        appendStats(report, mIoPool.getStats(), mIoPool.getWorkerCount());
+        return report.toString();
+    }
+
+    /**
+     * Must be called with the lock held, while started.
+     *
+     * @return The number of live threads owned by the manager
+     */
+    private int countThreads() {
+        int threads = 0;
+        for (HandlerThread thread : new HandlerThread[]{
+                mControlThread, mResultThread, mFrameThread}) {
+            if (thread.isAlive()) {
+                threads++;
+            }
+        }
+        return threads + mPersistenceExecutor.getLiveThreadCount()
+                + mSpillExecutor.getLiveThreadCount() + mIoPool.getLiveThreadCount();
+    }
+
+    private static void appendStats(StringBuilder report, ExecutorStats stats, int threads) {
+        report.append("; ").append(stats).append(" x").append(threads)
+                .append(String.format(" %.1f%%", stats.getUtilization(threads) * 100));
+    }
+
+    /**
+     * Allows opening the device again after {@link #pause()}.
+     */
+    public void resume() {
+        mPaused = false;
+    }
+
+    /**
+     * Closes the device, and ignores opens until {@link #resume()}.
+     */
+    public void pause() {
+        mPaused = true;
+        close();
+    }
+
+    /**
+     * Makes {@code listener} the client of {@code cameraId}. If that camera is already open it is
+     * handed over right away, on the camera thread; otherwise the open device, if any, is closed
+     * and the camera is opened.
+     *
+     * @throws CameraAccessException If the camera cannot be opened
+     */
+    @SuppressWarnings("MissingPermission")
+    public void open(Context context, String cameraId, final Listener listener)
+            throws CameraAccessException {
+        mListener = listener;
+        try {
+            if (!mOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Time out waiting to lock camera opening.");
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
+        }
+        boolean opening = false;
+        try {
+            if (mPaused) {
+                Log.w(TAG, "Not opening camera " + cameraId + " while paused");
+                return;
+            }
+            final CameraDevice device = mDevice;
+            if (null != device && device.getId().equals(cameraId)) {
+                mReusedMetric.increment();
+                getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDevice == device && mListener == listener) {
+                            listener.onCameraOpened(device);
+                        }
+                    }
+                });
+                return;
+            }
+            closeDevice();
+            CameraManager manager =
+                    (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+            // The lock is released by the state callback.
+            mOpening = true;
+            opening = true;
+            manager.openCamera(cameraId, mStateCallback, getHandler());
+        } catch (CameraAccessException | RuntimeException e) {
+            mOpening = false;
+            opening = false;
+            throw e;
+        } finally {
+            if (!opening) {
+                mOpenCloseLock.release();
+            }
+        }
+    }
+
+    /**
+     * @return The open device, or null
+     */
+    public CameraDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Creates a capture session with {@code outputs} on the open device, replacing the current
+     * one. {@code callback} is called on the camera thread.
+     *
+     * @throws CameraAccessException If the device is closed or in error
+     */
+    public void createSession(List<Surface> outputs,
+                              final CameraCaptureSession.StateCallback callback)
+            throws CameraAccessException {
+        CameraDevice device = mDevice;
+        if (null == device) {
+            throw new CameraAccessException(CameraAccessException.CAMERA_DISCONNECTED,
+                    "No camera is open");
+        }
+        mSessionMetric.increment();
+        device.createCaptureSession(outputs, new CameraCaptureSession.StateCallback() {
+
+            @Override
+            public void onConfigured(@NonNull CameraCaptureSession session) {
+                mSession = session;
+                callback.onConfigured(session);
+            }
+
+            @Override
+            public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                callback.onConfigureFailed(session);
+            }
+
+            @Override
+            public void onClosed(@NonNull CameraCaptureSession session) {
+                if (mSession == session) {
+                    mSession = null;
+                }
+                callback.onClosed(session);
+            }
+        }, getHandler());
+    }
+
+    /**
+     * Closes the current capture session, keeping the device open for the next one.
+     */
+    public void closeSession() {
+        CameraCaptureSession session = mSession;
+        mSession = null;
+        if (null != session) {
+            session.close();
+        }
+    }
+
+    /**
+     * Stops delivering device callbacks to {@code listener}, if it is the current client.
+     */
+    public void release(Listener listener) {
+        if (mListener == listener) {
+            mListener = null;
+        }
+    }
+
+    /**
+     * Closes the session and the device.
+     */
+    public void close() {
+        try {
+            mOpenCloseLock.acquire();
+            closeDevice();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
+        } finally {
+            mOpenCloseLock.release();
+        }
+    }
+
+    /**
+     * Must be called with {@link #mOpenCloseLock} held.
+     */
+    private void closeDevice() {
+        closeSession();
+        CameraDevice device = mDevice;
+        mDevice = null;
+        if (null != device) {
+            device.close();
+        }
+    }
+
+    private void releaseOpenLock() {
+        if (mOpening) {
+            mOpening = false;
+            mOpenCloseLock.release();
+        }
+    }
+
+    private void forget(CameraDevice device) {
+        if (mDevice == device) {
+            mDevice = null;
+            mSession = null;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Correlates in-flight still captures with their output files, so several captures can be
+ * outstanding at once without sharing a single output file.
+ *
+ * <p>A capture is registered before its request is submitted and the returned
+ * {@link Record#getTag()} is set on the {@code CaptureRequest}. When the camera reports the sensor
+ * timestamp of the request in {@code onCaptureStarted}, {@link #onCaptureStarted(Object, long)}
+ * binds it, and the image carrying the same timestamp is then matched with
+ * {@link #claim(long)}.</p>
+ *
+ * <p>The camera reports the start of a capture before its image, so image listeners run on the
+ * handler of the capture callbacks to see the captures in that order.</p>
+ */
+public class CaptureRegistry {
+
+    /**
+     * The output file and metadata of one capture.
+     */
+    public static class Record {
+
+        private final long mTag;
+        private final File mFile;
+        private final String mCameraId;
+        private final int mEffectMode;
+        private final long mRegisteredNanos;
+        private final long mCaptureTimeMillis;
+        private volatile long mSensorTimestamp;
+        private volatile long mStartedNanos;
+        private volatile boolean mSubmitted;
+        private volatile int mFaceCount;
+
+        Record(long tag, File file, String cameraId, int effectMode) {
+            mTag = tag;
+            mFile = file;
+            mCameraId = cameraId;
+            mEffectMode = effectMode;
+            mRegisteredNanos = System.nanoTime();
+            mCaptureTimeMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * @return The value to pass to {@code CaptureRequest.Builder.setTag}
+         */
+        public Long getTag() {
+            return mTag;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public String getCameraId() {
+            return mCameraId;
+        }
+
+        public int getEffectMode() {
+            return mEffectMode;
+        }
+
+        /**
+         * @return {@link System#nanoTime()} when the capture was registered
+         */
+        public long getRegisteredNanos() {
+            return mRegisteredNanos;
+        }
+
+        /**
+         * @return {@link System#currentTimeMillis()} when the capture was registered, which is
+         * when the shutter was pressed
+         */
+        public long getCaptureTimeMillis() {
+            return mCaptureTimeMillis;
+        }
+
+        /**
+         * @return The sensor timestamp, or 0 while the capture has not started
+         */
+        public long getSensorTimestamp() {
+            return mSensorTimestamp;
+        }
+
+        /**
+         * @return {@link System#nanoTime()} when the capture started exposing, or when it was
+         * registered if that has not been reported
+         */
+        public long getStartedNanos() {
+            return mStartedNanos != 0 ? mStartedNanos : mRegisteredNanos;
+        }
+
+        public int getFaceCount() {
+            return mFaceCount;
+        }
+
+        public void setFaceCount(int faceCount) {
+            mFaceCount = faceCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Record{tag=" + mTag + ", file=" + mFile + ", camera=" + mCameraId
+                    + ", timestamp=" + mSensorTimestamp + "}";
+        }
+    }
+
+    private final LinkedHashMap<Long, Record> mByTag = new LinkedHashMap<>();
+    private final Map<Long, Record> mByTimestamp = new HashMap<>();
+    private long mNextTag = 1;
+
+    /**
+     * Registers a capture whose request has not been submitted yet.
+     *
+     * @param file       Where the image of this capture goes
+     * @param cameraId   The camera taking it
+     * @param effectMode The color effect applied
+     * @return The record; its tag must be set on the request
+     */
+    public synchronized Record register(File file, String cameraId, int effectMode) {
+        Record record = new Record(mNextTag++, file, cameraId, effectMode);
+        mByTag.put(record.mTag, record);
+        return record;
+    }
+
+    /**
+     * Reserves a tag for a capture that needs no record, such as a frame committed from the ZSL
+     * ring or an image that matched no capture, so it is traced as a shot of its own.
+     */
+    public synchronized long newTag() {
+        return mNextTag++;
+    }
+
+    /**
+     * Registers a capture that has already started, such as a frame of a repeating burst whose
+     * requests cannot be tagged individually.
+     */
+    public synchronized Record registerStarted(long sensorTimestamp, File file, String cameraId,
+                                               int effectMode) {
+        Record record = register(file, cameraId, effectMode);
+        bind(record, sensorTimestamp);
+        return record;
+    }
+
+    /**
+     * Binds the sensor timestamp reported for a tagged request.
+     *
+     * @param tag             The request's tag, ignored if it is not from this registry
+     * @param sensorTimestamp The timestamp from {@code onCaptureStarted}
+     */
+    public synchronized void onCaptureStarted(Object tag, long sensorTimestamp) {
+        Record record = tag instanceof Long ? mByTag.get(tag) : null;
+        if (null != record) {
+            bind(record, sensorTimestamp);
+        }
+    }
+
+    /**
+     * Marks a tagged request as submitted, so {@link #claim(long)} may match it with an image
+     * before its timestamp is bound.
+     *
+     * @param tag The request's tag, ignored if it is not from this registry
+     */
+    public synchronized void onCaptureSubmitted(Object tag) {
+        Record record = tag instanceof Long ? mByTag.get(tag) : null;
+        if (null != record) {
+            record.mSubmitted = true;
+        }
+    }
+
+    /**
+     * Forgets a capture whose request failed.
+     */
+    public synchronized void onCaptureFailed(Object tag) {
+        Record record = tag instanceof Long ? mByTag.remove(tag) : null;
+        if (null != record && record.mSensorTimestamp != 0) {
+            mByTimestamp.remove(record.mSensorTimestamp);
+        }
+    }
+
+    /**
+     * @return The record for a request tag, or null
+     */
+    public synchronized Record get(Object tag) {
+        return tag instanceof Long ? mByTag.get(tag) : null;
+    }
+
+    /**
+     * Removes and returns the capture an image belongs to. If no capture has been bound to
+     * {@code sensorTimestamp} yet, the oldest submitted capture still waiting for its timestamp is
+     * used, as still captures complete in submission order. A capture that is registered but not
+     * submitted yet is never used, since the image cannot be its own.
+     *
+     * @param sensorTimestamp The timestamp of the image
+     * @return The record, or null if no capture is outstanding
+     */
+    public synchronized Record claim(long sensorTimestamp) {
+        Record record = mByTimestamp.remove(sensorTimestamp);
+        if (null == record) {
+            for (Iterator<Record> it = mByTag.values().iterator(); it.hasNext(); ) {
+                Record candidate = it.next();
+                if (candidate.mSubmitted && candidate.mSensorTimestamp == 0) {
+                    candidate.mSensorTimestamp = sensorTimestamp;
+                    record = candidate;
+                    break;
+                }
+            }
+        }
+        if (null != record) {
+            mByTag.remove(record.mTag);
+        }
+        return record;
+    }
+
+    /**
+     * @return The number of captures registered but not yet claimed
+     */
+    public synchronized int getInFlightCount() {
+        return mByTag.size();
+    }
+
+    /**
+     * Forgets every outstanding capture.
+     */
+    public synchronized void clear() {
+        mByTag.clear();
+        mByTimestamp.clear();
+    }
+
+    private void bind(Record record, long sensorTimestamp) {
+        record.mSensorTimestamp = sensorTimestamp;
+        record.mStartedNanos = System.nanoTime();
+        mByTimestamp.put(sensorTimestamp, record);
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * Sequences the focus lock and exposure precapture of a still capture or burst from the AF and AE
+ * states of the preview results.
+ *
+ * <p>Every transition is made under one lock, so results, shutter presses and timeout checks may
+ * come from any thread; the {@link Listener} is called after the lock is released, at most once
+ * per call. A sequence can only start from {@link #STATE_PREVIEW}, so a second press during a
+ * capture is ignored rather than capturing twice.</p>
+ *
+ * <p>Fast paths skip the steps that cannot change anything: a fixed-focus lens has no focus to
+ * lock, and an exposure that is already converged or locked needs no precapture. Each waiting
+ * state has a timeout after which the sequence moves on as if the camera had reported the state
+ * it waited for, so a device that never reports a lock still takes the picture. Timeouts are
+ * checked on every result and by {@link #checkTimeout(long)}; as still captures stop the
+ * repeating request, the caller should also call it at {@link #getRemainingNanos(long)}.</p>
+ *
+ * <p>Each sequence gets a new id, {@link #getSequence()}. Callbacks of requests submitted for a
+ * sequence pass it to {@link #finish(long, long)}, so a completion arriving after its sequence
+ * timed out cannot end the next one.</p>
+ *
+ * <p>The time spent in each state is recorded per sequence and in the {@code capture.<state>}
+ * histograms of {@link MetricsRegistry}. Times are passed in by the caller, in nanoseconds from
+ * {@link System#nanoTime()} or any other monotonic clock.</p>
+ */
+public class CaptureStateMachine {
+
+    /**
+     * Showing the camera preview, no capture in progress.
+     */
+    public static final int STATE_PREVIEW = 0;
+
+    /**
+     * Waiting for the focus to be locked.
+     */
+    public static final int STATE_WAITING_LOCK = 1;
+
+    /**
+     * Waiting for the exposure to be in precapture state.
+     */
+    public static final int STATE_WAITING_PRECAPTURE = 2;
+
+    /**
+     * Waiting for the exposure state to be something other than precapture.
+     */
+    public static final int STATE_WAITING_NON_PRECAPTURE = 3;
+
+    /**
+     * The still request was submitted, waiting for it to complete.
+     */
+    public static final int STATE_PICTURE_TAKEN = 4;
+
+    /**
+     * Waiting for the focus to be locked before a burst starts.
+     */
+    public static final int STATE_WAITING_BURST_LOCK = 5;
+
+    /**
+     * The burst is running.
+     */
+    public static final int STATE_BURST = 6;
+
+    private static final int STATE_COUNT = 7;
+
+    private static final String[] STATE_NAMES = {"preview", "waitingLock", "waitingPrecapture",
+            "waitingNonPrecapture", "pictureTaken", "waitingBurstLock", "burst"};
+
+    /**
+     * An AF or AE state the camera did not report.
+     */
+    public static final int UNKNOWN = -1;
+
+    /*
+     * AF and AE states, with the values of the CaptureResult constants of the same name.
+     */
+    public static final int AF_STATE_INACTIVE = 0;
+    public static final int AF_STATE_FOCUSED_LOCKED = 4;
+    public static final int AF_STATE_NOT_FOCUSED_LOCKED = 5;
+    public static final int AE_STATE_CONVERGED = 2;
+    public static final int AE_STATE_LOCKED = 3;
+    public static final int AE_STATE_FLASH_REQUIRED = 4;
+    public static final int AE_STATE_PRECAPTURE = 5;
+
+    private static final long DEFAULT_LOCK_TIMEOUT_NANOS = 1000000000L;
+    private static final long DEFAULT_PRECAPTURE_TIMEOUT_NANOS = 1000000000L;
+    private static final long DEFAULT_CAPTURE_TIMEOUT_NANOS = 3000000000L;
+
+    private static final int ACTION_NONE = 0;
+    private static final int ACTION_LOCK_FOCUS = 1;
+    private static final int ACTION_PRECAPTURE = 2;
+    private static final int ACTION_CAPTURE = 3;
+    private static final int ACTION_BURST = 4;
+    private static final int ACTION_TIMED_OUT = 5;
+
+    /**
+     * Carries out the steps of a sequence, called on the thread that made the transition.
+     */
+    public interface Listener {
+
+        /**
+         * Send the AF trigger to lock the focus.
+         */
+        void onLockFocus();
+
+        /**
+         * Send the AE precapture trigger.
+         */
+        void onRunPrecapture();
+
+        /**
+         * Submit the still request.
+         */
+        void onCaptureStill();
+
+        /**
+         * Submit the repeating burst.
+         */
+        void onSubmitBurst();
+
+        /**
+         * The still request did not complete in time. The state machine is back in preview;
+         * restore the preview request.
+         */
+        void onCaptureTimedOut();
+
+        /**
+         * A state other than preview was left after {@code durationNanos}.
+         */
+        void onStateLeft(int state, long durationNanos);
+    }
+
+    private final Listener mListener;
+    private final long[] mTimeouts = new long[STATE_COUNT];
+    private final long[] mSequenceNanos = new long[STATE_COUNT];
+    private final MetricsRegistry.Histogram[] mStateMetrics =
+            new MetricsRegistry.Histogram[STATE_COUNT];
+    private final MetricsRegistry.Counter mTimeoutMetric =
+            MetricsRegistry.get().counter("capture.timeouts");
+    private final MetricsRegistry.Counter mRejectedMetric =
+            MetricsRegistry.get().counter("capture.rejected");
+    private final MetricsRegistry.Counter mSkippedLockMetric =
+            MetricsRegistry.get().counter("capture.skippedFocusLock");
+    private final MetricsRegistry.Counter mSkippedPrecaptureMetric =
+            MetricsRegistry.get().counter("capture.skippedPrecapture");
+
+    private int mState = STATE_PREVIEW;
+    private long mSequence;
+    private long mEnteredNanos;
+    private boolean mFixedFocus;
+    private int mLastAeState = UNKNOWN;
+    /**
+     * Whether the camera reported an AF or AE state since the last {@link #reset()}; once it has,
+     * results without one, such as some partial results, are ignored for that state.
+     */
+    private boolean mAfReported;
+    private boolean mAeReported;
+    private String mLastSummary = "";
+
+    /**
+     * @param listener Carries out the steps of each sequence
+     */
+    public CaptureStateMachine(Listener listener) {
+        mListener = listener;
+        for (int i = STATE_WAITING_LOCK; i < STATE_COUNT; i++) {
+            mStateMetrics[i] = MetricsRegistry.get().histogram("capture." + STATE_NAMES[i]);
+        }
+        mTimeouts[STATE_WAITING_LOCK] = DEFAULT_LOCK_TIMEOUT_NANOS;
+        mTimeouts[STATE_WAITING_BURST_LOCK] = DEFAULT_LOCK_TIMEOUT_NANOS;
+        mTimeouts[STATE_WAITING_PRECAPTURE] = DEFAULT_PRECAPTURE_TIMEOUT_NANOS;
+        mTimeouts[STATE_WAITING_NON_PRECAPTURE] = DEFAULT_PRECAPTURE_TIMEOUT_NANOS;
+        mTimeouts[STATE_PICTURE_TAKEN] = DEFAULT_CAPTURE_TIMEOUT_NANOS;
+    }
+
+    /**
+     * @param state   One of the {@code STATE_*} constants
+     * @param timeout How long the state may last, in nanoseconds, or 0 for no limit
+     */
+    public synchronized void setTimeout(int state, long timeout) {
+        if (state == STATE_PREVIEW) {
+            throw new IllegalArgumentException("The preview state has no timeout");
+        }
+        mTimeouts[state] = timeout;
+    }
+
+    /**
+     * @param fixedFocus Whether the lens of the camera cannot focus, so the focus lock is skipped
+     */
+    public synchronized void setFixedFocus(boolean fixedFocus) {
+        mFixedFocus = fixedFocus;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    public synchronized boolean isIdle() {
+        return mState == STATE_PREVIEW;
+    }
+
+    /**
+     * @return The id of the current sequence, or of the last one if none is in progress
+     */
+    public synchronized long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return Whether {@code sequence} is the current sequence, or the last one if none is in
+     * progress
+     */
+    public synchronized boolean isCurrent(long sequence) {
+        return sequence == mSequence;
+    }
+
+    public static String getStateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    /**
+     * Starts a still capture sequence.
+     *
+     * @return Whether the sequence started, false if another is in progress
+     */
+    public boolean startStill(long nowNanos) {
+        int action;
+        synchronized (this) {
+            if (!begin(nowNanos)) {
+                return false;
+            }
+            if (mFixedFocus) {
+                mSkippedLockMetric.increment();
+                action = afterFocus(nowNanos);
+            } else {
+                enter(STATE_WAITING_LOCK, nowNanos);
+                action = ACTION_LOCK_FOCUS;
+            }
+        }
+        run(action, -1, 0);
+        return true;
+    }
+
+    /**
+     * Starts a capture that is submitted right away by the caller, without focus lock or
+     * precapture, such as when zoomed in.
+     *
+     * @return Whether the capture may be submitted, false if another sequence is in progress
+     */
+    public synchronized boolean startDirect(long nowNanos) {
+        if (!begin(nowNanos)) {
+            return false;
+        }
+        enter(STATE_PICTURE_TAKEN, nowNanos);
+        return true;
+    }
+
+    /**
+     * Starts a burst sequence, which locks the focus before the burst is submitted.
+     *
+     * @return Whether the sequence started, false if another is in progress
+     */
+    public boolean startBurst(long nowNanos) {
+        int action;
+        synchronized (this) {
+            if (!begin(nowNanos)) {
+                return false;
+            }
+            if (mFixedFocus) {
+                mSkippedLockMetric.increment();
+                enter(STATE_BURST, nowNanos);
+                action = ACTION_BURST;
+            } else {
+                enter(STATE_WAITING_BURST_LOCK, nowNanos);
+                action = ACTION_LOCK_FOCUS;
+            }
+        }
+        run(action, -1, 0);
+        return true;
+    }
+
+    /**
+     * Feeds the AF and AE states of a preview result, then checks the timeout of the current
+     * state. A camera that never reports a state is treated as having nothing to wait for.
+     *
+     * @param afState The AF state, or {@link #UNKNOWN} if the result did not have one
+     * @param aeState The AE state, or {@link #UNKNOWN} if the result did not have one
+     */
+    public void onResult(int afState, int aeState, long nowNanos) {
+        int action = ACTION_NONE;
+        int left;
+        long duration;
+        synchronized (this) {
+            if (afState != UNKNOWN) {
+                mAfReported = true;
+            }
+            if (aeState != UNKNOWN) {
+                mAeReported = true;
+                mLastAeState = aeState;
+            }
+            boolean hasAf = afState != UNKNOWN || !mAfReported;
+            boolean hasAe = aeState != UNKNOWN || !mAeReported;
+            left = mState;
+            duration = nowNanos - mEnteredNanos;
+            switch (mState) {
+                case STATE_WAITING_LOCK:
+                    if (hasAf && isFocusDone(afState)) {
+                        action = afterFocus(nowNanos);
+                    }
+                    break;
+                case STATE_WAITING_PRECAPTURE:
+                    if (hasAe && (aeState == UNKNOWN || aeState == AE_STATE_PRECAPTURE
+                            || aeState == AE_STATE_FLASH_REQUIRED)) {
+                        enter(STATE_WAITING_NON_PRECAPTURE, nowNanos);
+                    }
+                    break;
+                case STATE_WAITING_NON_PRECAPTURE:
+                    if (hasAe && aeState != AE_STATE_PRECAPTURE) {
+                        enter(STATE_PICTURE_TAKEN, nowNanos);
+                        action = ACTION_CAPTURE;
+                    }
+                    break;
+                case STATE_WAITING_BURST_LOCK:
+                    if (hasAf && isFocusDone(afState)) {
+                        enter(STATE_BURST, nowNanos);
+                        action = ACTION_BURST;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (mState == left) {
+                left = -1;
+            }
+        }
+        run(action, left, duration);
+        if (left == -1) {
+            checkTimeout(nowNanos);
+        }
+    }
+
+    /**
+     * Moves on from the current state if it has lasted longer than its timeout.
+     */
+    public void checkTimeout(long nowNanos) {
+        int action;
+        int left;
+        long duration;
+        synchronized (this) {
+            long timeout = mTimeouts[mState];
+            duration = nowNanos - mEnteredNanos;
+            if (mState == STATE_PREVIEW || timeout <= 0 || duration < timeout) {
+                return;
+            }
+            mTimeoutMetric.increment();
+            left = mState;
+            switch (mState) {
+                case STATE_WAITING_LOCK:
+                    action = afterFocus(nowNanos);
+                    break;
+                case STATE_WAITING_PRECAPTURE:
+                case STATE_WAITING_NON_PRECAPTURE:
+                    enter(STATE_PICTURE_TAKEN, nowNanos);
+                    action = ACTION_CAPTURE;
+                    break;
+                case STATE_WAITING_BURST_LOCK:
+                    enter(STATE_BURST, nowNanos);
+                    action = ACTION_BURST;
+                    break;
+                default:
+                    end(nowNanos);
+                    action = ACTION_TIMED_OUT;
+                    break;
+            }
+        }
+        run(action, left, duration);
+    }
+
+    /**
+     * @return The time left before the current state times out, or -1 if it has no timeout
+     */
+    public synchronized long getRemainingNanos(long nowNanos) {
+        long timeout = mTimeouts[mState];
+        if (mState == STATE_PREVIEW || timeout <= 0) {
+            return -1;
+        }
+        return Math.max(0, mEnteredNanos + timeout - nowNanos);
+    }
+
+    /**
+     * Ends the sequence once the capture or burst is done and the preview restored.
+     *
+     * @param sequence The id of the sequence that is done; ignored if it is not the current one
+     */
+    public void finish(long sequence, long nowNanos) {
+        int left;
+        long duration;
+        synchronized (this) {
+            if (mState == STATE_PREVIEW || sequence != mSequence) {
+                return;
+            }
+            left = mState;
+            duration = nowNanos - mEnteredNanos;
+            end(nowNanos);
+        }
+        mListener.onStateLeft(left, duration);
+    }
+
+    /**
+     * Drops the sequence in progress without calling the listener, for when the capture session
+     * is closed or replaced.
+     */
+    public synchronized void reset() {
+        mState = STATE_PREVIEW;
+        mLastAeState = UNKNOWN;
+        mAfReported = false;
+        mAeReported = false;
+    }
+
+    /**
+     * @return The time the current or last sequence spent in {@code state}, in nanoseconds
+     */
+    public synchronized long getSequenceNanos(int state) {
+        return mSequenceNanos[state];
+    }
+
+    /**
+     * @return The time spent in each state by the last finished sequence
+     */
+    public synchronized String getLastSummary() {
+        return mLastSummary;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private boolean begin(long nowNanos) {
+        if (mState != STATE_PREVIEW) {
+            mRejectedMetric.increment();
+            return false;
+        }
+        for (int i = 0; i < STATE_COUNT; i++) {
+            mSequenceNanos[i] = 0;
+        }
+        mSequence++;
+        mEnteredNanos = nowNanos;
+        return true;
+    }
+
+    /**
+     * Must be called with the lock held. Decides between precapture and capture once the focus
+     * is locked or skipped.
+     */
+    private int afterFocus(long nowNanos) {
+        if (mLastAeState == UNKNOWN || mLastAeState == AE_STATE_CONVERGED
+                || mLastAeState == AE_STATE_LOCKED) {
+            mSkippedPrecaptureMetric.increment();
+            enter(STATE_PICTURE_TAKEN, nowNanos);
+            return ACTION_CAPTURE;
+        }
+        enter(STATE_WAITING_PRECAPTURE, nowNanos);
+        return ACTION_PRECAPTURE;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void enter(int state, long nowNanos) {
+        if (mState != STATE_PREVIEW) {
+            long duration = nowNanos - mEnteredNanos;
+            mSequenceNanos[mState] += duration;
+            mStateMetrics[mState].record(duration);
+        }
+        mState = state;
+        mEnteredNanos = nowNanos;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void end(long nowNanos) {
+        enter(STATE_PREVIEW, nowNanos);
+        StringBuilder summary = new StringBuilder();
+        for (int i = STATE_WAITING_LOCK; i < STATE_COUNT; i++) {
+            if (mSequenceNanos[i] == 0) {
+                continue;
+            }
+            if (summary.length() > 0) {
+                summary.append(", ");
+            }
+            summary.append(STATE_NAMES[i]).append(' ')
+                    .append(mSequenceNanos[i] / 1000000).append("ms");
+        }
+        mLastSummary = summary.toString();
+    }
+
+    private static boolean isFocusDone(int afState) {
+        // Cameras without autofocus report no state, or stay inactive.
+        return afState == UNKNOWN || afState == AF_STATE_INACTIVE
+                || afState == AF_STATE_FOCUSED_LOCKED || afState == AF_STATE_NOT_FOCUSED_LOCKED;
+    }
+
+    private void run(int action, int leftState, long leftNanos) {
+        if (leftState > STATE_PREVIEW) {
+            mListener.onStateLeft(leftState, leftNanos);
+        }
+        switch (action) {
+            case ACTION_LOCK_FOCUS:
+                mListener.onLockFocus();
+                break;
+            case ACTION_PRECAPTURE:
+                mListener.onRunPrecapture();
+                break;
+            case ACTION_CAPTURE:
+                mListener.onCaptureStill();
+                break;
+            case ACTION_BURST:
+                mListener.onSubmitBurst();
+                break;
+            case ACTION_TIMED_OUT:
+                mListener.onCaptureTimedOut();
+                break;
+            default:
+                break;
+        }
+    }
+}
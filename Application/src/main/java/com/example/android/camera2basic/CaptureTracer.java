@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the stages of the capture pipeline as timed spans, so the time between pressing the
+ * shutter and the file reaching the disk can be broken down per shot.
+ *
+ * <p>Events go into a ring buffer that is allocated once; recording only claims a slot and
+ * stores a few primitives, so it is cheap enough to leave on. When the ring is full the oldest
+ * events are overwritten. Span names must be constants, as they are kept by reference.</p>
+ *
+ * <p>{@link #writeChromeTrace(Writer)} exports the buffer in the Chrome trace event format, which
+ * {@code chrome://tracing} and Perfetto can open. Each shot is shown on its own row.</p>
+ */
+public final class CaptureTracer {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private static final CaptureTracer sInstance = new CaptureTracer(DEFAULT_CAPACITY);
+
+    private final int mCapacity;
+    private final String[] mNames;
+    private final long[] mShots;
+    private final long[] mStartNanos;
+    private final long[] mEndNanos;
+    private final long[] mThreads;
+    private final long[] mSequences;
+    private final AtomicLong mNext = new AtomicLong();
+    private final long mOriginNanos = System.nanoTime();
+    private volatile boolean mEnabled = true;
+
+    /**
+     * @return The tracer shared by the capture pipeline
+     */
+    public static CaptureTracer get() {
+        return sInstance;
+    }
+
+    /**
+     * @param capacity The number of events kept before the oldest are overwritten
+     */
+    public CaptureTracer(int capacity) {
+        mCapacity = capacity;
+        mNames = new String[capacity];
+        mShots = new long[capacity];
+        mStartNanos = new long[capacity];
+        mEndNanos = new long[capacity];
+        mThreads = new long[capacity];
+        mSequences = new long[capacity];
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Records a finished span.
+     *
+     * @param name       The stage, a constant
+     * @param shot       The shot the stage belongs to, such as a {@link CaptureRegistry} tag
+     * @param startNanos {@link System#nanoTime()} when the stage began
+     * @param endNanos   {@link System#nanoTime()} when the stage ended
+     */
+    public void span(String name, long shot, long startNanos, long endNanos) {
+        if (!mEnabled) {
+            return;
+        }
+        long sequence = mNext.getAndIncrement();
+        int slot = (int) (sequence % mCapacity);
+        mNames[slot] = name;
+        mShots[slot] = shot;
+        mStartNanos[slot] = startNanos;
+        mEndNanos[slot] = endNanos;
+        mThreads[slot] = Thread.currentThread().getId();
+        // Written last: the exporter skips slots whose sequence does not match.
+        mSequences[slot] = sequence + 1;
+    }
+
+    /**
+     * Records a span that ends now.
+     */
+    public void span(String name, long shot, long startNanos) {
+        span(name, shot, startNanos, System.nanoTime());
+    }
+
+    /**
+     * Records a point in time.
+     */
+    public void instant(String name, long shot) {
+        long now = System.nanoTime();
+        span(name, shot, now, now);
+    }
+
+    /**
+     * @return The number of events recorded, including overwritten ones
+     */
+    public long getRecordedCount() {
+        return mNext.get();
+    }
+
+    /**
+     * Drops every recorded event.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mCapacity; i++) {
+            mSequences[i] = 0;
+            mNames[i] = null;
+        }
+    }
+
+    /**
+     * Writes the buffered events, oldest first, as a Chrome trace event JSON object. Events being
+     * recorded while this runs may be missing from the output.
+     */
+    public synchronized void writeChromeTrace(Writer writer) throws IOException {
+        long next = mNext.get();
+        long first = Math.max(0, next - mCapacity);
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean comma = false;
+        for (long sequence = first; sequence < next; sequence++) {
+            int slot = (int) (sequence % mCapacity);
+            String name = mNames[slot];
+            long shot = mShots[slot];
+            long start = mStartNanos[slot];
+            long end = mEndNanos[slot];
+            long thread = mThreads[slot];
+            if (mSequences[slot] != sequence + 1 || null == name) {
+                continue;
+            }
+            if (comma) {
+                writer.write(',');
+            }
+            comma = true;
+            writer.write("\n{\"name\":\"");
+            writeEscaped(writer, name);
+            writer.write("\",\"cat\":\"capture\",\"ph\":\"");
+            writer.write(end == start ? "i\",\"s\":\"t" : "X");
+            writer.write("\",\"ts\":");
+            writeMicros(writer, Math.max(0, start - mOriginNanos));
+            if (end != start) {
+                writer.write(",\"dur\":");
+                writeMicros(writer, end - start);
+            }
+            writer.write(",\"pid\":1,\"tid\":");
+            writer.write(Long.toString(shot));
+            writer.write(",\"args\":{\"shot\":");
+            writer.write(Long.toString(shot));
+            writer.write(",\"thread\":");
+            writer.write(Long.toString(thread));
+            writer.write("}}");
+        }
+        writer.write("\n]}\n");
+        writer.flush();
+    }
+
+    private static void writeMicros(Writer writer, long nanos) throws IOException {
+        writer.write(Long.toString(nanos / 1000));
+        writer.write('.');
+        long fraction = Math.abs(nanos % 1000);
+        if (fraction < 100) {
+            writer.write('0');
+        }
+        if (fraction < 10) {
+            writer.write('0');
+        }
+        writer.write(Long.toString(fraction));
+    }
+
+    private static void writeEscaped(Writer writer, String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.os.Handler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Applies control changes to the repeating preview request without flooding the camera service.
+ *
+ * <p>Changes can be posted from any thread. They are merged into one pending
+ * {@link CameraControls}, the latest value of each control winning, and at most one rebuilt
+ * repeating request is submitted per frame period on the camera handler. Requests are cached per
+ * combination of controls, so going back to a zoom level or effect already used does not build a
+ * new request.</p>
+ *
+ * <p>While a still capture sequence owns the request builder, see {@link #hold()}, changes are
+ * kept and applied when the preview resumes through {@link #submitNow()}.</p>
+ */
+public class ControlBus {
+
+    /**
+     * Frame period assumed until two preview frames have been seen.
+     */
+    private static final long DEFAULT_FRAME_PERIOD_NANOS = 33333333;
+
+    private static final long MAX_FRAME_PERIOD_NANOS = 200000000;
+
+    private static final int MAX_CACHED_REQUESTS = 32;
+
+    private final Object mLock = new Object();
+    private final CameraControls mPending = new CameraControls();
+    private final CameraControls mApplied = new CameraControls();
+    private final CameraControls mScratch = new CameraControls();
+    /**
+     * Reused for every crop set on a builder, which copies it.
+     */
+    private final Rect mCropRect = new Rect();
+    private final Map<CameraControls, CaptureRequest> mCache =
+            new LinkedHashMap<CameraControls, CaptureRequest>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<CameraControls, CaptureRequest> eldest) {
+                    return size() > MAX_CACHED_REQUESTS;
+                }
+            };
+
+    private CameraCaptureSession mSession;
+    private CaptureRequest.Builder mBuilder;
+    private CameraCaptureSession.CaptureCallback mCallback;
+    private Handler mHandler;
+    private boolean mScheduled;
+    private boolean mHeld;
+    private boolean mSubmitted;
+    private long mLastSubmitNanos;
+
+    private volatile long mFramePeriodNanos = DEFAULT_FRAME_PERIOD_NANOS;
+    private long mLastFrameTimestamp;
+
+    private final MetricsRegistry.Counter mSubmittedMetric =
+            MetricsRegistry.get().counter("control.submitted");
+    private final MetricsRegistry.Counter mCoalescedMetric =
+            MetricsRegistry.get().counter("control.coalesced");
+    private final MetricsRegistry.Counter mCacheHitMetric =
+            MetricsRegistry.get().counter("control.cacheHits");
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Starts driving the repeating request of {@code session}. Cached requests of a previous
+     * session are dropped. Nothing is submitted until {@link #submitNow()}.
+     *
+     * @param builder  The preview request builder, with its targets and base settings
+     * @param callback The callback of the repeating request
+     * @param handler  The handler the callback and the coalesced submissions run on
+     */
+    public void attach(CameraCaptureSession session, CaptureRequest.Builder builder,
+                       CameraCaptureSession.CaptureCallback callback, Handler handler) {
+        synchronized (mLock) {
+            mSession = session;
+            mBuilder = builder;
+            mCallback = callback;
+            mHandler = handler;
+            mHeld = false;
+            mSubmitted = false;
+            mLastFrameTimestamp = 0;
+            mCache.clear();
+        }
+    }
+
+    /**
+     * Stops submitting requests, for when the session is closed. The zoom crop and autofocus
+     * region are reset as they are specific to the camera; the other controls are kept.
+     */
+    public void detach() {
+        synchronized (mLock) {
+            if (null != mHandler) {
+                mHandler.removeCallbacks(mFlush);
+            }
+            mSession = null;
+            mBuilder = null;
+            mCallback = null;
+            mHandler = null;
+            mScheduled = false;
+            mCache.clear();
+            mPending.setZoomCrop(0, 0, 0, 0);
+            mPending.setAfRegion(0, 0, 0, 0, 0);
+        }
+    }
+
+    /**
+     * @param crop The crop region in active array coordinates, or null for the full array
+     */
+    public void setZoomCrop(Rect crop) {
+        if (null == crop) {
+            setZoomCrop(0, 0, 0, 0);
+        } else {
+            setZoomCrop(crop.left, crop.top, crop.right, crop.bottom);
+        }
+    }
+
+    /**
+     * Same as {@link #setZoomCrop(Rect)} without needing a {@link Rect}; a {@code right} not past
+     * {@code left} removes the crop.
+     */
+    public void setZoomCrop(int left, int top, int right, int bottom) {
+        synchronized (mLock) {
+            mPending.setZoomCrop(left, top, right, bottom);
+            schedule();
+        }
+    }
+
+    public void setAwbMode(int awbMode) {
+        synchronized (mLock) {
+            mPending.setAwbMode(awbMode);
+            schedule();
+        }
+    }
+
+    public void setEffectMode(int effectMode) {
+        synchronized (mLock) {
+            mPending.setEffectMode(effectMode);
+            schedule();
+        }
+    }
+
+    /**
+     * @param flash One of the {@code CameraControls.FLASH_*} constants
+     */
+    public void setFlash(int flash) {
+        synchronized (mLock) {
+            mPending.setFlash(flash);
+            schedule();
+        }
+    }
+
+    public void setExposureCompensation(int steps) {
+        synchronized (mLock) {
+            mPending.setExposureCompensation(steps);
+            schedule();
+        }
+    }
+
+    /**
+     * @param region The region in active array coordinates, or null to let the camera choose
+     */
+    public void setAfRegion(Rect region, int weight) {
+        synchronized (mLock) {
+            if (null == region) {
+                mPending.setAfRegion(0, 0, 0, 0, 0);
+            } else {
+                mPending.setAfRegion(region.left, region.top, region.right, region.bottom, weight);
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * Keeps changes pending instead of submitting them, until {@link #submitNow()}. Call this
+     * before setting triggers on the preview builder for a capture sequence.
+     */
+    public void hold() {
+        synchronized (mLock) {
+            mHeld = true;
+        }
+    }
+
+    /**
+     * Releases {@link #hold()} without submitting anything, for a sequence that ends without a
+     * session to submit to. Pending changes are submitted with the next request.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mHeld = false;
+        }
+    }
+
+    /**
+     * Sets the current controls on {@code builder}, for one-off requests that should match the
+     * preview.
+     */
+    public void applyTo(CaptureRequest.Builder builder) {
+        synchronized (mLock) {
+            apply(builder, mPending);
+        }
+    }
+
+    /**
+     * Submits the repeating request right away with the current controls and releases
+     * {@link #hold()}. Call this once the base settings of the builder changed, such as when the
+     * preview starts or resumes after a capture; cached requests are dropped.
+     *
+     * @return The submitted request, or null if detached
+     */
+    public CaptureRequest submitNow() throws CameraAccessException {
+        CaptureRequest request;
+        CameraCaptureSession session;
+        CameraCaptureSession.CaptureCallback callback;
+        Handler handler;
+        synchronized (mLock) {
+            if (null == mSession) {
+                return null;
+            }
+            mHeld = false;
+            mCache.clear();
+            mScratch.set(mPending);
+            request = build(mScratch);
+            session = mSession;
+            callback = mCallback;
+            handler = mHandler;
+            mApplied.set(mScratch);
+            mSubmitted = true;
+            mLastSubmitNanos = System.nanoTime();
+        }
+        session.setRepeatingRequest(request, callback, handler);
+        mSubmittedMetric.increment();
+        return request;
+    }
+
+    /**
+     * Feeds the sensor timestamp of each preview result, from which the frame period is measured.
+     */
+    public void onFrame(long sensorTimestamp) {
+        long last = mLastFrameTimestamp;
+        mLastFrameTimestamp = sensorTimestamp;
+        long period = sensorTimestamp - last;
+        if (last != 0 && period > 0 && period < MAX_FRAME_PERIOD_NANOS) {
+            mFramePeriodNanos = period;
+        }
+    }
+
+    public long getFramePeriodNanos() {
+        return mFramePeriodNanos;
+    }
+
+    /**
+     * Must be called with {@link #mLock} held.
+     */
+    private void schedule() {
+        if (mScheduled) {
+            mCoalescedMetric.increment();
+            return;
+        }
+        if (null == mHandler || mHeld || !mSubmitted) {
+            return;
+        }
+        mScheduled = true;
+        long wait = mLastSubmitNanos + mFramePeriodNanos - System.nanoTime();
+        mHandler.postDelayed(mFlush, Math.max(0, wait / 1000000));
+    }
+
+    private void flush() {
+        CaptureRequest request;
+        CameraCaptureSession session;
+        CameraCaptureSession.CaptureCallback callback;
+        Handler handler;
+        synchronized (mLock) {
+            mScheduled = false;
+            if (null == mSession || mHeld || mPending.equals(mApplied)) {
+                return;
+            }
+            mScratch.set(mPending);
+            request = mCache.get(mScratch);
+            if (null == request) {
+                request = build(mScratch);
+            } else {
+                mCacheHitMetric.increment();
+            }
+            session = mSession;
+            callback = mCallback;
+            handler = mHandler;
+            mApplied.set(mScratch);
+            mLastSubmitNanos = System.nanoTime();
+        }
+        try {
+            session.setRepeatingRequest(request, callback, handler);
+            mSubmittedMetric.increment();
+        } catch (CameraAccessException | IllegalStateException e) {
+            // The session was closed under us; the next session starts from scratch.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Must be called with {@link #mLock} held.
+     */
+    private CaptureRequest build(CameraControls controls) {
+        apply(mBuilder, controls);
+        CaptureRequest request = mBuilder.build();
+        mCache.put(new CameraControls(controls), request);
+        return request;
+    }
+
+    /**
+     * Must be called with {@link #mLock} held.
+     */
+    private void apply(CaptureRequest.Builder builder, CameraControls controls) {
+        if (controls.hasZoomCrop()) {
+            mCropRect.set(controls.getCropLeft(), controls.getCropTop(), controls.getCropRight(),
+                    controls.getCropBottom());
+            builder.set(CaptureRequest.SCALER_CROP_REGION, mCropRect);
+        } else {
+            builder.set(CaptureRequest.SCALER_CROP_REGION, null);
+        }
+        builder.set(CaptureRequest.CONTROL_AWB_MODE, controls.getAwbMode());
+        builder.set(CaptureRequest.CONTROL_EFFECT_MODE, controls.getEffectMode());
+        applyFlash(builder, controls.getFlash());
+        builder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION,
+                controls.getExposureCompensation());
+        builder.set(CaptureRequest.CONTROL_AF_REGIONS, controls.hasAfRegion()
+                ? new MeteringRectangle[]{new MeteringRectangle(controls.getAfLeft(),
+                controls.getAfTop(), controls.getAfRight() - controls.getAfLeft(),
+                controls.getAfBottom() - controls.getAfTop(), controls.getAfWeight())}
+                : null);
+    }
+
+    /**
+     * Sets the auto-exposure and flash modes for one of the {@code CameraControls.FLASH_*}
+     * values.
+     */
+    private static void applyFlash(CaptureRequest.Builder builder, int flash) {
+        switch (flash) {
+            case CameraControls.FLASH_ON:
+                builder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH);
+                break;
+            case CameraControls.FLASH_OFF:
+                builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+                builder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
+                break;
+            default:
+                builder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                break;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when {@link ImageFileWriter} forces saved images to storage with {@code fsync}.
+ *
+ * <p>Every save goes to a temporary file that is renamed into place once complete, so an app
+ * that is killed mid-save never leaves a truncated image behind. The policy only matters when the
+ * whole device goes down: files that were renamed but not yet synced may then be lost. Syncing
+ * less often makes saves, and bursts in particular, noticeably cheaper.</p>
+ */
+public final class DurabilityPolicy {
+
+    /**
+     * Never sync; the kernel writes the data back on its own schedule.
+     */
+    public static final int MODE_NONE = 0;
+
+    /**
+     * Sync each file before it is renamed into place.
+     */
+    public static final int MODE_EVERY_FILE = 1;
+
+    /**
+     * Sync the pending files once a given number of them has been saved.
+     */
+    public static final int MODE_EVERY_N_FILES = 2;
+
+    /**
+     * Sync the pending files on the first save after a given interval has elapsed.
+     */
+    public static final int MODE_INTERVAL = 3;
+
+    private final int mMode;
+    private final int mBatchFiles;
+    private final long mIntervalNanos;
+
+    private DurabilityPolicy(int mode, int batchFiles, long intervalNanos) {
+        mMode = mode;
+        mBatchFiles = batchFiles;
+        mIntervalNanos = intervalNanos;
+    }
+
+    public static DurabilityPolicy none() {
+        return new DurabilityPolicy(MODE_NONE, 0, 0);
+    }
+
+    public static DurabilityPolicy everyFile() {
+        return new DurabilityPolicy(MODE_EVERY_FILE, 1, 0);
+    }
+
+    /**
+     * @param files How many saved files may be waiting for a sync
+     */
+    public static DurabilityPolicy everyFiles(int files) {
+        if (files < 1) {
+            throw new IllegalArgumentException("files must be positive: " + files);
+        }
+        return new DurabilityPolicy(MODE_EVERY_N_FILES, files, 0);
+    }
+
+    /**
+     * @param intervalMillis How long saved files may wait for a sync
+     */
+    public static DurabilityPolicy interval(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("interval must not be negative: " + intervalMillis);
+        }
+        return new DurabilityPolicy(MODE_INTERVAL, 0,
+                TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return Whether each file is synced on its own before it is renamed
+     */
+    public boolean syncsEveryFile() {
+        return mMode == MODE_EVERY_FILE;
+    }
+
+    /**
+     * @param pendingFiles   Files saved since the last sync
+     * @param sinceSyncNanos Time elapsed since the last sync
+     * @return Whether the pending files should be synced now
+     */
+    public boolean shouldSyncBatch(int pendingFiles, long sinceSyncNanos) {
+        switch (mMode) {
+            case MODE_EVERY_N_FILES:
+                return pendingFiles >= mBatchFiles;
+            case MODE_INTERVAL:
+                return pendingFiles > 0 && sinceSyncNanos >= mIntervalNanos;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (mMode) {
+            case MODE_EVERY_FILE:
+                return "fsync=every-file";
+            case MODE_EVERY_N_FILES:
+                return "fsync=every-" + mBatchFiles + "-files";
+            case MODE_INTERVAL:
+                return "fsync=every-" + TimeUnit.NANOSECONDS.toMillis(mIntervalNanos) + "ms";
+            default:
+                return "fsync=none";
+        }
+    }
+}
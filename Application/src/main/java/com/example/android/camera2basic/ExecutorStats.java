@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how busy one of the app's threads or executors is: the number of tasks it ran and the
+ * time it spent running them, also recorded in the {@code executor.<name>.task} histogram of
+ * {@link MetricsRegistry}. Nothing is allocated per task.
+ */
+public class ExecutorStats {
+
+    private final String mName;
+    private final long mCreatedNanos = System.nanoTime();
+    private final AtomicLong mTaskCount = new AtomicLong();
+    private final AtomicLong mBusyNanos = new AtomicLong();
+    private final MetricsRegistry.Histogram mTaskMetric;
+
+    public ExecutorStats(String name) {
+        mName = name;
+        mTaskMetric = MetricsRegistry.get().histogram("executor." + name + ".task");
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records a task that started at {@code startNanos}, from {@link System#nanoTime()}, and has
+     * just finished.
+     */
+    public void recordTask(long startNanos) {
+        long duration = System.nanoTime() - startNanos;
+        mTaskCount.incrementAndGet();
+        mBusyNanos.addAndGet(duration);
+        mTaskMetric.record(duration);
+    }
+
+    public long getTaskCount() {
+        return mTaskCount.get();
+    }
+
+    public long getBusyNanos() {
+        return mBusyNanos.get();
+    }
+
+    /**
+     * @param threads The number of threads running the tasks
+     * @return The share of the time since creation spent running tasks, per thread
+     */
+    public double getUtilization(int threads) {
+        long elapsed = System.nanoTime() - mCreatedNanos;
+        return elapsed <= 0 ? 0 : (double) mBusyNanos.get() / elapsed / threads;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s tasks=%d busy=%.1fms", mName, getTaskCount(),
+                getBusyNanos() / 1e6);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts every image taken from an {@code ImageReader} and what became of it, so that the point
+ * where capture outruns storage is visible.
+ */
+public class FrameAccounting {
+
+    private final AtomicLong mAcquired = new AtomicLong();
+    private final AtomicLong mSaved = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mSpilled = new AtomicLong();
+    private final AtomicLong mFailedAcquires = new AtomicLong();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+    /**
+     * An image was acquired and now holds one reader buffer.
+     */
+    public void onAcquired() {
+        mAcquired.incrementAndGet();
+        int inFlight = mInFlight.incrementAndGet();
+        int max;
+        do {
+            max = mMaxInFlight.get();
+        } while (inFlight > max && !mMaxInFlight.compareAndSet(max, inFlight));
+    }
+
+    /**
+     * An image was written to disk and its buffer returned.
+     */
+    public void onSaved() {
+        mSaved.incrementAndGet();
+    }
+
+    /**
+     * An image was written synchronously on the reader thread to free its buffer.
+     */
+    public void onSpilled() {
+        mSpilled.incrementAndGet();
+    }
+
+    /**
+     * An image was discarded without being written.
+     */
+    public void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * The reader refused to hand out another image because all buffers were in use.
+     */
+    public void onAcquireFailed() {
+        mFailedAcquires.incrementAndGet();
+    }
+
+    /**
+     * An acquired image was closed, whatever its outcome.
+     */
+    public void onReleased() {
+        mInFlight.decrementAndGet();
+    }
+
+    public long getAcquired() {
+        return mAcquired.get();
+    }
+
+    public long getSaved() {
+        return mSaved.get();
+    }
+
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    public long getSpilled() {
+        return mSpilled.get();
+    }
+
+    public long getFailedAcquires() {
+        return mFailedAcquires.get();
+    }
+
+    public int getInFlight() {
+        return mInFlight.get();
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight.get();
+    }
+
+    @Override
+    public String toString() {
+        return "acquired=" + getAcquired() + " saved=" + getSaved() + " spilled=" + getSpilled()
+                + " dropped=" + getDropped() + " failedAcquires=" + getFailedAcquires()
+                + " inFlight=" + getInFlight() + " maxInFlight=" + getMaxInFlight();
+    }
+}
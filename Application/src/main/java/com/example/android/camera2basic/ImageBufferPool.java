@@ -0,0 +1,376 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands images from an {@link ImageReader} to the {@link PersistenceExecutor} while keeping track
+ * of how many reader buffers are held. When every buffer is taken, the configured overflow policy
+ * frees one before the next image is acquired, instead of letting
+ * {@link ImageReader#acquireNextImage()} throw.
+ */
+class ImageBufferPool {
+
+    private static final String TAG = "ImageBufferPool";
+
+    /**
+     * Capture mode: single shots, a couple of buffers are enough.
+     */
+    public static final int MODE_SINGLE = 0;
+
+    /**
+     * Capture mode: bursts, as many buffers as memory allows up to one per save the executor
+     * can hold, plus the one being acquired.
+     */
+    public static final int MODE_BURST = 1;
+
+    /**
+     * Overflow policy: close the oldest image still waiting to be saved.
+     */
+    public static final int POLICY_DROP_OLDEST = 0;
+
+    /**
+     * Overflow policy: wait on the reader thread until a save finishes.
+     */
+    public static final int POLICY_BLOCK = 1;
+
+    /**
+     * Overflow policy: copy the oldest waiting image to the heap, closing it, and write the copy
+     * on a separate spill executor. The oldest image is closed unsaved when that is full too.
+     */
+    public static final int POLICY_SPILL_TO_DISK = 2;
+
+    private static final int MIN_IMAGES = 2;
+    private static final int MAX_SINGLE_IMAGES = 2;
+
+    /**
+     * Share of the available memory the reader buffers may take up.
+     */
+    private static final int MEMORY_FRACTION = 8;
+
+    /**
+     * How long {@link #POLICY_BLOCK} waits for a buffer before giving up.
+     */
+    private static final long BLOCK_TIMEOUT_MS = 1000;
+
+    private final int mMaxImages;
+    private final int mPolicy;
+    private final PersistenceExecutor mExecutor;
+    private final PersistenceExecutor mSpillExecutor;
+    private final FrameAccounting mAccounting = new FrameAccounting();
+    private final ConcurrentLinkedDeque<PendingImage> mPending = new ConcurrentLinkedDeque<>();
+    private final Object mReleaseLock = new Object();
+
+    /**
+     * Run once no image is held any more, see {@link #runWhenReleased(Runnable)}. Guarded by
+     * {@link #mReleaseLock}.
+     */
+    private Runnable mOnAllReleased;
+
+    /**
+     * Chooses the number of buffers for a JPEG {@link ImageReader}.
+     *
+     * @param availableBytes Memory currently available to the app
+     * @param width          The width of the captured images
+     * @param height         The height of the captured images
+     * @param mode           {@link #MODE_SINGLE} or {@link #MODE_BURST}
+     * @param executor       Where saves are run; a queued save keeps its buffer until written
+     * @return The {@code maxImages} to pass to {@link ImageReader#newInstance}
+     */
+    public static int chooseMaxImages(long availableBytes, int width, int height, int mode,
+                                      PersistenceExecutor executor) {
+        int modeMax = mode == MODE_BURST ? executor.getCapacity() + 1 : MAX_SINGLE_IMAGES;
+        // Camera HALs size JPEG buffers for the worst case, roughly 1.5 bytes per pixel.
+        long bufferBytes = Math.max(1, (long) width * height * 3 / 2);
+        long byMemory = availableBytes / MEMORY_FRACTION / bufferBytes;
+        return (int) Math.max(MIN_IMAGES, Math.min(modeMax, byMemory));
+    }
+
+    /**
+     * @param maxImages The {@code maxImages} the reader was created with
+     * @param policy    {@link #POLICY_DROP_OLDEST} or {@link #POLICY_BLOCK}
+     * @param executor  Where saves are run
+     */
+    public ImageBufferPool(int maxImages, int policy, PersistenceExecutor executor) {
+        this(maxImages, policy, executor, null);
+    }
+
+    /**
+     * @param maxImages     The {@code maxImages} the reader was created with
+     * @param policy        One of the {@code POLICY_*} constants
+     * @param executor      Where saves are run
+     * @param spillExecutor Where spilled images are written, required by
+     *                      {@link #POLICY_SPILL_TO_DISK}
+     */
+    public ImageBufferPool(int maxImages, int policy, PersistenceExecutor executor,
+                           PersistenceExecutor spillExecutor) {
+        if (policy == POLICY_SPILL_TO_DISK && null == spillExecutor) {
+            throw new IllegalArgumentException("POLICY_SPILL_TO_DISK needs a spill executor");
+        }
+        mMaxImages = maxImages;
+        mPolicy = policy;
+        mExecutor = executor;
+        mSpillExecutor = spillExecutor;
+    }
+
+    public int getMaxImages() {
+        return mMaxImages;
+    }
+
+    public FrameAccounting getAccounting() {
+        return mAccounting;
+    }
+
+    /**
+     * Acquires the next image of {@code reader}, freeing a buffer first if all are held. This
+     * should be called from {@link ImageReader.OnImageAvailableListener#onImageAvailable}.
+     *
+     * @return The image, or null if no buffer could be freed
+     */
+    public Image acquire(ImageReader reader) {
+        if (mAccounting.getInFlight() >= mMaxImages) {
+            handleOverflow();
+        }
+        try {
+            Image image = reader.acquireNextImage();
+            if (image != null) {
+                mAccounting.onAcquired();
+            }
+            return image;
+        } catch (IllegalStateException e) {
+            mAccounting.onAcquireFailed();
+            Log.w(TAG, "No free image buffer: " + mAccounting);
+            return null;
+        }
+    }
+
+    /**
+     * Queues {@code image} to be written into {@code file}. If the executor is saturated the
+     * image is closed without being written: the calling thread is the reader's, which must not
+     * wait for the disk.
+     *
+     * @return Whether the save was queued
+     */
+    public boolean save(Image image, File file, ImageSaver.OnImageSavedListener listener) {
+        return save(image, file, 0, listener);
+    }
+
+    /**
+     * Like {@link #save(Image, File, ImageSaver.OnImageSavedListener)}, tracing the save under
+     * {@code traceId} in the {@link CaptureTracer}.
+     */
+    public boolean save(Image image, File file, long traceId,
+                        ImageSaver.OnImageSavedListener listener) {
+        PendingImage pending = new PendingImage(new ImageSaver(image, file, traceId, listener));
+        mPending.addLast(pending);
+        if (mExecutor.execute(pending, PersistenceExecutor.PRIORITY_STILL)) {
+            return true;
+        }
+        mPending.remove(pending);
+        pending.drop();
+        return false;
+    }
+
+    /**
+     * Closes an image from {@link #acquire(ImageReader)} that is not to be saved.
+     */
+    public void discard(Image image) {
+        try {
+            image.close();
+            mAccounting.onDropped();
+        } finally {
+            onReleased();
+        }
+    }
+
+    /**
+     * Runs {@code action} once every image acquired from the reader has been closed: right away
+     * if none is held, otherwise on the thread that closes the last one. This is how the reader
+     * is closed without pulling the buffer from under a save still queued.
+     */
+    public void runWhenReleased(Runnable action) {
+        synchronized (mReleaseLock) {
+            if (mAccounting.getInFlight() > 0) {
+                mOnAllReleased = action;
+                return;
+            }
+        }
+        action.run();
+    }
+
+    @Override
+    public String toString() {
+        return "maxImages=" + mMaxImages + " policy=" + mPolicy + " " + mAccounting;
+    }
+
+    private void handleOverflow() {
+        switch (mPolicy) {
+            case POLICY_SPILL_TO_DISK:
+                if (mSpillExecutor.isSaturated()) {
+                    // Nowhere to write a copy either.
+                    dropOldest();
+                } else {
+                    spillOldest();
+                }
+                break;
+            case POLICY_DROP_OLDEST:
+                dropOldest();
+                break;
+            case POLICY_BLOCK:
+            default:
+                awaitRelease();
+                break;
+        }
+    }
+
+    private void spillOldest() {
+        PendingImage oldest;
+        while ((oldest = mPending.pollFirst()) != null) {
+            if (oldest.spill()) {
+                return;
+            }
+        }
+        awaitRelease();
+    }
+
+    private void dropOldest() {
+        PendingImage oldest;
+        while ((oldest = mPending.pollFirst()) != null) {
+            if (oldest.drop()) {
+                return;
+            }
+        }
+        // Every held image is already being written; wait for one of them.
+        awaitRelease();
+    }
+
+    private void awaitRelease() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT_MS);
+        synchronized (mReleaseLock) {
+            while (mAccounting.getInFlight() >= mMaxImages) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mReleaseLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void onReleased() {
+        mAccounting.onReleased();
+        Runnable onAllReleased = null;
+        synchronized (mReleaseLock) {
+            mReleaseLock.notifyAll();
+            if (null != mOnAllReleased && mAccounting.getInFlight() <= 0) {
+                onAllReleased = mOnAllReleased;
+                mOnAllReleased = null;
+            }
+        }
+        if (null != onAllReleased) {
+            onAllReleased.run();
+        }
+    }
+
+    /**
+     * A save that can be claimed exactly once: by a worker, by a spill, or by a drop.
+     */
+    private class PendingImage implements Runnable {
+
+        private final ImageSaver mSaver;
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+
+        PendingImage(ImageSaver saver) {
+            mSaver = saver;
+        }
+
+        @Override
+        public void run() {
+            if (!mClaimed.compareAndSet(false, true)) {
+                return;
+            }
+            mPending.remove(this);
+            write();
+        }
+
+        /**
+         * Frees the buffer of this image right away, handing a copy of it to the spill executor.
+         */
+        boolean spill() {
+            if (!mClaimed.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                mSaver.detach();
+            } finally {
+                onReleased();
+            }
+            boolean queued = mSpillExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mSaver.save()) {
+                        mAccounting.onSaved();
+                    }
+                }
+            }, PersistenceExecutor.PRIORITY_STILL);
+            if (queued) {
+                mAccounting.onSpilled();
+            } else {
+                mSaver.discard();
+                mAccounting.onDropped();
+                Log.w(TAG, "Spill executor full, dropped an image: " + mAccounting);
+            }
+            return true;
+        }
+
+        boolean drop() {
+            if (!mClaimed.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                mSaver.discard();
+                mAccounting.onDropped();
+            } finally {
+                onReleased();
+            }
+            return true;
+        }
+
+        private void write() {
+            try {
+                if (mSaver.save()) {
+                    mAccounting.onSaved();
+                }
+            } finally {
+                onReleased();
+            }
+        }
+    }
+}
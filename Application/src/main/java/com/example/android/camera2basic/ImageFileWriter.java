@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes encoded image data straight from a {@link ByteBuffer} to disk through a
+ * {@link FileChannel}. The buffer handed out by {@code Image.getPlanes()[0].getBuffer()} is a
+ * direct buffer, so writing it through the channel avoids building a heap copy of the JPEG.
+ *
+ * <p>Data is written to a temporary file next to the destination, which is renamed into place
+ * once it is complete. When the temporary file is forced to storage is decided by the
+ * {@link DurabilityPolicy}. {@link #recover(File)} deals with temporary files left behind by a
+ * process that died while saving.</p>
+ */
+public final class ImageFileWriter {
+
+    /**
+     * Suffix of files being written. Deliberately not {@code .tmp}, which
+     * {@code ExifInterface.saveAttributes()} uses for its own scratch copy.
+     */
+    public static final String TEMP_SUFFIX = ".part";
+
+    /**
+     * How far from the end of a file {@link #recover(File)} looks for the JPEG end marker, as some
+     * encoders pad the data after it.
+     */
+    private static final int JPEG_TAIL_SCAN_BYTES = 1024;
+
+    private static final SaveStats sStats = new SaveStats();
+
+    private static final MetricsRegistry.Histogram sSaveMetric =
+            MetricsRegistry.get().histogram("save.latency");
+
+    private static volatile DurabilityPolicy sPolicy = DurabilityPolicy.interval(1000);
+
+    private static final Object sSyncLock = new Object();
+    private static final List<File> sUnsynced = new ArrayList<>();
+    private static long sLastSyncNanos = System.nanoTime();
+
+    private ImageFileWriter() {
+    }
+
+    /**
+     * @return The statistics shared by every save done through this class
+     */
+    public static SaveStats getStats() {
+        return sStats;
+    }
+
+    public static DurabilityPolicy getDurabilityPolicy() {
+        return sPolicy;
+    }
+
+    /**
+     * Changes the durability policy. Files still waiting for a sync under the previous policy are
+     * synced first.
+     */
+    public static void setDurabilityPolicy(DurabilityPolicy policy) {
+        flush();
+        sPolicy = policy;
+    }
+
+    /**
+     * @return The temporary file {@code file} is written to before it is renamed into place
+     */
+    public static File getTempFile(File file) {
+        return new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Writes the remaining bytes of {@code buffer} into {@code file}, replacing its contents.
+     * The buffer's position is advanced to its limit. {@code file} either keeps its previous state
+     * or holds all the data; it is never left partially written.
+     *
+     * @param buffer The data to write
+     * @param file   The destination file
+     * @return The number of bytes written
+     */
+    public static long write(ByteBuffer buffer, File file) throws IOException {
+        long start = System.nanoTime();
+        long written = 0;
+        DurabilityPolicy policy = sPolicy;
+        File temp = getTempFile(file);
+        boolean complete = false;
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            FileChannel channel = output.getChannel();
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            if (policy.syncsEveryFile()) {
+                long syncStart = System.nanoTime();
+                channel.force(true);
+                sStats.recordSync(1, System.nanoTime() - syncStart);
+            }
+            complete = true;
+        } finally {
+            output.close();
+            if (!complete) {
+                temp.delete();
+            }
+        }
+        rename(temp, file);
+        long nanos = System.nanoTime() - start;
+        sStats.record(written, nanos);
+        sSaveMetric.record(nanos);
+        onCommitted(file, policy);
+        return written;
+    }
+
+    /**
+     * Moves a temporary file written by other means, such as an encoder writing to a stream, into
+     * place, syncing it first if the policy requires.
+     *
+     * @param temp The complete temporary file, usually from {@link #getTempFile(File)}
+     * @param file The destination file
+     */
+    public static void commit(File temp, File file) throws IOException {
+        DurabilityPolicy policy = sPolicy;
+        if (policy.syncsEveryFile()) {
+            long syncStart = System.nanoTime();
+            sync(temp);
+            sStats.recordSync(1, System.nanoTime() - syncStart);
+        }
+        rename(temp, file);
+        onCommitted(file, policy);
+    }
+
+    /**
+     * Syncs every file still waiting for it under a batched policy. Call this when the app goes
+     * to the background.
+     */
+    public static void flush() {
+        List<File> files;
+        synchronized (sSyncLock) {
+            files = takeUnsynced();
+        }
+        syncAll(files);
+    }
+
+    /**
+     * Deals with temporary files left in {@code directory} by a save that never finished:
+     * complete JPEGs are renamed into place and anything else is deleted. Empty JPEGs, which is
+     * what an unsynced file can turn into when the device loses power, are deleted as well.
+     *
+     * @return The number of leftover files found
+     */
+    public static int recover(File directory) {
+        File[] files = directory.listFiles();
+        if (null == files) {
+            return 0;
+        }
+        int found = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                found++;
+                File target = new File(directory,
+                        name.substring(0, name.length() - TEMP_SUFFIX.length()));
+                boolean recovered = false;
+                if (!target.exists() && isCompleteJpeg(f)) {
+                    try {
+                        rename(f, target);
+                        recovered = true;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (!recovered) {
+                    f.delete();
+                }
+            } else if (name.endsWith(".jpg") && f.length() == 0) {
+                found++;
+                f.delete();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return Whether {@code file} starts with a JPEG start-of-image marker and has an
+     * end-of-image marker near its end
+     */
+    static boolean isCompleteJpeg(File file) {
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            long length = input.length();
+            if (length < 4 || input.read() != 0xFF || input.read() != 0xD8) {
+                return false;
+            }
+            int tail = (int) Math.min(JPEG_TAIL_SCAN_BYTES, length - 2);
+            byte[] bytes = new byte[tail];
+            input.seek(length - tail);
+            input.readFully(bytes);
+            for (int i = tail - 2; i >= 0; i--) {
+                if ((bytes[i] & 0xFF) == 0xFF && (bytes[i + 1] & 0xFF) == 0xD9) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (null != input) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            from.delete();
+            throw new IOException("Could not rename " + from + " to " + to);
+        }
+    }
+
+    private static void onCommitted(File file, DurabilityPolicy policy) {
+        if (policy.syncsEveryFile() || policy.getMode() == DurabilityPolicy.MODE_NONE) {
+            return;
+        }
+        List<File> files = null;
+        synchronized (sSyncLock) {
+            sUnsynced.add(file);
+            if (policy.shouldSyncBatch(sUnsynced.size(), System.nanoTime() - sLastSyncNanos)) {
+                files = takeUnsynced();
+            }
+        }
+        if (null != files) {
+            syncAll(files);
+        }
+    }
+
+    /**
+     * Must be called with {@link #sSyncLock} held.
+     */
+    private static List<File> takeUnsynced() {
+        List<File> files = new ArrayList<>(sUnsynced);
+        sUnsynced.clear();
+        sLastSyncNanos = System.nanoTime();
+        return files;
+    }
+
+    private static void syncAll(List<File> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        for (File file : files) {
+            try {
+                sync(file);
+            } catch (IOException e) {
+                // The file may have been deleted since it was saved.
+                e.printStackTrace();
+            }
+        }
+        sStats.recordSync(files.size(), System.nanoTime() - start);
+    }
+
+    private static void sync(File file) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.getChannel().force(true);
+        } finally {
+            output.close();
+        }
+    }
+}
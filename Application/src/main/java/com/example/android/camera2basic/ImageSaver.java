@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.Image;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Saves a JPEG {@link Image} into the specified {@link File}.
+ */
+class ImageSaver implements Runnable {
+
+    private static final String TAG = "ImageSaver";
+
+    /**
+     * Notified on the saving thread once an image is on disk.
+     */
+    interface OnImageSavedListener {
+
+        /**
+         * @param file      The file the image was written to
+         * @param timestamp The sensor timestamp of the image
+         */
+        void onImageSaved(File file, long timestamp);
+    }
+
+    /**
+     * The JPEG image, or null once {@link #detach()} has copied it.
+     */
+    private Image mImage;
+
+    /**
+     * The JPEG data copied out of {@link #mImage} by {@link #detach()}.
+     */
+    private ByteBuffer mData;
+
+    private final long mTimestamp;
+    /**
+     * The file we save the image into.
+     */
+    private final File mFile;
+
+    private final OnImageSavedListener mListener;
+
+    /**
+     * The shot this image belongs to in the {@link CaptureTracer}.
+     */
+    private final long mTraceId;
+
+    private final long mCreatedNanos = System.nanoTime();
+
+    public ImageSaver(Image image, File file) {
+        this(image, file, 0, null);
+    }
+
+    public ImageSaver(Image image, File file, OnImageSavedListener listener) {
+        this(image, file, 0, listener);
+    }
+
+    public ImageSaver(Image image, File file, long traceId, OnImageSavedListener listener) {
+        mImage = image;
+        mTimestamp = image.getTimestamp();
+        mFile = file;
+        mTraceId = traceId;
+        mListener = listener;
+    }
+
+    @Override
+    public void run() {
+        save();
+    }
+
+    /**
+     * Writes the image and closes it.
+     *
+     * @return Whether the image reached the disk
+     */
+    public boolean save() {
+        boolean saved = false;
+        try {
+            if (mFile == null) {
+                return false;
+            }
+            long start = System.nanoTime();
+            CaptureTracer.get().span("saveQueued", mTraceId, mCreatedNanos, start);
+            ByteBuffer data = null == mImage ? mData : mImage.getPlanes()[0].getBuffer();
+            long bytes = ImageFileWriter.write(data, mFile);
+            saved = true;
+            CaptureTracer.get().span("writeFile", mTraceId, start);
+            Log.d(TAG, "Saved " + bytes + " bytes to " + mFile + " in "
+                    + (System.nanoTime() - start) / 1000000 + "ms ("
+                    + ImageFileWriter.getStats() + ")");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            discard();
+        }
+        if (saved && mListener != null) {
+            mListener.onImageSaved(mFile, mTimestamp);
+        }
+        return saved;
+    }
+
+    /**
+     * Copies the JPEG data to the heap and closes the image, giving its buffer back to the
+     * reader. {@link #save()} then writes the copy.
+     */
+    public void detach() {
+        if (null == mImage) {
+            return;
+        }
+        ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        copy.flip();
+        mData = copy;
+        mImage.close();
+        mImage = null;
+    }
+
+    /**
+     * Closes the image without writing it.
+     */
+    public void discard() {
+        if (null != mImage) {
+            mImage.close();
+            mImage = null;
+        }
+        mData = null;
+    }
+
+}
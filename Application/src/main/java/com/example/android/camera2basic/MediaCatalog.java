@@ -0,0 +1,477 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The pictures of one gallery directory, recorded as they are saved, so the app can find its
+ * latest captures, or those of a date range or a camera, without listing the directory.
+ *
+ * <p>The catalog is an append-only log: each save appends an entry with the file name, capture
+ * time, size, dimensions, camera, filter and face count, and each removal appends a tombstone.
+ * Thumbnails are looked up by file name in the {@link ThumbnailStore}, whose offsets change when
+ * it is compacted. Opening the catalog replays the
+ * log into in-memory indexes by time, by name and by camera, and truncates a trailing record cut
+ * short by a crash. Queries only touch the indexes.</p>
+ */
+public final class MediaCatalog {
+
+    /**
+     * Value of the metadata an entry was recorded without, such as a picture found by
+     * {@link #importFiles(File, String)}.
+     */
+    public static final int UNKNOWN = -1;
+
+    private static final int FILE_MAGIC = 0x4341544c; // "CATL"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_ADD = 0x4361;
+    private static final int RECORD_REMOVE = 0x4372;
+
+    /**
+     * Upper bound on the payload of one record, so a damaged length is not taken for a huge one.
+     */
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+    /**
+     * One saved picture.
+     */
+    public static final class Entry {
+
+        private final String mName;
+        private final long mTimestamp;
+        private final long mSize;
+        private final int mWidth;
+        private final int mHeight;
+        private final String mCameraId;
+        private final int mEffectMode;
+        private final int mFaceCount;
+
+        /**
+         * @param name       The file name, relative to the gallery directory
+         * @param timestamp  The capture time, in milliseconds since the epoch
+         * @param size       The file size in bytes
+         * @param cameraId   The camera that took the picture, or null if unknown
+         * @param effectMode The {@code CONTROL_EFFECT_MODE} of the capture, or {@link #UNKNOWN}
+         * @param faceCount  The faces detected when the shutter was pressed, or {@link #UNKNOWN}
+         */
+        public Entry(String name, long timestamp, long size, int width, int height,
+                     String cameraId, int effectMode, int faceCount) {
+            mName = name;
+            mTimestamp = timestamp;
+            mSize = size;
+            mWidth = width;
+            mHeight = height;
+            mCameraId = null == cameraId ? "" : cameraId;
+            mEffectMode = effectMode;
+            mFaceCount = faceCount;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return The camera id, or an empty string if unknown
+         */
+        public String getCameraId() {
+            return mCameraId;
+        }
+
+        public int getEffectMode() {
+            return mEffectMode;
+        }
+
+        public int getFaceCount() {
+            return mFaceCount;
+        }
+
+        @Override
+        public String toString() {
+            return mName + " " + mWidth + "x" + mHeight + " camera=" + mCameraId
+                    + " size=" + mSize;
+        }
+    }
+
+    private static final Map<File, MediaCatalog> sOpen = new HashMap<>();
+
+    private final File mFile;
+    private final RandomAccessFile mLog;
+    private final boolean mCreated;
+
+    /*
+     * Guarded by this. Sorted by timestamp, then by the order they were added.
+     */
+    private final ArrayList<Entry> mByTime = new ArrayList<>();
+    private final Map<String, Entry> mByName = new HashMap<>();
+    private final Map<String, ArrayList<Entry>> mByCamera = new HashMap<>();
+
+    /**
+     * Opens the catalog, creating it if needed, and replays its log.
+     */
+    public MediaCatalog(File file) throws IOException {
+        mFile = file;
+        mLog = new RandomAccessFile(file, "rw");
+        try {
+            boolean valid = mLog.length() >= HEADER_BYTES && mLog.readInt() == FILE_MAGIC
+                    && mLog.readInt() == FORMAT_VERSION;
+            mCreated = !valid;
+            if (valid) {
+                replay();
+            } else {
+                mLog.setLength(0);
+                mLog.writeInt(FILE_MAGIC);
+                mLog.writeInt(FORMAT_VERSION);
+            }
+        } catch (IOException e) {
+            mLog.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the catalog at {@code file}, shared by the whole process. When the catalog has to
+     * be created, the pictures already in {@code directory} are imported into it first.
+     *
+     * @param directory The gallery directory the catalog describes
+     * @param suffix    The file name suffix of the pictures, such as {@code ".jpg"}
+     */
+    public static synchronized MediaCatalog open(File file, File directory, String suffix)
+            throws IOException {
+        MediaCatalog catalog = sOpen.get(file);
+        if (null == catalog) {
+            catalog = new MediaCatalog(file);
+            if (catalog.isCreated()) {
+                catalog.importFiles(directory, suffix);
+            }
+            sOpen.put(file, catalog);
+        }
+        return catalog;
+    }
+
+    private void replay() throws IOException {
+        long length = mLog.length();
+        long offset = HEADER_BYTES;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile), 64 * 1024));
+        try {
+            input.skipBytes(HEADER_BYTES);
+            while (offset < length) {
+                int type;
+                byte[] payload;
+                try {
+                    type = input.readShort();
+                    int payloadLength = input.readInt();
+                    if (payloadLength < 0 || payloadLength > MAX_RECORD_BYTES
+                            || offset + 6 + payloadLength > length) {
+                        break;
+                    }
+                    payload = new byte[payloadLength];
+                    input.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    if (type == RECORD_ADD) {
+                        index(readEntry(payload));
+                    } else if (type == RECORD_REMOVE) {
+                        unindex(new DataInputStream(new ByteArrayInputStream(payload)).readUTF());
+                    } else {
+                        break;
+                    }
+                } catch (IOException e) {
+                    // A damaged payload; the records after it cannot be trusted either.
+                    break;
+                }
+                offset += 6 + payload.length;
+            }
+        } finally {
+            input.close();
+        }
+        if (offset < length) {
+            mLog.setLength(offset);
+        }
+    }
+
+    /**
+     * @return Whether the catalog did not exist, or was unreadable, and was created empty
+     */
+    public boolean isCreated() {
+        return mCreated;
+    }
+
+    /**
+     * Records a saved picture, replacing any entry with the same name.
+     */
+    public synchronized void add(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeUTF(entry.mName);
+        payload.writeLong(entry.mTimestamp);
+        payload.writeLong(entry.mSize);
+        payload.writeInt(entry.mWidth);
+        payload.writeInt(entry.mHeight);
+        payload.writeUTF(entry.mCameraId);
+        payload.writeInt(entry.mEffectMode);
+        payload.writeInt(entry.mFaceCount);
+        append(RECORD_ADD, bytes.toByteArray());
+        index(entry);
+    }
+
+    /**
+     * Forgets the picture named {@code name}, for example because its file is gone.
+     *
+     * @return Whether there was such an entry
+     */
+    public synchronized boolean remove(String name) throws IOException {
+        if (!mByName.containsKey(name)) {
+            return false;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        new DataOutputStream(bytes).writeUTF(name);
+        append(RECORD_REMOVE, bytes.toByteArray());
+        unindex(name);
+        return true;
+    }
+
+    /**
+     * Adds an entry for every file of {@code directory} ending in {@code suffix} that has none,
+     * with its modification time as the capture time. This is how a catalog created for an
+     * existing gallery catches up, once.
+     *
+     * @return The number of entries added
+     */
+    public synchronized int importFiles(File directory, String suffix) throws IOException {
+        File[] files = directory.listFiles();
+        if (null == files) {
+            return 0;
+        }
+        int added = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(suffix) && file.isFile() && !mByName.containsKey(name)) {
+                add(new Entry(name, file.lastModified(), file.length(), UNKNOWN, UNKNOWN, null,
+                        UNKNOWN, UNKNOWN));
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return The entry of the picture named {@code name}, or null
+     */
+    public synchronized Entry get(String name) {
+        return mByName.get(name);
+    }
+
+    /**
+     * @return The newest entry, or null if the catalog is empty
+     */
+    public synchronized Entry getLatest() {
+        return mByTime.isEmpty() ? null : mByTime.get(mByTime.size() - 1);
+    }
+
+    /**
+     * @return The {@code count} newest entries, newest first
+     */
+    public synchronized List<Entry> getLatest(int count) {
+        return newestFirst(mByTime, count);
+    }
+
+    /**
+     * @return The entries captured from {@code fromMillis} included to {@code toMillis}
+     * excluded, oldest first
+     */
+    public synchronized List<Entry> getRange(long fromMillis, long toMillis) {
+        int from = lowerBound(mByTime, fromMillis);
+        int to = lowerBound(mByTime, toMillis);
+        return from >= to ? Collections.<Entry>emptyList()
+                : new ArrayList<>(mByTime.subList(from, to));
+    }
+
+    /**
+     * @return The {@code count} newest entries taken with {@code cameraId}, newest first
+     */
+    public synchronized List<Entry> getByCamera(String cameraId, int count) {
+        ArrayList<Entry> entries = mByCamera.get(cameraId);
+        return null == entries ? Collections.<Entry>emptyList() : newestFirst(entries, count);
+    }
+
+    /**
+     * @return The ids of the cameras with entries, sorted
+     */
+    public synchronized String[] getCameraIds() {
+        String[] ids = mByCamera.keySet().toArray(new String[mByCamera.size()]);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    public synchronized int getCount() {
+        return mByTime.size();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public void close() throws IOException {
+        synchronized (MediaCatalog.class) {
+            if (sOpen.get(mFile) == this) {
+                sOpen.remove(mFile);
+            }
+        }
+        synchronized (this) {
+            mLog.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mFile.getName() + " entries=" + mByTime.size() + " cameras=" + mByCamera.size();
+    }
+
+    private void append(int type, byte[] payload) throws IOException {
+        if (payload.length > MAX_RECORD_BYTES) {
+            throw new IllegalArgumentException("Record too large: " + payload.length + " bytes");
+        }
+        // One write, so a crash leaves at most one torn record at the end.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(6 + payload.length);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeShort(type);
+        record.writeInt(payload.length);
+        record.write(payload);
+        long offset = mLog.length();
+        mLog.seek(offset);
+        try {
+            mLog.write(bytes.toByteArray());
+        } catch (IOException e) {
+            mLog.setLength(offset);
+            throw e;
+        }
+    }
+
+    private static Entry readEntry(byte[] payload) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        String name = input.readUTF();
+        long timestamp = input.readLong();
+        long size = input.readLong();
+        int width = input.readInt();
+        int height = input.readInt();
+        String cameraId = input.readUTF();
+        int effectMode = input.readInt();
+        int faceCount = input.readInt();
+        return new Entry(name, timestamp, size, width, height, cameraId, effectMode, faceCount);
+    }
+
+    private void index(Entry entry) {
+        unindex(entry.mName);
+        mByName.put(entry.mName, entry);
+        insert(mByTime, entry);
+        ArrayList<Entry> camera = mByCamera.get(entry.mCameraId);
+        if (null == camera) {
+            camera = new ArrayList<>();
+            mByCamera.put(entry.mCameraId, camera);
+        }
+        insert(camera, entry);
+    }
+
+    private void unindex(String name) {
+        Entry entry = mByName.remove(name);
+        if (null == entry) {
+            return;
+        }
+        mByTime.remove(entry);
+        ArrayList<Entry> camera = mByCamera.get(entry.mCameraId);
+        camera.remove(entry);
+        if (camera.isEmpty()) {
+            mByCamera.remove(entry.mCameraId);
+        }
+    }
+
+    /**
+     * Inserts after the entries with the same or an earlier timestamp; pictures are mostly
+     * saved in order, so this is usually an append.
+     */
+    private static void insert(ArrayList<Entry> entries, Entry entry) {
+        int size = entries.size();
+        if (size == 0 || entries.get(size - 1).mTimestamp <= entry.mTimestamp) {
+            entries.add(entry);
+        } else {
+            entries.add(lowerBound(entries, entry.mTimestamp + 1), entry);
+        }
+    }
+
+    /**
+     * @return The index of the first entry captured at or after {@code millis}
+     */
+    private static int lowerBound(ArrayList<Entry> entries, long millis) {
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries.get(mid).mTimestamp < millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static List<Entry> newestFirst(ArrayList<Entry> entries, int count) {
+        int size = entries.size();
+        int n = Math.max(0, Math.min(count, size));
+        List<Entry> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(entries.get(size - 1 - i));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters, gauges and latency histograms for the camera hot paths.
+ *
+ * <p>Metrics are looked up once, typically into a field, and then updated from any thread. An
+ * update is a handful of atomic operations: it takes no lock and allocates nothing, so it can be
+ * made from capture callbacks without slowing them down. {@link #snapshot()} renders every metric
+ * as text, for logging or dumping to a file.</p>
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry sInstance = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Object> mMetrics = new ConcurrentHashMap<>();
+    private final long mCreatedNanos = System.nanoTime();
+
+    /**
+     * @return The registry shared by the app
+     */
+    public static MetricsRegistry get() {
+        return sInstance;
+    }
+
+    /**
+     * A monotonically increasing count. The snapshot also reports the rate since the previous
+     * snapshot.
+     */
+    public static final class Counter {
+
+        private final AtomicLong mCount = new AtomicLong();
+        private long mSnapshotCount;
+        private long mSnapshotNanos;
+
+        Counter(long createdNanos) {
+            mSnapshotNanos = createdNanos;
+        }
+
+        public void increment() {
+            mCount.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mCount.addAndGet(delta);
+        }
+
+        public long get() {
+            return mCount.get();
+        }
+
+        synchronized String snapshot(long nowNanos) {
+            long count = mCount.get();
+            long nanos = nowNanos - mSnapshotNanos;
+            double rate = nanos <= 0 ? 0 : (count - mSnapshotCount) * 1e9 / nanos;
+            mSnapshotCount = count;
+            mSnapshotNanos = nowNanos;
+            return String.format(Locale.US, "count=%d rate=%.2f/s", count, rate);
+        }
+    }
+
+    /**
+     * The current value of something, such as a queue depth, and the highest value it reached.
+     */
+    public static final class Gauge {
+
+        private final AtomicLong mValue = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+        public void set(long value) {
+            mValue.set(value);
+            long max;
+            do {
+                max = mMax.get();
+            } while (value > max && !mMax.compareAndSet(max, value));
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        public long getMax() {
+            long max = mMax.get();
+            return max == Long.MIN_VALUE ? 0 : max;
+        }
+
+        String snapshot() {
+            return "value=" + get() + " max=" + getMax();
+        }
+    }
+
+    /**
+     * A distribution of durations in nanoseconds, kept in power-of-two buckets. Percentiles are
+     * reported as the upper bound of the bucket they fall in, so they are accurate to a factor
+     * of two.
+     */
+    public static final class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        /**
+         * @param nanos A duration, negative values count as zero
+         */
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            // Bucket i holds values below 2^i and at least 2^(i-1).
+            mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+            mCount.incrementAndGet();
+            mSum.addAndGet(nanos);
+            long max;
+            do {
+                max = mMax.get();
+            } while (nanos > max && !mMax.compareAndSet(max, nanos));
+        }
+
+        /**
+         * Records the time elapsed since {@code startNanos}.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public double getMeanMillis() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mSum.get() / 1e6 / count;
+        }
+
+        public double getMaxMillis() {
+            return mMax.get() / 1e6;
+        }
+
+        /**
+         * @param quantile Between 0 and 1
+         * @return The upper bound of the bucket holding the quantile, in milliseconds
+         */
+        public double getPercentileMillis(double quantile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    long upper = i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(upper, mMax.get()) / 1e6;
+                }
+            }
+            return getMaxMillis();
+        }
+
+        String snapshot() {
+            return String.format(Locale.US,
+                    "count=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                    getCount(), getMeanMillis(), getPercentileMillis(0.5),
+                    getPercentileMillis(0.9), getPercentileMillis(0.99), getMaxMillis());
+        }
+    }
+
+    /**
+     * @return The counter called {@code name}, created on first use
+     */
+    public Counter counter(String name) {
+        Object metric = mMetrics.get(name);
+        if (null == metric) {
+            Object created = new Counter(mCreatedNanos);
+            metric = mMetrics.putIfAbsent(name, created);
+            if (null == metric) {
+                metric = created;
+            }
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * @return The gauge called {@code name}, created on first use
+     */
+    public Gauge gauge(String name) {
+        Object metric = mMetrics.get(name);
+        if (null == metric) {
+            Object created = new Gauge();
+            metric = mMetrics.putIfAbsent(name, created);
+            if (null == metric) {
+                metric = created;
+            }
+        }
+        return (Gauge) metric;
+    }
+
+    /**
+     * @return The histogram called {@code name}, created on first use
+     */
+    public Histogram histogram(String name) {
+        Object metric = mMetrics.get(name);
+        if (null == metric) {
+            Object created = new Histogram();
+            metric = mMetrics.putIfAbsent(name, created);
+            if (null == metric) {
+                metric = created;
+            }
+        }
+        return (Histogram) metric;
+    }
+
+    /**
+     * Renders every metric, one per line, sorted by name.
+     */
+    public String snapshot() {
+        long now = System.nanoTime();
+        List<String> names = new ArrayList<>(mMetrics.keySet());
+        Collections.sort(names);
+        StringBuilder builder = new StringBuilder();
+        for (String name : names) {
+            Object metric = mMetrics.get(name);
+            builder.append(name).append(' ');
+            if (metric instanceof Counter) {
+                builder.append(((Counter) metric).snapshot(now));
+            } else if (metric instanceof Gauge) {
+                builder.append(((Gauge) metric).snapshot());
+            } else {
+                builder.append(((Histogram) metric).snapshot());
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * A {@link Handler} that times every message it dispatches into an {@link ExecutorStats}. The
+ * camera framework posts its callbacks to the handler it is given, so passing this handler also
+ * measures the time spent in device, session and capture callbacks.
+ */
+class MonitoredHandler extends Handler {
+
+    private final ExecutorStats mStats;
+
+    MonitoredHandler(Looper looper, ExecutorStats stats) {
+        super(looper);
+        mStats = stats;
+    }
+
+    @Override
+    public void dispatchMessage(Message msg) {
+        long start = System.nanoTime();
+        try {
+            super.dispatchMessage(msg);
+        } finally {
+            mStats.recordTask(start);
+        }
+    }
+
+    ExecutorStats getStats() {
+        return mStats;
+    }
+}
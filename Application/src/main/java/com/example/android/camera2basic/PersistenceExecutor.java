@@ -0,0 +1,321 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, prioritized executor for disk writes, kept apart from the camera callback thread so
+ * that a slow save never delays AF/AE state handling or preview requests.
+ *
+ * <p>At most {@code capacity} tasks may be pending (queued or running). Once that limit is reached
+ * {@link #execute(Runnable, int)} returns {@code false} and the {@link BackpressureListener} is
+ * told that the executor is saturated, so the capture layer can hold off new shots.</p>
+ */
+public class PersistenceExecutor {
+
+    /**
+     * Priority for full resolution still images.
+     */
+    public static final int PRIORITY_STILL = 0;
+
+    /**
+     * Priority for thumbnails derived from saved images.
+     */
+    public static final int PRIORITY_THUMBNAIL = 1;
+
+    /**
+     * Priority for sidecar data such as metadata and indexes.
+     */
+    public static final int PRIORITY_SIDECAR = 2;
+
+    /**
+     * Receives saturation changes of a {@link PersistenceExecutor}.
+     */
+    public interface BackpressureListener {
+
+        /**
+         * Called from the submitting or worker thread whenever the executor becomes saturated or
+         * has room again.
+         *
+         * @param saturated Whether the pending queue is full
+         */
+        void onBackpressureChanged(boolean saturated);
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mCapacity;
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final Object mIdleLock = new Object();
+    private volatile BackpressureListener mListener;
+    private volatile boolean mSaturated;
+
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mExecutedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+    private final MetricsRegistry.Gauge mDepthMetric;
+    private final MetricsRegistry.Histogram mWaitMetric;
+    private final ExecutorStats mStats;
+    private final int mWorkerCount;
+
+    /**
+     * @param name        Prefix for the worker thread names
+     * @param workerCount The number of worker threads
+     * @param capacity    The maximum number of pending tasks
+     */
+    public PersistenceExecutor(final String name, int workerCount, int capacity) {
+        if (workerCount < 1 || capacity < 1) {
+            throw new IllegalArgumentException("workerCount and capacity must be positive");
+        }
+        mCapacity = capacity;
+        mWorkerCount = workerCount;
+        mStats = new ExecutorStats(name);
+        mDepthMetric = MetricsRegistry.get().gauge("persistence." + name + ".depth");
+        mWaitMetric = MetricsRegistry.get().histogram("persistence." + name + ".wait");
+        mExecutor = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + mCount.incrementAndGet());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    public void setBackpressureListener(BackpressureListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues {@code task} unless the executor is saturated.
+     *
+     * @param task     The work to run
+     * @param priority One of the {@code PRIORITY_*} constants; lower values run first
+     * @return Whether the task was accepted
+     */
+    public boolean execute(Runnable task, int priority) {
+        int pending;
+        do {
+            pending = mPending.get();
+            if (pending >= mCapacity) {
+                mRejectedCount.incrementAndGet();
+                setSaturated(true);
+                return false;
+            }
+        } while (!mPending.compareAndSet(pending, pending + 1));
+        updateMax(mMaxQueueDepth, pending + 1);
+        mDepthMetric.set(pending + 1);
+        if (pending + 1 >= mCapacity) {
+            setSaturated(true);
+        }
+        try {
+            mExecutor.execute(new Task(task, priority, mSequence.getAndIncrement()));
+        } catch (RuntimeException e) {
+            onTaskFinished();
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether new tasks would currently be rejected
+     */
+    public boolean isSaturated() {
+        return mPending.get() >= mCapacity;
+    }
+
+    /**
+     * @return The number of tasks queued or running
+     */
+    public int getQueueDepth() {
+        return mPending.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    public long getExecutedCount() {
+        return mExecutedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return The average time a task spent queued before a worker picked it up, in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long count = mExecutedCount.get();
+        return count == 0 ? 0 : mTotalWaitNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxWaitMillis() {
+        return mMaxWaitNanos.get() / 1e6;
+    }
+
+    /**
+     * @return The maximum number of tasks queued or running
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getWorkerCount() {
+        return mWorkerCount;
+    }
+
+    /**
+     * @return The number of worker threads currently alive, which are started on demand up to
+     * {@link #getWorkerCount()}
+     */
+    public int getLiveThreadCount() {
+        return mExecutor.getPoolSize();
+    }
+
+    /**
+     * @return The time the workers spent running tasks
+     */
+    public ExecutorStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Blocks until every pending task has finished or {@code timeoutMs} elapses.
+     *
+     * @return Whether the executor is idle
+     */
+    public boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (mIdleLock) {
+            while (mPending.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mIdleLock, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting work and waits up to {@code timeoutMs} for queued tasks to finish.
+     */
+    public void shutdown(long timeoutMs) throws InterruptedException {
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth=%d maxDepth=%d executed=%d rejected=%d avgWait=%.2fms maxWait=%.2fms",
+                getQueueDepth(), getMaxQueueDepth(), getExecutedCount(), getRejectedCount(),
+                getAverageWaitMillis(), getMaxWaitMillis());
+    }
+
+    private void onTaskFinished() {
+        int pending = mPending.decrementAndGet();
+        mDepthMetric.set(pending);
+        if (pending < mCapacity) {
+            setSaturated(false);
+        }
+        if (pending == 0) {
+            synchronized (mIdleLock) {
+                mIdleLock.notifyAll();
+            }
+        }
+    }
+
+    private void setSaturated(boolean saturated) {
+        if (mSaturated == saturated) {
+            return;
+        }
+        mSaturated = saturated;
+        BackpressureListener listener = mListener;
+        if (listener != null) {
+            listener.onBackpressureChanged(saturated);
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        do {
+            current = max.get();
+        } while (value > current && !max.compareAndSet(current, value));
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        do {
+            current = max.get();
+        } while (value > current && !max.compareAndSet(current, value));
+    }
+
+    /**
+     * Orders queued work by priority, then by submission order.
+     */
+    private class Task implements Runnable, Comparable<Task> {
+
+        private final Runnable mRunnable;
+        private final int mPriority;
+        private final long mSequence;
+        private final long mEnqueuedNanos = System.nanoTime();
+
+        Task(Runnable runnable, int priority, long sequence) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            long wait = System.nanoTime() - mEnqueuedNanos;
+            mTotalWaitNanos.addAndGet(wait);
+            updateMax(mMaxWaitNanos, wait);
+            mWaitMetric.record(wait);
+            long start = System.nanoTime();
+            try {
+                mRunnable.run();
+            } finally {
+                mStats.recordTask(start);
+                mExecutedCount.incrementAndGet();
+                onTaskFinished();
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * The work done for each preview result of the capture session: counting the faces while no
+ * capture is running, and feeding the AF and AE states to the {@link CaptureStateMachine}.
+ *
+ * <p>Callers read the values out of their own result type, a {@code CaptureResult} in the app,
+ * and read the faces only when {@link #wantsFaces(boolean)} says they are used.</p>
+ */
+final class PreviewResultProcessor {
+
+    private final CaptureStateMachine mCaptureStateMachine;
+    private final MetricsRegistry.Counter mFaceResultsMetric =
+            MetricsRegistry.get().counter("camera.faceResults");
+
+    /**
+     * Number of faces in the latest preview result, recorded with each capture.
+     */
+    private volatile int mLastFaceCount;
+
+    /**
+     * @param captureStateMachine Receives the AF and AE states of every result
+     */
+    PreviewResultProcessor(CaptureStateMachine captureStateMachine) {
+        mCaptureStateMachine = captureStateMachine;
+    }
+
+    /**
+     * @param partial Whether the result is a partial one
+     * @return Whether the faces of the result are counted, which is only for complete results
+     * while the preview is working normally
+     */
+    boolean wantsFaces(boolean partial) {
+        return !partial && mCaptureStateMachine.isIdle();
+    }
+
+    /**
+     * Records the number of faces of a result {@link #wantsFaces(boolean)} asked for.
+     */
+    void onFaces(int faceCount) {
+        mLastFaceCount = faceCount;
+        if (faceCount > 0) {
+            mFaceResultsMetric.increment();
+        }
+    }
+
+    /**
+     * Feeds the AF and AE states of a result to the {@link CaptureStateMachine}.
+     *
+     * @param afState The AF state, or {@link CaptureStateMachine#UNKNOWN} if the result did not
+     *                have one
+     * @param aeState The AE state, or {@link CaptureStateMachine#UNKNOWN} if the result did not
+     *                have one
+     */
+    void onStates(boolean partial, int afState, int aeState, long nowNanos) {
+        if (partial && afState == CaptureStateMachine.UNKNOWN
+                && aeState == CaptureStateMachine.UNKNOWN) {
+            // A partial result without 3A states says nothing about them.
+            return;
+        }
+        mCaptureStateMachine.onResult(afState, aeState, nowNanos);
+    }
+
+    /**
+     * @return The number of faces in the latest result they were counted for
+     */
+    int getLastFaceCount() {
+        return mLastFaceCount;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals for image persistence: bytes written, number of saves and the time they took,
+ * plus the {@code fsync} calls made for the {@link DurabilityPolicy}. Updates are lock-free so
+ * they can be recorded from any saver thread.
+ */
+public class SaveStats {
+
+    private final AtomicLong mSaveCount = new AtomicLong();
+    private final AtomicLong mTotalBytes = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mLastNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+    private final AtomicLong mSyncCount = new AtomicLong();
+    private final AtomicLong mSyncedFiles = new AtomicLong();
+    private final AtomicLong mSyncNanos = new AtomicLong();
+
+    /**
+     * Records a single completed save.
+     *
+     * @param bytes The number of bytes written
+     * @param nanos The time the save took, in nanoseconds
+     */
+    public void record(long bytes, long nanos) {
+        mSaveCount.incrementAndGet();
+        mTotalBytes.addAndGet(bytes);
+        mTotalNanos.addAndGet(nanos);
+        mLastNanos.set(nanos);
+        long max;
+        do {
+            max = mMaxNanos.get();
+        } while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+    }
+
+    /**
+     * Records a sync of one or more saved files.
+     *
+     * @param files The number of files synced
+     * @param nanos The time the sync took, in nanoseconds
+     */
+    public void recordSync(int files, long nanos) {
+        mSyncCount.incrementAndGet();
+        mSyncedFiles.addAndGet(files);
+        mSyncNanos.addAndGet(nanos);
+    }
+
+    public long getSaveCount() {
+        return mSaveCount.get();
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes.get();
+    }
+
+    /**
+     * @return The average write throughput over all saves, in bytes per second
+     */
+    public double getBytesPerSecond() {
+        long nanos = mTotalNanos.get();
+        return nanos == 0 ? 0 : mTotalBytes.get() * 1e9 / nanos;
+    }
+
+    /**
+     * @return The average latency of a single save, in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        long count = mSaveCount.get();
+        return count == 0 ? 0 : mTotalNanos.get() / 1e6 / count;
+    }
+
+    public double getLastLatencyMillis() {
+        return mLastNanos.get() / 1e6;
+    }
+
+    public double getMaxLatencyMillis() {
+        return mMaxNanos.get() / 1e6;
+    }
+
+    public long getSyncCount() {
+        return mSyncCount.get();
+    }
+
+    public long getSyncedFiles() {
+        return mSyncedFiles.get();
+    }
+
+    /**
+     * @return The total time spent syncing, in milliseconds
+     */
+    public double getTotalSyncMillis() {
+        return mSyncNanos.get() / 1e6;
+    }
+
+    /**
+     * @return The sync time per saved file, in milliseconds; the cost of the durability policy
+     */
+    public double getSyncMillisPerSave() {
+        long count = mSaveCount.get();
+        return count == 0 ? 0 : mSyncNanos.get() / 1e6 / count;
+    }
+
+    public void reset() {
+        mSaveCount.set(0);
+        mTotalBytes.set(0);
+        mTotalNanos.set(0);
+        mLastNanos.set(0);
+        mMaxNanos.set(0);
+        mSyncCount.set(0);
+        mSyncedFiles.set(0);
+        mSyncNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("saves=%d bytes=%d avg=%.2fms last=%.2fms max=%.2fms rate=%.2fMB/s"
+                        + " syncs=%d synced=%d sync/save=%.2fms",
+                getSaveCount(), getTotalBytes(), getAverageLatencyMillis(),
+                getLastLatencyMillis(), getMaxLatencyMillis(), getBytesPerSecond() / (1024 * 1024),
+                getSyncCount(), getSyncedFiles(), getSyncMillisPerSave());
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Answers output size queries for one camera from tables built once from its
+ * {@link CameraCapabilities}.
+ *
+ * <p>Every size table is split by exact aspect ratio: each size is reduced by the greatest common
+ * divisor of its width and height, so 1920x1080 and 4000x2250 are both 16:9 and 1440x1080 is 4:3
+ * without any floating point comparison. Each ratio group is sorted by area, and within a group
+ * width, height and area grow together, so a query is a binary search over a handful of entries
+ * and allocates nothing.</p>
+ *
+ * <p>Results are packed as {@code (long) width << 32 | height}; use {@link #width(long)} and
+ * {@link #height(long)} to unpack them. {@link #NONE} means no size matched.</p>
+ */
+public final class SizeSelector {
+
+    /**
+     * Returned when no size matches a query.
+     */
+    public static final long NONE = 0;
+
+    /**
+     * Per table: the reduced ratios present, sorted, and for each the packed sizes sorted by area.
+     */
+    private final long[][] mRatios = new long[CameraCapabilities.TABLE_COUNT][];
+    private final long[][][] mGroups = new long[CameraCapabilities.TABLE_COUNT][][];
+    private final long[] mLargest = new long[CameraCapabilities.TABLE_COUNT];
+
+    public SizeSelector(CameraCapabilities capabilities) {
+        for (int table = 0; table < CameraCapabilities.TABLE_COUNT; table++) {
+            build(table, capabilities.getSizes(table));
+        }
+    }
+
+    public static long pack(int width, int height) {
+        return (long) width << 32 | (height & 0xFFFFFFFFL);
+    }
+
+    public static int width(long size) {
+        return (int) (size >>> 32);
+    }
+
+    public static int height(long size) {
+        return (int) size;
+    }
+
+    /**
+     * @return The aspect ratio of {@code width}:{@code height} in lowest terms, packed like a size
+     */
+    public static long ratio(int width, int height) {
+        int gcd = gcd(width, height);
+        return gcd == 0 ? NONE : pack(width / gcd, height / gcd);
+    }
+
+    /**
+     * @param table One of the {@code CameraCapabilities.TABLE_*} constants
+     * @return The largest size of the table whatever its ratio, or {@link #NONE}
+     */
+    public long largest(int table) {
+        return mLargest[table];
+    }
+
+    /**
+     * @return The largest size with the given ratio, or {@link #NONE}
+     */
+    public long largest(int table, int ratioWidth, int ratioHeight) {
+        long[] group = group(table, ratioWidth, ratioHeight);
+        return null == group ? NONE : group[group.length - 1];
+    }
+
+    /**
+     * For example "the largest 4:3 JPEG of at most 12 MP".
+     *
+     * @return The largest size with the given ratio and at most {@code maxPixels} pixels, or
+     * {@link #NONE}
+     */
+    public long largestAtMostPixels(int table, int ratioWidth, int ratioHeight, long maxPixels) {
+        long[] group = group(table, ratioWidth, ratioHeight);
+        if (null == group) {
+            return NONE;
+        }
+        // Index of the first size above the limit.
+        int low = 0;
+        int high = group.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (area(group[mid]) <= maxPixels) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low == 0 ? NONE : group[low - 1];
+    }
+
+    /**
+     * @return The largest size with the given ratio that fits in {@code maxWidth} x
+     * {@code maxHeight}, or {@link #NONE}
+     */
+    public long largestWithin(int table, int ratioWidth, int ratioHeight, int maxWidth,
+                              int maxHeight) {
+        long[] group = group(table, ratioWidth, ratioHeight);
+        if (null == group) {
+            return NONE;
+        }
+        int fitting = countWithin(group, maxWidth, maxHeight);
+        return fitting == 0 ? NONE : group[fitting - 1];
+    }
+
+    /**
+     * For example "the smallest preview at least as large as the view".
+     *
+     * @return The smallest size with the given ratio that is at least {@code minWidth} x
+     * {@code minHeight}, or {@link #NONE}
+     */
+    public long smallestAtLeast(int table, int ratioWidth, int ratioHeight, int minWidth,
+                                int minHeight) {
+        long[] group = group(table, ratioWidth, ratioHeight);
+        if (null == group) {
+            return NONE;
+        }
+        int index = firstAtLeast(group, minWidth, minHeight);
+        return index == group.length ? NONE : group[index];
+    }
+
+    /**
+     * Picks the smallest size with the given ratio that is at least {@code minWidth} x
+     * {@code minHeight} and at most {@code maxWidth} x {@code maxHeight}. If none is large
+     * enough, the largest one within the bounds is returned instead.
+     *
+     * @return The size, or {@link #NONE} if no size of that ratio fits the bounds
+     */
+    public long chooseOptimal(int table, int ratioWidth, int ratioHeight, int minWidth,
+                              int minHeight, int maxWidth, int maxHeight) {
+        long[] group = group(table, ratioWidth, ratioHeight);
+        if (null == group) {
+            return NONE;
+        }
+        int fitting = countWithin(group, maxWidth, maxHeight);
+        if (fitting == 0) {
+            return NONE;
+        }
+        int index = firstAtLeast(group, minWidth, minHeight);
+        return index < fitting ? group[index] : group[fitting - 1];
+    }
+
+    /**
+     * @return The number of distinct aspect ratios in {@code table}
+     */
+    public int getRatioCount(int table) {
+        return mRatios[table].length;
+    }
+
+    /**
+     * @return The {@code index}th ratio of {@code table} in lowest terms, packed like a size
+     */
+    public long getRatio(int table, int index) {
+        return mRatios[table][index];
+    }
+
+    private long[] group(int table, int ratioWidth, int ratioHeight) {
+        int index = Arrays.binarySearch(mRatios[table], ratio(ratioWidth, ratioHeight));
+        return index < 0 ? null : mGroups[table][index];
+    }
+
+    /**
+     * @return The number of leading sizes of {@code group} that fit the bounds
+     */
+    private static int countWithin(long[] group, int maxWidth, int maxHeight) {
+        int low = 0;
+        int high = group.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (width(group[mid]) <= maxWidth && height(group[mid]) <= maxHeight) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The index of the first size of {@code group} covering the bounds, or its length
+     */
+    private static int firstAtLeast(long[] group, int minWidth, int minHeight) {
+        int low = 0;
+        int high = group.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (width(group[mid]) >= minWidth && height(group[mid]) >= minHeight) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private void build(int table, int[] sizes) {
+        int count = sizes.length / 2;
+        // Sort by ratio, then by area, so each ratio group is a contiguous ascending run.
+        long[] ratios = new long[count];
+        long[] packed = new long[count];
+        Integer[] order = new Integer[count];
+        long largest = NONE;
+        for (int i = 0; i < count; i++) {
+            packed[i] = pack(sizes[2 * i], sizes[2 * i + 1]);
+            ratios[i] = ratio(sizes[2 * i], sizes[2 * i + 1]);
+            order[i] = i;
+            if (largest == NONE || area(packed[i]) > area(largest)) {
+                largest = packed[i];
+            }
+        }
+        final long[] ratioKeys = ratios;
+        final long[] sizeKeys = packed;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (ratioKeys[a] != ratioKeys[b]) {
+                    return ratioKeys[a] < ratioKeys[b] ? -1 : 1;
+                }
+                long areaA = area(sizeKeys[a]);
+                long areaB = area(sizeKeys[b]);
+                return areaA < areaB ? -1 : (areaA == areaB ? 0 : 1);
+            }
+        });
+        int groups = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || ratios[order[i]] != ratios[order[i - 1]]) {
+                groups++;
+            }
+        }
+        mRatios[table] = new long[groups];
+        mGroups[table] = new long[groups][];
+        int group = -1;
+        int start = 0;
+        for (int i = 0; i <= count; i++) {
+            if (i == count || i == 0 || ratios[order[i]] != ratios[order[i - 1]]) {
+                if (group >= 0) {
+                    long[] members = new long[i - start];
+                    for (int j = start; j < i; j++) {
+                        members[j - start] = packed[order[j]];
+                    }
+                    mGroups[table][group] = members;
+                }
+                if (i < count) {
+                    group++;
+                    mRatios[table][group] = ratios[order[i]];
+                    start = i;
+                }
+            }
+        }
+        mLargest[table] = largest;
+    }
+
+    private static long area(long size) {
+        return (long) width(size) * height(size);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the stages of a camera startup as soon as the stages they depend on are complete, each on
+ * its own {@link Executor}, so independent stages such as the device open and the capability
+ * lookup overlap instead of running one after the other on the UI thread.
+ *
+ * <p>A stage either completes when its work returns, or, for work that only starts something
+ * asynchronous such as opening the camera, when {@link #complete(int)} is called. Stages without
+ * work are signals completed from outside, such as the surface becoming available. The time each
+ * stage waited and ran is recorded in the {@code <prefix>.<name>} histogram of
+ * {@link MetricsRegistry}.</p>
+ *
+ * <p>Once {@link #cancel()} is called no more work is started and completions are ignored. A stage
+ * that fails, because its work threw or {@link #fail(int, Throwable)} was called, cancels the
+ * startup the same way, so the stages depending on it never start, and tells the listener.</p>
+ */
+public class StartupScheduler {
+
+    private static final String TAG = "StartupScheduler";
+
+    /**
+     * Receives the end of a startup.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the thread that completed the last stage.
+         *
+         * @param summary The start offset and duration of each stage
+         */
+        void onStartupFinished(String summary);
+
+        /**
+         * Called on the thread that failed the stage. No further stage is started.
+         *
+         * @param stage The name of the stage that failed
+         * @param cause Why it failed
+         */
+        void onStartupFailed(String stage, Throwable cause);
+    }
+
+    private static final int STATE_WAITING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE = 2;
+
+    private static final class Stage {
+
+        private final int mId;
+        private final String mName;
+        private final Executor mExecutor;
+        private final Runnable mWork;
+        private final boolean mAsync;
+        private final int[] mDependencies;
+        private final MetricsRegistry.Histogram mMetric;
+        private int mState = STATE_WAITING;
+        private long mStartNanos;
+        private long mEndNanos;
+
+        Stage(int id, String name, Executor executor, Runnable work, boolean async,
+              int[] dependencies, String metricPrefix) {
+            mId = id;
+            mName = name;
+            mExecutor = executor;
+            mWork = work;
+            mAsync = async;
+            mDependencies = dependencies;
+            mMetric = MetricsRegistry.get().histogram(metricPrefix + "." + name);
+        }
+    }
+
+    private final List<Stage> mStages = new ArrayList<>();
+    private final String mMetricPrefix;
+    private final Listener mListener;
+    private long mStartNanos;
+    private boolean mStarted;
+    private boolean mCancelled;
+    private boolean mFailed;
+    private int mRemaining;
+
+    /**
+     * @param metricPrefix Prefix of the stage histograms, such as {@code "startup.cold"}
+     * @param listener     Told when every stage is complete, or null
+     */
+    public StartupScheduler(String metricPrefix, Listener listener) {
+        mMetricPrefix = metricPrefix;
+        mListener = listener;
+    }
+
+    /**
+     * Adds a stage that completes when {@code work} returns.
+     *
+     * @param dependencies Stages that must be complete before {@code work} is started
+     * @return The id of the stage
+     */
+    public synchronized int addStage(String name, Executor executor, Runnable work,
+                                     int... dependencies) {
+        return add(new Stage(mStages.size(), name, executor, work, false, dependencies, mMetricPrefix));
+    }
+
+    /**
+     * Adds a stage whose {@code work} starts something that calls {@link #complete(int)} when it
+     * is done.
+     */
+    public synchronized int addAsyncStage(String name, Executor executor, Runnable work,
+                                          int... dependencies) {
+        return add(new Stage(mStages.size(), name, executor, work, true, dependencies, mMetricPrefix));
+    }
+
+    /**
+     * Adds a stage without work, completed by {@link #complete(int)} once its dependencies are.
+     * A signal completed before its dependencies completes right after them.
+     */
+    public synchronized int addSignal(String name, int... dependencies) {
+        return add(new Stage(mStages.size(), name, null, null, true, dependencies, mMetricPrefix));
+    }
+
+    private int add(Stage stage) {
+        if (mStarted) {
+            throw new IllegalStateException("Stages must be added before start()");
+        }
+        for (int dependency : stage.mDependencies) {
+            if (dependency < 0 || dependency >= mStages.size()) {
+                throw new IllegalArgumentException("Unknown stage " + dependency);
+            }
+        }
+        mStages.add(stage);
+        return mStages.size() - 1;
+    }
+
+    /**
+     * Starts every stage without dependencies.
+     */
+    public void start() {
+        List<Stage> ready;
+        synchronized (this) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+            mStartNanos = System.nanoTime();
+            mRemaining = mStages.size();
+            ready = collectReady();
+        }
+        dispatch(ready);
+    }
+
+    /**
+     * Marks a signal or asynchronous stage complete and starts the stages that were waiting for
+     * it. Ignored if the stage is already complete or the startup was cancelled.
+     */
+    public void complete(int stageId) {
+        List<Stage> ready;
+        String summary = null;
+        synchronized (this) {
+            Stage stage = mStages.get(stageId);
+            if (mCancelled || stage.mState == STATE_DONE) {
+                return;
+            }
+            if (stage.mState == STATE_WAITING) {
+                if (null != stage.mWork) {
+                    // Work that has not been started cannot be complete.
+                    return;
+                }
+                if (!mStarted || !dependenciesDone(stage)) {
+                    // Marks it so the signal completes as soon as its dependencies are.
+                    stage.mStartNanos = -1;
+                    return;
+                }
+                stage.mStartNanos = System.nanoTime();
+            }
+            finish(stage);
+            ready = collectReady();
+            if (mRemaining == 0) {
+                summary = summarize();
+            }
+        }
+        dispatch(ready);
+        if (null != summary && null != mListener) {
+            mListener.onStartupFinished(summary);
+        }
+    }
+
+    /**
+     * Fails a stage that has not completed, which cancels the startup and tells the listener.
+     * Ignored if the stage is already complete or the startup was cancelled.
+     */
+    public void fail(int stageId, Throwable cause) {
+        Stage stage;
+        synchronized (this) {
+            stage = mStages.get(stageId);
+            if (mCancelled || stage.mState == STATE_DONE) {
+                return;
+            }
+            mCancelled = true;
+            mFailed = true;
+        }
+        if (null != mListener) {
+            mListener.onStartupFailed(stage.mName, cause);
+        }
+    }
+
+    /**
+     * Stops starting stages and ignores completions from now on. Work already started runs to its
+     * end.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return Whether a stage failed, see {@link #fail(int, Throwable)}
+     */
+    public synchronized boolean isFailed() {
+        return mFailed;
+    }
+
+    public synchronized boolean isComplete(int stageId) {
+        return mStages.get(stageId).mState == STATE_DONE;
+    }
+
+    /**
+     * @return The time from {@link #start()} to the completion of {@code stageId}, in
+     * nanoseconds, or -1 if it is not complete
+     */
+    public synchronized long getCompletionNanos(int stageId) {
+        Stage stage = mStages.get(stageId);
+        return stage.mState == STATE_DONE ? stage.mEndNanos - mStartNanos : -1;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void finish(Stage stage) {
+        stage.mEndNanos = System.nanoTime();
+        stage.mState = STATE_DONE;
+        stage.mMetric.record(stage.mEndNanos - stage.mStartNanos);
+        mRemaining--;
+    }
+
+    /**
+     * Must be called with the lock held.
+     *
+     * @return The stages with work that can start, marked running. Signals that were completed
+     * early are completed here.
+     */
+    private List<Stage> collectReady() {
+        List<Stage> ready = new ArrayList<>();
+        if (mCancelled) {
+            return ready;
+        }
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Stage stage : mStages) {
+                if (stage.mState != STATE_WAITING || !dependenciesDone(stage)) {
+                    continue;
+                }
+                if (null != stage.mWork) {
+                    stage.mState = STATE_RUNNING;
+                    stage.mStartNanos = System.nanoTime();
+                    ready.add(stage);
+                } else if (stage.mStartNanos == -1) {
+                    stage.mStartNanos = System.nanoTime();
+                    finish(stage);
+                    progress = true;
+                } else {
+                    // Waits for complete(), timed from now.
+                    stage.mState = STATE_RUNNING;
+                    stage.mStartNanos = System.nanoTime();
+                }
+            }
+        }
+        return ready;
+    }
+
+    private boolean dependenciesDone(Stage stage) {
+        for (int dependency : stage.mDependencies) {
+            if (mStages.get(dependency).mState != STATE_DONE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void dispatch(List<Stage> ready) {
+        for (final Stage stage : ready) {
+            try {
+                execute(stage);
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "Stage " + stage.mName + " was rejected", e);
+                fail(stage.mId, e);
+            }
+        }
+    }
+
+    private void execute(final Stage stage) {
+        stage.mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    stage.mWork.run();
+                } catch (RuntimeException e) {
+                    // Reported to the listener. Rethrowing would crash the thread of the
+                    // executor, which is the main thread for Handler executors.
+                    Log.e(TAG, "Stage " + stage.mName + " failed", e);
+                    fail(stage.mId, e);
+                    return;
+                }
+                if (!stage.mAsync) {
+                    complete(stage.mId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private String summarize() {
+        StringBuilder summary = new StringBuilder();
+        for (Stage stage : mStages) {
+            if (summary.length() > 0) {
+                summary.append(", ");
+            }
+            summary.append(stage.mName).append(' ')
+                    .append((stage.mStartNanos - mStartNanos) / 1000000).append('+')
+                    .append((stage.mEndNanos - stage.mStartNanos) / 1000000).append("ms");
+        }
+        return summary.toString();
+    }
+}
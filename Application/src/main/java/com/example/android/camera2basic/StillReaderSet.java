@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.ImageFormat;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Size;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The JPEG {@link ImageReader}s of one camera, one per still size, each with its
+ * {@link ImageBufferPool}.
+ *
+ * <p>Readers are created ahead of time for every size the user can switch to, so changing the
+ * aspect ratio only needs a new capture session. A reader allocates its buffers when the camera
+ * first fills them, so a prepared reader that is never used costs next to nothing.</p>
+ */
+class StillReaderSet {
+
+    /**
+     * A reader and the pool tracking its buffers.
+     */
+    static final class Entry {
+
+        private final Size mSize;
+        private final ImageReader mReader;
+        private final ImageBufferPool mPool;
+
+        Entry(Size size, ImageReader reader, ImageBufferPool pool) {
+            mSize = size;
+            mReader = reader;
+            mPool = pool;
+        }
+
+        Size getSize() {
+            return mSize;
+        }
+
+        ImageReader getReader() {
+            return mReader;
+        }
+
+        ImageBufferPool getPool() {
+            return mPool;
+        }
+    }
+
+    private final List<Entry> mEntries = new CopyOnWriteArrayList<>();
+    private final ImageReader.OnImageAvailableListener mListener;
+    private final Handler mHandler;
+    private final long mAvailableBytes;
+    private final int mOverflowPolicy;
+    private final PersistenceExecutor mExecutor;
+    private final PersistenceExecutor mSpillExecutor;
+
+    /**
+     * @param listener       Receives the images of every reader
+     * @param handler        The handler {@code listener} is called on
+     * @param availableBytes The memory available to the app, see
+     *                       {@link ImageBufferPool#chooseMaxImages}
+     * @param spillExecutor  Where {@link ImageBufferPool#POLICY_SPILL_TO_DISK} writes, or null
+     */
+    StillReaderSet(ImageReader.OnImageAvailableListener listener, Handler handler,
+                   long availableBytes, int overflowPolicy, PersistenceExecutor executor,
+                   PersistenceExecutor spillExecutor) {
+        mListener = listener;
+        mHandler = handler;
+        mAvailableBytes = availableBytes;
+        mOverflowPolicy = overflowPolicy;
+        mExecutor = executor;
+        mSpillExecutor = spillExecutor;
+    }
+
+    /**
+     * Creates the readers of {@code sizes} that do not exist yet.
+     */
+    void prepare(List<Size> sizes) {
+        for (Size size : sizes) {
+            get(size);
+        }
+    }
+
+    /**
+     * @return The entry of {@code size}, created if needed
+     */
+    Entry get(Size size) {
+        for (Entry entry : mEntries) {
+            if (entry.mSize.equals(size)) {
+                return entry;
+            }
+        }
+        int maxImages = ImageBufferPool.chooseMaxImages(mAvailableBytes, size.getWidth(),
+                size.getHeight(), ImageBufferPool.MODE_BURST, mExecutor);
+        ImageReader reader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.JPEG, maxImages);
+        reader.setOnImageAvailableListener(mListener, mHandler);
+        Entry entry = new Entry(size, reader,
+                new ImageBufferPool(maxImages, mOverflowPolicy, mExecutor, mSpillExecutor));
+        mEntries.add(entry);
+        return entry;
+    }
+
+    /**
+     * @return The pool of {@code reader}, or null if it is not one of this set
+     */
+    ImageBufferPool getPool(ImageReader reader) {
+        for (Entry entry : mEntries) {
+            if (entry.mReader == reader) {
+                return entry.mPool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes every reader, each once the images it handed out are closed, as pending saves still
+     * read their buffers.
+     */
+    void close() {
+        for (final Entry entry : mEntries) {
+            entry.mPool.runWhenReleased(new Runnable() {
+                @Override
+                public void run() {
+                    entry.mReader.close();
+                }
+            });
+        }
+        mEntries.clear();
+    }
+}
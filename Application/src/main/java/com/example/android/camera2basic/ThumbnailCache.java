@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Thumbnails of saved pictures and of the filter buttons, kept on two levels: a size-bounded LRU
+ * of decoded bitmaps in memory, and for each picture directory a {@link ThumbnailStore} in a
+ * hidden {@link #DIRECTORY_NAME} directory next to the pictures.
+ *
+ * <p>The thumbnail of the latest saved picture is made by {@link #put(File)} right after it is
+ * saved, so a later load is a memory lookup, or a read and decode of a few kilobytes. Pictures
+ * saved in between, such as burst frames, get theirs from {@link #load(File)} when first shown.
+ * Resource thumbnails are only kept in memory, as they can always be decoded again from the
+ * APK.</p>
+ */
+final class ThumbnailCache {
+
+    private static final String TAG = "ThumbnailCache";
+
+    /**
+     * Directory next to the pictures holding their thumbnails. Gallery apps skip it thanks to
+     * its {@code .nomedia} file.
+     */
+    static final String DIRECTORY_NAME = ".thumbnails";
+
+    private static final String PACK_NAME = "thumbnails.pack";
+
+    private static final int JPEG_QUALITY = 85;
+
+    /**
+     * Upper bound of the memory level, in bytes of bitmap data.
+     */
+    private static final int MAX_MEMORY_BYTES = 8 * 1024 * 1024;
+
+    private static ThumbnailCache sInstance;
+
+    private final LruCache<String, Bitmap> mMemory;
+
+    /*
+     * Guarded by this.
+     */
+    private final Map<File, ThumbnailStore> mStores = new HashMap<>();
+
+    private final MetricsRegistry.Counter mDiskHits =
+            MetricsRegistry.get().counter("thumbnails.diskHits");
+    private final MetricsRegistry.Counter mDiskMisses =
+            MetricsRegistry.get().counter("thumbnails.diskMisses");
+    private final MetricsRegistry.Counter mGenerated =
+            MetricsRegistry.get().counter("thumbnails.generated");
+    private final MetricsRegistry.Histogram mLoadMetric =
+            MetricsRegistry.get().histogram("thumbnails.load");
+
+    public static synchronized ThumbnailCache get() {
+        if (null == sInstance) {
+            int maxBytes = (int) Math.min(MAX_MEMORY_BYTES, Runtime.getRuntime().maxMemory() / 32);
+            sInstance = new ThumbnailCache(maxBytes);
+        }
+        return sInstance;
+    }
+
+    private ThumbnailCache(int maxBytes) {
+        mMemory = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * @return The cached thumbnail of {@code file}, or null if neither level has it
+     */
+    public Bitmap get(File file) {
+        long start = System.nanoTime();
+        String key = file.getAbsolutePath();
+        Bitmap bitmap = mMemory.get(key);
+        if (null != bitmap) {
+            mLoadMetric.recordSince(start);
+            return bitmap;
+        }
+        ThumbnailStore store = getStore(file.getParentFile());
+        byte[] data = null;
+        if (null != store) {
+            try {
+                data = store.get(file.getName());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (null != data) {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        }
+        if (null == bitmap) {
+            mDiskMisses.increment();
+            return null;
+        }
+        mDiskHits.increment();
+        mMemory.put(key, bitmap);
+        mLoadMetric.recordSince(start);
+        return bitmap;
+    }
+
+    /**
+     * Like {@link #get(File)}, but makes and stores the thumbnail if neither level has it. Call
+     * this off the main thread.
+     *
+     * @return The thumbnail, or null if {@code file} could not be decoded
+     */
+    public Bitmap load(File file) {
+        Bitmap bitmap = get(file);
+        return null != bitmap ? bitmap : put(file);
+    }
+
+    /**
+     * Makes the thumbnail of a picture that was just saved and stores it on both levels,
+     * replacing any earlier one. Call this off the main thread.
+     *
+     * @return The thumbnail, or null if {@code file} could not be decoded
+     */
+    public Bitmap put(File file) {
+        Bitmap bitmap = ThumbnailDecoder.decode(file);
+        if (null == bitmap) {
+            return null;
+        }
+        mGenerated.increment();
+        mMemory.put(file.getAbsolutePath(), bitmap);
+        ThumbnailStore store = getStore(file.getParentFile());
+        if (null != store) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(16 * 1024);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output);
+            try {
+                store.put(file.getName(), output.toByteArray());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Drops the thumbnail of a picture that was deleted from both levels.
+     */
+    public void remove(File file) {
+        mMemory.remove(file.getAbsolutePath());
+        ThumbnailStore store = getStore(file.getParentFile());
+        if (null != store) {
+            try {
+                store.remove(file.getName());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return The thumbnail of the drawable {@code id}, decoded on first use
+     */
+    public Bitmap getResource(Resources resources, int id) {
+        long start = System.nanoTime();
+        String key = "res:" + id;
+        Bitmap bitmap = mMemory.get(key);
+        if (null == bitmap) {
+            bitmap = ThumbnailDecoder.decodeResource(resources, id);
+            if (null == bitmap) {
+                return null;
+            }
+            mGenerated.increment();
+            mMemory.put(key, bitmap);
+        }
+        mLoadMetric.recordSince(start);
+        return bitmap;
+    }
+
+    /**
+     * @return The disk level for the pictures in {@code directory}, opened on first use, or null
+     * if it cannot be opened
+     */
+    public synchronized ThumbnailStore getStore(File directory) {
+        ThumbnailStore store = mStores.get(directory);
+        if (null != store || mStores.containsKey(directory)) {
+            return store;
+        }
+        File thumbnails = new File(directory, DIRECTORY_NAME);
+        try {
+            if (!thumbnails.isDirectory() && !thumbnails.mkdirs()) {
+                throw new IOException("Cannot create " + thumbnails);
+            }
+            File noMedia = new File(thumbnails, ".nomedia");
+            if (!noMedia.exists()) {
+                noMedia.createNewFile();
+            }
+            long start = System.nanoTime();
+            store = new ThumbnailStore(new File(thumbnails, PACK_NAME));
+            Log.d(TAG, "Opened " + store + " in " + (System.nanoTime() - start) / 1000000
+                    + "ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // A directory that failed stays null, so it is not retried on every load.
+        mStores.put(directory, store);
+        return store;
+    }
+
+    /**
+     * Drops every bitmap of the memory level.
+     */
+    public void trimMemory() {
+        mMemory.evictAll();
+    }
+
+    public int getMemoryHitCount() {
+        return mMemory.hitCount();
+    }
+
+    public int getMemoryMissCount() {
+        return mMemory.missCount();
+    }
+
+    /**
+     * @return The number of bitmaps dropped from the memory level to stay within its size
+     */
+    public int getEvictionCount() {
+        return mMemory.evictionCount();
+    }
+
+    public long getDiskHitCount() {
+        return mDiskHits.get();
+    }
+
+    public long getDiskMissCount() {
+        return mDiskMisses.get();
+    }
+
+    /**
+     * @return The share of lookups answered by either level, from 0 to 1
+     */
+    public double getHitRate() {
+        long hits = mMemory.hitCount() + mDiskHits.get();
+        long lookups = mMemory.hitCount() + mMemory.missCount();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("memory=%d/%dKB hits=%d misses=%d evictions=%d"
+                        + " diskHits=%d diskMisses=%d generated=%d hitRate=%.1f%%",
+                mMemory.size() / 1024, mMemory.maxSize() / 1024, mMemory.hitCount(),
+                mMemory.missCount(), mMemory.evictionCount(), mDiskHits.get(),
+                mDiskMisses.get(), mGenerated.get(), getHitRate() * 100);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Makes the small, upright version of a saved JPEG shown on the recent image button.
+ *
+ * <p>The thumbnail the camera embeds in the EXIF data is used when there is one, so usually only
+ * a few kilobytes are decoded. Otherwise the file is decoded at a reduced sample size. Call this
+ * off the main thread, right after the file is written while it is still in the page cache.</p>
+ */
+final class ThumbnailDecoder {
+
+    private static final String TAG = "ThumbnailDecoder";
+
+    /**
+     * Longest side of a thumbnail, in pixels.
+     */
+    static final int MAX_SIZE = 192;
+
+    private static final MetricsRegistry.Histogram sDecodeMetric =
+            MetricsRegistry.get().histogram("save.thumbnailLatency");
+
+    private ThumbnailDecoder() {
+    }
+
+    /**
+     * @return The thumbnail of {@code file}, or null if it could not be decoded
+     */
+    static Bitmap decode(File file) {
+        long start = System.nanoTime();
+        String path = file.getAbsolutePath();
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+        Bitmap bitmap = null;
+        try {
+            ExifInterface exif = new ExifInterface(path);
+            orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+            byte[] embedded = exif.getThumbnail();
+            if (null != embedded) {
+                bitmap = BitmapFactory.decodeByteArray(embedded, 0, embedded.length);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (null == bitmap) {
+            bitmap = decodeSampled(path);
+        }
+        if (null == bitmap) {
+            Log.w(TAG, "Cannot decode " + file);
+            return null;
+        }
+        Bitmap thumbnail = scaleAndRotate(bitmap, orientation);
+        sDecodeMetric.recordSince(start);
+        return thumbnail;
+    }
+
+    /**
+     * @return The thumbnail of the drawable {@code id}, or null if it could not be decoded
+     */
+    static Bitmap decodeResource(Resources resources, int id) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(resources, id, options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        // Sized for the thumbnail, not scaled again for the screen density.
+        options.inScaled = false;
+        Bitmap bitmap = BitmapFactory.decodeResource(resources, id, options);
+        return null == bitmap ? null : scaleAndRotate(bitmap, ExifInterface.ORIENTATION_NORMAL);
+    }
+
+    /**
+     * Decodes the file at the largest power of two sample size that keeps it at least
+     * {@link #MAX_SIZE} pixels on its longest side.
+     */
+    private static Bitmap decodeSampled(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    private static int sampleSize(int width, int height) {
+        int longest = Math.max(width, height);
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= MAX_SIZE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static Bitmap scaleAndRotate(Bitmap bitmap, int orientation) {
+        Matrix matrix = new Matrix();
+        float scale = Math.min(1f,
+                (float) MAX_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        matrix.setScale(scale, scale);
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+        }
+        if (matrix.isIdentity()) {
+            return bitmap;
+        }
+        Bitmap result = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                bitmap.getHeight(), matrix, true);
+        if (result != bitmap) {
+            bitmap.recycle();
+        }
+        return result;
+    }
+}
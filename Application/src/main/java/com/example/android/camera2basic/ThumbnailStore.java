@@ -0,0 +1,418 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The disk level of the {@link ThumbnailCache}: encoded thumbnails appended to a single pack
+ * file, with an in-memory index from key to offset.
+ *
+ * <p>Each entry is a marker, the key, the length of the data and the data, written with a single
+ * write. Entries are never rewritten; storing a key again appends a new entry that shadows the
+ * old one, and {@link #remove(String)} appends a tombstone. Both are counted in
+ * {@link #getGarbageBytes()}, and once the garbage outweighs the live entries the pack is
+ * compacted: the live entries are copied into a new pack that replaces the old one. When the
+ * pack is opened the entries are scanned to rebuild the index, reading only their headers, and a
+ * trailing entry cut short by a crash is truncated away. A thumbnail is read back with one seek
+ * and one read, by key or by the offset returned by {@link #put(String, byte[])}, which stays
+ * valid until the next compaction.</p>
+ */
+public final class ThumbnailStore {
+
+    private static final int FILE_MAGIC = 0x54484d42; // "THMB"
+    private static final int FORMAT_VERSION = 1;
+    private static final int ENTRY_MARKER = 0x7448;
+    private static final int TOMBSTONE_MARKER = 0x7458;
+    private static final int HEADER_BYTES = 8;
+
+    /**
+     * Upper bound on the data of one entry, so a damaged length is not taken for a huge entry.
+     */
+    private static final int MAX_DATA_BYTES = 1024 * 1024;
+
+    /**
+     * Garbage below which the pack is never compacted, so a small pack is not rewritten for
+     * every few replaced thumbnails.
+     */
+    private static final long MIN_COMPACT_GARBAGE_BYTES = 256 * 1024;
+
+    private final File mFile;
+    private RandomAccessFile mPack;
+    private final Map<String, Long> mOffsets = new HashMap<>();
+    private final Map<Long, Long> mEntryBytes = new HashMap<>();
+    private long mGarbageBytes;
+
+    /**
+     * Opens the pack, creating it if needed, and indexes its entries.
+     */
+    public ThumbnailStore(File file) throws IOException {
+        mFile = file;
+        mPack = new RandomAccessFile(file, "rw");
+        try {
+            if (mPack.length() < HEADER_BYTES) {
+                mPack.setLength(0);
+                mPack.writeInt(FILE_MAGIC);
+                mPack.writeInt(FORMAT_VERSION);
+            } else if (mPack.readInt() != FILE_MAGIC || mPack.readInt() != FORMAT_VERSION) {
+                // Thumbnails can always be made again; start over.
+                mPack.setLength(0);
+                mPack.writeInt(FILE_MAGIC);
+                mPack.writeInt(FORMAT_VERSION);
+            } else {
+                scan();
+            }
+        } catch (IOException e) {
+            mPack.close();
+            throw e;
+        }
+    }
+
+    private void scan() throws IOException {
+        long length = mPack.length();
+        long offset = HEADER_BYTES;
+        // A small buffer: one read per header, and skip() seeks over the data.
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile), 512));
+        try {
+            input.skipBytes(HEADER_BYTES);
+            offset = readEntries(input, offset, length);
+        } finally {
+            input.close();
+        }
+        if (offset < length) {
+            mPack.setLength(offset);
+        }
+    }
+
+    /**
+     * Indexes the entries and tombstones from {@code offset} on.
+     *
+     * @return The end of the last complete entry
+     */
+    private long readEntries(DataInputStream input, long offset, long length) {
+        while (offset < length) {
+            long end;
+            String key;
+            boolean tombstone;
+            try {
+                int marker = input.readShort();
+                if (marker != ENTRY_MARKER && marker != TOMBSTONE_MARKER) {
+                    break;
+                }
+                tombstone = marker == TOMBSTONE_MARKER;
+                key = input.readUTF();
+                if (tombstone) {
+                    end = offset + 2 + utfBytes(key);
+                    if (end > length) {
+                        break;
+                    }
+                } else {
+                    int dataLength = input.readInt();
+                    if (dataLength < 0 || dataLength > MAX_DATA_BYTES) {
+                        break;
+                    }
+                    end = offset + 2 + utfBytes(key) + 4 + dataLength;
+                    if (end > length) {
+                        break;
+                    }
+                    skipFully(input, dataLength);
+                }
+            } catch (IOException e) {
+                // EOFException: the header itself was cut short.
+                break;
+            }
+            if (tombstone) {
+                forget(key);
+                mGarbageBytes += end - offset;
+            } else {
+                index(key, offset, end - offset);
+            }
+            offset = end;
+        }
+        return offset;
+    }
+
+    /**
+     * Makes the entry at {@code offset} the one for {@code key}, counting the one it shadows as
+     * garbage.
+     */
+    private void index(String key, long offset, long bytes) {
+        Long previous = mOffsets.put(key, offset);
+        if (null != previous) {
+            mGarbageBytes += mEntryBytes.remove(previous);
+        }
+        mEntryBytes.put(offset, bytes);
+    }
+
+    /**
+     * Drops the entry for {@code key} from the index, counting it as garbage.
+     *
+     * @return Whether there was one
+     */
+    private boolean forget(String key) {
+        Long previous = mOffsets.remove(key);
+        if (null == previous) {
+            return false;
+        }
+        mGarbageBytes += mEntryBytes.remove(previous);
+        return true;
+    }
+
+    private static void skipFully(DataInputStream input, int count) throws IOException {
+        // skip() of a buffered stream stops at the end of the buffer.
+        while (count > 0) {
+            int skipped = input.skipBytes(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * @return The length of {@code key} as written by {@code writeUTF}, length prefix included
+     */
+    private static int utfBytes(String key) {
+        int bytes = 2;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                bytes += 1;
+            } else if (c <= 0x07FF) {
+                bytes += 2;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Appends {@code data} under {@code key}, shadowing any earlier entry for it.
+     *
+     * @return The offset of the new entry, for {@link #readAt(long)}
+     */
+    public synchronized long put(String key, byte[] data) throws IOException {
+        if (data.length > MAX_DATA_BYTES) {
+            throw new IllegalArgumentException("Thumbnail too large: " + data.length + " bytes");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                2 + utfBytes(key) + 4 + data.length);
+        DataOutputStream entry = new DataOutputStream(bytes);
+        entry.writeShort(ENTRY_MARKER);
+        entry.writeUTF(key);
+        entry.writeInt(data.length);
+        entry.write(data);
+        long offset = append(bytes.toByteArray());
+        index(key, offset, bytes.size());
+        if (maybeCompact()) {
+            offset = mOffsets.get(key);
+        }
+        return offset;
+    }
+
+    /**
+     * Drops the thumbnail stored under {@code key}, such as when its picture was deleted.
+     *
+     * @return Whether there was one
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        if (!mOffsets.containsKey(key)) {
+            return false;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 + utfBytes(key));
+        DataOutputStream tombstone = new DataOutputStream(bytes);
+        tombstone.writeShort(TOMBSTONE_MARKER);
+        tombstone.writeUTF(key);
+        append(bytes.toByteArray());
+        forget(key);
+        mGarbageBytes += bytes.size();
+        maybeCompact();
+        return true;
+    }
+
+    /**
+     * Writes {@code record} at the end of the pack with one write, cutting it off again if the
+     * write fails.
+     *
+     * @return The offset it was written at
+     */
+    private long append(byte[] record) throws IOException {
+        long offset = mPack.length();
+        mPack.seek(offset);
+        try {
+            mPack.write(record);
+        } catch (IOException e) {
+            mPack.setLength(offset);
+            throw e;
+        }
+        return offset;
+    }
+
+    /**
+     * Compacts the pack if its garbage is over {@link #MIN_COMPACT_GARBAGE_BYTES} and outweighs
+     * the live entries. A failed compaction leaves the pack as it was.
+     *
+     * @return Whether the pack was compacted, which moves the entries
+     */
+    private boolean maybeCompact() {
+        try {
+            long live = mPack.length() - HEADER_BYTES - mGarbageBytes;
+            if (mGarbageBytes < MIN_COMPACT_GARBAGE_BYTES || mGarbageBytes < live) {
+                return false;
+            }
+            compact();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Copies the live entries, in pack order, into a new pack that then replaces this one, so
+     * the pack holds no garbage. Offsets returned earlier are no longer valid.
+     */
+    public synchronized void compact() throws IOException {
+        List<Long> offsets = new ArrayList<>(mOffsets.values());
+        Collections.sort(offsets);
+        Map<Long, String> keys = new HashMap<>();
+        for (Map.Entry<String, Long> entry : mOffsets.entrySet()) {
+            keys.put(entry.getValue(), entry.getKey());
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        Map<String, Long> newOffsets = new HashMap<>();
+        Map<Long, Long> newEntryBytes = new HashMap<>();
+        RandomAccessFile output = new RandomAccessFile(temp, "rw");
+        try {
+            output.setLength(0);
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            for (long offset : offsets) {
+                byte[] entry = new byte[(int) (long) mEntryBytes.get(offset)];
+                mPack.seek(offset);
+                mPack.readFully(entry);
+                long newOffset = output.getFilePointer();
+                output.write(entry);
+                newOffsets.put(keys.get(offset), newOffset);
+                newEntryBytes.put(newOffset, (long) entry.length);
+            }
+        } catch (IOException e) {
+            output.close();
+            temp.delete();
+            throw e;
+        }
+        output.close();
+        mPack.close();
+        boolean renamed = temp.renameTo(mFile);
+        mPack = new RandomAccessFile(mFile, "rw");
+        if (!renamed) {
+            temp.delete();
+            throw new IOException("Cannot replace " + mFile + " with " + temp);
+        }
+        mOffsets.clear();
+        mOffsets.putAll(newOffsets);
+        mEntryBytes.clear();
+        mEntryBytes.putAll(newEntryBytes);
+        mGarbageBytes = 0;
+    }
+
+    /**
+     * @return The data stored under {@code key}, or null if there is none
+     */
+    public synchronized byte[] get(String key) throws IOException {
+        Long offset = mOffsets.get(key);
+        return null == offset ? null : readAt(offset);
+    }
+
+    /**
+     * @param offset An offset returned by {@link #put(String, byte[])} or {@link #getOffset}
+     * @return The data of the entry at {@code offset}
+     */
+    public synchronized byte[] readAt(long offset) throws IOException {
+        mPack.seek(offset);
+        if (mPack.readShort() != ENTRY_MARKER) {
+            throw new IOException("No thumbnail at offset " + offset + " of " + mFile);
+        }
+        mPack.readUTF();
+        int length = mPack.readInt();
+        if (length < 0 || length > MAX_DATA_BYTES) {
+            throw new IOException("Bad thumbnail length " + length + " at offset " + offset);
+        }
+        byte[] data = new byte[length];
+        mPack.readFully(data);
+        return data;
+    }
+
+    /**
+     * @return The offset of the entry for {@code key}, or -1 if there is none
+     */
+    public synchronized long getOffset(String key) {
+        Long offset = mOffsets.get(key);
+        return null == offset ? -1 : offset;
+    }
+
+    public synchronized boolean contains(String key) {
+        return mOffsets.containsKey(key);
+    }
+
+    /**
+     * @return The number of keys with a thumbnail
+     */
+    public synchronized int getCount() {
+        return mOffsets.size();
+    }
+
+    public synchronized long getFileBytes() throws IOException {
+        return mPack.length();
+    }
+
+    /**
+     * @return The bytes taken by entries shadowed by a later one for the same key or removed,
+     * and by tombstones
+     */
+    public synchronized long getGarbageBytes() {
+        return mGarbageBytes;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized void close() throws IOException {
+        mPack.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mFile.getName() + " count=" + mOffsets.size() + " garbage=" + mGarbageBytes;
+    }
+}
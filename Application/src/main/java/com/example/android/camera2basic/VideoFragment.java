@@ -2,6 +2,7 @@ package com.example.android.camera2basic;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
@@ -16,14 +17,12 @@ import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.MediaRecorder;
@@ -31,7 +30,6 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v13.app.FragmentCompat;
@@ -49,18 +47,14 @@ import android.widget.ImageButton;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 public class VideoFragment extends Fragment
         implements View.OnClickListener, FragmentCompat.OnRequestPermissionsResultCallback {
 
@@ -73,6 +67,11 @@ public class VideoFragment extends Fragment
     private static final int REQUEST_VIDEO_PERMISSIONS = 1;
     private static final String FRAGMENT_DIALOG = "dialog";
 
+    /**
+     * How long to wait for pending saves before the snapshot reader is closed.
+     */
+    private static final long PERSISTENCE_DRAIN_TIMEOUT_MS = 2500;
+
     private static final String[] VIDEO_PERMISSIONS = {
             Manifest.permission.CAMERA,
             Manifest.permission.RECORD_AUDIO,
@@ -162,62 +161,45 @@ public class VideoFragment extends Fragment
     private Size mVideoSize;
     private Size mImageSize;
     private ImageReader mImageReader;
+    private ImageBufferPool mImageBufferPool;
     private final ImageReader.OnImageAvailableListener mOnImageAvailableListener  =
             new ImageReader.OnImageAvailableListener() {
                 @Override
                 public void onImageAvailable(ImageReader imageReader) {
-                    if(mImageFileName != null) {
-                        mBackgroundHandler.post(new ImageSaver(imageReader.acquireNextImage(), mImageFolder));
-                        Log.e("Saukhi chup","Ne");
-                        mImageFileName = null;
+                    Image image = mImageBufferPool.acquire(imageReader);
+                    if (null == image) {
+                        return;
                     }
-
+                    CaptureRegistry.Record record = mCaptureRegistry.claim(image.getTimestamp());
+                    if (null == record) {
+                        Log.w(TAG, "No snapshot registered for frame " + image.getTimestamp());
+                        mImageBufferPool.discard(image);
+                        return;
+                    }
+                    mImageBufferPool.save(image, record.getFile(),
+                            newSnapshotSavedListener(record, image.getWidth(),
+                                    image.getHeight()));
                 }
             };
-    private static class ImageSaver implements Runnable {
-
-        /**
-         * The JPEG image
-         */
-        private final Image mImage;
-        /**
-         * The file we save the image into.
-         */
-        private final File mFile;
-
-        public ImageSaver(Image image, File file) {
-            mImage = image;
-            mFile = file;
-        }
 
-        @Override
-        public void run() {
-            ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-            FileOutputStream output = null;
-            mImage.close();
-            if(mFile != null) {
-                try {
-                    output = new FileOutputStream(mFile);
-                    output.write(bytes);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    mImage.close();
-                    if (null != output) {
-                        try {
-                            output.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
+    /**
+     * @return A listener that records a saved snapshot in the {@link MediaCatalog} of the
+     * gallery, like the pictures of {@link CameraFragment}
+     */
+    private static ImageSaver.OnImageSavedListener newSnapshotSavedListener(
+            final CaptureRegistry.Record record, final int width, final int height) {
+        return new ImageSaver.OnImageSavedListener() {
+
+            @Override
+            public void onImageSaved(File file, long timestamp) {
+                // Faces are not detected while recording.
+                CameraFragment.addToMediaCatalog(file, record.getCaptureTimeMillis(),
+                        record.getCameraId(), record.getEffectMode(), MediaCatalog.UNKNOWN,
+                        width, height);
             }
-        }
 
+        };
     }
-
     /**
      * MediaRecorder
      */
@@ -230,46 +212,57 @@ public class VideoFragment extends Fragment
     private boolean mIsRecordingVideo;
 
     /**
-     * An additional thread for running tasks that shouldn't block the UI.
+     * Owns the camera device and threads, shared with the photo mode.
      */
-    private HandlerThread mBackgroundThread;
+    private CameraSessionManager mSessionManager;
 
     /**
-     * A {@link Handler} for running tasks in the background.
+     * The {@link Handler} capture callbacks run on, from {@link #mSessionManager}.
      */
-    private Handler mBackgroundHandler;
+    private Handler mResultHandler;
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * A {@link PersistenceExecutor} that writes snapshots off the camera thread.
      */
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private PersistenceExecutor mPersistenceExecutor;
+
+    private final MetricsRegistry.Histogram mOpenMetric =
+            MetricsRegistry.get().histogram("video.camera.open");
+    private final MetricsRegistry.Histogram mCloseMetric =
+            MetricsRegistry.get().histogram("video.camera.close");
+    private volatile long mOpenStartNanos;
 
     /**
-     * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its status.
+     * Receives the {@link CameraDevice} opened by the {@link CameraSessionManager}, on the camera
+     * thread.
      */
-    private CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+    private final CameraSessionManager.Listener mCameraListener =
+            new CameraSessionManager.Listener() {
 
         @Override
-        public void onOpened(@NonNull CameraDevice cameraDevice) {
+        public void onCameraOpened(CameraDevice cameraDevice) {
+            mOpenMetric.recordSince(mOpenStartNanos);
             mCameraDevice = cameraDevice;
             startPreview();
-            mCameraOpenCloseLock.release();
-            if (null != mVideoTextureView) {
-                configureTransform(mVideoTextureView.getWidth(), mVideoTextureView.getHeight());
+            final Activity activity = getActivity();
+            if (null != activity && null != mVideoTextureView) {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        configureTransform(mVideoTextureView.getWidth(),
+                                mVideoTextureView.getHeight());
+                    }
+                });
             }
         }
 
         @Override
-        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
+        public void onCameraDisconnected(CameraDevice cameraDevice) {
             mCameraDevice = null;
         }
 
         @Override
-        public void onError(@NonNull CameraDevice cameraDevice, int error) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
+        public void onCameraError(CameraDevice cameraDevice, int error) {
             mCameraDevice = null;
             Activity activity = getActivity();
             if (null != activity) {
@@ -279,7 +272,11 @@ public class VideoFragment extends Fragment
 
     };
     private File mImageFolder;
-    private String mImageFileName;
+
+    /**
+     * Maps snapshots taken while recording to their output files.
+     */
+    private final CaptureRegistry mCaptureRegistry = new CaptureRegistry();
     private String GALLERY_LOCATION = "Boo360";
     private String mImageFileLocation = "";
     private void createImageFolder() {
@@ -290,12 +287,12 @@ public class VideoFragment extends Fragment
         }
     }
 
-    private File createImageFileName() throws IOException {
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+    private File createImageFileName() {
+        // Milliseconds keep the names of snapshots taken within the same second apart.
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date());
         String imageFileName = "IMAGE_" + timeStamp + "_";
         File image = new File(mImageFolder, imageFileName + ".jpg");//File.createTempFile(imageFileName,".jpg", mFile);
         mImageFileLocation = image.getAbsolutePath();
-        mImageFileName = image.getAbsolutePath();
 
         return image;
     }
@@ -360,6 +357,12 @@ public class VideoFragment extends Fragment
             };
     private CaptureRequest.Builder mPreviewBuilder;
 
+    /**
+     * The outputs of the current session besides {@link #mImageReader}, for snapshot requests.
+     */
+    private Surface mPreviewSurface;
+    private Surface mRecorderSurface;
+
     public static VideoFragment newInstance() {
         return new VideoFragment();
     }
@@ -368,49 +371,44 @@ public class VideoFragment extends Fragment
      * In this sample, we choose a video size with 3x4 aspect ratio. Also, we don't use sizes
      * larger than 1080p, since MediaRecorder cannot handle such a high-resolution video.
      *
-     * @param choices The list of available sizes
+     * @param selector     The size tables of the camera
+     * @param capabilities The capabilities of the camera
      * @return The video size
      */
-    private static Size chooseVideoSize(Size[] choices) {
-        for (Size size : choices) {
-            if (size.getWidth() == size.getHeight() * 4 / 3 && size.getWidth() <= 1080) {
-                return size;
-            }
+    private static Size chooseVideoSize(SizeSelector selector, CameraCapabilities capabilities) {
+        long size = selector.largestWithin(CameraCapabilities.TABLE_VIDEO, 4, 3, 1080,
+                Integer.MAX_VALUE);
+        if (size != SizeSelector.NONE) {
+            return CameraCapabilityCache.toSize(size);
         }
         Log.e(TAG, "Couldn't find any suitable video size");
-        return choices[choices.length - 1];
+        int last = capabilities.getSizeCount(CameraCapabilities.TABLE_VIDEO) - 1;
+        return new Size(capabilities.getWidth(CameraCapabilities.TABLE_VIDEO, last),
+                capabilities.getHeight(CameraCapabilities.TABLE_VIDEO, last));
     }
 
     /**
-     * Given {@code choices} of {@code Size}s supported by a camera, chooses the smallest one whose
+     * Of the {@code Size}s supported by a camera for {@code table}, chooses the smallest one whose
      * width and height are at least as large as the respective requested values, and whose aspect
      * ratio matches with the specified value.
      *
-     * @param choices     The list of sizes that the camera supports for the intended output class
-     * @param width       The minimum desired width
-     * @param height      The minimum desired height
-     * @param aspectRatio The aspect ratio
+     * @param selector     The size tables of the camera
+     * @param capabilities The capabilities of the camera
+     * @param table        One of the {@code CameraCapabilities.TABLE_*} constants
+     * @param width        The minimum desired width
+     * @param height       The minimum desired height
+     * @param aspectRatio  The aspect ratio
      * @return The optimal {@code Size}, or an arbitrary one if none were big enough
      */
-    private static Size chooseOptimalSize(Size[] choices, int width, int height, Size aspectRatio) {
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getHeight() == option.getWidth() * h / w &&
-                    option.getWidth() >= width && option.getHeight() >= height) {
-                bigEnough.add(option);
-            }
-        }
-
-        // Pick the smallest of those, assuming we found any
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else {
-            Log.e(TAG, "Couldn't find any suitable preview size");
-            return choices[0];
+    private static Size chooseOptimalSize(SizeSelector selector, CameraCapabilities capabilities,
+                                          int table, int width, int height, Size aspectRatio) {
+        long size = selector.smallestAtLeast(table, aspectRatio.getWidth(),
+                aspectRatio.getHeight(), width, height);
+        if (size != SizeSelector.NONE) {
+            return CameraCapabilityCache.toSize(size);
         }
+        Log.e(TAG, "Couldn't find any suitable preview size");
+        return new Size(capabilities.getWidth(table, 0), capabilities.getHeight(table, 0));
     }
 
     @Override
@@ -479,14 +477,10 @@ public class VideoFragment extends Fragment
                 break;
             }
             case R.id.btn_video_camera: {
-                mImageFolder = null;
-                createImageFolder();
-                try {
-                    mImageFolder = createImageFileName();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (null == mCameraDevice) {
+                    break;
                 }
-                Log.e("Truockhi chup","Ne");
+                createImageFolder();
                 lockFocus();
                 break;
             }
@@ -494,26 +488,29 @@ public class VideoFragment extends Fragment
     }
 
     /**
-     * Starts a background thread and its {@link Handler}.
+     * Takes the handlers of the camera threads and the persistence executor from the
+     * {@link CameraSessionManager} of the activity.
      */
     private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        mSessionManager = ((CameraActivity) getActivity()).getSessionManager();
+        mResultHandler = mSessionManager.getResultHandler();
+        mPersistenceExecutor = mSessionManager.getPersistenceExecutor();
     }
 
     /**
-     * Stops the background thread and its {@link Handler}.
+     * Flushes pending saves and lets go of the background thread, which the
+     * {@link CameraSessionManager} keeps running for the other mode.
      */
     private void stopBackgroundThread() {
-        mBackgroundThread.quitSafely();
-        try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        ImageFileWriter.flush();
+        Log.d(TAG, "Saves (" + ImageFileWriter.getDurabilityPolicy() + "): "
+                + ImageFileWriter.getStats());
+        Log.d(TAG, "Metrics:\n" + MetricsRegistry.get().snapshot());
+        Log.d(TAG, "Threads: " + mSessionManager.getThreadReport());
+        mSessionManager.release(mCameraListener);
+        mSessionManager = null;
+        mResultHandler = null;
+        mPersistenceExecutor = null;
     }
 
     /**
@@ -596,19 +593,10 @@ public class VideoFragment extends Fragment
     };*/
     //
     /**
-     * Tries to open a {@link CameraDevice}. The result is listened by `mStateCallback`.
+     * Tries to open a {@link CameraDevice} through the {@link CameraSessionManager}, which hands
+     * it over right away if the photo mode left it open. The result is listened by
+     * `mCameraListener`.
      */
-    static class CompareSizesByArea implements Comparator<Size> {
-
-        @Override
-        public int compare(Size lhs, Size rhs) {
-            // We cast here to ensure the multiplications won't overflow
-            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
-                    (long) rhs.getWidth() * rhs.getHeight());
-        }
-
-    }
-    @SuppressWarnings("MissingPermission")
     private void openCamera(int width, int height) {
         if (!hasPermissionsGranted(VIDEO_PERMISSIONS)) {
             requestVideoPermissions();
@@ -618,34 +606,38 @@ public class VideoFragment extends Fragment
         if (null == activity || activity.isFinishing()) {
             return;
         }
-        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        mOpenStartNanos = System.nanoTime();
         try {
-            Log.d(TAG, "tryAcquire");
-            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Time out waiting to lock camera opening.");
-            }
-            String cameraId = manager.getCameraIdList()[0];
+            CameraCapabilityCache cache = CameraCapabilityCache.get(activity);
+            String cameraId = cache.getCameraId(0);
 
             // Choose the sizes for camera preview and video recording
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-            StreamConfigurationMap map = characteristics
-                    .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-            if (map == null) {
+            CameraCapabilities capabilities = cache.get(cameraId);
+            SizeSelector selector = cache.getSizeSelector(cameraId);
+            mSensorOrientation = capabilities.getSensorOrientation();
+            if (capabilities.getSizeCount(CameraCapabilities.TABLE_VIDEO) == 0) {
                 throw new RuntimeException("Cannot get available preview/video sizes");
             }
-            mVideoSize = chooseVideoSize(map.getOutputSizes(MediaRecorder.class));
-            mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
+            mVideoSize = chooseVideoSize(selector, capabilities);
+            mPreviewSize = chooseOptimalSize(selector, capabilities,
+                    CameraCapabilities.TABLE_PREVIEW, width, height, mVideoSize);
+            mImageSize = chooseOptimalSize(selector, capabilities, CameraCapabilities.TABLE_JPEG,
                     width, height, mVideoSize);
-            mImageSize = chooseOptimalSize(map.getOutputSizes(ImageFormat.JPEG),
-                    width, height, mVideoSize);
-            Size largest = Collections.max(
-                    Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                    new CompareSizesByArea());
+            Size largest = CameraCapabilityCache.toSize(
+                    selector.largest(CameraCapabilities.TABLE_JPEG));
+            ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+            ((ActivityManager) activity.getSystemService(Context.ACTIVITY_SERVICE))
+                    .getMemoryInfo(memoryInfo);
+            int maxImages = ImageBufferPool.chooseMaxImages(memoryInfo.availMem,
+                    largest.getWidth(), largest.getHeight(), ImageBufferPool.MODE_SINGLE,
+                    mPersistenceExecutor);
+            mImageBufferPool = new ImageBufferPool(maxImages, ImageBufferPool.POLICY_BLOCK,
+                    mPersistenceExecutor);
             mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                    ImageFormat.JPEG, /*maxImages*/2);
+                    ImageFormat.JPEG, maxImages);
+            // On the handler of the capture callbacks, behind the start of the snapshot.
             mImageReader.setOnImageAvailableListener(
-                        mOnImageAvailableListener, mBackgroundHandler);
+                        mOnImageAvailableListener, mResultHandler);
 
             int orientation = getResources().getConfiguration().orientation;
             if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
@@ -655,7 +647,7 @@ public class VideoFragment extends Fragment
             }
             configureTransform(width, height);
             mMediaRecorder = new MediaRecorder();
-            manager.openCamera(cameraId, mStateCallback, null);
+            mSessionManager.open(activity, cameraId, mCameraListener);
         } catch (CameraAccessException e) {
             Toast.makeText(activity, "Cannot access the camera.", Toast.LENGTH_SHORT).show();
             activity.finish();
@@ -664,32 +656,67 @@ public class VideoFragment extends Fragment
             // device this code runs.
             ErrorDialog.newInstance(getString(R.string.camera_error))
                     .show(getChildFragmentManager(), FRAGMENT_DIALOG);
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera opening.");
         }
     }
 
+    /**
+     * Closes the capture session and releases its outputs. The {@link CameraDevice} stays open in
+     * the {@link CameraSessionManager}.
+     */
     private void closeCamera() {
-        try {
-            mCameraOpenCloseLock.acquire();
-            closePreviewSession();
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
-                mCameraDevice = null;
-            }
-            if (null != mImageReader) {
-                mImageReader.close();
-                mImageReader = null;
+        long start = System.nanoTime();
+        closePreviewSession();
+        mCameraDevice = null;
+        if (null != mImageReader) {
+            Log.d(TAG, "Snapshots: " + mImageBufferPool);
+            closeImageReader(mImageReader, mImageBufferPool);
+            mImageReader = null;
+        }
+        mCaptureRegistry.clear();
+        if (null != mMediaRecorder) {
+            mMediaRecorder.release();
+            mMediaRecorder = null;
+        }
+        mCloseMetric.recordSince(start);
+    }
+
+    /**
+     * Closes {@code reader} on the I/O executor once pending saves are drained, or once the
+     * snapshots of {@code pool} still held after that are closed, so a queued save never reads a
+     * closed buffer. Never waits on the calling thread.
+     */
+    private void closeImageReader(final ImageReader reader, final ImageBufferPool pool) {
+        final PersistenceExecutor persistenceExecutor = mPersistenceExecutor;
+        final Runnable close = new Runnable() {
+            @Override
+            public void run() {
+                reader.close();
             }
-            if (null != mMediaRecorder) {
-                mMediaRecorder.release();
-                mMediaRecorder = null;
+        };
+        Executor io = null == mSessionManager ? null : mSessionManager.getIoExecutor();
+        if (null != io) {
+            try {
+                io.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (null != persistenceExecutor && !persistenceExecutor.awaitIdle(
+                                    PERSISTENCE_DRAIN_TIMEOUT_MS)) {
+                                Log.w(TAG, "Closing the snapshot reader with pending saves: "
+                                        + persistenceExecutor);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        pool.runWhenReleased(close);
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Closing the snapshot reader without draining saves", e);
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.");
-        } finally {
-            mCameraOpenCloseLock.release();
         }
+        pool.runWhenReleased(close);
     }
 
     /**
@@ -707,8 +734,9 @@ public class VideoFragment extends Fragment
             mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
 
             Surface previewSurface = new Surface(texture);
+            mPreviewSurface = previewSurface;
             mPreviewBuilder.addTarget(previewSurface);
-            mCameraDevice.createCaptureSession(Arrays.asList(previewSurface,mImageReader.getSurface()),
+            mSessionManager.createSession(Arrays.asList(previewSurface,mImageReader.getSurface()),
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -724,7 +752,7 @@ public class VideoFragment extends Fragment
                                 Toast.makeText(activity, "Failed", Toast.LENGTH_SHORT).show();
                             }
                         }
-                    }, mBackgroundHandler);
+                    });
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -739,10 +767,8 @@ public class VideoFragment extends Fragment
         }
         try {
             setUpCaptureRequestBuilder(mPreviewBuilder);
-            HandlerThread thread = new HandlerThread("CameraPreview");
-            thread.start();
             mPreviewSession.stopRepeating();
-            mPreviewSession.setRepeatingRequest(mPreviewBuilder.build(), null, mBackgroundHandler);
+            mPreviewSession.setRepeatingRequest(mPreviewBuilder.build(), null, mResultHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -753,9 +779,7 @@ public class VideoFragment extends Fragment
         }
         try {
             setUpCaptureRequestBuilder(mPreviewBuilder);
-            HandlerThread thread = new HandlerThread("CameraPreview");
-            thread.start();
-            mPreviewCaptureSession.setRepeatingRequest(mPreviewBuilder.build(), null, mBackgroundHandler);
+            mPreviewCaptureSession.setRepeatingRequest(mPreviewBuilder.build(), null, mResultHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -852,16 +876,18 @@ public class VideoFragment extends Fragment
             List<Surface> surfaces = new ArrayList<>();
             // Set up Surface for the camera preview
             Surface previewSurface = new Surface(texture);
+            mPreviewSurface = previewSurface;
             surfaces.add(previewSurface);
             mPreviewBuilder.addTarget(previewSurface);
             // Set up Surface for the MediaRecorder
             Surface recorderSurface = mMediaRecorder.getSurface();
+            mRecorderSurface = recorderSurface;
             surfaces.add(recorderSurface);
             Surface readerSurface  = mImageReader.getSurface();
             surfaces.add(readerSurface);
             mPreviewBuilder.addTarget(recorderSurface);
             // Once the session starts, we can update the UI and start recording
-            mCameraDevice.createCaptureSession(surfaces,
+            mSessionManager.createSession(surfaces,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -892,7 +918,7 @@ public class VideoFragment extends Fragment
                                 Toast.makeText(activity, "Failed", Toast.LENGTH_SHORT).show();
                             }
                         }
-                    }, mBackgroundHandler);
+                    });
         } catch (CameraAccessException | IOException e) {
             e.printStackTrace();
         }
@@ -900,15 +926,11 @@ public class VideoFragment extends Fragment
     }
 
     private void closePreviewSession() {
-        if (mPreviewSession != null) {
-            mPreviewSession.close();
-            mPreviewSession = null;
-        }
-        if(mPreviewCaptureSession !=null){
-            mPreviewCaptureSession.close();
-            mPreviewCaptureSession = null;
+        if (null != mSessionManager) {
+            mSessionManager.closeSession();
         }
-
+        mPreviewSession = null;
+        mPreviewCaptureSession = null;
     }
 
     private void stopRecordingVideo() {
@@ -949,48 +971,80 @@ public class VideoFragment extends Fragment
         try {
             if(mIsRecordingVideo){
                 mPreviewSession.capture(mPreviewBuilder.build(), mRecordCaptureCallback,
-                        mBackgroundHandler);
+                        mResultHandler);
             }else {
                 mPreviewCaptureSession.capture(mPreviewBuilder.build(), mCapturePreviewCallback,
-                        mBackgroundHandler);
+                        mResultHandler);
             }
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
-    //taking photo
+    /**
+     * Takes a snapshot with a request of its own, so {@link #mPreviewBuilder}, which the
+     * repeating request is built from, never targets {@link #mImageReader}. The snapshot is
+     * registered in {@link #mCaptureRegistry} and tagged so its image can be told apart.
+     */
     private void captureStillPicture() {
+        Activity activity = getActivity();
+        if (null == activity || null == mCameraDevice) {
+            return;
+        }
+        CaptureRegistry.Record record = null;
         try {
+            CaptureRequest.Builder snapshotBuilder;
             if(mIsRecordingVideo) {
-                //mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_VIDEO_SNAPSHOT);
+                // Keep feeding the preview and the recorder so the video does not skip a frame.
+                snapshotBuilder = mCameraDevice.createCaptureRequest(
+                        CameraDevice.TEMPLATE_VIDEO_SNAPSHOT);
+                snapshotBuilder.addTarget(mPreviewSurface);
+                snapshotBuilder.addTarget(mRecorderSurface);
             } else {
-                mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                snapshotBuilder = mCameraDevice.createCaptureRequest(
+                        CameraDevice.TEMPLATE_STILL_CAPTURE);
             }
-            mPreviewBuilder.addTarget(mImageReader.getSurface());
-            int rotation = getActivity().getWindowManager().getDefaultDisplay().getRotation();
+            snapshotBuilder.addTarget(mImageReader.getSurface());
+            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
             switch (mSensorOrientation) {
                 case SENSOR_ORIENTATION_DEFAULT_DEGREES:
-                    mPreviewBuilder.set(CaptureRequest.JPEG_ORIENTATION, DEFAULT_ORIENTATIONS.get(rotation));
+                    snapshotBuilder.set(CaptureRequest.JPEG_ORIENTATION, DEFAULT_ORIENTATIONS.get(rotation));
                     break;
                 case SENSOR_ORIENTATION_INVERSE_DEGREES:
-                    mPreviewBuilder.set(CaptureRequest.JPEG_ORIENTATION, INVERSE_ORIENTATIONS.get(rotation));
+                    snapshotBuilder.set(CaptureRequest.JPEG_ORIENTATION, INVERSE_ORIENTATIONS.get(rotation));
                     break;
             }
+            record = mCaptureRegistry.register(createImageFileName(), mCameraDevice.getId(),
+                    CameraMetadata.CONTROL_EFFECT_MODE_OFF);
+            snapshotBuilder.setTag(record.getTag());
 
             CameraCaptureSession.CaptureCallback stillCaptureCallback = new
                     CameraCaptureSession.CaptureCallback() {
                         @Override
-                        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
-                            super.onCaptureStarted(session, request, timestamp, frameNumber);
+                        public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                                     @NonNull CaptureRequest request,
+                                                     long timestamp, long frameNumber) {
+                            mCaptureRegistry.onCaptureStarted(request.getTag(), timestamp);
+                        }
+
+                        @Override
+                        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                                    @NonNull CaptureRequest request,
+                                                    @NonNull CaptureFailure failure) {
+                            Log.e(TAG, "Snapshot failed, reason " + failure.getReason());
+                            mCaptureRegistry.onCaptureFailed(request.getTag());
                         }
                     };
             if(mIsRecordingVideo) {
-                mPreviewSession.capture(mPreviewBuilder.build(), stillCaptureCallback, null);
+                mPreviewSession.capture(snapshotBuilder.build(), stillCaptureCallback, mResultHandler);
             } else {
-                mPreviewCaptureSession.capture(mPreviewBuilder.build(), stillCaptureCallback, null);
+                mPreviewCaptureSession.capture(snapshotBuilder.build(), stillCaptureCallback, mResultHandler);
             }
+            mCaptureRegistry.onCaptureSubmitted(record.getTag());
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            if (null != record) {
+                mCaptureRegistry.onCaptureFailed(record.getTag());
+            }
         }
         Log.e("Saukhi chup","Ne");
     }
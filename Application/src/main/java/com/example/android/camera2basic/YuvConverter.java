@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Repacks the three planes of a {@code YUV_420_888} image into a single NV21 array, which is the
+ * layout {@code android.graphics.YuvImage} can compress to JPEG.
+ */
+public final class YuvConverter {
+
+    private YuvConverter() {
+    }
+
+    /**
+     * @return The number of bytes an NV21 frame of the given size takes
+     */
+    public static int nv21Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Copies the planes into {@code out} as NV21: the full Y plane followed by interleaved V and U
+     * samples. The buffers' positions are left unchanged.
+     *
+     * @param y             The Y plane
+     * @param u             The U (Cb) plane
+     * @param v             The V (Cr) plane
+     * @param yRowStride    Row stride of the Y plane
+     * @param uvRowStride   Row stride of the U and V planes
+     * @param uvPixelStride Pixel stride of the U and V planes
+     * @param width         Image width
+     * @param height        Image height
+     * @param out           Destination, at least {@link #nv21Size(int, int)} bytes long
+     */
+    public static void toNv21(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride,
+                              int uvRowStride, int uvPixelStride, int width, int height,
+                              byte[] out) {
+        int offset = 0;
+        if (yRowStride == width) {
+            ByteBuffer src = y.duplicate();
+            src.get(out, 0, width * height);
+            offset = width * height;
+        } else {
+            ByteBuffer src = y.duplicate();
+            for (int row = 0; row < height; row++) {
+                src.position(row * yRowStride);
+                src.get(out, offset, width);
+                offset += width;
+            }
+        }
+
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        for (int row = 0; row < chromaHeight; row++) {
+            int rowStart = row * uvRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                int index = rowStart + col * uvPixelStride;
+                out[offset++] = v.get(index);
+                out[offset++] = u.get(index);
+            }
+        }
+    }
+}
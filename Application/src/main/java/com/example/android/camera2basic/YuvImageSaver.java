@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.ExifInterface;
+import android.media.Image;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes a {@code YUV_420_888} {@link Image} to JPEG and saves it into the specified
+ * {@link File}. Used for frames committed from the {@link ZslRingBuffer}.
+ */
+class YuvImageSaver implements Runnable {
+
+    private static final String TAG = "YuvImageSaver";
+
+    private static final int JPEG_QUALITY = 95;
+
+    /**
+     * NV21 scratch buffer per saving thread, so a multi-megabyte array is not allocated per shot.
+     */
+    private static final ThreadLocal<byte[]> sScratch = new ThreadLocal<>();
+
+    private static final MetricsRegistry.Histogram sEncodeMetric =
+            MetricsRegistry.get().histogram("save.zslEncodeLatency");
+
+    private final Image mImage;
+    private final File mFile;
+    private final int mJpegOrientation;
+    private final long mTraceId;
+    private final ImageSaver.OnImageSavedListener mListener;
+
+    /**
+     * @param image           The YUV frame; closed once it has been copied
+     * @param file            The file we save the image into
+     * @param jpegOrientation Clockwise rotation of the frame in degrees, stored as EXIF
+     * @param traceId         The shot this frame belongs to in the {@link CaptureTracer}
+     * @param listener        Notified once the file is written, may be null
+     */
+    public YuvImageSaver(Image image, File file, int jpegOrientation, long traceId,
+                         ImageSaver.OnImageSavedListener listener) {
+        mImage = image;
+        mFile = file;
+        mJpegOrientation = jpegOrientation;
+        mTraceId = traceId;
+        mListener = listener;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        long timestamp = mImage.getTimestamp();
+        int width = mImage.getWidth();
+        int height = mImage.getHeight();
+        byte[] nv21;
+        try {
+            int size = YuvConverter.nv21Size(width, height);
+            nv21 = sScratch.get();
+            if (null == nv21 || nv21.length < size) {
+                nv21 = new byte[size];
+                sScratch.set(nv21);
+            }
+            Image.Plane[] planes = mImage.getPlanes();
+            YuvConverter.toNv21(planes[0].getBuffer(), planes[1].getBuffer(),
+                    planes[2].getBuffer(), planes[0].getRowStride(), planes[1].getRowStride(),
+                    planes[1].getPixelStride(), width, height, nv21);
+        } finally {
+            mImage.close();
+        }
+
+        // Encode into a temporary file so a partial JPEG never shows up under the final name.
+        File temp = ImageFileWriter.getTempFile(mFile);
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            new YuvImage(nv21, ImageFormat.NV21, width, height, null)
+                    .compressToJpeg(new Rect(0, 0, width, height), JPEG_QUALITY, output);
+            output.close();
+            output = null;
+            ExifInterface exif = new ExifInterface(temp.getAbsolutePath());
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION,
+                    Integer.toString(toExifOrientation(mJpegOrientation)));
+            exif.saveAttributes();
+            ImageFileWriter.commit(temp, mFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        } finally {
+            if (null != output) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        CaptureTracer.get().span("encodeZslFrame", mTraceId, start);
+        sEncodeMetric.record(nanos);
+        ImageFileWriter.getStats().record(mFile.length(), nanos);
+        Log.d(TAG, "Encoded ZSL frame to " + mFile + " in " + nanos / 1000000 + "ms");
+        if (null != mListener) {
+            mListener.onImageSaved(mFile, timestamp);
+        }
+    }
+
+    private static int toExifOrientation(int degrees) {
+        switch (degrees) {
+            case 90:
+                return ExifInterface.ORIENTATION_ROTATE_90;
+            case 180:
+                return ExifInterface.ORIENTATION_ROTATE_180;
+            case 270:
+                return ExifInterface.ORIENTATION_ROTATE_270;
+            default:
+                return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+}
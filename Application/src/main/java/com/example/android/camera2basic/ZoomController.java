@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * Turns pinch gestures into a smoothly changing digital zoom crop.
+ *
+ * <p>The zoom factor follows the ratio between the current finger spacing and the spacing when
+ * the pinch started, so it is continuous rather than stepped. The crop does not jump to the
+ * target: {@link #step(long)}, called once per display frame, eases the current zoom toward it
+ * exponentially, independent of how often touch events arrive. The crop is kept as four ints and
+ * nothing is allocated after construction.</p>
+ *
+ * <p>This class is not thread safe; use it from the UI thread.</p>
+ */
+public class ZoomController {
+
+    /**
+     * Time for the zoom to cover about two thirds of the distance to its target.
+     */
+    private static final double TIME_CONSTANT_NANOS = 60000000;
+
+    /**
+     * Step assumed for the first frame of an animation, when there is no previous frame.
+     */
+    private static final long FIRST_STEP_NANOS = 16666667;
+
+    private static final long MAX_STEP_NANOS = 100000000;
+
+    /**
+     * Relative distance to the target below which the zoom snaps to it.
+     */
+    private static final float SNAP = 0.002f;
+
+    private int mArrayLeft;
+    private int mArrayTop;
+    private int mArrayWidth;
+    private int mArrayHeight;
+    private float mMaxZoom = 1f;
+
+    private float mZoom = 1f;
+    private float mTarget = 1f;
+    private float mPinchSpacing;
+    private float mPinchZoom;
+    private long mLastStepNanos;
+
+    private int mCropLeft;
+    private int mCropTop;
+    private int mCropRight;
+    private int mCropBottom;
+
+    /**
+     * Sets the sensor active array the crop is taken from and resets the zoom to 1x.
+     *
+     * @param maxZoom The maximum digital zoom of the camera
+     */
+    public void setActiveArray(int left, int top, int width, int height, float maxZoom) {
+        mArrayLeft = left;
+        mArrayTop = top;
+        mArrayWidth = width;
+        mArrayHeight = height;
+        mMaxZoom = Math.max(1f, maxZoom);
+        mZoom = 1f;
+        mTarget = 1f;
+        mPinchSpacing = 0;
+        mLastStepNanos = 0;
+        updateCrop();
+    }
+
+    /**
+     * Starts a pinch, for example when a second finger goes down.
+     *
+     * @param spacing The distance between the two fingers
+     */
+    public void beginPinch(float spacing) {
+        mPinchSpacing = spacing;
+        mPinchZoom = mTarget;
+    }
+
+    /**
+     * Moves the target zoom for the current finger spacing. Ignored outside a pinch.
+     */
+    public void pinch(float spacing) {
+        if (mPinchSpacing <= 0 || spacing <= 0) {
+            return;
+        }
+        setTargetZoom(mPinchZoom * spacing / mPinchSpacing);
+    }
+
+    public void endPinch() {
+        mPinchSpacing = 0;
+    }
+
+    /**
+     * @param zoom The zoom factor to animate to, clamped to 1x and the maximum zoom
+     */
+    public void setTargetZoom(float zoom) {
+        mTarget = Math.max(1f, Math.min(mMaxZoom, zoom));
+    }
+
+    public float getTargetZoom() {
+        return mTarget;
+    }
+
+    public float getZoom() {
+        return mZoom;
+    }
+
+    /**
+     * @return Whether the zoom has not reached its target yet
+     */
+    public boolean isAnimating() {
+        return mZoom != mTarget;
+    }
+
+    /**
+     * Advances the zoom toward its target.
+     *
+     * @param frameNanos The time of the display frame
+     * @return Whether the crop changed
+     */
+    public boolean step(long frameNanos) {
+        if (mZoom == mTarget) {
+            mLastStepNanos = 0;
+            return false;
+        }
+        long elapsed = mLastStepNanos == 0 ? FIRST_STEP_NANOS
+                : Math.max(0, Math.min(MAX_STEP_NANOS, frameNanos - mLastStepNanos));
+        mLastStepNanos = frameNanos;
+        float alpha = (float) (1 - Math.exp(-elapsed / TIME_CONSTANT_NANOS));
+        mZoom += (mTarget - mZoom) * alpha;
+        if (Math.abs(mTarget - mZoom) < SNAP * mTarget) {
+            mZoom = mTarget;
+        }
+        int left = mCropLeft;
+        int top = mCropTop;
+        int right = mCropRight;
+        int bottom = mCropBottom;
+        updateCrop();
+        return left != mCropLeft || top != mCropTop || right != mCropRight
+                || bottom != mCropBottom;
+    }
+
+    /**
+     * @return Whether the current zoom crops the active array at all
+     */
+    public boolean hasCrop() {
+        return mCropLeft != mArrayLeft || mCropTop != mArrayTop
+                || mCropRight != mArrayLeft + mArrayWidth
+                || mCropBottom != mArrayTop + mArrayHeight;
+    }
+
+    public int getCropLeft() {
+        return mCropLeft;
+    }
+
+    public int getCropTop() {
+        return mCropTop;
+    }
+
+    public int getCropRight() {
+        return mCropRight;
+    }
+
+    public int getCropBottom() {
+        return mCropBottom;
+    }
+
+    private void updateCrop() {
+        // Centered, with the margins rounded down to a multiple of 4 to keep the crop aligned.
+        int marginX = (int) ((mArrayWidth - mArrayWidth / mZoom) / 2);
+        int marginY = (int) ((mArrayHeight - mArrayHeight / mZoom) / 2);
+        marginX -= marginX & 3;
+        marginY -= marginY & 3;
+        mCropLeft = mArrayLeft + marginX;
+        mCropTop = mArrayTop + marginY;
+        mCropRight = mArrayLeft + mArrayWidth - marginX;
+        mCropBottom = mArrayTop + mArrayHeight - marginY;
+    }
+}
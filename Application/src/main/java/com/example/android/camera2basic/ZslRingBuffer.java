@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.util.Log;
+
+/**
+ * Keeps the most recent full resolution frames of a zero-shutter-lag {@link ImageReader}, so a
+ * still can be taken from a frame that was exposed when the shutter was pressed instead of
+ * waiting for focus and exposure to settle afterwards.
+ *
+ * <p>The ring holds at most {@link #getCapacity()} images; when a new frame arrives and the ring
+ * is full the oldest frame is closed. The reader must be created with
+ * {@link #getReaderMaxImages()} buffers so the ring, the frame being acquired and a frame being
+ * encoded can all be held at once.</p>
+ */
+class ZslRingBuffer implements ImageReader.OnImageAvailableListener {
+
+    private static final String TAG = "ZslRingBuffer";
+
+    /**
+     * Upper bound on the ring size whatever the memory budget.
+     */
+    private static final int MAX_CAPACITY = 8;
+
+    private final Image[] mImages;
+    private int mHead;
+    private int mCount;
+
+    /**
+     * Chooses how many frames fit in {@code maxBytes}.
+     *
+     * @param maxBytes Memory the ring may use
+     * @param width    Frame width
+     * @param height   Frame height
+     * @return The ring capacity, at least one frame
+     */
+    public static int chooseCapacity(long maxBytes, int width, int height) {
+        long frameBytes = Math.max(1, (long) YuvConverter.nv21Size(width, height));
+        return (int) Math.max(1, Math.min(MAX_CAPACITY, maxBytes / frameBytes));
+    }
+
+    public ZslRingBuffer(int capacity) {
+        mImages = new Image[capacity];
+    }
+
+    public int getCapacity() {
+        return mImages.length;
+    }
+
+    /**
+     * @return The {@code maxImages} the backing {@link ImageReader} needs
+     */
+    public int getReaderMaxImages() {
+        return mImages.length + 2;
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "All ZSL buffers are held");
+            return;
+        }
+        if (null != image) {
+            add(image);
+        }
+    }
+
+    /**
+     * Adds the newest frame, closing the oldest one if the ring is full.
+     */
+    void add(Image image) {
+        Image evicted = null;
+        synchronized (this) {
+            if (mCount == mImages.length) {
+                evicted = mImages[mHead];
+                mImages[mHead] = null;
+                mHead = (mHead + 1) % mImages.length;
+                mCount--;
+            }
+            mImages[(mHead + mCount) % mImages.length] = image;
+            mCount++;
+        }
+        if (null != evicted) {
+            evicted.close();
+        }
+    }
+
+    /**
+     * @return The sensor timestamp of the newest buffered frame, or 0 if the ring is empty
+     */
+    public synchronized long getLatestTimestamp() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return mImages[(mHead + mCount - 1) % mImages.length].getTimestamp();
+    }
+
+    /**
+     * Removes the frame whose sensor timestamp is closest to {@code timestamp}. The caller owns
+     * the returned image and must close it.
+     *
+     * @return The frame, or null if the ring is empty
+     */
+    public synchronized Image take(long timestamp) {
+        if (mCount == 0) {
+            return null;
+        }
+        int best = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            long distance = Math.abs(mImages[(mHead + i) % mImages.length].getTimestamp() - timestamp);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        Image taken = mImages[(mHead + best) % mImages.length];
+        // Close the gap by shifting the newer frames down.
+        for (int i = best; i < mCount - 1; i++) {
+            mImages[(mHead + i) % mImages.length] = mImages[(mHead + i + 1) % mImages.length];
+        }
+        mImages[(mHead + mCount - 1) % mImages.length] = null;
+        mCount--;
+        return taken;
+    }
+
+    /**
+     * Closes every buffered frame.
+     */
+    public void clear() {
+        Image[] images;
+        synchronized (this) {
+            images = new Image[mCount];
+            for (int i = 0; i < mCount; i++) {
+                images[i] = mImages[(mHead + i) % mImages.length];
+                mImages[(mHead + i) % mImages.length] = null;
+            }
+            mHead = 0;
+            mCount = 0;
+        }
+        for (Image image : images) {
+            image.close();
+        }
+    }
+}
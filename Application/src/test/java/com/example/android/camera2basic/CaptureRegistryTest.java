@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureRegistryTest {
+
+    private final CaptureRegistry mRegistry = new CaptureRegistry();
+
+    @Test
+    public void claimsTheCaptureBoundToTheTimestamp() {
+        CaptureRegistry.Record first = mRegistry.register(new File("a.jpg"), "0", 0);
+        CaptureRegistry.Record second = mRegistry.register(new File("b.jpg"), "0", 0);
+        assertNotEquals(first.getTag(), second.getTag());
+        mRegistry.onCaptureStarted(second.getTag(), 200);
+        mRegistry.onCaptureStarted(first.getTag(), 100);
+        assertEquals(100, first.getSensorTimestamp());
+
+        assertSame(second, mRegistry.claim(200));
+        assertSame(first, mRegistry.claim(100));
+        assertEquals(0, mRegistry.getInFlightCount());
+        assertNull(mRegistry.claim(100));
+    }
+
+    @Test
+    public void recordsTheWallClockTimeOfRegistration() {
+        long before = System.currentTimeMillis();
+        CaptureRegistry.Record record = mRegistry.register(new File("a.jpg"), "0", 0);
+        long after = System.currentTimeMillis();
+
+        assertTrue(record.getCaptureTimeMillis() >= before);
+        assertTrue(record.getCaptureTimeMillis() <= after);
+    }
+
+    @Test
+    public void unboundImagesClaimTheOldestUnstartedCapture() {
+        CaptureRegistry.Record first = mRegistry.register(new File("a.jpg"), "0", 0);
+        CaptureRegistry.Record second = mRegistry.register(new File("b.jpg"), "0", 0);
+        mRegistry.onCaptureSubmitted(first.getTag());
+        mRegistry.onCaptureSubmitted(second.getTag());
+        mRegistry.onCaptureStarted(second.getTag(), 200);
+
+        assertSame(first, mRegistry.claim(150));
+        assertEquals(150, first.getSensorTimestamp());
+        assertSame(second, mRegistry.claim(200));
+    }
+
+    @Test
+    public void unboundImagesNeverClaimAnUnsubmittedCapture() {
+        CaptureRegistry.Record pending = mRegistry.register(new File("a.jpg"), "0", 0);
+        assertNull(mRegistry.claim(150));
+        assertEquals(0, pending.getSensorTimestamp());
+
+        mRegistry.onCaptureSubmitted(pending.getTag());
+        mRegistry.onCaptureStarted(pending.getTag(), 200);
+        assertSame(pending, mRegistry.claim(200));
+    }
+
+    @Test
+    public void unregisteredImagesClaimNothing() {
+        CaptureRegistry.Record record = mRegistry.register(new File("a.jpg"), "0", 0);
+        mRegistry.onCaptureStarted(record.getTag(), 100);
+        assertNull(mRegistry.claim(300));
+        assertEquals(1, mRegistry.getInFlightCount());
+    }
+
+    @Test
+    public void registerStartedBindsRightAway() {
+        CaptureRegistry.Record record =
+                mRegistry.registerStarted(500, new File("burst_001.jpg"), "1", 2);
+        assertEquals(500, record.getSensorTimestamp());
+        assertEquals("1", record.getCameraId());
+        assertEquals(2, record.getEffectMode());
+        assertSame(record, mRegistry.claim(500));
+    }
+
+    @Test
+    public void failedCapturesAreForgotten() {
+        CaptureRegistry.Record failed = mRegistry.register(new File("a.jpg"), "0", 0);
+        mRegistry.onCaptureStarted(failed.getTag(), 100);
+        mRegistry.onCaptureFailed(failed.getTag());
+        assertNull(mRegistry.get(failed.getTag()));
+        assertNull(mRegistry.claim(100));
+    }
+
+    @Test
+    public void foreignTagsAreIgnored() {
+        CaptureRegistry.Record record = mRegistry.register(new File("a.jpg"), "0", 0);
+        mRegistry.onCaptureStarted("not a registry tag", 100);
+        mRegistry.onCaptureFailed(null);
+        assertNull(mRegistry.get("not a registry tag"));
+        assertSame(record, mRegistry.get(record.getTag()));
+        assertEquals(0, record.getSensorTimestamp());
+    }
+
+    @Test
+    public void reservedTagsAreNeverReused() {
+        long reserved = mRegistry.newTag();
+        CaptureRegistry.Record record = mRegistry.register(new File("a.jpg"), "0", 0);
+        assertNotEquals(reserved, record.getTag().longValue());
+        assertNotEquals(reserved, mRegistry.newTag());
+        assertNull(mRegistry.get(reserved));
+        assertEquals(1, mRegistry.getInFlightCount());
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        mRegistry.register(new File("a.jpg"), "0", 0);
+        mRegistry.registerStarted(100, new File("b.jpg"), "0", 0);
+        mRegistry.clear();
+        assertEquals(0, mRegistry.getInFlightCount());
+        assertNull(mRegistry.claim(100));
+    }
+}
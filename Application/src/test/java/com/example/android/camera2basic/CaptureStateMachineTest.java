@@ -0,0 +1,329 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.example.android.camera2basic.CaptureStateMachine.AE_STATE_CONVERGED;
+import static com.example.android.camera2basic.CaptureStateMachine.AE_STATE_FLASH_REQUIRED;
+import static com.example.android.camera2basic.CaptureStateMachine.AE_STATE_LOCKED;
+import static com.example.android.camera2basic.CaptureStateMachine.AE_STATE_PRECAPTURE;
+import static com.example.android.camera2basic.CaptureStateMachine.AF_STATE_FOCUSED_LOCKED;
+import static com.example.android.camera2basic.CaptureStateMachine.AF_STATE_NOT_FOCUSED_LOCKED;
+import static com.example.android.camera2basic.CaptureStateMachine.STATE_BURST;
+import static com.example.android.camera2basic.CaptureStateMachine.STATE_PICTURE_TAKEN;
+import static com.example.android.camera2basic.CaptureStateMachine.STATE_PREVIEW;
+import static com.example.android.camera2basic.CaptureStateMachine.STATE_WAITING_BURST_LOCK;
+import static com.example.android.camera2basic.CaptureStateMachine.STATE_WAITING_LOCK;
+import static com.example.android.camera2basic.CaptureStateMachine.STATE_WAITING_NON_PRECAPTURE;
+import static com.example.android.camera2basic.CaptureStateMachine.STATE_WAITING_PRECAPTURE;
+import static com.example.android.camera2basic.CaptureStateMachine.UNKNOWN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureStateMachineTest {
+
+    private static final long MS = 1000000L;
+
+    /**
+     * AE state of a camera still searching for an exposure, CONTROL_AE_STATE_SEARCHING.
+     */
+    private static final int AE_STATE_SEARCHING = 1;
+
+    /**
+     * AF state of a lens still scanning, CONTROL_AF_STATE_ACTIVE_SCAN.
+     */
+    private static final int AF_STATE_ACTIVE_SCAN = 3;
+
+    private final List<String> mActions = new ArrayList<>();
+    private CaptureStateMachine mMachine;
+
+    @Before
+    public void setUp() {
+        mMachine = new CaptureStateMachine(new CaptureStateMachine.Listener() {
+            @Override
+            public void onLockFocus() {
+                mActions.add("lockFocus");
+            }
+
+            @Override
+            public void onRunPrecapture() {
+                mActions.add("precapture");
+            }
+
+            @Override
+            public void onCaptureStill() {
+                mActions.add("capture");
+            }
+
+            @Override
+            public void onSubmitBurst() {
+                mActions.add("burst");
+            }
+
+            @Override
+            public void onCaptureTimedOut() {
+                mActions.add("timedOut");
+            }
+
+            @Override
+            public void onStateLeft(int state, long durationNanos) {
+                mActions.add("left " + CaptureStateMachine.getStateName(state) + " "
+                        + durationNanos / MS);
+            }
+        });
+    }
+
+    @Test
+    public void stillRunsFocusLockAndPrecapture() {
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING, 0);
+        assertTrue(mMachine.startStill(0));
+        assertEquals(STATE_WAITING_LOCK, mMachine.getState());
+
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING, 10 * MS);
+        assertEquals(STATE_WAITING_LOCK, mMachine.getState());
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING, 20 * MS);
+        assertEquals(STATE_WAITING_PRECAPTURE, mMachine.getState());
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_PRECAPTURE, 30 * MS);
+        assertEquals(STATE_WAITING_NON_PRECAPTURE, mMachine.getState());
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_PRECAPTURE, 40 * MS);
+        assertEquals(STATE_WAITING_NON_PRECAPTURE, mMachine.getState());
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED, 50 * MS);
+        assertEquals(STATE_PICTURE_TAKEN, mMachine.getState());
+        mMachine.finish(mMachine.getSequence(), 80 * MS);
+
+        assertTrue(mMachine.isIdle());
+        assertEquals(Arrays.asList("lockFocus", "left waitingLock 20", "precapture",
+                "left waitingPrecapture 10", "left waitingNonPrecapture 20", "capture",
+                "left pictureTaken 30"), mActions);
+        assertEquals(20 * MS, mMachine.getSequenceNanos(STATE_WAITING_LOCK));
+        assertEquals("waitingLock 20ms, waitingPrecapture 10ms, waitingNonPrecapture 20ms, "
+                + "pictureTaken 30ms", mMachine.getLastSummary());
+    }
+
+    @Test
+    public void unfocusedLockStillCaptures() {
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, 0);
+        mMachine.startStill(0);
+        mMachine.onResult(AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_CONVERGED, 5 * MS);
+        assertEquals(STATE_PICTURE_TAKEN, mMachine.getState());
+    }
+
+    @Test
+    public void flashRequiredCountsAsPrecapture() {
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING, 0);
+        mMachine.startStill(0);
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING, MS);
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_FLASH_REQUIRED, 2 * MS);
+        assertEquals(STATE_WAITING_NON_PRECAPTURE, mMachine.getState());
+    }
+
+    @Test
+    public void convergedExposureSkipsPrecapture() {
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, 0);
+        mMachine.startStill(0);
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED, 10 * MS);
+        assertEquals(STATE_PICTURE_TAKEN, mMachine.getState());
+        assertEquals(Arrays.asList("lockFocus", "left waitingLock 10", "capture"), mActions);
+    }
+
+    @Test
+    public void lockedExposureSkipsPrecapture() {
+        mMachine.setFixedFocus(true);
+        mMachine.onResult(UNKNOWN, AE_STATE_LOCKED, 0);
+        mMachine.startStill(0);
+        assertEquals(STATE_PICTURE_TAKEN, mMachine.getState());
+        assertEquals(Arrays.asList("capture"), mActions);
+    }
+
+    @Test
+    public void fixedFocusSkipsFocusLock() {
+        mMachine.setFixedFocus(true);
+        mMachine.onResult(UNKNOWN, AE_STATE_SEARCHING, 0);
+        assertTrue(mMachine.startStill(0));
+        assertEquals(STATE_WAITING_PRECAPTURE, mMachine.getState());
+        assertEquals(Arrays.asList("precapture"), mActions);
+    }
+
+    @Test
+    public void cameraWithoutStatesCapturesRightAway() {
+        mMachine.startStill(0);
+        assertEquals(STATE_WAITING_LOCK, mMachine.getState());
+        mMachine.onResult(UNKNOWN, UNKNOWN, MS);
+        assertEquals(STATE_PICTURE_TAKEN, mMachine.getState());
+    }
+
+    @Test
+    public void resultsWithoutStatesAreIgnoredOnceReported() {
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING, 0);
+        mMachine.startStill(0);
+        // A partial result without the AF state does not mean the lens has no focus.
+        mMachine.onResult(UNKNOWN, UNKNOWN, MS);
+        assertEquals(STATE_WAITING_LOCK, mMachine.getState());
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING, 2 * MS);
+        mMachine.onResult(UNKNOWN, UNKNOWN, 3 * MS);
+        assertEquals(STATE_WAITING_PRECAPTURE, mMachine.getState());
+    }
+
+    @Test
+    public void focusLockTimesOut() {
+        mMachine.setTimeout(STATE_WAITING_LOCK, 100 * MS);
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, 0);
+        mMachine.startStill(0);
+        mMachine.checkTimeout(99 * MS);
+        assertEquals(STATE_WAITING_LOCK, mMachine.getState());
+        assertEquals(1 * MS, mMachine.getRemainingNanos(99 * MS));
+
+        // A result that does not complete the lock still checks the timeout.
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, 100 * MS);
+        assertEquals(STATE_PICTURE_TAKEN, mMachine.getState());
+        assertEquals(Arrays.asList("lockFocus", "left waitingLock 100", "capture"), mActions);
+    }
+
+    @Test
+    public void precaptureTimesOut() {
+        mMachine.setTimeout(STATE_WAITING_PRECAPTURE, 50 * MS);
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING, 0);
+        mMachine.startStill(0);
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING, 10 * MS);
+        mMachine.checkTimeout(60 * MS);
+        assertEquals(STATE_PICTURE_TAKEN, mMachine.getState());
+    }
+
+    @Test
+    public void nonPrecaptureTimesOut() {
+        mMachine.setTimeout(STATE_WAITING_NON_PRECAPTURE, 50 * MS);
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING, 0);
+        mMachine.startStill(0);
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING, 10 * MS);
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_PRECAPTURE, 20 * MS);
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_PRECAPTURE, 70 * MS);
+        assertEquals(STATE_PICTURE_TAKEN, mMachine.getState());
+        assertEquals("capture", mActions.get(mActions.size() - 1));
+    }
+
+    @Test
+    public void stillCaptureTimesOutBackToPreview() {
+        mMachine.setTimeout(STATE_PICTURE_TAKEN, 200 * MS);
+        mMachine.setFixedFocus(true);
+        mMachine.startStill(0);
+        mMachine.checkTimeout(200 * MS);
+        assertTrue(mMachine.isIdle());
+        assertEquals(Arrays.asList("capture", "left pictureTaken 200", "timedOut"), mActions);
+        assertEquals(-1, mMachine.getRemainingNanos(300 * MS));
+    }
+
+    @Test
+    public void lateCompletionDoesNotEndTheNextSequence() {
+        mMachine.setTimeout(STATE_PICTURE_TAKEN, 200 * MS);
+        mMachine.setFixedFocus(true);
+        mMachine.startStill(0);
+        long timedOut = mMachine.getSequence();
+        mMachine.checkTimeout(200 * MS);
+        assertTrue(mMachine.isIdle());
+
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING, 250 * MS);
+        assertTrue(mMachine.startStill(300 * MS));
+        assertFalse(mMachine.isCurrent(timedOut));
+        mMachine.finish(timedOut, 310 * MS);
+        assertEquals(STATE_WAITING_PRECAPTURE, mMachine.getState());
+
+        mMachine.finish(mMachine.getSequence(), 320 * MS);
+        assertTrue(mMachine.isIdle());
+    }
+
+    @Test
+    public void directCaptureWaitsForTheCaller() {
+        assertTrue(mMachine.startDirect(0));
+        assertEquals(STATE_PICTURE_TAKEN, mMachine.getState());
+        assertTrue(mActions.isEmpty());
+        mMachine.finish(mMachine.getSequence(), 10 * MS);
+        assertEquals(Arrays.asList("left pictureTaken 10"), mActions);
+    }
+
+    @Test
+    public void burstLocksFocusThenSubmits() {
+        assertTrue(mMachine.startBurst(0));
+        assertEquals(STATE_WAITING_BURST_LOCK, mMachine.getState());
+        mMachine.onResult(AF_STATE_FOCUSED_LOCKED, AE_STATE_LOCKED, 30 * MS);
+        assertEquals(STATE_BURST, mMachine.getState());
+        // The burst runs until the caller stops it.
+        mMachine.checkTimeout(60000 * MS);
+        assertEquals(STATE_BURST, mMachine.getState());
+        mMachine.finish(mMachine.getSequence(), 2000 * MS);
+        assertTrue(mMachine.isIdle());
+        assertEquals(Arrays.asList("lockFocus", "left waitingBurstLock 30", "burst",
+                "left burst 1970"), mActions);
+    }
+
+    @Test
+    public void burstLockTimesOut() {
+        mMachine.setTimeout(STATE_WAITING_BURST_LOCK, 100 * MS);
+        mMachine.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, 0);
+        mMachine.startBurst(0);
+        mMachine.checkTimeout(100 * MS);
+        assertEquals(STATE_BURST, mMachine.getState());
+        assertEquals("burst", mActions.get(mActions.size() - 1));
+    }
+
+    @Test
+    public void fixedFocusBurstSubmitsRightAway() {
+        mMachine.setFixedFocus(true);
+        mMachine.startBurst(0);
+        assertEquals(STATE_BURST, mMachine.getState());
+        assertEquals(Arrays.asList("burst"), mActions);
+    }
+
+    @Test
+    public void secondPressWhileBusyIsRejected() {
+        assertTrue(mMachine.startStill(0));
+        long sequence = mMachine.getSequence();
+        assertFalse(mMachine.startStill(MS));
+        assertFalse(mMachine.startDirect(MS));
+        assertFalse(mMachine.startBurst(MS));
+        assertEquals(STATE_WAITING_LOCK, mMachine.getState());
+        assertEquals(sequence, mMachine.getSequence());
+        assertEquals(Arrays.asList("lockFocus"), mActions);
+    }
+
+    @Test
+    public void resetDropsTheSequenceSilently() {
+        mMachine.startStill(0);
+        mMachine.reset();
+        assertTrue(mMachine.isIdle());
+        assertEquals(Arrays.asList("lockFocus"), mActions);
+        assertTrue(mMachine.startStill(MS));
+    }
+
+    @Test
+    public void finishWhileIdleIsIgnored() {
+        mMachine.finish(mMachine.getSequence(), 0);
+        assertTrue(mActions.isEmpty());
+        assertEquals(STATE_PREVIEW, mMachine.getState());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void previewHasNoTimeout() {
+        mMachine.setTimeout(STATE_PREVIEW, MS);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DurabilityPolicyTest {
+
+    @Test
+    public void noneNeverSyncs() {
+        DurabilityPolicy policy = DurabilityPolicy.none();
+        assertEquals(DurabilityPolicy.MODE_NONE, policy.getMode());
+        assertFalse(policy.syncsEveryFile());
+        assertFalse(policy.shouldSyncBatch(1000, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void everyFileSyncsEachFileAndNoBatches() {
+        DurabilityPolicy policy = DurabilityPolicy.everyFile();
+        assertTrue(policy.syncsEveryFile());
+        assertFalse(policy.shouldSyncBatch(1000, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void everyFilesSyncsOnceTheBatchIsFull() {
+        DurabilityPolicy policy = DurabilityPolicy.everyFiles(3);
+        assertFalse(policy.syncsEveryFile());
+        assertFalse(policy.shouldSyncBatch(2, Long.MAX_VALUE));
+        assertTrue(policy.shouldSyncBatch(3, 0));
+        assertEquals("fsync=every-3-files", policy.toString());
+    }
+
+    @Test
+    public void intervalSyncsPendingFilesOnceItElapses() {
+        DurabilityPolicy policy = DurabilityPolicy.interval(500);
+        long interval = TimeUnit.MILLISECONDS.toNanos(500);
+        assertFalse(policy.shouldSyncBatch(10, interval - 1));
+        assertTrue(policy.shouldSyncBatch(1, interval));
+        assertFalse(policy.shouldSyncBatch(0, interval * 2));
+        assertEquals("fsync=every-500ms", policy.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBatches() {
+        DurabilityPolicy.everyFiles(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeIntervals() {
+        DurabilityPolicy.interval(-1);
+    }
+}
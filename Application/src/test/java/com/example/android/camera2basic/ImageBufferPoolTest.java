@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImageBufferPoolTest {
+
+    private final PersistenceExecutor mExecutor = new PersistenceExecutor("Test", 1, 4);
+    private final ImageBufferPool mPool =
+            new ImageBufferPool(3, ImageBufferPool.POLICY_DROP_OLDEST, mExecutor);
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mExecutor.shutdown(1000);
+    }
+
+    @Test
+    public void runWhenReleasedRunsRightAwayWhenNothingIsHeld() {
+        CountingRunnable action = new CountingRunnable();
+        mPool.runWhenReleased(action);
+        assertEquals(1, action.mRuns.get());
+    }
+
+    @Test
+    public void runWhenReleasedWaitsForTheLastHeldImage() {
+        ZslRingBufferTest.FakeImage first = acquire(100);
+        ZslRingBufferTest.FakeImage second = acquire(200);
+        CountingRunnable action = new CountingRunnable();
+
+        mPool.runWhenReleased(action);
+        assertEquals(0, action.mRuns.get());
+        mPool.discard(first);
+        assertEquals(0, action.mRuns.get());
+        mPool.discard(second);
+        assertEquals(1, action.mRuns.get());
+
+        // It runs once only.
+        mPool.discard(acquire(300));
+        assertEquals(1, action.mRuns.get());
+    }
+
+    /**
+     * Stands in for {@link ImageBufferPool#acquire}, which needs a real reader.
+     */
+    private ZslRingBufferTest.FakeImage acquire(long timestamp) {
+        mPool.getAccounting().onAcquired();
+        return new ZslRingBufferTest.FakeImage(timestamp);
+    }
+
+    private static class CountingRunnable implements Runnable {
+
+        final AtomicInteger mRuns = new AtomicInteger();
+
+        @Override
+        public void run() {
+            mRuns.incrementAndGet();
+        }
+    }
+}
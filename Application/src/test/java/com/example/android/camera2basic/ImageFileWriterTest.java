@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageFileWriterTest {
+
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, (byte) 0xFF,
+            (byte) 0xD9, 0, 0};
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DurabilityPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mPolicy = ImageFileWriter.getDurabilityPolicy();
+        ImageFileWriter.setDurabilityPolicy(DurabilityPolicy.none());
+    }
+
+    @After
+    public void tearDown() {
+        ImageFileWriter.setDurabilityPolicy(mPolicy);
+    }
+
+    @Test
+    public void writeReplacesTheFileAndLeavesNoTemporaryFile() throws IOException {
+        File file = new File(mFolder.getRoot(), "a.jpg");
+        write(file, new byte[]{9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9});
+        ByteBuffer buffer = ByteBuffer.allocateDirect(JPEG.length);
+        buffer.put(JPEG).flip();
+
+        assertEquals(JPEG.length, ImageFileWriter.write(buffer, file));
+        assertFalse(buffer.hasRemaining());
+        assertArrayEquals(JPEG, read(file));
+        assertFalse(ImageFileWriter.getTempFile(file).exists());
+    }
+
+    @Test
+    public void recoverRenamesCompleteJpegs() throws IOException {
+        File file = new File(mFolder.getRoot(), "a.jpg");
+        write(ImageFileWriter.getTempFile(file), JPEG);
+
+        assertEquals(1, ImageFileWriter.recover(mFolder.getRoot()));
+        assertArrayEquals(JPEG, read(file));
+        assertFalse(ImageFileWriter.getTempFile(file).exists());
+    }
+
+    @Test
+    public void recoverDeletesTruncatedJpegs() throws IOException {
+        File file = new File(mFolder.getRoot(), "a.jpg");
+        write(ImageFileWriter.getTempFile(file), Arrays.copyOf(JPEG, 4));
+
+        assertEquals(1, ImageFileWriter.recover(mFolder.getRoot()));
+        assertFalse(file.exists());
+        assertFalse(ImageFileWriter.getTempFile(file).exists());
+    }
+
+    @Test
+    public void recoverKeepsAnExistingFileOverItsTemporaryFile() throws IOException {
+        File file = new File(mFolder.getRoot(), "a.jpg");
+        byte[] saved = Arrays.copyOf(JPEG, JPEG.length + 1);
+        write(file, saved);
+        write(ImageFileWriter.getTempFile(file), JPEG);
+
+        assertEquals(1, ImageFileWriter.recover(mFolder.getRoot()));
+        assertArrayEquals(saved, read(file));
+        assertFalse(ImageFileWriter.getTempFile(file).exists());
+    }
+
+    @Test
+    public void recoverDeletesEmptyJpegsAndIgnoresOtherFiles() throws IOException {
+        File empty = new File(mFolder.getRoot(), "empty.jpg");
+        File other = new File(mFolder.getRoot(), "notes.txt");
+        File complete = new File(mFolder.getRoot(), "b.jpg");
+        write(empty, new byte[0]);
+        write(other, new byte[0]);
+        write(complete, JPEG);
+
+        assertEquals(1, ImageFileWriter.recover(mFolder.getRoot()));
+        assertFalse(empty.exists());
+        assertTrue(other.exists());
+        assertTrue(complete.exists());
+    }
+
+    @Test
+    public void recoverOfAMissingDirectoryFindsNothing() {
+        assertEquals(0, ImageFileWriter.recover(new File(mFolder.getRoot(), "missing")));
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(data);
+        } finally {
+            input.close();
+        }
+        return data;
+    }
+}
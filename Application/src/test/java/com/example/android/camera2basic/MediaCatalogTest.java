@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MediaCatalogTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private MediaCatalog mCatalog;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "captures.catalog");
+        mCatalog = new MediaCatalog(mFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mCatalog.close();
+    }
+
+    @Test
+    public void replaysTheLogOnReopen() throws IOException {
+        assertTrue(mCatalog.isCreated());
+        mCatalog.add(new MediaCatalog.Entry("a.jpg", 1000, 2048, 4032, 3024, "0", 2, 3));
+        mCatalog.add(entry("b.jpg", 2000, "1"));
+
+        reopen();
+        assertFalse(mCatalog.isCreated());
+        assertEquals(2, mCatalog.getCount());
+        MediaCatalog.Entry a = mCatalog.get("a.jpg");
+        assertEquals(1000, a.getTimestamp());
+        assertEquals(2048, a.getSize());
+        assertEquals(4032, a.getWidth());
+        assertEquals(3024, a.getHeight());
+        assertEquals("0", a.getCameraId());
+        assertEquals(2, a.getEffectMode());
+        assertEquals(3, a.getFaceCount());
+        assertEquals("b.jpg", mCatalog.getLatest().getName());
+        assertArrayEquals(new String[]{"0", "1"}, mCatalog.getCameraIds());
+    }
+
+    @Test
+    public void laterEntriesReplaceEarlierOnesOfTheSameName() throws IOException {
+        mCatalog.add(entry("a.jpg", 1000, "0"));
+        mCatalog.add(entry("b.jpg", 2000, "0"));
+        mCatalog.add(entry("a.jpg", 3000, "1"));
+
+        reopen();
+        assertEquals(2, mCatalog.getCount());
+        assertEquals(3000, mCatalog.get("a.jpg").getTimestamp());
+        assertEquals("a.jpg", mCatalog.getLatest().getName());
+        assertEquals(1, mCatalog.getByCamera("0", 10).size());
+        assertEquals(1, mCatalog.getByCamera("1", 10).size());
+    }
+
+    @Test
+    public void tombstonesSurviveReopen() throws IOException {
+        mCatalog.add(entry("a.jpg", 1000, "0"));
+        mCatalog.add(entry("b.jpg", 2000, "1"));
+        assertTrue(mCatalog.remove("b.jpg"));
+        assertFalse(mCatalog.remove("b.jpg"));
+        assertFalse(mCatalog.remove("c.jpg"));
+
+        reopen();
+        assertEquals(1, mCatalog.getCount());
+        assertNull(mCatalog.get("b.jpg"));
+        assertEquals("a.jpg", mCatalog.getLatest().getName());
+        assertTrue(mCatalog.getByCamera("1", 10).isEmpty());
+        assertArrayEquals(new String[]{"0"}, mCatalog.getCameraIds());
+
+        // A picture saved again under a removed name comes back.
+        mCatalog.add(entry("b.jpg", 3000, "1"));
+        reopen();
+        assertEquals(3000, mCatalog.get("b.jpg").getTimestamp());
+    }
+
+    @Test
+    public void tornRecordIsTruncatedOnReopen() throws IOException {
+        mCatalog.add(entry("a.jpg", 1000, "0"));
+        long complete = mFile.length();
+        mCatalog.add(entry("b.jpg", 2000, "0"));
+        mCatalog.close();
+        truncate(complete + 10);
+
+        mCatalog = new MediaCatalog(mFile);
+        assertEquals(complete, mFile.length());
+        assertEquals(1, mCatalog.getCount());
+        assertNull(mCatalog.get("b.jpg"));
+
+        mCatalog.add(entry("c.jpg", 3000, "0"));
+        reopen();
+        assertEquals(2, mCatalog.getCount());
+        assertEquals("c.jpg", mCatalog.getLatest().getName());
+    }
+
+    @Test
+    public void unknownRecordEndsTheReplay() throws IOException {
+        mCatalog.add(entry("a.jpg", 1000, "0"));
+        long complete = mFile.length();
+        mCatalog.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(complete);
+        file.writeShort(0x7fff);
+        file.writeInt(0);
+        file.close();
+
+        mCatalog = new MediaCatalog(mFile);
+        assertEquals(complete, mFile.length());
+        assertEquals(1, mCatalog.getCount());
+    }
+
+    @Test
+    public void unreadableFileStartsOver() throws IOException {
+        mCatalog.add(entry("a.jpg", 1000, "0"));
+        mCatalog.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.writeInt(0x12345678);
+        file.close();
+
+        mCatalog = new MediaCatalog(mFile);
+        assertTrue(mCatalog.isCreated());
+        assertEquals(0, mCatalog.getCount());
+    }
+
+    @Test
+    public void ordersByCaptureTimeWhateverTheSaveOrder() throws IOException {
+        mCatalog.add(entry("b.jpg", 2000, "0"));
+        mCatalog.add(entry("c.jpg", 3000, "1"));
+        mCatalog.add(entry("a.jpg", 1000, "0"));
+        mCatalog.add(entry("d.jpg", 3000, "0"));
+
+        List<MediaCatalog.Entry> latest = mCatalog.getLatest(3);
+        assertEquals(3, latest.size());
+        assertEquals("d.jpg", latest.get(0).getName());
+        assertEquals("c.jpg", latest.get(1).getName());
+        assertEquals("b.jpg", latest.get(2).getName());
+        assertEquals(4, mCatalog.getLatest(10).size());
+        assertTrue(mCatalog.getLatest(0).isEmpty());
+
+        List<MediaCatalog.Entry> range = mCatalog.getRange(1000, 3000);
+        assertEquals(2, range.size());
+        assertEquals("a.jpg", range.get(0).getName());
+        assertEquals("b.jpg", range.get(1).getName());
+        assertTrue(mCatalog.getRange(3001, 4000).isEmpty());
+
+        List<MediaCatalog.Entry> rear = mCatalog.getByCamera("0", 2);
+        assertEquals(2, rear.size());
+        assertEquals("d.jpg", rear.get(0).getName());
+        assertEquals("b.jpg", rear.get(1).getName());
+        assertTrue(mCatalog.getByCamera("2", 10).isEmpty());
+    }
+
+    @Test
+    public void openImportsTheDirectoryOnce() throws IOException {
+        File gallery = mFolder.newFolder("gallery");
+        touch(new File(gallery, "a.jpg"), 5000);
+        touch(new File(gallery, "notes.txt"), 6000);
+        File file = new File(mFolder.newFolder("thumbnails"), "captures.catalog");
+
+        MediaCatalog catalog = MediaCatalog.open(file, gallery, ".jpg");
+        try {
+            assertSame(catalog, MediaCatalog.open(file, gallery, ".jpg"));
+            assertEquals(1, catalog.getCount());
+            MediaCatalog.Entry entry = catalog.get("a.jpg");
+            assertEquals(5000, entry.getTimestamp());
+            assertEquals(MediaCatalog.UNKNOWN, entry.getFaceCount());
+            assertEquals("", entry.getCameraId());
+        } finally {
+            catalog.close();
+        }
+
+        touch(new File(gallery, "b.jpg"), 7000);
+        catalog = MediaCatalog.open(file, gallery, ".jpg");
+        try {
+            assertEquals(1, catalog.getCount());
+        } finally {
+            catalog.close();
+        }
+    }
+
+    private void reopen() throws IOException {
+        mCatalog.close();
+        mCatalog = new MediaCatalog(mFile);
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(length);
+        file.close();
+    }
+
+    private static MediaCatalog.Entry entry(String name, long timestamp, String cameraId) {
+        return new MediaCatalog.Entry(name, timestamp, 100, 640, 480, cameraId, 0, 0);
+    }
+
+    private static void touch(File file, long lastModified) throws IOException {
+        new FileOutputStream(file).close();
+        assertTrue(file.setLastModified(lastModified));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsRegistryTest {
+
+    private static final double DELTA = 1e-9;
+
+    private final MetricsRegistry mRegistry = new MetricsRegistry();
+
+    @Test
+    public void metricsAreLookedUpByName() {
+        assertSame(mRegistry.counter("a"), mRegistry.counter("a"));
+        assertSame(mRegistry.gauge("b"), mRegistry.gauge("b"));
+        assertSame(mRegistry.histogram("c"), mRegistry.histogram("c"));
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void aNameHasOneKindOfMetric() {
+        mRegistry.counter("a");
+        mRegistry.gauge("a");
+    }
+
+    @Test
+    public void counterAccumulates() {
+        MetricsRegistry.Counter counter = mRegistry.counter("frames");
+        counter.increment();
+        counter.add(4);
+        assertEquals(5, counter.get());
+    }
+
+    @Test
+    public void gaugeKeepsItsHighestValue() {
+        MetricsRegistry.Gauge gauge = mRegistry.gauge("depth");
+        assertEquals(0, gauge.getMax());
+        gauge.set(3);
+        gauge.set(7);
+        gauge.set(2);
+        assertEquals(2, gauge.get());
+        assertEquals(7, gauge.getMax());
+    }
+
+    @Test
+    public void histogramReportsCountMeanAndMax() {
+        MetricsRegistry.Histogram histogram = mRegistry.histogram("latency");
+        assertEquals(0, histogram.getPercentileMillis(0.5), DELTA);
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.record(-5);
+        assertEquals(3, histogram.getCount());
+        assertEquals(4 / 3.0, histogram.getMeanMillis(), DELTA);
+        assertEquals(3, histogram.getMaxMillis(), DELTA);
+    }
+
+    @Test
+    public void percentilesAreWithinAFactorOfTwo() {
+        MetricsRegistry.Histogram histogram = mRegistry.histogram("latency");
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        double p50 = histogram.getPercentileMillis(0.5);
+        assertTrue("p50=" + p50, p50 >= 50 && p50 < 100);
+        double p99 = histogram.getPercentileMillis(0.99);
+        assertTrue("p99=" + p99, p99 >= 99 && p99 <= 100);
+        assertEquals(100, histogram.getPercentileMillis(1), DELTA);
+    }
+
+    @Test
+    public void snapshotListsMetricsSortedByName() {
+        mRegistry.histogram("b.latency").record(1000000);
+        mRegistry.counter("a.frames").increment();
+        mRegistry.gauge("c.depth").set(4);
+        String[] lines = mRegistry.snapshot().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("a.frames count=1 "));
+        assertTrue(lines[1], lines[1].startsWith("b.latency count=1 "));
+        assertEquals("c.depth value=4 max=4", lines[2]);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PersistenceExecutorTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private PersistenceExecutor mExecutor;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (null != mExecutor) {
+            mExecutor.shutdown(TIMEOUT_MS);
+        }
+    }
+
+    @Test
+    public void rejectsTasksOnceCapacityIsReached() throws InterruptedException {
+        mExecutor = new PersistenceExecutor("test", 1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(mExecutor.execute(blockUntil(release), PersistenceExecutor.PRIORITY_STILL));
+        assertTrue(mExecutor.execute(blockUntil(release), PersistenceExecutor.PRIORITY_STILL));
+        assertTrue(mExecutor.isSaturated());
+        assertFalse(mExecutor.execute(noop(), PersistenceExecutor.PRIORITY_STILL));
+        assertEquals(1, mExecutor.getRejectedCount());
+
+        release.countDown();
+        assertTrue(mExecutor.awaitIdle(TIMEOUT_MS));
+        assertFalse(mExecutor.isSaturated());
+        assertEquals(2, mExecutor.getExecutedCount());
+        assertTrue(mExecutor.execute(noop(), PersistenceExecutor.PRIORITY_STILL));
+    }
+
+    @Test
+    public void reportsBackpressureChanges() throws InterruptedException {
+        mExecutor = new PersistenceExecutor("test", 1, 1);
+        final List<Boolean> changes = Collections.synchronizedList(new ArrayList<Boolean>());
+        mExecutor.setBackpressureListener(new PersistenceExecutor.BackpressureListener() {
+            @Override
+            public void onBackpressureChanged(boolean saturated) {
+                changes.add(saturated);
+            }
+        });
+        CountDownLatch release = new CountDownLatch(1);
+        mExecutor.execute(blockUntil(release), PersistenceExecutor.PRIORITY_STILL);
+        mExecutor.execute(noop(), PersistenceExecutor.PRIORITY_STILL);
+        assertEquals(Collections.singletonList(true), changes);
+
+        release.countDown();
+        assertTrue(mExecutor.awaitIdle(TIMEOUT_MS));
+        assertEquals(2, changes.size());
+        assertFalse(changes.get(1));
+    }
+
+    @Test
+    public void runsQueuedTasksByPriorityThenInOrder() throws InterruptedException {
+        mExecutor = new PersistenceExecutor("test", 1, 8);
+        CountDownLatch release = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        mExecutor.execute(blockUntil(release), PersistenceExecutor.PRIORITY_STILL);
+        mExecutor.execute(record(order, "sidecar"), PersistenceExecutor.PRIORITY_SIDECAR);
+        mExecutor.execute(record(order, "thumbnail"), PersistenceExecutor.PRIORITY_THUMBNAIL);
+        mExecutor.execute(record(order, "still1"), PersistenceExecutor.PRIORITY_STILL);
+        mExecutor.execute(record(order, "still2"), PersistenceExecutor.PRIORITY_STILL);
+
+        release.countDown();
+        assertTrue(mExecutor.awaitIdle(TIMEOUT_MS));
+        assertEquals(Arrays.asList("still1", "still2", "thumbnail", "sidecar"), order);
+    }
+
+    @Test
+    public void awaitIdleTimesOutWhileTasksArePending() throws InterruptedException {
+        mExecutor = new PersistenceExecutor("test", 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        mExecutor.execute(blockUntil(release), PersistenceExecutor.PRIORITY_STILL);
+        assertFalse(mExecutor.awaitIdle(10));
+        assertEquals(1, mExecutor.getQueueDepth());
+        release.countDown();
+        assertTrue(mExecutor.awaitIdle(TIMEOUT_MS));
+        assertEquals(0, mExecutor.getQueueDepth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new PersistenceExecutor("test", 1, 0);
+    }
+
+    private static Runnable blockUntil(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    private static Runnable noop() {
+        return record(new ArrayList<String>(), "noop");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SizeSelectorTest {
+
+    private static final int JPEG = CameraCapabilities.TABLE_JPEG;
+    private static final int PREVIEW = CameraCapabilities.TABLE_PREVIEW;
+
+    private SizeSelector mSelector;
+
+    @Before
+    public void setUp() {
+        CameraCapabilities capabilities = new CameraCapabilities.Builder("0")
+                .setSizes(JPEG, new int[]{
+                        4000, 3000, 1920, 1080, 640, 480, 4000, 2250, 1280, 720, 1440, 1080})
+                .setSizes(PREVIEW, new int[]{1920, 1080, 1280, 720, 960, 720, 640, 480})
+                .build();
+        mSelector = new SizeSelector(capabilities);
+    }
+
+    @Test
+    public void packRoundTrips() {
+        long size = SizeSelector.pack(4000, 3000);
+        assertEquals(4000, SizeSelector.width(size));
+        assertEquals(3000, SizeSelector.height(size));
+    }
+
+    @Test
+    public void ratiosAreReducedExactly() {
+        assertEquals(SizeSelector.pack(16, 9), SizeSelector.ratio(1920, 1080));
+        assertEquals(SizeSelector.pack(16, 9), SizeSelector.ratio(4000, 2250));
+        assertEquals(SizeSelector.pack(4, 3), SizeSelector.ratio(1440, 1080));
+        assertEquals(SizeSelector.NONE, SizeSelector.ratio(0, 0));
+    }
+
+    @Test
+    public void tablesAreGroupedByRatio() {
+        assertEquals(2, mSelector.getRatioCount(JPEG));
+        assertEquals(2, mSelector.getRatioCount(PREVIEW));
+        assertEquals(0, mSelector.getRatioCount(CameraCapabilities.TABLE_VIDEO));
+    }
+
+    @Test
+    public void largestIgnoresOrWantsTheRatio() {
+        assertEquals(SizeSelector.pack(4000, 3000), mSelector.largest(JPEG));
+        assertEquals(SizeSelector.pack(4000, 2250), mSelector.largest(JPEG, 16, 9));
+        assertEquals(SizeSelector.NONE, mSelector.largest(JPEG, 1, 1));
+        assertEquals(SizeSelector.NONE, mSelector.largest(CameraCapabilities.TABLE_VIDEO));
+    }
+
+    @Test
+    public void largestAtMostPixels() {
+        assertEquals(SizeSelector.pack(1440, 1080),
+                mSelector.largestAtMostPixels(JPEG, 4, 3, 4000L * 3000 - 1));
+        assertEquals(SizeSelector.pack(4000, 3000),
+                mSelector.largestAtMostPixels(JPEG, 4, 3, 4000L * 3000));
+        assertEquals(SizeSelector.NONE, mSelector.largestAtMostPixels(JPEG, 4, 3, 1000));
+    }
+
+    @Test
+    public void largestWithin() {
+        assertEquals(SizeSelector.pack(1920, 1080),
+                mSelector.largestWithin(JPEG, 16, 9, 1920, 1080));
+        assertEquals(SizeSelector.pack(1280, 720),
+                mSelector.largestWithin(JPEG, 16, 9, 1919, 1080));
+        assertEquals(SizeSelector.NONE, mSelector.largestWithin(JPEG, 16, 9, 100, 100));
+    }
+
+    @Test
+    public void smallestAtLeast() {
+        assertEquals(SizeSelector.pack(1280, 720),
+                mSelector.smallestAtLeast(PREVIEW, 16, 9, 1000, 700));
+        assertEquals(SizeSelector.NONE,
+                mSelector.smallestAtLeast(PREVIEW, 16, 9, 2000, 1000));
+    }
+
+    @Test
+    public void chooseOptimalFallsBackToTheLargestWithinTheBounds() {
+        assertEquals(SizeSelector.pack(960, 720),
+                mSelector.chooseOptimal(PREVIEW, 4, 3, 700, 500, 1920, 1080));
+        assertEquals(SizeSelector.pack(960, 720),
+                mSelector.chooseOptimal(PREVIEW, 4, 3, 3000, 3000, 1920, 1080));
+        assertEquals(SizeSelector.pack(640, 480),
+                mSelector.chooseOptimal(PREVIEW, 4, 3, 3000, 3000, 800, 600));
+        assertEquals(SizeSelector.NONE,
+                mSelector.chooseOptimal(PREVIEW, 4, 3, 100, 100, 320, 240));
+        assertEquals(SizeSelector.NONE,
+                mSelector.chooseOptimal(PREVIEW, 1, 1, 100, 100, 1920, 1080));
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StartupSchedulerTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<String> mRan = new ArrayList<>();
+    private String mSummary;
+    private String mFailedStage;
+    private Throwable mFailure;
+    private int mFailures;
+
+    private final StartupScheduler.Listener mListener = new StartupScheduler.Listener() {
+        @Override
+        public void onStartupFinished(String summary) {
+            mSummary = summary;
+        }
+
+        @Override
+        public void onStartupFailed(String stage, Throwable cause) {
+            mFailedStage = stage;
+            mFailure = cause;
+            mFailures++;
+        }
+    };
+
+    @Test
+    public void runsEachStageAfterItsDependencies() {
+        StartupScheduler startup = new StartupScheduler("test.dag", mListener);
+        int a = startup.addStage("a", DIRECT, record("a"));
+        int b = startup.addStage("b", DIRECT, record("b"), a);
+        int c = startup.addStage("c", DIRECT, record("c"), a);
+        int d = startup.addStage("d", DIRECT, record("d"), c, b);
+        startup.start();
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), mRan);
+        assertTrue(startup.isComplete(d));
+        assertTrue(startup.getCompletionNanos(d) >= startup.getCompletionNanos(b));
+        assertTrue(startup.getCompletionNanos(d) >= startup.getCompletionNanos(c));
+        assertTrue(mSummary.startsWith("a "));
+        assertFalse(startup.isFailed());
+    }
+
+    @Test
+    public void asyncStageWaitsForComplete() {
+        StartupScheduler startup = new StartupScheduler("test.async", mListener);
+        int open = startup.addAsyncStage("open", DIRECT, record("open"));
+        startup.addStage("session", DIRECT, record("session"), open);
+        startup.start();
+
+        assertEquals(Arrays.asList("open"), mRan);
+        assertFalse(startup.isComplete(open));
+        assertNull(mSummary);
+
+        startup.complete(open);
+        assertEquals(Arrays.asList("open", "session"), mRan);
+        assertTrue(mSummary.contains("session"));
+    }
+
+    @Test
+    public void signalCompletedEarlyCompletesAfterItsDependencies() {
+        StartupScheduler startup = new StartupScheduler("test.signal", mListener);
+        QueueExecutor queue = new QueueExecutor();
+        int io = startup.addStage("io", queue, record("io"));
+        int surface = startup.addSignal("surface", io);
+        startup.addStage("session", DIRECT, record("session"), surface);
+        startup.start();
+
+        startup.complete(surface);
+        assertFalse(startup.isComplete(surface));
+        queue.runAll();
+        assertTrue(startup.isComplete(surface));
+        assertEquals(Arrays.asList("io", "session"), mRan);
+    }
+
+    @Test
+    public void completingWorkThatHasNotStartedIsIgnored() {
+        StartupScheduler startup = new StartupScheduler("test.early", mListener);
+        QueueExecutor queue = new QueueExecutor();
+        int first = startup.addStage("first", queue, record("first"));
+        int second = startup.addAsyncStage("second", DIRECT, record("second"), first);
+        startup.start();
+
+        startup.complete(second);
+        assertFalse(startup.isComplete(second));
+        queue.runAll();
+        assertEquals(Arrays.asList("first", "second"), mRan);
+        assertFalse(startup.isComplete(second));
+    }
+
+    @Test
+    public void failedAsyncStageStopsItsDependents() {
+        StartupScheduler startup = new StartupScheduler("test.fail", mListener);
+        int open = startup.addAsyncStage("open", DIRECT, record("open"));
+        int session = startup.addStage("session", DIRECT, record("session"), open);
+        startup.start();
+
+        IllegalStateException cause = new IllegalStateException("Camera error");
+        startup.fail(open, cause);
+        assertTrue(startup.isFailed());
+        assertTrue(startup.isCancelled());
+        assertEquals("open", mFailedStage);
+        assertSame(cause, mFailure);
+
+        // A late completion neither starts the dependents nor fails again.
+        startup.complete(open);
+        startup.fail(open, cause);
+        assertEquals(Arrays.asList("open"), mRan);
+        assertFalse(startup.isComplete(session));
+        assertEquals(1, mFailures);
+        assertNull(mSummary);
+    }
+
+    @Test
+    public void stageThatThrowsFailsTheStartup() {
+        StartupScheduler startup = new StartupScheduler("test.throw", mListener);
+        final RuntimeException cause = new RuntimeException("No capabilities");
+        int capabilities = startup.addStage("capabilities", DIRECT, new Runnable() {
+            @Override
+            public void run() {
+                throw cause;
+            }
+        });
+        int readers = startup.addStage("readers", DIRECT, record("readers"), capabilities);
+        startup.addStage("session", DIRECT, record("session"), readers);
+        // The failure goes to the listener instead of the thread of the executor.
+        startup.start();
+
+        assertTrue(startup.isFailed());
+        assertEquals("capabilities", mFailedStage);
+        assertSame(cause, mFailure);
+        assertTrue(mRan.isEmpty());
+        assertFalse(startup.isComplete(readers));
+    }
+
+    @Test
+    public void rejectedStageFailsTheStartup() {
+        StartupScheduler startup = new StartupScheduler("test.rejected", mListener);
+        final RejectedExecutionException cause = new RejectedExecutionException("Full");
+        Executor full = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw cause;
+            }
+        };
+        int recovery = startup.addStage("recovery", full, record("recovery"));
+        int gallery = startup.addStage("gallery", DIRECT, record("gallery"), recovery);
+        startup.start();
+
+        assertTrue(startup.isFailed());
+        assertEquals("recovery", mFailedStage);
+        assertSame(cause, mFailure);
+        assertTrue(mRan.isEmpty());
+        assertFalse(startup.isComplete(gallery));
+    }
+
+    @Test
+    public void cancelStopsQueuedWork() {
+        StartupScheduler startup = new StartupScheduler("test.cancel", mListener);
+        QueueExecutor queue = new QueueExecutor();
+        startup.addStage("io", queue, record("io"));
+        startup.start();
+
+        startup.cancel();
+        queue.runAll();
+        assertTrue(mRan.isEmpty());
+        assertFalse(startup.isFailed());
+        assertEquals(0, mFailures);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownDependency() {
+        new StartupScheduler("test.unknown", mListener).addStage("a", DIRECT, record("a"), 3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsStagesAddedAfterStart() {
+        StartupScheduler startup = new StartupScheduler("test.late", mListener);
+        startup.addSignal("surface");
+        startup.start();
+        startup.addSignal("late");
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRan.add(name);
+            }
+        };
+    }
+
+    /**
+     * Holds commands until {@link #runAll()}.
+     */
+    private static final class QueueExecutor implements Executor {
+
+        private final List<Runnable> mCommands = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mCommands.add(command);
+        }
+
+        void runAll() {
+            while (!mCommands.isEmpty()) {
+                mCommands.remove(0).run();
+            }
+        }
+    }
+}
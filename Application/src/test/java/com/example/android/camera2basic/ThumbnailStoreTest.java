@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ThumbnailStoreTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private ThumbnailStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "thumbnails.pack");
+        mStore = new ThumbnailStore(mFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mStore.close();
+    }
+
+    @Test
+    public void readsBackByKeyAndOffset() throws IOException {
+        long offset = mStore.put("a.jpg", data(100, 1));
+        mStore.put("b.jpg", data(50, 2));
+
+        assertArrayEquals(data(100, 1), mStore.get("a.jpg"));
+        assertArrayEquals(data(100, 1), mStore.readAt(offset));
+        assertArrayEquals(data(50, 2), mStore.get("b.jpg"));
+        assertEquals(offset, mStore.getOffset("a.jpg"));
+        assertNull(mStore.get("c.jpg"));
+        assertEquals(-1, mStore.getOffset("c.jpg"));
+        assertEquals(2, mStore.getCount());
+    }
+
+    @Test
+    public void reopenRebuildsTheIndex() throws IOException {
+        mStore.put("a.jpg", data(100, 1));
+        mStore.put("b.jpg", data(200, 2));
+        mStore.put("a.jpg", data(300, 3));
+        long garbage = mStore.getGarbageBytes();
+        assertTrue(garbage > 100);
+
+        reopen();
+        assertEquals(2, mStore.getCount());
+        assertArrayEquals(data(300, 3), mStore.get("a.jpg"));
+        assertArrayEquals(data(200, 2), mStore.get("b.jpg"));
+        assertEquals(garbage, mStore.getGarbageBytes());
+    }
+
+    @Test
+    public void removalSurvivesReopen() throws IOException {
+        mStore.put("a.jpg", data(100, 1));
+        mStore.put("b.jpg", data(100, 2));
+        assertTrue(mStore.remove("a.jpg"));
+        assertFalse(mStore.remove("a.jpg"));
+        assertFalse(mStore.contains("a.jpg"));
+        long garbage = mStore.getGarbageBytes();
+
+        reopen();
+        assertFalse(mStore.contains("a.jpg"));
+        assertArrayEquals(data(100, 2), mStore.get("b.jpg"));
+        assertEquals(garbage, mStore.getGarbageBytes());
+
+        // Storing a removed key again brings it back.
+        mStore.put("a.jpg", data(10, 4));
+        reopen();
+        assertArrayEquals(data(10, 4), mStore.get("a.jpg"));
+    }
+
+    @Test
+    public void tornEntryIsTruncatedOnReopen() throws IOException {
+        mStore.put("a.jpg", data(100, 1));
+        long complete = mStore.getFileBytes();
+        mStore.put("b.jpg", data(100, 2));
+        mStore.close();
+        // A crash in the middle of writing the data of the last entry.
+        truncate(complete + 40);
+
+        mStore = new ThumbnailStore(mFile);
+        assertEquals(complete, mStore.getFileBytes());
+        assertEquals(1, mStore.getCount());
+        assertFalse(mStore.contains("b.jpg"));
+        assertArrayEquals(data(100, 1), mStore.get("a.jpg"));
+
+        // Appending goes on from the end of the last complete entry.
+        mStore.put("b.jpg", data(100, 5));
+        reopen();
+        assertArrayEquals(data(100, 5), mStore.get("b.jpg"));
+    }
+
+    @Test
+    public void tornHeaderIsTruncatedOnReopen() throws IOException {
+        mStore.put("a.jpg", data(100, 1));
+        long complete = mStore.getFileBytes();
+        mStore.put("IMAGE_20170602_120000.jpg", data(100, 2));
+        mStore.close();
+        truncate(complete + 5);
+
+        mStore = new ThumbnailStore(mFile);
+        assertEquals(complete, mStore.getFileBytes());
+        assertEquals(1, mStore.getCount());
+    }
+
+    @Test
+    public void garbageAfterTheLastEntryIsTruncatedOnReopen() throws IOException {
+        mStore.put("a.jpg", data(100, 1));
+        long complete = mStore.getFileBytes();
+        mStore.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(complete);
+        file.write(data(30, 9));
+        file.close();
+
+        mStore = new ThumbnailStore(mFile);
+        assertEquals(complete, mStore.getFileBytes());
+        assertArrayEquals(data(100, 1), mStore.get("a.jpg"));
+    }
+
+    @Test
+    public void unknownFileStartsOver() throws IOException {
+        mStore.put("a.jpg", data(100, 1));
+        mStore.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.writeInt(0x12345678);
+        file.close();
+
+        mStore = new ThumbnailStore(mFile);
+        assertEquals(0, mStore.getCount());
+        assertEquals(8, mStore.getFileBytes());
+    }
+
+    @Test
+    public void compactsOnceGarbageOutweighsLiveEntries() throws IOException {
+        mStore.put("keep.jpg", data(1000, 1));
+        long peak = 0;
+        for (int i = 0; i < 100; i++) {
+            mStore.put("replaced.jpg", data(10 * 1024, i));
+            peak = Math.max(peak, mStore.getFileBytes());
+        }
+
+        assertTrue(mStore.getFileBytes() < peak);
+        assertTrue(peak < 400 * 1024);
+        assertArrayEquals(data(1000, 1), mStore.get("keep.jpg"));
+        assertArrayEquals(data(10 * 1024, 99), mStore.get("replaced.jpg"));
+        long offset = mStore.getOffset("replaced.jpg");
+        assertArrayEquals(data(10 * 1024, 99), mStore.readAt(offset));
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+
+        reopen();
+        assertEquals(2, mStore.getCount());
+        assertArrayEquals(data(10 * 1024, 99), mStore.get("replaced.jpg"));
+    }
+
+    @Test
+    public void putReturnsTheOffsetAfterCompaction() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            long offset = mStore.put("a.jpg", data(10 * 1024, i));
+            assertArrayEquals(data(10 * 1024, i), mStore.readAt(offset));
+        }
+    }
+
+    @Test
+    public void compactDropsGarbageAndTombstones() throws IOException {
+        mStore.put("a.jpg", data(100, 1));
+        mStore.put("b.jpg", data(100, 2));
+        mStore.put("a.jpg", data(100, 3));
+        mStore.remove("b.jpg");
+        mStore.put("c.jpg", data(100, 4));
+
+        mStore.compact();
+        assertEquals(0, mStore.getGarbageBytes());
+        assertEquals(2, mStore.getCount());
+        assertArrayEquals(data(100, 3), mStore.get("a.jpg"));
+        assertArrayEquals(data(100, 4), mStore.get("c.jpg"));
+        long bytes = mStore.getFileBytes();
+
+        reopen();
+        assertEquals(bytes, mStore.getFileBytes());
+        assertEquals(0, mStore.getGarbageBytes());
+        assertFalse(mStore.contains("b.jpg"));
+        assertArrayEquals(data(100, 3), mStore.get("a.jpg"));
+    }
+
+    @Test(expected = IOException.class)
+    public void readAtRejectsAnOffsetWithoutEntry() throws IOException {
+        mStore.put("a.jpg", data(100, 1));
+        mStore.readAt(9);
+    }
+
+    private void reopen() throws IOException {
+        mStore.close();
+        mStore = new ThumbnailStore(mFile);
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(length);
+        file.close();
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        data[0] = (byte) (seed >> 8);
+        return data;
+    }
+}
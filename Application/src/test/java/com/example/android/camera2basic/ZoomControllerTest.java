@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZoomControllerTest {
+
+    private static final long FRAME_NANOS = 16666667;
+    private static final float DELTA = 1e-4f;
+
+    private final ZoomController mZoom = new ZoomController();
+
+    @Before
+    public void setUp() {
+        mZoom.setActiveArray(0, 0, 4000, 3000, 4f);
+    }
+
+    @Test
+    public void startsUncropped() {
+        assertFalse(mZoom.hasCrop());
+        assertEquals(0, mZoom.getCropLeft());
+        assertEquals(0, mZoom.getCropTop());
+        assertEquals(4000, mZoom.getCropRight());
+        assertEquals(3000, mZoom.getCropBottom());
+        assertFalse(mZoom.step(FRAME_NANOS));
+    }
+
+    @Test
+    public void targetIsClampedToTheCameraRange() {
+        mZoom.setTargetZoom(10f);
+        assertEquals(4f, mZoom.getTargetZoom(), DELTA);
+        mZoom.setTargetZoom(0.5f);
+        assertEquals(1f, mZoom.getTargetZoom(), DELTA);
+    }
+
+    @Test
+    public void pinchScalesTheZoomAtItsStart() {
+        mZoom.setTargetZoom(2f);
+        mZoom.beginPinch(100f);
+        mZoom.pinch(150f);
+        assertEquals(3f, mZoom.getTargetZoom(), DELTA);
+        mZoom.endPinch();
+        mZoom.pinch(300f);
+        assertEquals(3f, mZoom.getTargetZoom(), DELTA);
+    }
+
+    @Test
+    public void stepEasesTowardTheTargetAndSnaps() {
+        mZoom.setTargetZoom(2f);
+        assertTrue(mZoom.isAnimating());
+        long now = 0;
+        float previous = mZoom.getZoom();
+        assertTrue(mZoom.step(now += FRAME_NANOS));
+        assertTrue(mZoom.getZoom() > previous && mZoom.getZoom() < 2f);
+        for (int i = 0; i < 100 && mZoom.isAnimating(); i++) {
+            previous = mZoom.getZoom();
+            mZoom.step(now += FRAME_NANOS);
+            assertTrue(mZoom.getZoom() >= previous);
+        }
+        assertFalse(mZoom.isAnimating());
+        assertEquals(2f, mZoom.getZoom(), 0f);
+        assertFalse(mZoom.step(now + FRAME_NANOS));
+    }
+
+    @Test
+    public void cropIsCenteredAndAligned() {
+        mZoom.setTargetZoom(2f);
+        for (long now = FRAME_NANOS; mZoom.isAnimating(); now += FRAME_NANOS) {
+            mZoom.step(now);
+        }
+        assertTrue(mZoom.hasCrop());
+        assertEquals(1000, mZoom.getCropLeft());
+        assertEquals(748, mZoom.getCropTop());
+        assertEquals(3000, mZoom.getCropRight());
+        assertEquals(2252, mZoom.getCropBottom());
+        assertEquals(0, mZoom.getCropLeft() & 3);
+        assertEquals(0, mZoom.getCropTop() & 3);
+    }
+
+    @Test
+    public void settingTheActiveArrayResetsTheZoom() {
+        mZoom.setTargetZoom(3f);
+        mZoom.step(FRAME_NANOS);
+        mZoom.setActiveArray(8, 8, 2000, 1500, 2f);
+        assertEquals(1f, mZoom.getZoom(), 0f);
+        assertFalse(mZoom.isAnimating());
+        assertFalse(mZoom.hasCrop());
+        assertEquals(8, mZoom.getCropLeft());
+        assertEquals(2008, mZoom.getCropRight());
+    }
+}
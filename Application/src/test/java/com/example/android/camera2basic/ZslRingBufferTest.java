@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.Image;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ZslRingBufferTest {
+
+    @Test
+    public void chooseCapacityFitsTheMemoryBudget() {
+        int frameBytes = YuvConverter.nv21Size(640, 480);
+        assertEquals(3, ZslRingBuffer.chooseCapacity(frameBytes * 3L + 1, 640, 480));
+        assertEquals(1, ZslRingBuffer.chooseCapacity(0, 640, 480));
+        assertEquals(8, ZslRingBuffer.chooseCapacity(Long.MAX_VALUE, 640, 480));
+    }
+
+    @Test
+    public void readerHoldsTheRingPlusTwoFrames() {
+        assertEquals(5, new ZslRingBuffer(3).getReaderMaxImages());
+    }
+
+    @Test
+    public void evictsAndClosesTheOldestFrameWhenFull() {
+        ZslRingBuffer ring = new ZslRingBuffer(2);
+        FakeImage first = new FakeImage(100);
+        FakeImage second = new FakeImage(200);
+        FakeImage third = new FakeImage(300);
+        ring.add(first);
+        ring.add(second);
+        ring.add(third);
+        assertTrue(first.mClosed);
+        assertFalse(second.mClosed);
+        assertEquals(300, ring.getLatestTimestamp());
+        assertSame(second, ring.take(0));
+        assertSame(third, ring.take(0));
+        assertNull(ring.take(0));
+    }
+
+    @Test
+    public void takeReturnsTheClosestFrameAndKeepsTheOthersInOrder() {
+        ZslRingBuffer ring = new ZslRingBuffer(4);
+        FakeImage[] images = {
+                new FakeImage(100), new FakeImage(200), new FakeImage(300), new FakeImage(400)};
+        for (FakeImage image : images) {
+            ring.add(image);
+        }
+        assertSame(images[1], ring.take(190));
+        assertFalse(images[1].mClosed);
+        assertEquals(400, ring.getLatestTimestamp());
+        assertSame(images[3], ring.take(1000));
+        assertEquals(300, ring.getLatestTimestamp());
+        assertSame(images[0], ring.take(0));
+        assertSame(images[2], ring.take(0));
+        assertEquals(0, ring.getLatestTimestamp());
+    }
+
+    @Test
+    public void takeWorksAcrossTheWrapAround() {
+        ZslRingBuffer ring = new ZslRingBuffer(3);
+        FakeImage[] images = new FakeImage[5];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = new FakeImage((i + 1) * 100);
+            ring.add(images[i]);
+        }
+        assertSame(images[3], ring.take(400));
+        assertSame(images[4], ring.take(500));
+        assertSame(images[2], ring.take(0));
+        assertNull(ring.take(0));
+    }
+
+    @Test
+    public void clearClosesEveryFrame() {
+        ZslRingBuffer ring = new ZslRingBuffer(3);
+        FakeImage first = new FakeImage(100);
+        FakeImage second = new FakeImage(200);
+        ring.add(first);
+        ring.add(second);
+        ring.clear();
+        assertTrue(first.mClosed);
+        assertTrue(second.mClosed);
+        assertNull(ring.take(100));
+        ring.add(new FakeImage(300));
+        assertEquals(300, ring.getLatestTimestamp());
+    }
+
+    /**
+     * An image with only a timestamp, remembering whether it was closed.
+     */
+    static class FakeImage extends Image {
+
+        private final long mTimestamp;
+        boolean mClosed;
+
+        FakeImage(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        public int getFormat() {
+            return 0;
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public Plane[] getPlanes() {
+            return new Plane[0];
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+}
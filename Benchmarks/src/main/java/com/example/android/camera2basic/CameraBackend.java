@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * What the capture pipeline needs from a camera, in plain Java types instead of
+ * {@code android.hardware.camera2} ones, so that the pipeline can also be driven by
+ * {@link SimulatedCameraBackend} on a desktop JVM.
+ *
+ * <p>A backend has at most one open device with one session. The session has up to three
+ * streams: the preview, a YUV stream and a JPEG stream. Requests name the streams they fill and
+ * carry the focus and precapture triggers. The {@link Listener} receives results, images and
+ * errors in the order the camera produced them.</p>
+ */
+public interface CameraBackend {
+
+    int OUTPUT_PREVIEW = 1;
+    int OUTPUT_YUV = 2;
+    int OUTPUT_JPEG = 4;
+
+    int TRIGGER_NONE = 0;
+    int TRIGGER_START = 1;
+    int TRIGGER_CANCEL = 2;
+
+    /**
+     * Error of {@link Listener#onError}: the camera could not be opened or failed while open.
+     */
+    int ERROR_CAMERA_DEVICE = 4;
+
+    /**
+     * Receives the output of the open device.
+     */
+    interface Listener {
+
+        void onOpened(String cameraId);
+
+        void onError(String cameraId, int error);
+
+        /**
+         * The exposure of the frame filling {@code request} started.
+         */
+        void onCaptureStarted(Request request, long sensorTimestamp);
+
+        void onCaptureCompleted(Request request, FrameResult result);
+
+        /**
+         * No result or image will come for the frame of {@code request}.
+         */
+        void onCaptureFailed(Request request, long frameNumber);
+
+        /**
+         * A YUV or JPEG image is ready. It must be {@link FrameImage#close() closed} for its
+         * buffer to be filled again.
+         */
+        void onImageAvailable(FrameImage image);
+    }
+
+    /**
+     * The streams to fill with one frame and the triggers to send with it.
+     */
+    final class Request {
+
+        private final int mOutputs;
+        private final int mAfTrigger;
+        private final int mAePrecaptureTrigger;
+        private final Object mTag;
+
+        /**
+         * @param outputs             A combination of the {@code OUTPUT_*} flags
+         * @param afTrigger           One of the {@code TRIGGER_*} constants
+         * @param aePrecaptureTrigger {@link #TRIGGER_NONE} or {@link #TRIGGER_START}
+         * @param tag                 Handed back with the results, or null
+         */
+        public Request(int outputs, int afTrigger, int aePrecaptureTrigger, Object tag) {
+            mOutputs = outputs;
+            mAfTrigger = afTrigger;
+            mAePrecaptureTrigger = aePrecaptureTrigger;
+            mTag = tag;
+        }
+
+        public int getOutputs() {
+            return mOutputs;
+        }
+
+        public boolean hasOutput(int output) {
+            return (mOutputs & output) != 0;
+        }
+
+        public int getAfTrigger() {
+            return mAfTrigger;
+        }
+
+        public int getAePrecaptureTrigger() {
+            return mAePrecaptureTrigger;
+        }
+
+        public Object getTag() {
+            return mTag;
+        }
+    }
+
+    String[] getCameraIds();
+
+    CameraCapabilities getCapabilities(String cameraId);
+
+    /**
+     * Opens {@code cameraId}, closing the open device if any. The result is reported to
+     * {@code listener}.
+     */
+    void open(String cameraId, Listener listener);
+
+    /**
+     * Creates the streams of the session, replacing the current ones.
+     *
+     * @param maxImages The number of buffers of the YUV and JPEG streams each; a stream whose
+     *                  buffers are all held by unclosed images drops frames
+     */
+    void configure(int yuvWidth, int yuvHeight, int jpegWidth, int jpegHeight, int maxImages);
+
+    /**
+     * Fills {@code request} with every frame that has no one-off request to fill, until replaced
+     * or {@link #stopRepeating()}.
+     */
+    void setRepeatingRequest(Request request);
+
+    /**
+     * Fills {@code request} with the next frame, ahead of the repeating request.
+     */
+    void capture(Request request);
+
+    void stopRepeating();
+
+    /**
+     * Closes the device and its session. Images already delivered stay valid until closed.
+     */
+    void close();
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work {@code mCaptureCallback} does for each preview result, through the
+ * {@link PreviewResultProcessor} it uses: count the faces while the preview is idle and feed the
+ * 3A states to the {@link CaptureStateMachine}. The results are recorded from a
+ * {@link SimulatedCameraBackend}; reading them out of a {@code CaptureResult} and logging are
+ * not included.
+ *
+ * <p>The {@code preview} sequence is the steady preview. The {@code focusLock} and
+ * {@code precapture} sequences replay one still capture over and over, from the shutter press to
+ * the still request, so the state machine spends most results waiting for the focus lock, and
+ * for the precapture in low light.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CaptureResultBenchmark {
+
+    private static final long FRAME_PERIOD_NANOS = 33333333;
+
+    @Param({"preview", "focusLock", "precapture"})
+    public String sequence;
+
+    @Param({"0", "5"})
+    public int maxFaces;
+
+    private FrameResult[] mResults;
+    private boolean mStill;
+    private CaptureStateMachine mCaptureStateMachine;
+    private PreviewResultProcessor mProcessor;
+    private int mNext;
+    private long mNowNanos;
+
+    @Setup
+    public void setUp() {
+        if ("preview".equals(sequence)) {
+            mResults = SimulatedFrames.results(300, maxFaces);
+        } else {
+            mResults = SimulatedFrames.stillSequence("precapture".equals(sequence), maxFaces);
+            mStill = true;
+        }
+        mCaptureStateMachine = new CaptureStateMachine(new CaptureStateMachine.Listener() {
+            @Override
+            public void onLockFocus() {
+            }
+
+            @Override
+            public void onRunPrecapture() {
+            }
+
+            @Override
+            public void onCaptureStill() {
+            }
+
+            @Override
+            public void onSubmitBurst() {
+            }
+
+            @Override
+            public void onCaptureTimedOut() {
+            }
+
+            @Override
+            public void onStateLeft(int state, long durationNanos) {
+            }
+        });
+        mProcessor = new PreviewResultProcessor(mCaptureStateMachine);
+    }
+
+    @Benchmark
+    public int previewResult() {
+        FrameResult result = mResults[mNext];
+        mNowNanos += FRAME_PERIOD_NANOS;
+        int faces = 0;
+        if (mProcessor.wantsFaces(false)) {
+            faces = result.getFaceCount();
+            mProcessor.onFaces(faces);
+        }
+        mProcessor.onStates(false, result.getAfState(), result.getAeState(), mNowNanos);
+        if (mStill) {
+            if (mNext == 0) {
+                // The first result is the last one before the shutter press.
+                mCaptureStateMachine.startStill(mNowNanos);
+            } else if (mCaptureStateMachine.getState()
+                    == CaptureStateMachine.STATE_PICTURE_TAKEN) {
+                mCaptureStateMachine.finish(mCaptureStateMachine.getSequence(), mNowNanos);
+            }
+        }
+        mNext = (mNext + 1) % mResults.length;
+        return faces;
+    }
+}
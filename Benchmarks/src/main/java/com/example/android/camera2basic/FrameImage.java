@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An image from a {@link CameraBackend}, the counterpart of an {@code android.media.Image}: a
+ * YUV_420_888 image with three planes or a JPEG image with one. The planes are buffers of the
+ * backend, handed back when the image is closed.
+ */
+public final class FrameImage {
+
+    /**
+     * Value of {@link #getFormat()}, as {@code ImageFormat.YUV_420_888}.
+     */
+    public static final int FORMAT_YUV_420_888 = 0x23;
+
+    /**
+     * Value of {@link #getFormat()}, as {@code ImageFormat.JPEG}.
+     */
+    public static final int FORMAT_JPEG = 0x100;
+
+    /**
+     * Takes back the buffers of closed images.
+     */
+    interface Recycler {
+
+        void recycle(FrameImage image);
+    }
+
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mTimestamp;
+    private final ByteBuffer[] mPlanes;
+    private final int[] mRowStrides;
+    private final int[] mPixelStrides;
+    private final Recycler mRecycler;
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+
+    FrameImage(int format, int width, int height, long timestamp, ByteBuffer[] planes,
+               int[] rowStrides, int[] pixelStrides, Recycler recycler) {
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mTimestamp = timestamp;
+        mPlanes = planes;
+        mRowStrides = rowStrides;
+        mPixelStrides = pixelStrides;
+        mRecycler = recycler;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return The sensor timestamp of the frame, matching {@link FrameResult#getSensorTimestamp()}
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getPlaneCount() {
+        return mPlanes.length;
+    }
+
+    /**
+     * @return The data of plane {@code index}, positioned at its start
+     */
+    public ByteBuffer getBuffer(int index) {
+        checkOpen();
+        return mPlanes[index];
+    }
+
+    public int getRowStride(int index) {
+        return mRowStrides[index];
+    }
+
+    public int getPixelStride(int index) {
+        return mPixelStrides[index];
+    }
+
+    /**
+     * Hands the buffers back to the backend. Further calls are ignored.
+     */
+    public void close() {
+        if (mClosed.compareAndSet(false, true)) {
+            mRecycler.recycle(this);
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed.get();
+    }
+
+    private void checkOpen() {
+        if (mClosed.get()) {
+            throw new IllegalStateException("Image is already closed");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * The metadata of one frame from a {@link CameraBackend}, the counterpart of a
+ * {@code TotalCaptureResult}: the frame number, the sensor timestamp, the AF and AE states and the
+ * detected faces.
+ */
+public final class FrameResult {
+
+    private final long mFrameNumber;
+    private final long mSensorTimestamp;
+    private final int mAfState;
+    private final int mAeState;
+    private final int[] mFaces;
+
+    /**
+     * @param afState One of the {@code CaptureResult.CONTROL_AF_STATE_*} values, or
+     *                {@link CaptureStateMachine#UNKNOWN}
+     * @param aeState One of the {@code CaptureResult.CONTROL_AE_STATE_*} values, or
+     *                {@link CaptureStateMachine#UNKNOWN}
+     * @param faces   Face bounds in active array coordinates as {@code (left, top, right,
+     *                bottom)} quadruples
+     */
+    public FrameResult(long frameNumber, long sensorTimestamp, int afState, int aeState,
+                       int[] faces) {
+        if (faces.length % 4 != 0) {
+            throw new IllegalArgumentException("faces must hold left, top, right, bottom");
+        }
+        mFrameNumber = frameNumber;
+        mSensorTimestamp = sensorTimestamp;
+        mAfState = afState;
+        mAeState = aeState;
+        mFaces = faces;
+    }
+
+    public long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    public long getSensorTimestamp() {
+        return mSensorTimestamp;
+    }
+
+    public int getAfState() {
+        return mAfState;
+    }
+
+    public int getAeState() {
+        return mAeState;
+    }
+
+    public int getFaceCount() {
+        return mFaces.length / 4;
+    }
+
+    public int getFaceLeft(int index) {
+        return mFaces[index * 4];
+    }
+
+    public int getFaceTop(int index) {
+        return mFaces[index * 4 + 1];
+    }
+
+    public int getFaceRight(int index) {
+        return mFaces[index * 4 + 2];
+    }
+
+    public int getFaceBottom(int index) {
+        return mFaces[index * 4 + 3];
+    }
+
+    @Override
+    public String toString() {
+        return "FrameResult{frame=" + mFrameNumber + ", timestamp=" + mSensorTimestamp
+                + ", af=" + mAfState + ", ae=" + mAeState + ", faces=" + getFaceCount() + "}";
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JPEG write path of {@link ImageSaver}: {@link ImageFileWriter#write(ByteBuffer, File)} of a
+ * direct buffer into a temporary file renamed into place, under each {@link DurabilityPolicy}.
+ *
+ * <p>The files go to {@code java.io.tmpdir}, so the numbers depend on the disk behind it.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ImageSaverBenchmark {
+
+    /**
+     * Files written in turn, like a burst filling a directory.
+     */
+    private static final int FILES = 16;
+
+    @Param({"none", "interval", "everyFile"})
+    public String policy;
+
+    @Param({"524288", "4194304"})
+    public int jpegBytes;
+
+    private ByteBuffer mJpeg;
+    private File mDirectory;
+    private File[] mFiles;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mJpeg = SimulatedFrames.jpeg(jpegBytes);
+        mDirectory = File.createTempFile("ImageSaverBenchmark", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        mFiles = new File[FILES];
+        for (int i = 0; i < FILES; i++) {
+            mFiles[i] = new File(mDirectory, "IMG_" + i + ".jpg");
+        }
+        switch (policy) {
+            case "none":
+                ImageFileWriter.setDurabilityPolicy(DurabilityPolicy.none());
+                break;
+            case "interval":
+                ImageFileWriter.setDurabilityPolicy(DurabilityPolicy.interval(1000));
+                break;
+            case "everyFile":
+                ImageFileWriter.setDurabilityPolicy(DurabilityPolicy.everyFile());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown policy " + policy);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ImageFileWriter.flush();
+        for (File file : mFiles) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        File file = mFiles[mNext];
+        mNext = (mNext + 1) % FILES;
+        return ImageFileWriter.write(mJpeg.duplicate(), file);
+    }
+}
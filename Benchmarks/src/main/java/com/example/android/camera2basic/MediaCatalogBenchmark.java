@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries of a {@link MediaCatalog} of a few thousand captures, and reopening it, which replays
+ * its log.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MediaCatalogBenchmark {
+
+    private static final int CAPTURES = 5000;
+
+    /**
+     * A capture every ten minutes.
+     */
+    private static final long INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    private static final long START_MILLIS = 1496400000000L;
+
+    private File mFile;
+    private MediaCatalog mCatalog;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("MediaCatalogBenchmark", ".catalog");
+        mFile.delete();
+        mCatalog = new MediaCatalog(mFile);
+        for (int i = 0; i < CAPTURES; i++) {
+            mCatalog.add(new MediaCatalog.Entry("IMAGE_" + i + ".jpg",
+                    START_MILLIS + i * INTERVAL_MILLIS, 3000000, 4032, 3024, i % 4 == 0 ? "1" : "0",
+                    0, i % 3));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mCatalog.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public List<MediaCatalog.Entry> latest() {
+        return mCatalog.getLatest(20);
+    }
+
+    /**
+     * One day of captures.
+     */
+    @Benchmark
+    public List<MediaCatalog.Entry> range() {
+        long from = START_MILLIS + CAPTURES / 2 * INTERVAL_MILLIS;
+        return mCatalog.getRange(from, from + TimeUnit.DAYS.toMillis(1));
+    }
+
+    @Benchmark
+    public List<MediaCatalog.Entry> byCamera() {
+        return mCatalog.getByCamera("1", 20);
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        MediaCatalog catalog = new MediaCatalog(mFile);
+        int count = catalog.getCount();
+        catalog.close();
+        return count;
+    }
+}
@@ -0,0 +1,632 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link CameraBackend} that makes up its frames, for running and benchmarking the capture,
+ * save, analysis and face pipelines on a desktop JVM.
+ *
+ * <p>Everything the camera reports follows from the frame number and the seed: sensor timestamps
+ * are {@code frameNumber * framePeriod}, focus locks a set number of frames after the AF trigger,
+ * the precapture takes a set number of frames, faces come and go in a fixed pattern, and
+ * failures are drawn from a {@link Random} with the seed. JPEG images are delivered a set number
+ * of frames after their request, like the encoding latency of a real camera. The content of the
+ * images is synthetic: a gradient YUV frame stamped with its frame number, and a JPEG-framed
+ * block of random bytes of the configured size, filled once when the session is configured so
+ * producing a frame costs next to nothing.</p>
+ *
+ * <p>In real-time mode frames are produced every frame period on a thread of the backend, and
+ * the {@link CameraBackend.Listener} is called on it. Otherwise nothing happens until
+ * {@link #advanceFrame()}, which produces one frame on the calling thread; this runs a pipeline
+ * as fast as it can go, and makes the order of every callback deterministic.</p>
+ */
+public class SimulatedCameraBackend implements CameraBackend {
+
+    /*
+     * AF and AE states, with the values of the CaptureResult constants of the same name.
+     */
+    private static final int AF_STATE_PASSIVE_FOCUSED = 2;
+    private static final int AF_STATE_ACTIVE_SCAN = 3;
+    private static final int AE_STATE_SEARCHING = 1;
+
+    private static final int LENS_FACING_FRONT = 0;
+    private static final int LENS_FACING_BACK = 1;
+
+    /**
+     * Configures a {@link SimulatedCameraBackend}.
+     */
+    public static class Builder {
+
+        private long mSeed = 1;
+        private boolean mRealTime;
+        private long mFramePeriodNanos = 33333333;
+        private long mOpenLatencyMillis;
+        private int mStillLatencyFrames = 3;
+        private int mJpegBytes = 2 * 1024 * 1024;
+        private boolean mReports3a = true;
+        private boolean mFixedFocus;
+        private int mAfLockFrames = 4;
+        private int mAeConvergeFrames = 10;
+        private int mPrecaptureFrames = 3;
+        private boolean mLowLight;
+        private int mMaxFaces;
+        private int mFacePeriodFrames = 30;
+        private boolean mOpenFails;
+        private double mCaptureFailureRate;
+
+        public Builder setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        /**
+         * @param realTime Whether frames are produced every frame period on a thread of the
+         *                 backend, instead of by {@link #advanceFrame()}
+         */
+        public Builder setRealTime(boolean realTime) {
+            mRealTime = realTime;
+            return this;
+        }
+
+        public Builder setFramePeriodNanos(long framePeriodNanos) {
+            mFramePeriodNanos = framePeriodNanos;
+            return this;
+        }
+
+        /**
+         * @param openLatencyMillis Time from {@link #open} to the device being open, in real-time
+         *                          mode
+         */
+        public Builder setOpenLatencyMillis(long openLatencyMillis) {
+            mOpenLatencyMillis = openLatencyMillis;
+            return this;
+        }
+
+        /**
+         * @param stillLatencyFrames Frames from a JPEG request to its image
+         */
+        public Builder setStillLatencyFrames(int stillLatencyFrames) {
+            mStillLatencyFrames = stillLatencyFrames;
+            return this;
+        }
+
+        public Builder setJpegBytes(int jpegBytes) {
+            mJpegBytes = jpegBytes;
+            return this;
+        }
+
+        /**
+         * @param reports3a Whether results carry AF and AE states, which some devices omit
+         */
+        public Builder setReports3a(boolean reports3a) {
+            mReports3a = reports3a;
+            return this;
+        }
+
+        public Builder setFixedFocus(boolean fixedFocus) {
+            mFixedFocus = fixedFocus;
+            return this;
+        }
+
+        /**
+         * @param afLockFrames Frames from the AF trigger to the focus being locked
+         */
+        public Builder setAfLockFrames(int afLockFrames) {
+            mAfLockFrames = afLockFrames;
+            return this;
+        }
+
+        /**
+         * @param aeConvergeFrames Frames from the session start to the exposure converging
+         */
+        public Builder setAeConvergeFrames(int aeConvergeFrames) {
+            mAeConvergeFrames = aeConvergeFrames;
+            return this;
+        }
+
+        /**
+         * @param precaptureFrames Frames the precapture sequence lasts
+         */
+        public Builder setPrecaptureFrames(int precaptureFrames) {
+            mPrecaptureFrames = precaptureFrames;
+            return this;
+        }
+
+        /**
+         * @param lowLight Whether the exposure asks for the flash instead of converging, until a
+         *                 precapture
+         */
+        public Builder setLowLight(boolean lowLight) {
+            mLowLight = lowLight;
+            return this;
+        }
+
+        /**
+         * @param maxFaces    The most faces in a frame; the count cycles from none to this
+         * @param periodFrames Frames between changes of the face count
+         */
+        public Builder setFaces(int maxFaces, int periodFrames) {
+            mMaxFaces = maxFaces;
+            mFacePeriodFrames = Math.max(1, periodFrames);
+            return this;
+        }
+
+        public Builder setOpenFails(boolean openFails) {
+            mOpenFails = openFails;
+            return this;
+        }
+
+        /**
+         * @param captureFailureRate The share of frames reported as failed, from 0 to 1
+         */
+        public Builder setCaptureFailureRate(double captureFailureRate) {
+            mCaptureFailureRate = captureFailureRate;
+            return this;
+        }
+
+        public SimulatedCameraBackend build() {
+            return new SimulatedCameraBackend(this);
+        }
+    }
+
+    /**
+     * The buffers of one image of a stream, recycled when the image is closed.
+     */
+    private static final class Slot implements FrameImage.Recycler {
+
+        private final ByteBuffer[] mPlanes;
+        private final int[] mLimits;
+        private final ArrayBlockingQueue<Slot> mFree;
+
+        Slot(ByteBuffer[] planes, ArrayBlockingQueue<Slot> free) {
+            mPlanes = planes;
+            mLimits = new int[planes.length];
+            for (int i = 0; i < planes.length; i++) {
+                mLimits[i] = planes[i].limit();
+            }
+            mFree = free;
+        }
+
+        @Override
+        public void recycle(FrameImage image) {
+            for (int i = 0; i < mPlanes.length; i++) {
+                mPlanes[i].clear();
+                mPlanes[i].limit(mLimits[i]);
+            }
+            mFree.offer(this);
+        }
+    }
+
+    /**
+     * The images of one stream.
+     */
+    private static final class Stream {
+
+        private final int mFormat;
+        private final int mWidth;
+        private final int mHeight;
+        private final int[] mRowStrides;
+        private final int[] mPixelStrides;
+        private final ArrayBlockingQueue<Slot> mFree;
+
+        Stream(int format, int width, int height, int[] rowStrides, int[] pixelStrides,
+               int maxImages) {
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+            mRowStrides = rowStrides;
+            mPixelStrides = pixelStrides;
+            mFree = new ArrayBlockingQueue<>(maxImages);
+        }
+
+        /**
+         * @return A free slot, or null if every image is held
+         */
+        Slot acquire() {
+            return mFree.poll();
+        }
+
+        FrameImage wrap(Slot slot, long timestamp) {
+            return new FrameImage(mFormat, mWidth, mHeight, timestamp, slot.mPlanes,
+                    mRowStrides, mPixelStrides, slot);
+        }
+    }
+
+    /**
+     * A JPEG on its way out of the simulated encoder.
+     */
+    private static final class PendingJpeg {
+
+        private final long mDueFrame;
+        private final Slot mSlot;
+        private final long mTimestamp;
+
+        PendingJpeg(long dueFrame, Slot slot, long timestamp) {
+            mDueFrame = dueFrame;
+            mSlot = slot;
+            mTimestamp = timestamp;
+        }
+    }
+
+    private static final String[] CAMERA_IDS = {"0", "1"};
+
+    private final Builder mConfig;
+    private final Random mRandom;
+    private final ConcurrentLinkedQueue<Request> mCaptures = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<PendingJpeg> mPendingJpegs = new ConcurrentLinkedQueue<>();
+    private final AtomicLong mDroppedImages = new AtomicLong();
+    private final AtomicLong mFailedFrames = new AtomicLong();
+
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mFrames;
+    private volatile Listener mListener;
+    private volatile String mCameraId;
+    private volatile Request mRepeating;
+    private volatile Stream mYuvStream;
+    private volatile Stream mJpegStream;
+
+    /*
+     * Guarded by this.
+     */
+    private long mFrameNumber;
+    private long mSessionStartFrame;
+    private int mAfState = AF_STATE_PASSIVE_FOCUSED;
+    private long mAfLockedFrame = -1;
+    private long mPrecaptureEndFrame = -1;
+    private boolean mPrecaptured;
+
+    private final Runnable mFrameTask = new Runnable() {
+        @Override
+        public void run() {
+            advanceFrame();
+        }
+    };
+
+    private SimulatedCameraBackend(Builder builder) {
+        mConfig = builder;
+        mRandom = new Random(builder.mSeed);
+    }
+
+    @Override
+    public String[] getCameraIds() {
+        return CAMERA_IDS.clone();
+    }
+
+    @Override
+    public CameraCapabilities getCapabilities(String cameraId) {
+        boolean front = CAMERA_IDS[1].equals(cameraId);
+        int width = front ? 3264 : 4032;
+        int height = front ? 2448 : 3024;
+        int[] stillSizes = {width, height, width, width * 9 / 16, 1920, 1080, 640, 480};
+        return new CameraCapabilities.Builder(cameraId)
+                .setFacing(front ? LENS_FACING_FRONT : LENS_FACING_BACK)
+                .setSensorOrientation(front ? 270 : 90)
+                .setFlashAvailable(!front)
+                .setFixedFocus(mConfig.mFixedFocus)
+                .setMaxDigitalZoom(front ? 4f : 8f)
+                .setActiveArray(0, 0, width, height)
+                .setFaceDetect(new int[]{0, 1}, Math.max(1, mConfig.mMaxFaces))
+                .setSizes(CameraCapabilities.TABLE_JPEG, stillSizes)
+                .setSizes(CameraCapabilities.TABLE_YUV, stillSizes)
+                .setSizes(CameraCapabilities.TABLE_PREVIEW, new int[]{1920, 1080, 1440, 1080,
+                        1280, 720, 640, 480})
+                .setSizes(CameraCapabilities.TABLE_VIDEO, new int[]{1920, 1080, 1280, 720})
+                .build();
+    }
+
+    @Override
+    public void open(final String cameraId, final Listener listener) {
+        close();
+        mListener = listener;
+        if (!mConfig.mRealTime) {
+            finishOpen(cameraId, listener);
+            return;
+        }
+        synchronized (this) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "SimulatedCamera");
+                }
+            });
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    finishOpen(cameraId, listener);
+                }
+            }, mConfig.mOpenLatencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void finishOpen(String cameraId, Listener listener) {
+        if (mConfig.mOpenFails) {
+            listener.onError(cameraId, ERROR_CAMERA_DEVICE);
+            return;
+        }
+        mCameraId = cameraId;
+        listener.onOpened(cameraId);
+    }
+
+    @Override
+    public void configure(int yuvWidth, int yuvHeight, int jpegWidth, int jpegHeight,
+                          int maxImages) {
+        if (null == mCameraId) {
+            throw new IllegalStateException("No camera is open");
+        }
+        mRepeating = null;
+        mCaptures.clear();
+        mPendingJpegs.clear();
+        Stream yuvStream = createYuvStream(yuvWidth, yuvHeight, maxImages);
+        Stream jpegStream = createJpegStream(jpegWidth, jpegHeight, maxImages);
+        synchronized (this) {
+            mYuvStream = yuvStream;
+            mJpegStream = jpegStream;
+            // The exposure converges again, as after a new capture session.
+            mSessionStartFrame = mFrameNumber;
+            mAfState = AF_STATE_PASSIVE_FOCUSED;
+            mAfLockedFrame = -1;
+            mPrecaptureEndFrame = -1;
+            mPrecaptured = false;
+            if (null != mExecutor && null == mFrames) {
+                mFrames = mExecutor.scheduleAtFixedRate(mFrameTask, 0,
+                        mConfig.mFramePeriodNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    @Override
+    public void setRepeatingRequest(Request request) {
+        mRepeating = request;
+    }
+
+    @Override
+    public void capture(Request request) {
+        mCaptures.add(request);
+    }
+
+    @Override
+    public void stopRepeating() {
+        mRepeating = null;
+    }
+
+    @Override
+    public void close() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = mExecutor;
+            mExecutor = null;
+            mFrames = null;
+        }
+        if (null != executor) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        mCameraId = null;
+        mRepeating = null;
+        mCaptures.clear();
+        mPendingJpegs.clear();
+        mYuvStream = null;
+        mJpegStream = null;
+    }
+
+    /**
+     * @return Frames whose image was not delivered because every buffer of its stream was held
+     */
+    public long getDroppedImages() {
+        return mDroppedImages.get();
+    }
+
+    public long getFailedFrames() {
+        return mFailedFrames.get();
+    }
+
+    /**
+     * @return The number of the next frame
+     */
+    public synchronized long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    /**
+     * Produces one frame: fills the next one-off request, or the repeating one, updates the
+     * simulated focus and exposure, and delivers the images that are due. Called by the frame
+     * thread in real-time mode; call it directly otherwise.
+     */
+    public synchronized void advanceFrame() {
+        Listener listener = mListener;
+        if (null == listener || null == mCameraId || null == mYuvStream) {
+            return;
+        }
+        long frame = mFrameNumber++;
+        long timestamp = frame * mConfig.mFramePeriodNanos;
+        deliverJpegs(listener, frame);
+        Request request = mCaptures.poll();
+        if (null == request) {
+            request = mRepeating;
+        }
+        if (null == request) {
+            return;
+        }
+        update3a(request, frame);
+        if (mConfig.mCaptureFailureRate > 0 && mRandom.nextDouble() < mConfig.mCaptureFailureRate) {
+            mFailedFrames.incrementAndGet();
+            listener.onCaptureFailed(request, frame);
+            return;
+        }
+        listener.onCaptureStarted(request, timestamp);
+        if (request.hasOutput(OUTPUT_YUV)) {
+            Slot slot = mYuvStream.acquire();
+            if (null == slot) {
+                mDroppedImages.incrementAndGet();
+            } else {
+                stamp(slot.mPlanes[0], frame);
+                listener.onImageAvailable(mYuvStream.wrap(slot, timestamp));
+            }
+        }
+        if (request.hasOutput(OUTPUT_JPEG)) {
+            Slot slot = mJpegStream.acquire();
+            if (null == slot) {
+                mDroppedImages.incrementAndGet();
+            } else {
+                // Past the SOI marker, so the image still looks like a JPEG.
+                stamp(slot.mPlanes[0], frame, 2);
+                mPendingJpegs.add(new PendingJpeg(frame + mConfig.mStillLatencyFrames, slot,
+                        timestamp));
+            }
+        }
+        boolean reports3a = mConfig.mReports3a;
+        listener.onCaptureCompleted(request, new FrameResult(frame, timestamp,
+                reports3a ? mAfState : CaptureStateMachine.UNKNOWN,
+                reports3a ? aeState(frame) : CaptureStateMachine.UNKNOWN, faces(frame)));
+    }
+
+    private void deliverJpegs(Listener listener, long frame) {
+        PendingJpeg pending;
+        while (null != (pending = mPendingJpegs.peek()) && pending.mDueFrame <= frame) {
+            mPendingJpegs.poll();
+            listener.onImageAvailable(mJpegStream.wrap(pending.mSlot, pending.mTimestamp));
+        }
+    }
+
+    private void update3a(Request request, long frame) {
+        if (mConfig.mFixedFocus) {
+            mAfState = CaptureStateMachine.AF_STATE_INACTIVE;
+        } else if (request.getAfTrigger() == TRIGGER_START) {
+            mAfState = AF_STATE_ACTIVE_SCAN;
+            mAfLockedFrame = frame + mConfig.mAfLockFrames;
+        } else if (request.getAfTrigger() == TRIGGER_CANCEL) {
+            mAfState = AF_STATE_PASSIVE_FOCUSED;
+            mAfLockedFrame = -1;
+        } else if (mAfLockedFrame >= 0 && frame >= mAfLockedFrame) {
+            mAfState = CaptureStateMachine.AF_STATE_FOCUSED_LOCKED;
+        }
+        if (request.getAePrecaptureTrigger() == TRIGGER_START) {
+            mPrecaptureEndFrame = frame + mConfig.mPrecaptureFrames;
+            mPrecaptured = true;
+        }
+    }
+
+    private int aeState(long frame) {
+        if (mPrecaptureEndFrame >= 0 && frame < mPrecaptureEndFrame) {
+            return CaptureStateMachine.AE_STATE_PRECAPTURE;
+        }
+        if (frame - mSessionStartFrame < mConfig.mAeConvergeFrames) {
+            return AE_STATE_SEARCHING;
+        }
+        if (mConfig.mLowLight && !mPrecaptured) {
+            return CaptureStateMachine.AE_STATE_FLASH_REQUIRED;
+        }
+        return CaptureStateMachine.AE_STATE_CONVERGED;
+    }
+
+    /**
+     * @return Face bounds that drift across the frame, their number cycling with the frame number
+     */
+    private int[] faces(long frame) {
+        if (mConfig.mMaxFaces <= 0) {
+            return new int[0];
+        }
+        int count = (int) ((frame / mConfig.mFacePeriodFrames) % (mConfig.mMaxFaces + 1));
+        int[] faces = new int[count * 4];
+        int size = 400;
+        for (int i = 0; i < count; i++) {
+            int left = (int) ((frame * 8 + i * 900) % 3000);
+            int top = 600 + i * 500;
+            faces[i * 4] = left;
+            faces[i * 4 + 1] = top;
+            faces[i * 4 + 2] = left + size;
+            faces[i * 4 + 3] = top + size;
+        }
+        return faces;
+    }
+
+    private Stream createYuvStream(int width, int height, int maxImages) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        // Semi-planar, as most devices: U and V interleaved with a pixel stride of 2.
+        Stream stream = new Stream(FrameImage.FORMAT_YUV_420_888, width, height,
+                new int[]{width, chromaWidth * 2, chromaWidth * 2}, new int[]{1, 2, 2}, maxImages);
+        for (int i = 0; i < maxImages; i++) {
+            ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    y.put((byte) (col + row));
+                }
+            }
+            y.clear();
+            ByteBuffer chroma = ByteBuffer.allocateDirect(chromaWidth * 2 * chromaHeight);
+            while (chroma.hasRemaining()) {
+                chroma.put((byte) 128);
+            }
+            chroma.clear();
+            ByteBuffer u = chroma.duplicate();
+            ByteBuffer v = chroma.duplicate();
+            v.position(1);
+            v = v.slice();
+            u.limit(chroma.capacity() - 1);
+            stream.mFree.offer(new Slot(new ByteBuffer[]{y, u, v}, stream.mFree));
+        }
+        return stream;
+    }
+
+    private Stream createJpegStream(int width, int height, int maxImages) {
+        Stream stream = new Stream(FrameImage.FORMAT_JPEG, width, height, new int[]{0},
+                new int[]{0}, maxImages);
+        int bytes = Math.max(4, mConfig.mJpegBytes);
+        byte[] data = new byte[bytes];
+        mRandom.nextBytes(data);
+        data[0] = (byte) 0xFF;
+        data[1] = (byte) 0xD8;
+        data[bytes - 2] = (byte) 0xFF;
+        data[bytes - 1] = (byte) 0xD9;
+        for (int i = 0; i < maxImages; i++) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes);
+            buffer.put(data);
+            buffer.clear();
+            stream.mFree.offer(new Slot(new ByteBuffer[]{buffer}, stream.mFree));
+        }
+        return stream;
+    }
+
+    private static void stamp(ByteBuffer buffer, long frame) {
+        stamp(buffer, frame, 0);
+    }
+
+    /**
+     * Writes {@code frame} into the buffer at {@code offset}, so images can be told apart.
+     */
+    private static void stamp(ByteBuffer buffer, long frame, int offset) {
+        if (buffer.capacity() >= offset + 8) {
+            buffer.putLong(offset, frame);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark input recorded from a {@link SimulatedCameraBackend} in manual mode, so every run
+ * works on the same bytes and results.
+ */
+final class SimulatedFrames implements CameraBackend.Listener {
+
+    private static final int SEED = 42;
+
+    /**
+     * Preview frames before a still capture, enough for the simulated exposure to settle.
+     */
+    private static final int CONVERGE_FRAMES = 30;
+
+    /**
+     * Frames after which a still capture that has not reached its request is given up on.
+     */
+    private static final int MAX_SEQUENCE_FRAMES = 300;
+
+    private final List<FrameResult> mResults = new ArrayList<>();
+    private FrameImage mYuv;
+    private FrameImage mJpeg;
+
+    private SimulatedFrames() {
+    }
+
+    /**
+     * @return A copy of one JPEG image of {@code bytes} bytes, in a direct buffer like the plane
+     * of an {@code android.media.Image}
+     */
+    static ByteBuffer jpeg(int bytes) {
+        SimulatedFrames frames = new SimulatedFrames();
+        SimulatedCameraBackend backend = open(new SimulatedCameraBackend.Builder()
+                .setJpegBytes(bytes), frames, 640, 480);
+        backend.capture(new CameraBackend.Request(CameraBackend.OUTPUT_JPEG,
+                CameraBackend.TRIGGER_NONE, CameraBackend.TRIGGER_NONE, null));
+        while (null == frames.mJpeg) {
+            backend.advanceFrame();
+        }
+        ByteBuffer plane = frames.mJpeg.getBuffer(0);
+        ByteBuffer copy = ByteBuffer.allocateDirect(plane.remaining());
+        copy.put(plane).flip();
+        frames.mJpeg.close();
+        backend.close();
+        return copy;
+    }
+
+    /**
+     * @return An open YUV_420_888 image of the given size
+     */
+    static FrameImage yuv(int width, int height) {
+        SimulatedFrames frames = new SimulatedFrames();
+        SimulatedCameraBackend backend = open(new SimulatedCameraBackend.Builder(), frames,
+                width, height);
+        backend.capture(new CameraBackend.Request(CameraBackend.OUTPUT_YUV,
+                CameraBackend.TRIGGER_NONE, CameraBackend.TRIGGER_NONE, null));
+        backend.advanceFrame();
+        backend.close();
+        return frames.mYuv;
+    }
+
+    /**
+     * @return The results of {@code count} preview frames with up to {@code maxFaces} faces
+     */
+    static FrameResult[] results(int count, int maxFaces) {
+        SimulatedFrames frames = new SimulatedFrames();
+        SimulatedCameraBackend backend = open(new SimulatedCameraBackend.Builder()
+                .setFaces(maxFaces, 7), frames, 640, 480);
+        backend.setRepeatingRequest(new CameraBackend.Request(CameraBackend.OUTPUT_PREVIEW,
+                CameraBackend.TRIGGER_NONE, CameraBackend.TRIGGER_NONE, null));
+        for (int i = 0; i < count; i++) {
+            backend.advanceFrame();
+        }
+        backend.close();
+        return frames.mResults.toArray(new FrameResult[frames.mResults.size()]);
+    }
+
+    /**
+     * Records the preview results of one still capture, driven by a {@link CaptureStateMachine}
+     * as in the app: the last result before the shutter is pressed, then the results of the
+     * focus lock and, when {@code lowLight}, of the precapture, up to the one after which the
+     * still request is submitted.
+     */
+    static FrameResult[] stillSequence(boolean lowLight, int maxFaces) {
+        final SimulatedFrames frames = new SimulatedFrames();
+        final SimulatedCameraBackend backend = open(new SimulatedCameraBackend.Builder()
+                .setLowLight(lowLight).setFaces(maxFaces, 7), frames, 640, 480);
+        backend.setRepeatingRequest(new CameraBackend.Request(CameraBackend.OUTPUT_PREVIEW,
+                CameraBackend.TRIGGER_NONE, CameraBackend.TRIGGER_NONE, null));
+        CaptureStateMachine stateMachine = new CaptureStateMachine(
+                new CaptureStateMachine.Listener() {
+            @Override
+            public void onLockFocus() {
+                backend.capture(new CameraBackend.Request(CameraBackend.OUTPUT_PREVIEW,
+                        CameraBackend.TRIGGER_START, CameraBackend.TRIGGER_NONE, null));
+            }
+
+            @Override
+            public void onRunPrecapture() {
+                backend.capture(new CameraBackend.Request(CameraBackend.OUTPUT_PREVIEW,
+                        CameraBackend.TRIGGER_NONE, CameraBackend.TRIGGER_START, null));
+            }
+
+            @Override
+            public void onCaptureStill() {
+            }
+
+            @Override
+            public void onSubmitBurst() {
+            }
+
+            @Override
+            public void onCaptureTimedOut() {
+            }
+
+            @Override
+            public void onStateLeft(int state, long durationNanos) {
+            }
+        });
+        PreviewResultProcessor processor = new PreviewResultProcessor(stateMachine);
+        // Lets the exposure settle, as it has by the time anyone presses the shutter.
+        for (int i = 0; i < CONVERGE_FRAMES; i++) {
+            backend.advanceFrame();
+        }
+        FrameResult pressed = frames.mResults.get(frames.mResults.size() - 1);
+        frames.mResults.clear();
+        frames.mResults.add(pressed);
+        processor.onStates(false, pressed.getAfState(), pressed.getAeState(),
+                pressed.getSensorTimestamp());
+        stateMachine.startStill(pressed.getSensorTimestamp());
+        while (stateMachine.getState() != CaptureStateMachine.STATE_PICTURE_TAKEN) {
+            if (frames.mResults.size() > MAX_SEQUENCE_FRAMES) {
+                throw new IllegalStateException("Still capture stuck in "
+                        + CaptureStateMachine.getStateName(stateMachine.getState()));
+            }
+            backend.advanceFrame();
+            FrameResult result = frames.mResults.get(frames.mResults.size() - 1);
+            processor.onStates(false, result.getAfState(), result.getAeState(),
+                    result.getSensorTimestamp());
+        }
+        backend.close();
+        return frames.mResults.toArray(new FrameResult[frames.mResults.size()]);
+    }
+
+    private static SimulatedCameraBackend open(SimulatedCameraBackend.Builder builder,
+                                               SimulatedFrames frames, int width, int height) {
+        SimulatedCameraBackend backend = builder.setSeed(SEED).build();
+        backend.open(backend.getCameraIds()[0], frames);
+        backend.configure(width, height, width, height, 2);
+        return backend;
+    }
+
+    @Override
+    public void onOpened(String cameraId) {
+    }
+
+    @Override
+    public void onError(String cameraId, int error) {
+        throw new IllegalStateException("Simulated camera " + cameraId + " failed: " + error);
+    }
+
+    @Override
+    public void onCaptureStarted(CameraBackend.Request request, long sensorTimestamp) {
+    }
+
+    @Override
+    public void onCaptureCompleted(CameraBackend.Request request, FrameResult result) {
+        mResults.add(result);
+    }
+
+    @Override
+    public void onCaptureFailed(CameraBackend.Request request, long frameNumber) {
+    }
+
+    @Override
+    public void onImageAvailable(FrameImage image) {
+        if (image.getFormat() == FrameImage.FORMAT_JPEG) {
+            mJpeg = image;
+        } else {
+            mYuv = image;
+        }
+    }
+}
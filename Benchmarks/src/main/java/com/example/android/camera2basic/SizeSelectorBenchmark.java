@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output size selection with {@link SizeSelector}, over the size lists of real devices, next to
+ * the list-and-comparator search of the original {@code chooseOptimalSize} and
+ * {@code CompareSizesByArea} as a baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class SizeSelectorBenchmark {
+
+    /**
+     * The JPEG sizes of a back camera with a 12 MP 4:3 sensor.
+     */
+    private static final int[] JPEG_4032 = {
+            4032, 3024, 4000, 3000, 3840, 2160, 3264, 2448, 3200, 2400, 2976, 2976, 2592, 1944,
+            2688, 1512, 2048, 1536, 1920, 1080, 1600, 1200, 1440, 1080, 1280, 960, 1280, 768,
+            1280, 720, 1024, 768, 800, 600, 864, 480, 800, 480, 720, 480, 640, 480, 640, 360,
+            480, 360, 480, 320, 352, 288, 320, 240, 176, 144, 160, 120};
+
+    /**
+     * The preview sizes of the same camera.
+     */
+    private static final int[] PREVIEW_4032 = {
+            1920, 1080, 1440, 1080, 1280, 960, 1280, 720, 1088, 1088, 1024, 768, 960, 720,
+            864, 480, 800, 600, 800, 480, 720, 480, 640, 480, 640, 360, 480, 360, 352, 288,
+            320, 240, 176, 144};
+
+    /**
+     * The JPEG sizes of a back camera with a 16 MP 16:9 sensor.
+     */
+    private static final int[] JPEG_5312 = {
+            5312, 2988, 3984, 2988, 3264, 2448, 3264, 1836, 2976, 2976, 2560, 1440, 2048, 1152,
+            1920, 1080, 1440, 1080, 1280, 720, 1024, 768, 800, 480, 640, 480, 320, 240};
+
+    /**
+     * The preview sizes of the same camera.
+     */
+    private static final int[] PREVIEW_5312 = {
+            1920, 1080, 1440, 1080, 1280, 720, 1056, 864, 960, 720, 800, 450, 720, 480,
+            640, 480, 352, 288, 320, 240, 256, 144, 176, 144};
+
+    @Param({"4032x3024", "5312x2988"})
+    public String sensor;
+
+    private CameraCapabilities mCapabilities;
+    private SizeSelector mSelector;
+    private int[] mPreviewSizes;
+
+    @Setup
+    public void setUp() {
+        boolean wide = "5312x2988".equals(sensor);
+        mPreviewSizes = wide ? PREVIEW_5312 : PREVIEW_4032;
+        mCapabilities = new CameraCapabilities.Builder("0")
+                .setSizes(CameraCapabilities.TABLE_JPEG, wide ? JPEG_5312 : JPEG_4032)
+                .setSizes(CameraCapabilities.TABLE_YUV, wide ? JPEG_5312 : JPEG_4032)
+                .setSizes(CameraCapabilities.TABLE_PREVIEW, mPreviewSizes)
+                .setSizes(CameraCapabilities.TABLE_VIDEO, mPreviewSizes)
+                .build();
+        mSelector = new SizeSelector(mCapabilities);
+    }
+
+    /**
+     * Building the tables, done once per camera.
+     */
+    @Benchmark
+    public SizeSelector build() {
+        return new SizeSelector(mCapabilities);
+    }
+
+    /**
+     * The preview size for a 1440x1080 view, as {@code setUpCameraOutputs()} asks for it.
+     */
+    @Benchmark
+    public long chooseOptimal() {
+        return mSelector.chooseOptimal(CameraCapabilities.TABLE_PREVIEW, 4, 3, 1440, 1080,
+                1920, 1080);
+    }
+
+    @Benchmark
+    public long largestStill() {
+        return mSelector.largest(CameraCapabilities.TABLE_JPEG, 4, 3);
+    }
+
+    @Benchmark
+    public long largestAtMost8Mp() {
+        return mSelector.largestAtMostPixels(CameraCapabilities.TABLE_JPEG, 16, 9, 8000000);
+    }
+
+    /**
+     * The original {@code chooseOptimalSize()}: filter the whole list into two lists and take the
+     * minimum or maximum with {@code CompareSizesByArea}.
+     */
+    @Benchmark
+    public long chooseOptimalBaseline() {
+        int textureViewWidth = 1440;
+        int textureViewHeight = 1080;
+        int maxWidth = 1920;
+        int maxHeight = 1080;
+        List<Long> bigEnough = new ArrayList<>();
+        List<Long> notBigEnough = new ArrayList<>();
+        for (int i = 0; i < mPreviewSizes.length; i += 2) {
+            int width = mPreviewSizes[i];
+            int height = mPreviewSizes[i + 1];
+            if (width <= maxWidth && height <= maxHeight && height == width * 3 / 4) {
+                if (width >= textureViewWidth && height >= textureViewHeight) {
+                    bigEnough.add(SizeSelector.pack(width, height));
+                } else {
+                    notBigEnough.add(SizeSelector.pack(width, height));
+                }
+            }
+        }
+        if (bigEnough.size() > 0) {
+            return Collections.min(bigEnough, new CompareSizesByArea());
+        } else if (notBigEnough.size() > 0) {
+            return Collections.max(notBigEnough, new CompareSizesByArea());
+        }
+        return SizeSelector.NONE;
+    }
+
+    static class CompareSizesByArea implements Comparator<Long> {
+
+        @Override
+        public int compare(Long lhs, Long rhs) {
+            // We cast here to ensure the multiplications won't overflow
+            return Long.signum((long) SizeSelector.width(lhs) * SizeSelector.height(lhs)
+                    - (long) SizeSelector.width(rhs) * SizeSelector.height(rhs));
+        }
+    }
+}
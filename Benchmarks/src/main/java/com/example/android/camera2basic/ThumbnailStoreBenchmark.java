@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The disk level of the thumbnail cache: reading one thumbnail back from a
+ * {@link ThumbnailStore} holding a few thousand, and reopening the store, which rebuilds its
+ * index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ThumbnailStoreBenchmark {
+
+    private static final int THUMBNAILS = 2000;
+
+    /**
+     * About the size of a 192 pixel JPEG thumbnail.
+     */
+    private static final int THUMBNAIL_BYTES = 12 * 1024;
+
+    private File mFile;
+    private ThumbnailStore mStore;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("ThumbnailStoreBenchmark", ".pack");
+        mFile.delete();
+        mStore = new ThumbnailStore(mFile);
+        Random random = new Random(42);
+        byte[] data = new byte[THUMBNAIL_BYTES];
+        for (int i = 0; i < THUMBNAILS; i++) {
+            random.nextBytes(data);
+            mStore.put(name(i), data);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mStore.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+        mNext = (mNext + 7919) % THUMBNAILS;
+        return mStore.get(name(mNext));
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        ThumbnailStore store = new ThumbnailStore(mFile);
+        int count = store.getCount();
+        store.close();
+        return count;
+    }
+
+    private static String name(int index) {
+        return "IMAGE_20170602_120000_" + index + ".jpg";
+    }
+}
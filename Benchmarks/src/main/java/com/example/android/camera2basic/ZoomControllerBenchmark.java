@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The zoom crop computation done on every display frame of a pinch: move the target, then step
+ * the animation and recompute the crop region.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ZoomControllerBenchmark {
+
+    private static final long FRAME_NANOS = 16666667;
+
+    /**
+     * Finger spacings of one pinch out and back in, one per display frame.
+     */
+    private final float[] mSpacings = new float[120];
+
+    private final ZoomController mZoomController = new ZoomController();
+    private int mFrame;
+    private long mFrameNanos;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < mSpacings.length; i++) {
+            double phase = Math.PI * 2 * i / mSpacings.length;
+            mSpacings[i] = (float) (300 + 600 * Math.sin(phase / 2));
+        }
+        mZoomController.setActiveArray(0, 0, 4032, 3024, 8f);
+        mZoomController.beginPinch(mSpacings[0]);
+    }
+
+    @Benchmark
+    public int pinchFrame() {
+        mZoomController.pinch(mSpacings[mFrame]);
+        mFrame = (mFrame + 1) % mSpacings.length;
+        mFrameNanos += FRAME_NANOS;
+        mZoomController.step(mFrameNanos);
+        return mZoomController.getCropLeft() + mZoomController.getCropBottom();
+    }
+}